@@ -0,0 +1,118 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.fieldcaps.FieldCapabilities;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the client side cost of the {@link AlaElasticsearchUtils}
+ * methods, using a {@link StubElasticsearchServer} that serves recorded
+ * elasticsearch 7.10 responses, so that no cluster is needed.
+ * <p>
+ * Run using: {@code mvn -Pbenchmarks test-compile exec:exec}
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AlaElasticsearchUtilsBenchmark {
+
+    static final String RECORDED_RESPONSES = "/au/org/ala/elasticsearch/utils/benchmark/";
+
+    private static final String INDEX = "filebeat-7.10.0-2021.01.18-000001";
+    private static final String TASK_ID = "oTUltX4IQMOUUVeiohTt8A:12345";
+    private static final List<String> DOCUMENT_IDS = List.of("doc-1", "doc-2", "doc-3", "doc-4",
+            "doc-5", "doc-6", "doc-7", "doc-8", "doc-9", "doc-missing");
+
+    private StubElasticsearchServer server;
+    private RestHighLevelClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new StubElasticsearchServer()
+                .respondWithResource("POST", "/[^/_]+/_search",
+                        RECORDED_RESPONSES + "search.json")
+                .respondWithResource("GET", "/[^/_]+/_doc/.+", RECORDED_RESPONSES + "get.json")
+                .respondWithResource("POST", "/_mget", RECORDED_RESPONSES + "mget.json")
+                .respondWithResource("GET", "/[^/_]+/_field_caps",
+                        RECORDED_RESPONSES + "field_caps.json")
+                .respondWithResource("GET", "/_tasks/.+", RECORDED_RESPONSES + "task.json");
+        client = server.newClient();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try {
+            client.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Benchmark
+    public SearchResponse search() throws IOException, InterruptedException {
+        return AlaElasticsearchUtils.search(client, INDEX);
+    }
+
+    @Benchmark
+    public Optional<Map<String, Object>> getDocumentByID()
+            throws IOException, InterruptedException {
+        return AlaElasticsearchUtils.getDocumentByID(client, "doc-1", INDEX);
+    }
+
+    @Benchmark
+    public Optional<SourceDecodingBenchmark.AccessLogEntry> getDocumentByIDDecoded()
+            throws IOException, InterruptedException {
+        return AlaElasticsearchUtils.getDocumentByID(client, "doc-1", INDEX,
+                SourceDecodingBenchmark.AccessLogEntry::decode);
+    }
+
+    @Benchmark
+    public Optional<BytesReference> getDocumentSourceByID()
+            throws IOException, InterruptedException {
+        return AlaElasticsearchUtils.getDocumentSourceByID(client, "doc-1", INDEX);
+    }
+
+    @Benchmark
+    public Map<String, Map<String, Object>> getDocumentsByIDs()
+            throws IOException, InterruptedException {
+        return AlaElasticsearchUtils.getDocumentsByIDs(client, DOCUMENT_IDS, INDEX);
+    }
+
+    @Benchmark
+    public Map<String, Map<String, FieldCapabilities>> getUserDefinedFieldCapabilities()
+            throws IOException, InterruptedException {
+        return AlaElasticsearchUtils.getUserDefinedFieldCapabilities(client, INDEX);
+    }
+
+    @Benchmark
+    public TaskResult waitForTask() throws IOException, InterruptedException {
+        return AlaElasticsearchUtils.waitForTask(client, TASK_ID);
+    }
+}
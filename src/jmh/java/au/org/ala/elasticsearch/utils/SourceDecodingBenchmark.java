@@ -0,0 +1,194 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.fieldcaps.FieldCapabilities;
+import org.elasticsearch.action.fieldcaps.FieldCapabilitiesResponse;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for decoding recorded elasticsearch 7.10 responses without any
+ * network, to compare building a {@link Map} for each source with decoding
+ * directly into a typed record or passing the raw bytes through.
+ * <p>
+ * Run using: {@code mvn -Pbenchmarks test-compile exec:exec}
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SourceDecodingBenchmark {
+
+    /**
+     * A typed record for the recorded access log documents.
+     */
+    static final class AccessLogEntry {
+        final String timestamp;
+        final String message;
+        final String hostName;
+        final int statusCode;
+
+        AccessLogEntry(final String timestamp, final String message, final String hostName,
+                final int statusCode) {
+            this.timestamp = timestamp;
+            this.message = message;
+            this.hostName = hostName;
+            this.statusCode = statusCode;
+        }
+
+        static AccessLogEntry decode(final XContentParser parser) throws IOException {
+            String timestamp = null;
+            String message = null;
+            String hostName = null;
+            int statusCode = 0;
+            parser.nextToken();
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                final String fieldName = parser.currentName();
+                parser.nextToken();
+                if ("@timestamp".equals(fieldName)) {
+                    timestamp = parser.text();
+                } else if ("message".equals(fieldName)) {
+                    message = parser.text();
+                } else if ("host".equals(fieldName)) {
+                    while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                        final String hostFieldName = parser.currentName();
+                        parser.nextToken();
+                        if ("name".equals(hostFieldName)) {
+                            hostName = parser.text();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else if ("http".equals(fieldName)) {
+                    statusCode = decodeStatusCode(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new AccessLogEntry(timestamp, message, hostName, statusCode);
+        }
+
+        private static int decodeStatusCode(final XContentParser parser) throws IOException {
+            int statusCode = 0;
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                final String fieldName = parser.currentName();
+                parser.nextToken();
+                if ("response".equals(fieldName) || "status_code".equals(fieldName)) {
+                    statusCode = parser.currentToken() == XContentParser.Token.START_OBJECT
+                            ? decodeStatusCode(parser)
+                            : parser.intValue();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return statusCode;
+        }
+    }
+
+    private List<BytesReference> sources;
+    private BytesReference fieldCapabilitiesResponse;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        sources = new ArrayList<>();
+        try (XContentParser parser = createParser(
+                readResource(AlaElasticsearchUtilsBenchmark.RECORDED_RESPONSES + "search.json"));) {
+            parser.nextToken();
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                final String fieldName = parser.currentName();
+                parser.nextToken();
+                if ("hits".equals(fieldName)) {
+                    while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                        final String hitsFieldName = parser.currentName();
+                        parser.nextToken();
+                        if ("hits".equals(hitsFieldName)) {
+                            while (parser.nextToken() == XContentParser.Token.START_OBJECT) {
+                                sources.add(SearchHit.fromXContent(parser).getSourceRef());
+                            }
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        fieldCapabilitiesResponse = readResource(
+                AlaElasticsearchUtilsBenchmark.RECORDED_RESPONSES + "field_caps.json");
+    }
+
+    @Benchmark
+    public void decodeSourceAsMap(final Blackhole blackhole) {
+        for (final BytesReference source : sources) {
+            blackhole.consume(XContentHelper.convertToMap(source, false, XContentType.JSON).v2());
+        }
+    }
+
+    @Benchmark
+    public void decodeSourceTyped(final Blackhole blackhole) throws IOException {
+        final SourceDecoder<AccessLogEntry> decoder = AccessLogEntry::decode;
+        for (final BytesReference source : sources) {
+            blackhole.consume(decoder.decode(source));
+        }
+    }
+
+    @Benchmark
+    public void passThroughSource() throws IOException {
+        for (final BytesReference source : sources) {
+            source.writeTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    @Benchmark
+    public Map<String, Map<String, FieldCapabilities>> filterUserDefinedFieldCapabilities()
+            throws IOException {
+        try (XContentParser parser = createParser(fieldCapabilitiesResponse);) {
+            return AlaElasticsearchUtils
+                    .filterUserDefinedFields(FieldCapabilitiesResponse.fromXContent(parser).get());
+        }
+    }
+
+    private static XContentParser createParser(final BytesReference content) throws IOException {
+        return XContentHelper.createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, content, XContentType.JSON);
+    }
+
+    private static BytesReference readResource(final String resource) throws IOException {
+        try (InputStream input = SourceDecodingBenchmark.class.getResourceAsStream(resource);) {
+            return new BytesArray(input.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,703 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+
+/**
+ * Writes documents using asynchronous bulk requests, adapting the size of
+ * each bulk request and the number of requests in flight to the load on the
+ * cluster.
+ * <p>
+ * While bulk requests complete within the target latency without any
+ * rejections, the batch size is increased additively after each request, and
+ * the number of requests in flight is increased by one after each round of
+ * requests. When items or whole requests are rejected with a 429 status, or
+ * a request takes longer than the target latency, both are halved. Only
+ * requests that were sent after the last decrease can cause another decrease,
+ * so the requests that were already in flight during a spike only back off
+ * once.
+ * <p>
+ * Only the rejected items of a bulk request are retried, after a jittered
+ * exponential backoff. A batch keeps its place in flight while it waits to be
+ * retried, so retries also slow down new batches. Items that fail for other
+ * reasons, or are still rejected after the maximum number of retries, are
+ * counted as failed, and the first failure is thrown from the next call to
+ * {@link #add(DocWriteRequest)}, {@link #flush()} or {@link #close()}.
+ * <p>
+ * The current settings and throughput are available from the getters, and
+ * can be registered as a JMX MBean using {@link #registerMBean(String)}. The
+ * latency of each bulk request is also recorded in
+ * {@link ElasticsearchMetrics#getDefault()}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class AdaptiveBulkWriter implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveBulkWriter.class);
+
+    private static final ElasticsearchMetrics METRICS = ElasticsearchMetrics.getDefault();
+
+    /**
+     * The default smallest size of each bulk request, which is also the size
+     * the writer starts at.
+     */
+    public static final ByteSizeValue DEFAULT_MIN_BATCH_SIZE = new ByteSizeValue(512,
+            ByteSizeUnit.KB);
+
+    /**
+     * The default largest size of each bulk request.
+     */
+    public static final ByteSizeValue DEFAULT_MAX_BATCH_SIZE = new ByteSizeValue(16,
+            ByteSizeUnit.MB);
+
+    /**
+     * The default largest number of bulk requests in flight.
+     */
+    public static final int DEFAULT_MAX_CONCURRENCY = 8;
+
+    /**
+     * The default bulk request latency above which the writer backs off.
+     */
+    public static final TimeValue DEFAULT_TARGET_LATENCY = TimeValue.timeValueSeconds(2);
+
+    /**
+     * The default number of times rejected items are retried.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 8;
+
+    /**
+     * The backoff before the first retry of rejected items.
+     */
+    static final TimeValue INITIAL_RETRY_BACKOFF = TimeValue.timeValueMillis(100);
+
+    /**
+     * The longest backoff between retries of rejected items.
+     */
+    static final TimeValue MAX_RETRY_BACKOFF = TimeValue.timeValueSeconds(10);
+
+    /**
+     * The number of additive steps to go from the minimum to the maximum
+     * batch size.
+     */
+    private static final int INCREASE_STEPS = 10;
+
+    /**
+     * The JMX view of the current settings and throughput of an
+     * {@link AdaptiveBulkWriter}.
+     */
+    public interface StatsMXBean {
+        long getBatchBytes();
+
+        int getConcurrency();
+
+        int getInFlight();
+
+        long getDocuments();
+
+        long getFailed();
+
+        long getRetries();
+
+        long getRejections();
+
+        long getBatches();
+
+        long getBytes();
+
+        double getDocumentsPerSecond();
+
+        double getBytesPerSecond();
+    }
+
+    private final RestHighLevelClient client;
+    private final long minBatchBytes;
+    private final long maxBatchBytes;
+    private final int maxConcurrency;
+    private final long targetLatencyNanos;
+    private final int maxRetries;
+    private final ScheduledExecutorService scheduler;
+    private final long startNanos = System.nanoTime();
+
+    private final Object lock = new Object();
+    private BulkRequest buffer = new BulkRequest();
+    private volatile long batchBytes;
+    private volatile int concurrency = 1;
+    private volatile int inFlight;
+    private int successes;
+    private long lastDecreaseNanos = startNanos - 1L;
+    private Exception failure;
+    private boolean closed = false;
+    private ObjectName mbeanName;
+
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Create a new {@link AdaptiveBulkWriter} using the default limits.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     */
+    public AdaptiveBulkWriter(final RestHighLevelClient client) {
+        this(client, DEFAULT_MIN_BATCH_SIZE, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_CONCURRENCY,
+                DEFAULT_TARGET_LATENCY, DEFAULT_MAX_RETRIES);
+    }
+
+    /**
+     * Create a new {@link AdaptiveBulkWriter}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param minBatchSize
+     *            The smallest size of each bulk request, which is also the
+     *            size the writer starts at.
+     * @param maxBatchSize
+     *            The largest size of each bulk request.
+     * @param maxConcurrency
+     *            The largest number of bulk requests in flight. The writer
+     *            starts with a single request in flight.
+     * @param targetLatency
+     *            The bulk request latency above which the writer backs off.
+     * @param maxRetries
+     *            The number of times rejected items are retried before they
+     *            are counted as failed.
+     */
+    public AdaptiveBulkWriter(final RestHighLevelClient client, final ByteSizeValue minBatchSize,
+            final ByteSizeValue maxBatchSize, final int maxConcurrency,
+            final TimeValue targetLatency, final int maxRetries) {
+        if (minBatchSize.getBytes() < 1 || maxBatchSize.getBytes() < minBatchSize.getBytes()) {
+            throw new IllegalArgumentException(
+                    "Invalid batch size bounds: min=" + minBatchSize + " max=" + maxBatchSize);
+        }
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException(
+                    "Max concurrency must be at least 1: " + maxConcurrency);
+        }
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("Max retries must not be negative: " + maxRetries);
+        }
+        this.client = client;
+        this.minBatchBytes = minBatchSize.getBytes();
+        this.maxBatchBytes = maxBatchSize.getBytes();
+        this.maxConcurrency = maxConcurrency;
+        this.targetLatencyNanos = targetLatency.nanos();
+        this.maxRetries = maxRetries;
+        this.batchBytes = minBatchBytes;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "adaptive-bulk-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Add a request to the current batch, sending the batch once it reaches
+     * the current batch size. Waits if the current number of requests are
+     * already in flight.
+     *
+     * @param request
+     *            The index, update or delete request to add.
+     * @throws IOException
+     *             If an earlier bulk request, or any document in it, failed.
+     * @throws InterruptedException
+     *             If waiting for a request to complete was interrupted. The
+     *             request has still been added to the current batch.
+     */
+    public void add(final DocWriteRequest<?> request) throws IOException, InterruptedException {
+        final BulkRequest batch;
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Bulk writer has been closed");
+            }
+            checkFailure();
+            buffer.add(request);
+            batch = takeFullBatch();
+        }
+        if (batch != null) {
+            send(batch, 0, INITIAL_RETRY_BACKOFF.millis());
+        }
+    }
+
+    /**
+     * Send the current batch, and wait for all of the requests in flight,
+     * including their retries, to complete.
+     *
+     * @throws IOException
+     *             If a bulk request, or any document in it, failed, including
+     *             documents that were still rejected after the maximum
+     *             number of retries.
+     * @throws InterruptedException
+     *             If waiting for the requests was interrupted.
+     */
+    public void flush() throws IOException, InterruptedException {
+        BulkRequest batch = null;
+        synchronized (lock) {
+            if (buffer.numberOfActions() > 0) {
+                awaitPermit();
+                batch = buffer;
+                buffer = new BulkRequest();
+            }
+        }
+        if (batch != null) {
+            send(batch, 0, INITIAL_RETRY_BACKOFF.millis());
+        }
+        synchronized (lock) {
+            while (inFlight > 0) {
+                lock.wait();
+            }
+            checkFailure();
+        }
+    }
+
+    /**
+     * Flush the current batch, wait for all of the requests in flight, and
+     * stop accepting new requests.
+     *
+     * @throws IOException
+     *             If a bulk request, or any document in it, failed, or waiting
+     *             for the requests was interrupted.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing bulk writer", e);
+        } finally {
+            synchronized (lock) {
+                closed = true;
+            }
+            scheduler.shutdown();
+            unregisterMBean();
+            LOG.info("Bulk writer closed: {}", this);
+        }
+    }
+
+    /**
+     * Register the settings and throughput of this writer with the platform
+     * MBean server, named
+     * {@code au.org.ala.elasticsearch.utils:type=AdaptiveBulkWriter,name=<name>}.
+     * The MBean is unregistered when the writer is closed.
+     *
+     * @param name
+     *            The name of this writer.
+     * @throws JMException
+     *             If the MBean could not be registered.
+     */
+    public synchronized void registerMBean(final String name) throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        mbeanName = new ObjectName(
+                ElasticsearchMetrics.JMX_DOMAIN + ":type=AdaptiveBulkWriter,name=" + name);
+        server.registerMBean(new StatsView(), mbeanName);
+    }
+
+    private synchronized void unregisterMBean() {
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (final JMException e) {
+                LOG.warn("Failed to unregister {}", mbeanName, e);
+            }
+            mbeanName = null;
+        }
+    }
+
+    /**
+     * @return The current batch, if it has reached the batch size and a
+     *         request can be sent, taking its place in flight.
+     * @throws InterruptedException
+     *             If waiting for a request to complete was interrupted.
+     */
+    private BulkRequest takeFullBatch() throws InterruptedException {
+        // Another thread may send the batch while this one is waiting
+        while (buffer.estimatedSizeInBytes() >= batchBytes) {
+            if (inFlight < concurrency) {
+                inFlight++;
+                final BulkRequest batch = buffer;
+                buffer = new BulkRequest();
+                return batch;
+            }
+            lock.wait();
+        }
+        return null;
+    }
+
+    private void awaitPermit() throws InterruptedException {
+        while (inFlight >= concurrency) {
+            lock.wait();
+        }
+        inFlight++;
+    }
+
+    private void release() {
+        synchronized (lock) {
+            inFlight--;
+            lock.notifyAll();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Failed to write " + failed.get()
+                    + " documents, the first failure was: " + failure.getMessage(), failure);
+        }
+    }
+
+    private void send(final BulkRequest batch, final int attempt, final long backoffMillis) {
+        final long sentNanos = System.nanoTime();
+        final long batchSize = batch.estimatedSizeInBytes();
+        try {
+            client.bulkAsync(batch, RequestOptions.DEFAULT, ActionListener.wrap(
+                    response -> onResponse(batch, attempt, backoffMillis, sentNanos, batchSize,
+                            response),
+                    e -> onFailure(batch, attempt, backoffMillis, sentNanos, e)));
+        } catch (final RuntimeException e) {
+            onFailure(batch, attempt, backoffMillis, sentNanos, e);
+        }
+    }
+
+    private void onResponse(final BulkRequest batch, final int attempt, final long backoffMillis,
+            final long sentNanos, final long batchSize, final BulkResponse response) {
+        final long latencyNanos = System.nanoTime() - sentNanos;
+        METRICS.record(Operation.BULK, sentNanos, true);
+        batches.incrementAndGet();
+        bytes.addAndGet(batchSize);
+
+        BulkRequest rejected = null;
+        for (final BulkItemResponse item : response.getItems()) {
+            if (!item.isFailed()) {
+                documents.incrementAndGet();
+            } else if (item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS) {
+                rejections.incrementAndGet();
+                if (attempt < maxRetries) {
+                    if (rejected == null) {
+                        rejected = new BulkRequest();
+                    }
+                    rejected.add(batch.requests().get(item.getItemId()));
+                } else {
+                    itemFailed(item);
+                }
+            } else {
+                itemFailed(item);
+            }
+        }
+        adapt(sentNanos, rejected != null || latencyNanos > targetLatencyNanos);
+        if (rejected == null) {
+            release();
+        } else {
+            retries.addAndGet(rejected.numberOfActions());
+            retry(rejected, attempt, backoffMillis);
+        }
+    }
+
+    private void onFailure(final BulkRequest batch, final int attempt, final long backoffMillis,
+            final long sentNanos, final Exception e) {
+        METRICS.record(Operation.BULK, sentNanos, false);
+        if (e instanceof ElasticsearchException
+                && ((ElasticsearchException) e).status() == RestStatus.TOO_MANY_REQUESTS
+                && attempt < maxRetries) {
+            // The whole request was rejected, so resend all of it
+            rejections.addAndGet(batch.numberOfActions());
+            retries.addAndGet(batch.numberOfActions());
+            adapt(sentNanos, true);
+            retry(batch, attempt, backoffMillis);
+            return;
+        }
+        failed.addAndGet(batch.numberOfActions());
+        LOG.warn("Bulk request of {} documents failed", batch.numberOfActions(), e);
+        recordFailure(e);
+        release();
+    }
+
+    private void itemFailed(final BulkItemResponse item) {
+        if (failed.incrementAndGet() <= 10) {
+            LOG.warn("Failed to write document {} into {}: {}", item.getId(), item.getIndex(),
+                    item.getFailureMessage());
+        }
+        recordFailure(item.getFailure().getCause());
+    }
+
+    private void recordFailure(final Exception e) {
+        synchronized (lock) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    private void retry(final BulkRequest batch, final int attempt, final long backoffMillis) {
+        // Jitter avoids the retries of concurrent batches arriving together
+        final long delay = ThreadLocalRandom.current().nextLong(backoffMillis + 1);
+        final long nextBackoff = Math.min(backoffMillis * 2, MAX_RETRY_BACKOFF.millis());
+        LOG.debug("Retrying {} rejected documents in {}ms", batch.numberOfActions(), delay);
+        scheduler.schedule(() -> send(batch, attempt + 1, nextBackoff), delay,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void adapt(final long sentNanos, final boolean underPressure) {
+        synchronized (lock) {
+            if (underPressure) {
+                // Requests that were in flight during the last decrease do not
+                // decrease again
+                if (sentNanos - lastDecreaseNanos <= 0L) {
+                    return;
+                }
+                lastDecreaseNanos = System.nanoTime();
+                successes = 0;
+                final long nextBatchBytes = nextBatchBytes(batchBytes, minBatchBytes,
+                        maxBatchBytes, true);
+                final int nextConcurrency = nextConcurrency(concurrency, maxConcurrency, true);
+                if (nextBatchBytes != batchBytes || nextConcurrency != concurrency) {
+                    LOG.info("Backing off bulk writes to {} bytes with {} in flight",
+                            nextBatchBytes, nextConcurrency);
+                }
+                batchBytes = nextBatchBytes;
+                concurrency = nextConcurrency;
+            } else {
+                batchBytes = nextBatchBytes(batchBytes, minBatchBytes, maxBatchBytes, false);
+                // Add one request in flight after each round of requests
+                if (++successes >= concurrency) {
+                    successes = 0;
+                    concurrency = nextConcurrency(concurrency, maxConcurrency, false);
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates the next batch size using additive increase and
+     * multiplicative decrease.
+     *
+     * @param current
+     *            The current batch size in bytes.
+     * @param min
+     *            The minimum batch size in bytes.
+     * @param max
+     *            The maximum batch size in bytes.
+     * @param underPressure
+     *            True if the cluster is under pressure and false otherwise.
+     * @return The next batch size in bytes, between the minimum and maximum.
+     */
+    static long nextBatchBytes(final long current, final long min, final long max,
+            final boolean underPressure) {
+        if (underPressure) {
+            return Math.max(min, current / 2);
+        } else {
+            return Math.min(max, current + Math.max((max - min) / INCREASE_STEPS, 1L));
+        }
+    }
+
+    /**
+     * Calculates the next number of requests in flight using additive
+     * increase and multiplicative decrease.
+     *
+     * @param current
+     *            The current number of requests in flight.
+     * @param max
+     *            The maximum number of requests in flight.
+     * @param underPressure
+     *            True if the cluster is under pressure and false otherwise.
+     * @return The next number of requests in flight, between one and the
+     *         maximum.
+     */
+    static int nextConcurrency(final int current, final int max, final boolean underPressure) {
+        if (underPressure) {
+            return Math.max(1, current / 2);
+        } else {
+            return Math.min(max, current + 1);
+        }
+    }
+
+    /**
+     * @return The current size in bytes at which a batch is sent.
+     */
+    public long getBatchBytes() {
+        return batchBytes;
+    }
+
+    /**
+     * @return The current number of bulk requests allowed in flight.
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return The number of bulk requests in flight, including those waiting
+     *         to be retried.
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return The number of documents that have been written.
+     */
+    public long getDocuments() {
+        return documents.get();
+    }
+
+    /**
+     * @return The number of documents that failed to be written.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return The number of documents that have been resent after they were
+     *         rejected.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return The number of documents that were rejected with a 429 status,
+     *         including those in rejected requests.
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * @return The number of bulk requests that completed, including retries.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * @return The estimated number of bytes in the bulk requests that
+     *         completed, including retries.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return The number of documents written per second since the writer
+     *         was created.
+     */
+    public double getDocumentsPerSecond() {
+        return documents.get() / elapsedSeconds();
+    }
+
+    /**
+     * @return The estimated number of bytes written per second since the
+     *         writer was created.
+     */
+    public double getBytesPerSecond() {
+        return bytes.get() / elapsedSeconds();
+    }
+
+    private double elapsedSeconds() {
+        return Math.max(System.nanoTime() - startNanos, 1L) / 1_000_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d documents (%.1f/s), %d failed, %d retries, %d rejections, %d batches, %s, "
+                        + "batch size %s, concurrency %d",
+                getDocuments(), getDocumentsPerSecond(), getFailed(), getRetries(),
+                getRejections(), getBatches(), new ByteSizeValue(getBytes()),
+                new ByteSizeValue(getBatchBytes()), getConcurrency());
+    }
+
+    /**
+     * The JMX view of this writer.
+     */
+    private final class StatsView implements StatsMXBean {
+        @Override
+        public long getBatchBytes() {
+            return AdaptiveBulkWriter.this.getBatchBytes();
+        }
+
+        @Override
+        public int getConcurrency() {
+            return AdaptiveBulkWriter.this.getConcurrency();
+        }
+
+        @Override
+        public int getInFlight() {
+            return AdaptiveBulkWriter.this.getInFlight();
+        }
+
+        @Override
+        public long getDocuments() {
+            return AdaptiveBulkWriter.this.getDocuments();
+        }
+
+        @Override
+        public long getFailed() {
+            return AdaptiveBulkWriter.this.getFailed();
+        }
+
+        @Override
+        public long getRetries() {
+            return AdaptiveBulkWriter.this.getRetries();
+        }
+
+        @Override
+        public long getRejections() {
+            return AdaptiveBulkWriter.this.getRejections();
+        }
+
+        @Override
+        public long getBatches() {
+            return AdaptiveBulkWriter.this.getBatches();
+        }
+
+        @Override
+        public long getBytes() {
+            return AdaptiveBulkWriter.this.getBytes();
+        }
+
+        @Override
+        public double getDocumentsPerSecond() {
+            return AdaptiveBulkWriter.this.getDocumentsPerSecond();
+        }
+
+        @Override
+        public double getBytesPerSecond() {
+            return AdaptiveBulkWriter.this.getBytesPerSecond();
+        }
+    }
+}
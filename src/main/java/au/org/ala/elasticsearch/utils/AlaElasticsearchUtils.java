@@ -4,19 +4,27 @@
 package au.org.ala.elasticsearch.utils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import org.apache.http.HttpHost;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
-import org.elasticsearch.action.admin.cluster.node.tasks.list.ListTasksRequest;
-import org.elasticsearch.action.admin.cluster.node.tasks.list.ListTasksResponse;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
 import org.elasticsearch.action.fieldcaps.FieldCapabilities;
@@ -24,12 +32,18 @@ import org.elasticsearch.action.fieldcaps.FieldCapabilitiesRequest;
 import org.elasticsearch.action.fieldcaps.FieldCapabilitiesResponse;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
 import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.action.support.master.AcknowledgedResponse;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.indices.GetFieldMappingsRequest;
 import org.elasticsearch.client.indices.GetIndexTemplatesRequest;
@@ -38,14 +52,29 @@ import org.elasticsearch.client.indices.IndexTemplateMetadata;
 import org.elasticsearch.client.indices.PutIndexTemplateRequest;
 import org.elasticsearch.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.cluster.health.ClusterIndexHealth;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
-import org.elasticsearch.tasks.TaskInfo;
+import org.elasticsearch.search.sort.SortOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+
 /**
  * Utility methods for interacting with Elasticsearch using the REST API.
  *
@@ -55,50 +84,337 @@ public class AlaElasticsearchUtils {
 
     private static final Logger LOG = LoggerFactory.getLogger(AlaElasticsearchUtils.class);
 
+    private static final ElasticsearchMetrics METRICS = ElasticsearchMetrics.getDefault();
+
+    /**
+     * The default time for the server to wait for a task to complete before
+     * responding, which must be less than the default client socket timeout of
+     * 30 seconds.
+     */
+    public static final TimeValue DEFAULT_TASK_WAIT_TIMEOUT = TimeValue.timeValueSeconds(20);
+
+    /**
+     * The default maximum time to wait between attempts to get a task.
+     */
+    public static final TimeValue DEFAULT_TASK_MAX_BACKOFF = TimeValue.timeValueSeconds(10);
+
+    /**
+     * The default maximum total time to wait for a task to complete.
+     */
+    public static final TimeValue DEFAULT_TASK_MAX_WAIT = TimeValue.timeValueHours(24);
+
+    /**
+     * The default number of hits in each page when streaming search results.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * The field that {@link #sliceQuery(QueryBuilder, int, int, long)} uses to
+     * split a point in time into slices.
+     */
+    public static final String SLICE_FIELD = "_seq_no";
+
+    /**
+     * The default time for the server to wait for a cluster health status
+     * before responding, which must be less than the default client socket
+     * timeout of 30 seconds.
+     */
+    public static final TimeValue DEFAULT_HEALTH_WAIT_TIMEOUT = TimeValue.timeValueSeconds(20);
+
+    /**
+     * The default maximum time to wait between attempts to get a cluster
+     * health status.
+     */
+    public static final TimeValue DEFAULT_HEALTH_MAX_BACKOFF = TimeValue.timeValueSeconds(10);
+
+    /**
+     * The keyword fields that biocache-store statistics are reported by.
+     */
+    public static final List<String> BIOCACHE_STORE_STATISTICS_KEYS = List.of(
+            "biocache_store.statistics.category", "biocache_store.statistics.type",
+            "biocache_store.statistics.entity");
+
     /**
-     * Wait for task to complete.
+     * The numeric field containing the value of a biocache-store statistic.
+     */
+    public static final String BIOCACHE_STORE_STATISTICS_VALUE = "biocache_store.statistics.long_value";
+
+    static final TimeValue INITIAL_TASK_BACKOFF = TimeValue.timeValueMillis(100);
+
+    /**
+     * Wait for task to complete, including any child tasks that it started,
+     * such as the slices of a sliced reindex, using the default wait timeout
+     * and backoff settings.
      *
      * @param client
      *            The {@link RestHighLevelClient} to use.
      * @param taskId
      *            The task id to find and wait for completion before returning
+     * @return The {@link TaskResult} for the completed task.
      * @throws InterruptedException
      *             If waiting was interrupted.
      * @throws IOException
      *             If communication with the server had an issue.
      */
-    public static void waitForTask(final RestHighLevelClient client, final String taskId)
+    public static TaskResult waitForTask(final RestHighLevelClient client, final String taskId)
             throws InterruptedException, IOException {
-        final org.elasticsearch.tasks.TaskId parentTaskId = new org.elasticsearch.tasks.TaskId(
-                taskId);
-
-        boolean subTasksRunning = true;
-        while (subTasksRunning) {
-            Thread.sleep(100);
-            final ListTasksRequest listTasksRequest = new ListTasksRequest();
-            listTasksRequest.setDetailed(true);
-            final ListTasksResponse listTasksResponse = client.tasks().list(listTasksRequest,
-                    RequestOptions.DEFAULT);
-            if (listTasksResponse.getTasks().isEmpty()) {
-                subTasksRunning = false;
-            } else {
-                boolean foundMatchingRunningTask = false;
-                for (final TaskInfo taskInfo : listTasksResponse.getTasks()) {
-                    if (taskInfo.getTaskId().equals(parentTaskId)) {
-                        LOG.debug("Matching task: {}", taskInfo);
-                        foundMatchingRunningTask = true;
-                    } else {
-                        LOG.debug("Non-matching task: {}", taskInfo);
-                    }
+        return waitForTask(client, taskId, DEFAULT_TASK_WAIT_TIMEOUT, DEFAULT_TASK_MAX_BACKOFF);
+    }
+
+    /**
+     * Wait for task to complete, including any child tasks that it started,
+     * such as the slices of a sliced reindex, for up to the default maximum
+     * total wait.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param taskId
+     *            The task id to find and wait for completion before returning
+     * @param waitTimeout
+     *            The time the server will wait for completion on each
+     *            attempt. Must be less than the socket timeout of the client.
+     * @param maxBackoff
+     *            The maximum time to wait between attempts.
+     * @return The {@link TaskResult} for the completed task.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     * @throws IOException
+     *             If communication with the server had an issue or the task
+     *             did not complete in time.
+     */
+    public static TaskResult waitForTask(final RestHighLevelClient client, final String taskId,
+            final TimeValue waitTimeout, final TimeValue maxBackoff)
+            throws InterruptedException, IOException {
+        return waitForTask(client, taskId, waitTimeout, maxBackoff, DEFAULT_TASK_MAX_WAIT);
+    }
+
+    /**
+     * Wait for task to complete, including any child tasks that it started,
+     * such as the slices of a sliced reindex.
+     * <p>
+     * Only the given task is requested, and the server is asked to wait for
+     * its completion for up to the given timeout before responding. Between
+     * attempts that do not see the task complete, the wait backs off
+     * exponentially with jitter up to the given maximum backoff. The task is
+     * left running if it does not complete within the maximum total wait.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param taskId
+     *            The task id to find and wait for completion before returning
+     * @param waitTimeout
+     *            The time the server will wait for completion on each
+     *            attempt. Must be less than the socket timeout of the client.
+     * @param maxBackoff
+     *            The maximum time to wait between attempts.
+     * @param maxWait
+     *            The maximum total time to wait.
+     * @return The {@link TaskResult} for the completed task.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     * @throws IOException
+     *             If communication with the server had an issue or the task
+     *             did not complete in time.
+     */
+    public static TaskResult waitForTask(final RestHighLevelClient client, final String taskId,
+            final TimeValue waitTimeout, final TimeValue maxBackoff, final TimeValue maxWait)
+            throws InterruptedException, IOException {
+        final long startNanos = System.nanoTime();
+        final long deadline = startNanos + maxWait.nanos();
+        boolean succeeded = false;
+        try {
+            long backoffMillis = INITIAL_TASK_BACKOFF.getMillis();
+            int attempts = 0;
+            while (true) {
+                attempts++;
+                final Optional<TaskResult> nextResult = getTask(client, taskId,
+                        taskWaitTimeout(waitTimeout, deadline));
+                if (nextResult.isPresent() && nextResult.get().isCompleted()) {
+                    LOG.debug("Task {} completed after {} attempts: {}", taskId, attempts,
+                            nextResult.get());
+                    succeeded = true;
+                    return nextResult.get();
+                }
+                final long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0L) {
+                    throw new IOException("Task " + taskId + " did not complete after "
+                            + attempts + " attempts in " + maxWait);
                 }
-                subTasksRunning = foundMatchingRunningTask;
+                // Full jitter to avoid many waiters retrying in lockstep
+                final long sleepMillis = Math.min(
+                        ThreadLocalRandom.current().nextLong(backoffMillis + 1),
+                        TimeUnit.NANOSECONDS.toMillis(remainingNanos) + 1L);
+                LOG.debug("Task still running after {} attempts, waiting {}ms: {}", attempts,
+                        sleepMillis, taskId);
+                Thread.sleep(sleepMillis);
+                backoffMillis = Math.min(backoffMillis * 2, maxBackoff.getMillis());
             }
-            if (subTasksRunning) {
-                LOG.debug("Task still running, waiting again: {}", taskId);
-                // Wait before checking again
-                Thread.sleep(100);
+        } finally {
+            METRICS.record(Operation.TASK_WAIT, startNanos, succeeded);
+        }
+    }
+
+    /**
+     * Get the current state of a reindex, update-by-query or delete-by-query
+     * task without waiting for it to complete. For sliced tasks the result
+     * contains the totals aggregated over all of the slices.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param taskId
+     *            The task id to get the result for.
+     * @return The {@link TaskResult} for the task, which will not be
+     *         {@link TaskResult#isCompleted() completed} if the task is still
+     *         running.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public static TaskResult getTaskResult(final RestHighLevelClient client, final String taskId)
+            throws IOException {
+        return getTask(client, taskId, null)
+                .orElseGet(() -> new TaskResult(taskId, false, null, null));
+    }
+
+    /**
+     * Cancel a task and wait for it to stop. A task that has already completed
+     * is ignored.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param taskId
+     *            The task id to cancel.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public static void cancelTask(final RestHighLevelClient client, final String taskId)
+            throws IOException {
+        final Request request = new Request("POST", "/_tasks/" + taskId + "/_cancel");
+        request.addParameter("wait_for_completion", "true");
+        try {
+            METRICS.time(Operation.OTHER,
+                    () -> client.getLowLevelClient().performRequest(request));
+        } catch (final ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() != 404) {
+                throw e;
+            }
+            LOG.debug("Task {} was not running when it was cancelled", taskId);
+        }
+    }
+
+    /**
+     * Get a single task, optionally waiting on the server for it to complete.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param taskId
+     *            The task id to get.
+     * @param waitTimeout
+     *            The time to wait on the server for completion, or null to
+     *            return immediately.
+     * @return The {@link TaskResult}, or an empty {@link Optional} if the
+     *         server timed out waiting or was temporarily unavailable.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    private static Optional<TaskResult> getTask(final RestHighLevelClient client,
+            final String taskId, final TimeValue waitTimeout) throws IOException {
+        final Response response;
+        try {
+            response = client.getLowLevelClient().performRequest(taskRequest(taskId, waitTimeout));
+        } catch (final ResponseException e) {
+            if (isTaskPending(taskId, e)) {
+                return Optional.empty();
+            }
+            throw e;
+        }
+        return Optional.of(parseTaskResult(taskId, response));
+    }
+
+    /**
+     * @param waitTimeout
+     *            The time the server will wait for completion on each attempt.
+     * @param deadline
+     *            The {@link System#nanoTime()} after which waiting stops.
+     * @return The wait timeout, shortened so that it does not go past the
+     *         deadline.
+     */
+    static TimeValue taskWaitTimeout(final TimeValue waitTimeout, final long deadline) {
+        final long remainingMillis = TimeUnit.NANOSECONDS
+                .toMillis(Math.max(0L, deadline - System.nanoTime()));
+        return TimeValue.timeValueMillis(Math.min(remainingMillis, waitTimeout.millis()));
+    }
+
+    static Request taskRequest(final String taskId, final TimeValue waitTimeout) {
+        // The high level client GetTaskResponse does not expose the stored
+        // response, so fetch and parse it using the low level client
+        final Request request = new Request("GET", "/_tasks/" + taskId);
+        if (waitTimeout != null) {
+            request.addParameter("wait_for_completion", "true");
+            request.addParameter("timeout", waitTimeout.getStringRep());
+        }
+        return request;
+    }
+
+    /**
+     * @param taskId
+     *            The task id that was requested.
+     * @param e
+     *            The error response to a task request.
+     * @return True if the error indicates that the server timed out waiting
+     *         for the task or was temporarily unavailable, so the request
+     *         should be retried.
+     */
+    static boolean isTaskPending(final String taskId, final ResponseException e) {
+        final int statusCode = e.getResponse().getStatusLine().getStatusCode();
+        if (statusCode == 408 || statusCode == 429 || statusCode == 503
+                || statusCode == 500 && isTimeoutException(e.getResponse())) {
+            LOG.debug("Task request for {} returned status {}", taskId, statusCode);
+            return true;
+        }
+        return false;
+    }
+
+    static TaskResult parseTaskResult(final String taskId, final Response response)
+            throws IOException {
+        boolean completed = false;
+        BulkByScrollResponse bulkByScrollResponse = null;
+        ElasticsearchException error = null;
+        try (InputStream content = response.getEntity().getContent();
+                XContentParser parser = XContentType.JSON.xContent().createParser(
+                        NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                        content);) {
+            parser.nextToken();
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                final String fieldName = parser.currentName();
+                parser.nextToken();
+                if ("completed".equals(fieldName)) {
+                    completed = parser.booleanValue();
+                } else if ("response".equals(fieldName)) {
+                    bulkByScrollResponse = BulkByScrollResponse.fromXContent(parser);
+                } else if ("error".equals(fieldName)) {
+                    error = ElasticsearchException.fromXContent(parser);
+                } else {
+                    parser.skipChildren();
+                }
             }
         }
+        return new TaskResult(taskId, completed, bulkByScrollResponse, error);
+    }
+
+    /**
+     * Elasticsearch 7.10 reports a timeout waiting for a task to complete as
+     * a 500 response with a timeout_exception, rather than a 408 response.
+     *
+     * @param response
+     *            The error response.
+     * @return True if the response is a timeout_exception.
+     */
+    private static boolean isTimeoutException(final Response response) {
+        try {
+            return EntityUtils.toString(response.getEntity()).contains("\"timeout_exception\"");
+        } catch (final IOException e) {
+            return false;
+        }
     }
 
     /**
@@ -114,12 +430,11 @@ public class AlaElasticsearchUtils {
      *            {@link RestHighLevelClient}.
      * @return A {@link RestHighLevelClient} configured using the given
      *         parameters.
+     * @see ElasticsearchClientBuilder
      */
     public static RestHighLevelClient newElasticsearchClient(final String esHostname,
             final int esPort, final String esScheme) {
-        final RestHighLevelClient client = new RestHighLevelClient(
-                RestClient.builder(new HttpHost(esHostname, esPort, esScheme)));
-        return client;
+        return new ElasticsearchClientBuilder().host(esHostname, esPort, esScheme).build();
     }
 
     /**
@@ -135,7 +450,8 @@ public class AlaElasticsearchUtils {
     public static void deleteIndex(final RestHighLevelClient client, final String indexToDelete)
             throws IOException {
         final DeleteIndexRequest deleteDestinationRequest = new DeleteIndexRequest(indexToDelete);
-        client.indices().delete(deleteDestinationRequest, RequestOptions.DEFAULT);
+        METRICS.time(Operation.DELETE_INDEX,
+                () -> client.indices().delete(deleteDestinationRequest, RequestOptions.DEFAULT));
     }
 
     /**
@@ -154,7 +470,10 @@ public class AlaElasticsearchUtils {
             throws IOException, InterruptedException {
         final int maxRetries = 6;
 
-        final ClusterHealthResponse response = getClusterStatus(client, maxRetries);
+        final ClusterHealthResponse response = getClusterStatus(client, maxRetries,
+                clusterHealthRequest(ClusterHealthRequest.Level.INDICES,
+                        ClusterHealthStatus.YELLOW, DEFAULT_HEALTH_WAIT_TIMEOUT),
+                Operation.LIST_INDEXES);
 
         final Map<String, ClusterIndexHealth> indices = response.getIndices();
 
@@ -173,9 +492,10 @@ public class AlaElasticsearchUtils {
     }
 
     /**
-     * Attempts to get the cluster status for the given REST client and indexes.
-     * Will retry the given number of times if the cluster status is not
-     * {@link ClusterHealthStatus.YELLOW} when the request is initially made.
+     * Attempts to get the cluster status for the given REST client and indexes,
+     * including the health of each index. Will retry the given number of times
+     * if the cluster status is not {@link ClusterHealthStatus.YELLOW} within
+     * the default health wait timeout.
      *
      * @param client
      *            The {@link RestHighLevelClient} to use.
@@ -195,36 +515,176 @@ public class AlaElasticsearchUtils {
     public static ClusterHealthResponse getClusterStatus(final RestHighLevelClient client,
             final int maxRetries, final String... indexNames)
             throws IOException, InterruptedException {
-        Optional<ClusterHealthResponse> response = Optional.empty();
+        return getClusterStatus(client, maxRetries, ClusterHealthRequest.Level.INDICES,
+                ClusterHealthStatus.YELLOW, DEFAULT_HEALTH_WAIT_TIMEOUT, indexNames);
+    }
 
-        for (int retries = 0; retries <= maxRetries; retries++) {
-            final ClusterHealthRequest request = new ClusterHealthRequest(indexNames);
-            request.waitForStatus(ClusterHealthStatus.YELLOW);
-            request.level(ClusterHealthRequest.Level.INDICES);
-            // request.waitForActiveShards(ActiveShardCount.ALL);
-            // request.timeout(TimeValue.timeValueSeconds(20));
-            // request.masterNodeTimeout(TimeValue.timeValueSeconds(10));
+    /**
+     * Attempts to get the cluster status for the given REST client and indexes.
+     * <p>
+     * The server waits for up to the given timeout for the status to be
+     * reached before responding. If it times out, the request is retried
+     * after an exponential backoff with jitter, up to the given number of
+     * times.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param maxRetries
+     *            The maximum number of times to retry in an attempt to get the
+     *            given status before failing.
+     * @param level
+     *            The level of detail to return. Only
+     *            {@link ClusterHealthRequest.Level#INDICES} and
+     *            {@link ClusterHealthRequest.Level#SHARDS} include the health
+     *            of each index, which can be large on clusters with many
+     *            indexes.
+     * @param waitForStatus
+     *            The status to wait for, or null to respond immediately.
+     * @param waitTimeout
+     *            The time the server will wait for the status on each attempt.
+     *            Must be less than the socket timeout of the client.
+     * @param indexNames
+     *            An optional array of index names to focus on. If not present,
+     *            all indexes will be used.
+     * @return A {@link ClusterHealthResponse} object that can be used to
+     *         diagnose the cluster health.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     * @throws IOException
+     *             If communication with the server had an issue or every
+     *             attempt timed out.
+     */
+    public static ClusterHealthResponse getClusterStatus(final RestHighLevelClient client,
+            final int maxRetries, final ClusterHealthRequest.Level level,
+            final ClusterHealthStatus waitForStatus, final TimeValue waitTimeout,
+            final String... indexNames) throws IOException, InterruptedException {
+        return getClusterStatus(client, maxRetries,
+                clusterHealthRequest(level, waitForStatus, waitTimeout, indexNames),
+                Operation.HEALTH);
+    }
+
+    /**
+     * Get the cluster status with retries, recording the time taken for all
+     * of the attempts as a single operation.
+     */
+    private static ClusterHealthResponse getClusterStatus(final RestHighLevelClient client,
+            final int maxRetries, final ClusterHealthRequest request, final Operation operation)
+            throws IOException, InterruptedException {
+        final long startNanos = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            final ClusterHealthResponse response = getClusterStatusWithRetries(client,
+                    maxRetries, request);
+            succeeded = true;
+            return response;
+        } finally {
+            METRICS.record(operation, startNanos, succeeded);
+        }
+    }
 
+    private static ClusterHealthResponse getClusterStatusWithRetries(
+            final RestHighLevelClient client, final int maxRetries,
+            final ClusterHealthRequest request) throws IOException, InterruptedException {
+        long backoffMillis = INITIAL_TASK_BACKOFF.getMillis();
+        for (int retries = 0; retries <= maxRetries; retries++) {
             final ClusterHealthResponse nextResponse = client.cluster().health(request,
                     RequestOptions.DEFAULT);
 
-            if (nextResponse.isTimedOut()) {
-                LOG.warn("Cluster Health Request timed out on attempt {}", (retries + 1));
-                Thread.sleep(100);
-                continue;
-            } else {
-                response = Optional.of(nextResponse);
-                break;
+            if (!nextResponse.isTimedOut()) {
+                return nextResponse;
+            }
+            if (retries < maxRetries) {
+                // Full jitter to avoid many waiters retrying in lockstep
+                final long sleepMillis = ThreadLocalRandom.current().nextLong(backoffMillis + 1);
+                LOG.warn("Cluster Health Request timed out with status {} on attempt {}, "
+                        + "retrying in {}ms", nextResponse.getStatus(), (retries + 1),
+                        sleepMillis);
+                Thread.sleep(sleepMillis);
+                backoffMillis = Math.min(backoffMillis * 2, DEFAULT_HEALTH_MAX_BACKOFF.getMillis());
             }
         }
 
-        if (response.isEmpty()) {
-            LOG.error("Failed to get cluster status after {} attempts/", maxRetries);
-            throw new IOException(
-                    "Failed to get cluster status after " + maxRetries + " attempts.");
+        LOG.error("Failed to get cluster status after {} attempts", maxRetries + 1);
+        throw new IOException(
+                "Failed to get cluster status after " + (maxRetries + 1) + " attempts.");
+    }
+
+    static ClusterHealthRequest clusterHealthRequest(final ClusterHealthRequest.Level level,
+            final ClusterHealthStatus waitForStatus, final TimeValue waitTimeout,
+            final String... indexNames) {
+        final ClusterHealthRequest request = new ClusterHealthRequest(indexNames);
+        if (waitForStatus != null) {
+            request.waitForStatus(waitForStatus);
         }
+        request.level(level);
+        request.timeout(waitTimeout);
+        request.masterNodeTimeout(waitTimeout);
+        return request;
+    }
 
-        return response.get();
+    /**
+     * Wait for the cluster, or the given indexes, to reach at least the given
+     * status.
+     * <p>
+     * Only the overall status is requested, and the server is asked to wait
+     * for the status for up to the default health wait timeout before
+     * responding. Between attempts that do not see the status, the wait backs
+     * off exponentially with jitter.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param status
+     *            The status to wait for.
+     * @param timeout
+     *            The maximum total time to wait.
+     * @param indexNames
+     *            An optional array of index names to focus on. If not present,
+     *            the status of the cluster is used.
+     * @return The {@link ClusterHealthResponse} that reached the status.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     * @throws IOException
+     *             If communication with the server had an issue or the status
+     *             was not reached in time.
+     */
+    public static ClusterHealthResponse waitForStatus(final RestHighLevelClient client,
+            final ClusterHealthStatus status, final TimeValue timeout,
+            final String... indexNames) throws IOException, InterruptedException {
+        final long startNanos = System.nanoTime();
+        final long deadline = startNanos + timeout.nanos();
+        boolean succeeded = false;
+        try {
+            long backoffMillis = INITIAL_TASK_BACKOFF.getMillis();
+            while (true) {
+                final long remainingMillis = TimeUnit.NANOSECONDS
+                        .toMillis(Math.max(0L, deadline - System.nanoTime()));
+                final TimeValue waitTimeout = TimeValue.timeValueMillis(
+                        Math.min(remainingMillis, DEFAULT_HEALTH_WAIT_TIMEOUT.millis()));
+                final ClusterHealthResponse response = client.cluster().health(
+                        clusterHealthRequest(ClusterHealthRequest.Level.CLUSTER, status,
+                                waitTimeout, indexNames),
+                        RequestOptions.DEFAULT);
+                if (!response.isTimedOut()) {
+                    succeeded = true;
+                    return response;
+                }
+                final long afterRemaining = deadline - System.nanoTime();
+                if (afterRemaining <= 0L) {
+                    throw new IOException("Status of " + Arrays.toString(indexNames) + " was "
+                            + response.getStatus() + " instead of " + status + " after "
+                            + timeout);
+                }
+                final long sleepMillis = Math.min(
+                        ThreadLocalRandom.current().nextLong(backoffMillis + 1),
+                        TimeUnit.NANOSECONDS.toMillis(afterRemaining) + 1L);
+                LOG.debug("Waiting {}ms for {} to become {}, currently {}", sleepMillis,
+                        Arrays.toString(indexNames), status, response.getStatus());
+                Thread.sleep(sleepMillis);
+                backoffMillis = Math.min(backoffMillis * 2, DEFAULT_HEALTH_MAX_BACKOFF.getMillis());
+            }
+        } finally {
+            METRICS.record(Operation.HEALTH, startNanos, succeeded);
+        }
     }
 
     /**
@@ -281,8 +741,11 @@ public class AlaElasticsearchUtils {
         final PutIndexTemplateRequest putRequest = new PutIndexTemplateRequest(templateName);
         putRequest.source(templateContentJson, XContentType.JSON);
 
-        final AcknowledgedResponse putTemplateResponse = client.indices().putTemplate(putRequest,
-                RequestOptions.DEFAULT);
+        final AcknowledgedResponse putTemplateResponse = METRICS.time(Operation.PUT_TEMPLATE,
+                () -> client.indices().putTemplate(putRequest, RequestOptions.DEFAULT));
+
+        // New indexes matching the template may have different mappings
+        FieldCapabilitiesCache.templatesChanged();
 
         if (putTemplateResponse.isAcknowledged()) {
             LOG.info("Put template request for {} was acknowledged", templateName);
@@ -310,8 +773,9 @@ public class AlaElasticsearchUtils {
         // https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.10/java-rest-high-get-templates.html
         final GetIndexTemplatesRequest getRequest = new GetIndexTemplatesRequest(templateName);
 
-        final GetIndexTemplatesResponse getTemplatesResponse = client.indices()
-                .getIndexTemplate(getRequest, RequestOptions.DEFAULT);
+        final GetIndexTemplatesResponse getTemplatesResponse = METRICS.time(
+                Operation.GET_TEMPLATE,
+                () -> client.indices().getIndexTemplate(getRequest, RequestOptions.DEFAULT));
 
         final List<IndexTemplateMetadata> indexTemplates = getTemplatesResponse.getIndexTemplates();
         if (LOG.isDebugEnabled()) {
@@ -338,8 +802,8 @@ public class AlaElasticsearchUtils {
         request.fields("*");
         request.indicesOptions(IndicesOptions.LENIENT_EXPAND_OPEN);
 
-        final FieldCapabilitiesResponse fieldCapabilitiesResponse = client.fieldCaps(request,
-                RequestOptions.DEFAULT);
+        final FieldCapabilitiesResponse fieldCapabilitiesResponse = METRICS.time(
+                Operation.FIELD_CAPS, () -> client.fieldCaps(request, RequestOptions.DEFAULT));
 
         return fieldCapabilitiesResponse.get();
     }
@@ -347,11 +811,130 @@ public class AlaElasticsearchUtils {
     public static Map<String, Map<String, FieldCapabilities>> getUserDefinedFieldCapabilities(
             final RestHighLevelClient client, final String... indexNames)
             throws IOException, InterruptedException {
-        return getFieldCapabilities(client, indexNames).entrySet().stream()
+        return filterUserDefinedFields(getFieldCapabilities(client, indexNames));
+    }
+
+    static Map<String, Map<String, FieldCapabilities>> filterUserDefinedFields(
+            final Map<String, Map<String, FieldCapabilities>> fieldCapabilities) {
+        return fieldCapabilities.entrySet().stream()
                 .filter(entry -> !entry.getKey().startsWith("_"))
                 .collect(Collectors.toUnmodifiableMap(e -> e.getKey(), e -> e.getValue()));
     }
 
+    /**
+     * Get the mapping version of each of the open indexes matching the given
+     * index names. The mapping version of an index increases each time its
+     * mapping is changed, so this can be used to cheaply detect mapping
+     * changes without fetching the mappings.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            The index names or patterns to check, or none to check all
+     *            indexes.
+     * @return A {@link Map} from index name to mapping version.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public static Map<String, Long> getMappingVersions(final RestHighLevelClient client,
+            final String... indexNames) throws IOException {
+        final Request request = mappingVersionsRequest(indexNames);
+        final Response response = METRICS.time(Operation.CLUSTER_STATE,
+                () -> client.getLowLevelClient().performRequest(request));
+        return parseMappingVersions(response);
+    }
+
+    static Request mappingVersionsRequest(final String... indexNames) {
+        // The high level client does not expose the cluster state API
+        final Request request = new Request("GET",
+                "/_cluster/state/metadata/" + String.join(",", indexNames));
+        request.addParameter("filter_path", "metadata.indices.*.mapping_version");
+        request.addParameter("expand_wildcards", "open");
+        request.addParameter("ignore_unavailable", "true");
+        request.addParameter("allow_no_indices", "true");
+        return request;
+    }
+
+    static Map<String, Long> parseMappingVersions(final Response response) throws IOException {
+        final Map<String, Long> result = new HashMap<>();
+        try (InputStream content = response.getEntity().getContent();
+                XContentParser parser = XContentType.JSON.xContent().createParser(
+                        NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                        content);) {
+            final Object metadata = parser.map().get("metadata");
+            if (!(metadata instanceof Map)) {
+                // The filtered response is empty when no indexes matched
+                return result;
+            }
+            final Object indices = ((Map<?, ?>) metadata).get("indices");
+            if (indices instanceof Map) {
+                for (final Entry<?, ?> nextIndex : ((Map<?, ?>) indices).entrySet()) {
+                    final Object mappingVersion = ((Map<?, ?>) nextIndex.getValue())
+                            .get("mapping_version");
+                    result.put(nextIndex.getKey().toString(),
+                            ((Number) mappingVersion).longValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of refreshes that made changes visible to search for
+     * each of the open indexes matching the given index names. Search results
+     * for an index can only change when this count increases, as documents
+     * written since the last refresh are not visible to search, so this can be
+     * used to cheaply detect changes without searching.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            The index names or patterns to check, or none to check all
+     *            indexes.
+     * @return A {@link Map} from index name to the number of refreshes.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public static Map<String, Long> getRefreshCounts(final RestHighLevelClient client,
+            final String... indexNames) throws IOException {
+        final Request request = refreshCountsRequest(indexNames);
+        final Response response = METRICS.time(Operation.INDEX_STATS,
+                () -> client.getLowLevelClient().performRequest(request));
+        return parseRefreshCounts(response);
+    }
+
+    static Request refreshCountsRequest(final String... indexNames) {
+        // The high level client does not expose the index stats API
+        final Request request = new Request("GET", (indexNames.length == 0 ? ""
+                : "/" + String.join(",", indexNames)) + "/_stats/refresh");
+        request.addParameter("filter_path", "indices.*.total.refresh.external_total");
+        request.addParameter("expand_wildcards", "open");
+        request.addParameter("ignore_unavailable", "true");
+        request.addParameter("allow_no_indices", "true");
+        return request;
+    }
+
+    static Map<String, Long> parseRefreshCounts(final Response response) throws IOException {
+        final Map<String, Long> result = new HashMap<>();
+        try (InputStream content = response.getEntity().getContent();
+                XContentParser parser = XContentType.JSON.xContent().createParser(
+                        NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                        content);) {
+            final Object indices = parser.map().get("indices");
+            if (!(indices instanceof Map)) {
+                // The filtered response is empty when no indexes matched
+                return result;
+            }
+            for (final Entry<?, ?> nextIndex : ((Map<?, ?>) indices).entrySet()) {
+                final Object total = ((Map<?, ?>) nextIndex.getValue()).get("total");
+                final Object refresh = ((Map<?, ?>) total).get("refresh");
+                final Object externalTotal = ((Map<?, ?>) refresh).get("external_total");
+                result.put(nextIndex.getKey().toString(), ((Number) externalTotal).longValue());
+            }
+        }
+        return result;
+    }
+
     public static Optional<Map<String, Object>> getDocumentByID(final RestHighLevelClient client,
             final String documentID, final String indexName)
             throws IOException, InterruptedException {
@@ -359,7 +942,8 @@ public class AlaElasticsearchUtils {
         final GetRequest getRequest = new GetRequest(indexName, documentID);
         final FetchSourceContext context = FetchSourceContext.FETCH_SOURCE;
         getRequest.fetchSourceContext(context);
-        final GetResponse getResponse = client.get(getRequest, RequestOptions.DEFAULT);
+        final GetResponse getResponse = METRICS.time(Operation.GET,
+                () -> client.get(getRequest, RequestOptions.DEFAULT));
 
         final String index = getResponse.getIndex();
         final String id = getResponse.getId();
@@ -370,8 +954,179 @@ public class AlaElasticsearchUtils {
 
     }
 
+    /**
+     * Get a document by ID, decoding its source directly into a typed record
+     * without building a {@link Map} for the source.
+     *
+     * @param <T>
+     *            The type of record that is decoded.
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param documentID
+     *            The ID of the document.
+     * @param indexName
+     *            The index containing the document.
+     * @param decoder
+     *            The {@link SourceDecoder} used to decode the source.
+     * @return The decoded record, or an empty {@link Optional} if the document
+     *         was not found.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     * @throws IOException
+     *             If communication with the server had an issue, or the
+     *             source could not be decoded.
+     */
+    public static <T> Optional<T> getDocumentByID(final RestHighLevelClient client,
+            final String documentID, final String indexName, final SourceDecoder<T> decoder)
+            throws IOException, InterruptedException {
+        final Optional<BytesReference> source = getDocumentSourceByID(client, documentID,
+                indexName);
+        return source.isPresent() ? Optional.of(decoder.decode(source.get())) : Optional.empty();
+    }
+
+    /**
+     * Get the raw JSON source of a document by ID, for callers that forward it
+     * without inspecting it.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param documentID
+     *            The ID of the document.
+     * @param indexName
+     *            The index containing the document.
+     * @return The source bytes, which can be written using
+     *         {@link BytesReference#writeTo(java.io.OutputStream)}, or an
+     *         empty {@link Optional} if the document was not found.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public static Optional<BytesReference> getDocumentSourceByID(final RestHighLevelClient client,
+            final String documentID, final String indexName)
+            throws IOException, InterruptedException {
+        final GetRequest getRequest = new GetRequest(indexName, documentID);
+        getRequest.fetchSourceContext(FetchSourceContext.FETCH_SOURCE);
+        final GetResponse getResponse = METRICS.time(Operation.GET,
+                () -> client.get(getRequest, RequestOptions.DEFAULT));
+        if (!getResponse.isExists() || getResponse.isSourceEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(getResponse.getSourceAsBytesRef());
+    }
+
+    /**
+     * Get the source of multiple documents from the given index in a single
+     * multi-get request.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param documentIDs
+     *            The IDs of the documents to get.
+     * @param indexName
+     *            The index containing the documents.
+     * @return A {@link Map} from document ID to the source of the document,
+     *         in the order of the given IDs, containing only the documents
+     *         that were found.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     * @see BatchingDocumentLoader
+     */
+    public static Map<String, Map<String, Object>> getDocumentsByIDs(
+            final RestHighLevelClient client, final Collection<String> documentIDs,
+            final String indexName) throws IOException, InterruptedException {
+        if (documentIDs.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+
+        final MultiGetRequest multiGetRequest = multiGetRequest(documentIDs, indexName);
+        final MultiGetResponse multiGetResponse = METRICS.time(Operation.MULTI_GET,
+                () -> client.mget(multiGetRequest, RequestOptions.DEFAULT));
+        return sourcesByID(multiGetResponse);
+    }
+
+    static MultiGetRequest multiGetRequest(final Collection<String> documentIDs,
+            final String indexName) {
+        final MultiGetRequest multiGetRequest = new MultiGetRequest();
+        for (final String documentID : documentIDs) {
+            multiGetRequest.add(new MultiGetRequest.Item(indexName, documentID)
+                    .fetchSourceContext(FetchSourceContext.FETCH_SOURCE));
+        }
+        return multiGetRequest;
+    }
+
+    static Map<String, Map<String, Object>> sourcesByID(final MultiGetResponse multiGetResponse)
+            throws IOException {
+        final Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        for (final MultiGetItemResponse item : multiGetResponse.getResponses()) {
+            if (item.isFailed()) {
+                throw new IOException("Failed to get document " + item.getId() + " from "
+                        + item.getIndex(), item.getFailure().getFailure());
+            }
+            if (item.getResponse().isExists()) {
+                result.put(item.getId(), item.getResponse().getSourceAsMap());
+            }
+        }
+        return result;
+    }
+
     public static SearchResponse search(final RestHighLevelClient client,
             final String... indexNames) throws IOException, InterruptedException {
+        final SearchRequest searchRequest = matchAllSearchRequest(indexNames);
+        final SearchResponse searchResponse = METRICS.time(Operation.SEARCH,
+                () -> client.search(searchRequest, RequestOptions.DEFAULT));
+        return searchResponse;
+    }
+
+    /**
+     * Search the given indexes.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param searchSourceBuilder
+     *            The query, aggregations and other options for the search.
+     * @param indexNames
+     *            The index names or patterns to search.
+     * @return The {@link SearchResponse}.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public static SearchResponse search(final RestHighLevelClient client,
+            final SearchSourceBuilder searchSourceBuilder, final String... indexNames)
+            throws IOException {
+        final SearchRequest searchRequest = new SearchRequest(indexNames);
+        searchRequest.indicesOptions(IndicesOptions.LENIENT_EXPAND_OPEN);
+        searchRequest.source(searchSourceBuilder);
+        return METRICS.time(Operation.SEARCH,
+                () -> client.search(searchRequest, RequestOptions.DEFAULT));
+    }
+
+    /**
+     * Check that a search response contains the results from all of the
+     * shards, so that pages of results can be relied on.
+     *
+     * @param searchResponse
+     *            The {@link SearchResponse} to check.
+     * @throws IOException
+     *             If any of the shards failed or the search timed out, so the
+     *             results are incomplete.
+     */
+    static void checkComplete(final SearchResponse searchResponse) throws IOException {
+        if (searchResponse.getFailedShards() > 0) {
+            final ShardSearchFailure[] failures = searchResponse.getShardFailures();
+            throw new IOException("Search failed on " + searchResponse.getFailedShards()
+                    + " of " + searchResponse.getTotalShards() + " shards"
+                    + (failures.length == 0 ? "" : ": " + failures[0].reason()));
+        }
+        if (searchResponse.isTimedOut()) {
+            throw new IOException("Search timed out after " + searchResponse.getTook()
+                    + " with incomplete results");
+        }
+    }
+
+    static SearchRequest matchAllSearchRequest(final String... indexNames) {
         final SearchRequest searchRequest = new SearchRequest(indexNames);
         // final SearchRequest searchRequest = new SearchRequest();
         // searchRequest.indices(indexNames);
@@ -381,9 +1136,187 @@ public class AlaElasticsearchUtils {
         final SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
         searchSourceBuilder.query(QueryBuilders.matchAllQuery());
         searchRequest.source(searchSourceBuilder);
+        return searchRequest;
+    }
 
-        final SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
-        return searchResponse;
+    /**
+     * Stream all of the hits matching the given query, using the default page
+     * size and prefetching one page ahead.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param query
+     *            The query to run.
+     * @param indexNames
+     *            The indexes to search.
+     * @return A lazy {@link Stream} of {@link SearchHit}s, which must be closed
+     *         if it is not fully consumed.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     * @see #searchAll(RestHighLevelClient, SearchSourceBuilder, int, int,
+     *      String...)
+     */
+    public static Stream<SearchHit> searchAll(final RestHighLevelClient client,
+            final QueryBuilder query, final String... indexNames) throws IOException {
+        return searchAll(client, new SearchSourceBuilder().query(query), DEFAULT_PAGE_SIZE, 1,
+                indexNames);
+    }
+
+    /**
+     * Stream all of the hits for the given search, paging through them using
+     * a point in time and search_after, and fetching pages asynchronously
+     * ahead of the page being consumed.
+     * <p>
+     * Only the pages that have been fetched are held in memory. The point in
+     * time is closed when the stream is fully consumed or closed.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param searchSource
+     *            The search to run. If no sort is given, the hits are sorted
+     *            on {@link SearchHitSpliterator#DEFAULT_SORT_FIELD}.
+     * @param pageSize
+     *            The number of hits to fetch in each page.
+     * @param prefetchPages
+     *            The maximum number of pages to fetch ahead of the page being
+     *            consumed.
+     * @param indexNames
+     *            The indexes to search.
+     * @return A lazy {@link Stream} of {@link SearchHit}s, which must be closed
+     *         if it is not fully consumed.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public static Stream<SearchHit> searchAll(final RestHighLevelClient client,
+            final SearchSourceBuilder searchSource, final int pageSize, final int prefetchPages,
+            final String... indexNames) throws IOException {
+        final SearchHitSpliterator spliterator = new SearchHitSpliterator(client, searchSource,
+                pageSize, prefetchPages, SearchHitSpliterator.DEFAULT_KEEP_ALIVE, indexNames);
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+    }
+
+    /**
+     * Stream all of the hits for the given search, decoding the source of each
+     * hit directly into a typed record without building a {@link Map} for the
+     * source.
+     *
+     * @param <T>
+     *            The type of record that is decoded.
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param searchSource
+     *            The search to run. If no sort is given, the hits are sorted
+     *            on {@link SearchHitSpliterator#DEFAULT_SORT_FIELD}.
+     * @param pageSize
+     *            The number of hits to fetch in each page.
+     * @param prefetchPages
+     *            The maximum number of pages to fetch ahead of the page being
+     *            consumed.
+     * @param decoder
+     *            The {@link SourceDecoder} used to decode the source of each
+     *            hit.
+     * @param indexNames
+     *            The indexes to search.
+     * @return A lazy {@link Stream} of decoded records, which must be closed if
+     *         it is not fully consumed.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     * @see #searchAll(RestHighLevelClient, SearchSourceBuilder, int, int,
+     *      String...)
+     */
+    public static <T> Stream<T> searchAll(final RestHighLevelClient client,
+            final SearchSourceBuilder searchSource, final int pageSize, final int prefetchPages,
+            final SourceDecoder<T> decoder, final String... indexNames) throws IOException {
+        return searchAll(client, searchSource, pageSize, prefetchPages, indexNames)
+                .map(decoder::decodeHit);
+    }
+
+    /**
+     * Stream the raw JSON source of all of the hits for the given search, for
+     * callers that forward it without inspecting it.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param searchSource
+     *            The search to run. If no sort is given, the hits are sorted
+     *            on {@link SearchHitSpliterator#DEFAULT_SORT_FIELD}.
+     * @param pageSize
+     *            The number of hits to fetch in each page.
+     * @param prefetchPages
+     *            The maximum number of pages to fetch ahead of the page being
+     *            consumed.
+     * @param indexNames
+     *            The indexes to search.
+     * @return A lazy {@link Stream} of source bytes, which must be closed if it
+     *         is not fully consumed.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public static Stream<BytesReference> searchAllSources(final RestHighLevelClient client,
+            final SearchSourceBuilder searchSource, final int pageSize, final int prefetchPages,
+            final String... indexNames) throws IOException {
+        return searchAll(client, searchSource, pageSize, prefetchPages, indexNames)
+                .map(SearchHit::getSourceRef);
+    }
+
+    /**
+     * Stream all of the buckets of a composite aggregation over the given key
+     * fields, with the given metrics calculated for each bucket, paging
+     * through them using after_key.
+     * <p>
+     * Only one page of buckets is held in memory, so a breakdown over millions
+     * of buckets does not need one large terms aggregation.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param query
+     *            The query selecting the documents to aggregate.
+     * @param keyFields
+     *            The fields to group the documents by.
+     * @param metrics
+     *            The metrics to calculate for each bucket.
+     * @param pageSize
+     *            The number of buckets to fetch in each page.
+     * @param indexNames
+     *            The indexes to search.
+     * @return A lazy {@link Stream} of {@link CompositeBucket}s in key order.
+     * @see CompositeBucketSpliterator
+     */
+    public static Stream<CompositeBucket> aggregateAll(final RestHighLevelClient client,
+            final QueryBuilder query, final List<String> keyFields,
+            final List<CompositeBucket.Metric> metrics, final int pageSize,
+            final String... indexNames) {
+        return StreamSupport.stream(new CompositeBucketSpliterator(client, query, keyFields,
+                metrics, pageSize, indexNames), false);
+    }
+
+    /**
+     * Stream the biocache-store statistics from filebeat indexes, grouped by
+     * {@link #BIOCACHE_STORE_STATISTICS_KEYS}, with the sum, min, max, median
+     * and 95th percentile of {@link #BIOCACHE_STORE_STATISTICS_VALUE} in that
+     * order for each bucket.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param query
+     *            The query selecting the statistics documents, such as a range
+     *            on the timestamp.
+     * @param indexNames
+     *            The indexes to search.
+     * @return A lazy {@link Stream} of {@link CompositeBucket}s in key order.
+     * @see #aggregateAll(RestHighLevelClient, QueryBuilder, List, List, int,
+     *      String...)
+     */
+    public static Stream<CompositeBucket> biocacheStoreStatistics(
+            final RestHighLevelClient client, final QueryBuilder query,
+            final String... indexNames) {
+        return aggregateAll(client, query, BIOCACHE_STORE_STATISTICS_KEYS,
+                List.of(CompositeBucket.Metric.sum(BIOCACHE_STORE_STATISTICS_VALUE),
+                        CompositeBucket.Metric.min(BIOCACHE_STORE_STATISTICS_VALUE),
+                        CompositeBucket.Metric.max(BIOCACHE_STORE_STATISTICS_VALUE),
+                        CompositeBucket.Metric.percentile(BIOCACHE_STORE_STATISTICS_VALUE, 50.0),
+                        CompositeBucket.Metric.percentile(BIOCACHE_STORE_STATISTICS_VALUE, 95.0)),
+                DEFAULT_PAGE_SIZE, indexNames);
     }
 
     public static void refresh(final RestHighLevelClient client, final String... indexNames)
@@ -391,6 +1324,212 @@ public class AlaElasticsearchUtils {
         final RefreshRequest refreshRequest = new RefreshRequest(indexNames);
         refreshRequest.indicesOptions(IndicesOptions.lenientExpandOpen());
 
-        client.indices().refresh(refreshRequest, RequestOptions.DEFAULT);
+        METRICS.time(Operation.REFRESH,
+                () -> client.indices().refresh(refreshRequest, RequestOptions.DEFAULT));
+    }
+
+    /**
+     * Open a point in time over the given indexes, so that they can be
+     * searched consistently over multiple requests.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param keepAlive
+     *            The time to keep the point in time alive between requests.
+     * @param indexNames
+     *            The indexes to open the point in time on.
+     * @return The id of the point in time, to be used in a
+     *         {@link PointInTimeBuilder} and closed afterwards using
+     *         {@link #closePointInTime(RestHighLevelClient, String)}.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public static String openPointInTime(final RestHighLevelClient client,
+            final TimeValue keepAlive, final String... indexNames) throws IOException {
+        final Request request = openPointInTimeRequest(keepAlive, indexNames);
+        final Response response = METRICS.time(Operation.POINT_IN_TIME,
+                () -> client.getLowLevelClient().performRequest(request));
+        return parsePointInTimeId(response, indexNames);
+    }
+
+    static Request openPointInTimeRequest(final TimeValue keepAlive, final String... indexNames) {
+        // The high level client does not support point in time until 7.11,
+        // so use the low level client
+        final Request request = new Request("POST", "/" + String.join(",", indexNames) + "/_pit");
+        request.addParameter("keep_alive", keepAlive.getStringRep());
+        return request;
+    }
+
+    static String parsePointInTimeId(final Response response, final String... indexNames)
+            throws IOException {
+        try (InputStream content = response.getEntity().getContent();
+                XContentParser parser = XContentType.JSON.xContent().createParser(
+                        NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                        content);) {
+            final Object pitId = parser.map().get("id");
+            if (pitId == null) {
+                throw new IOException("Point in time response did not contain an id for: "
+                        + String.join(",", indexNames));
+            }
+            LOG.debug("Opened point in time on {}", (Object) indexNames);
+            return pitId.toString();
+        }
+    }
+
+    /**
+     * Close a point in time that was opened using
+     * {@link #openPointInTime(RestHighLevelClient, TimeValue, String...)}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param pitId
+     *            The id of the point in time to close.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public static void closePointInTime(final RestHighLevelClient client, final String pitId)
+            throws IOException {
+        final Request request = closePointInTimeRequest(pitId);
+        METRICS.time(Operation.POINT_IN_TIME,
+                () -> client.getLowLevelClient().performRequest(request));
+    }
+
+    static Request closePointInTimeRequest(final String pitId) throws IOException {
+        final Request request = new Request("DELETE", "/_pit");
+        request.setJsonEntity(Strings.toString(
+                XContentFactory.jsonBuilder().startObject().field("id", pitId).endObject()));
+        return request;
+    }
+
+    /**
+     * Get the largest sequence number of the documents in a point in time,
+     * which bounds the ranges used by
+     * {@link #sliceQuery(QueryBuilder, int, int, long)}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param pitId
+     *            The id of the point in time.
+     * @return The largest sequence number, or
+     *         {@link SequenceNumbers#NO_OPS_PERFORMED} if there are no
+     *         documents.
+     * @throws IOException
+     *             If communication with the server had an issue, or the
+     *             search did not complete on every shard.
+     */
+    public static long getMaxSeqNo(final RestHighLevelClient client, final String pitId)
+            throws IOException {
+        final SearchSourceBuilder searchSource = new SearchSourceBuilder()
+                .pointInTimeBuilder(new PointInTimeBuilder(pitId)).size(1).fetchSource(false)
+                .trackTotalHits(false).sort(SLICE_FIELD, SortOrder.DESC);
+        final SearchRequest searchRequest = new SearchRequest().source(searchSource);
+        searchRequest.setCcsMinimizeRoundtrips(false);
+        final SearchResponse searchResponse = METRICS.time(Operation.SEARCH,
+                () -> client.search(searchRequest, RequestOptions.DEFAULT));
+        checkComplete(searchResponse);
+        final SearchHit[] hits = searchResponse.getHits().getHits();
+        return hits.length == 0 ? SequenceNumbers.NO_OPS_PERFORMED
+                : ((Number) hits[0].getSortValues()[0]).longValue();
+    }
+
+    /**
+     * Get the smallest of the largest sequence numbers of the primary shards
+     * of the given indexes. Sequence numbers are assigned by each shard, so
+     * every document that is indexed or updated after this is called has a
+     * larger sequence number, whichever shard it is on. Documents that were
+     * not changed may also have larger sequence numbers if the shards have
+     * had different numbers of writes.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            The index names or patterns.
+     * @return The smallest of the largest sequence numbers of the primary
+     *         shards, or {@link SequenceNumbers#NO_OPS_PERFORMED} if a shard
+     *         has not had any writes or no indexes matched.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public static long getMinShardMaxSeqNo(final RestHighLevelClient client,
+            final String... indexNames) throws IOException {
+        // The high level client does not expose the index stats API
+        final Request request = new Request("GET",
+                "/" + String.join(",", indexNames) + "/_stats/docs");
+        request.addParameter("level", "shards");
+        request.addParameter("filter_path",
+                "indices.*.shards.*.routing.primary,indices.*.shards.*.seq_no.max_seq_no");
+        request.addParameter("expand_wildcards", "open");
+        request.addParameter("ignore_unavailable", "true");
+        request.addParameter("allow_no_indices", "true");
+        final Response response = METRICS.time(Operation.INDEX_STATS,
+                () -> client.getLowLevelClient().performRequest(request));
+
+        long result = Long.MAX_VALUE;
+        try (InputStream content = response.getEntity().getContent();
+                XContentParser parser = XContentType.JSON.xContent().createParser(
+                        NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                        content);) {
+            final Object indices = parser.map().get("indices");
+            if (indices instanceof Map) {
+                for (final Object nextIndex : ((Map<?, ?>) indices).values()) {
+                    final Map<?, ?> shards = (Map<?, ?>) ((Map<?, ?>) nextIndex).get("shards");
+                    for (final Object shardCopies : shards.values()) {
+                        for (final Object shardCopy : (List<?>) shardCopies) {
+                            final Map<?, ?> shard = (Map<?, ?>) shardCopy;
+                            if (Boolean.TRUE.equals(
+                                    ((Map<?, ?>) shard.get("routing")).get("primary"))) {
+                                result = Math.min(result, ((Number) ((Map<?, ?>) shard
+                                        .get("seq_no")).get("max_seq_no")).longValue());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return result == Long.MAX_VALUE ? SequenceNumbers.NO_OPS_PERFORMED : result;
+    }
+
+    /**
+     * Restrict a query to one of a number of slices of a point in time.
+     * <p>
+     * Elasticsearch 7.10 only supports sliced searches with a scroll, so the
+     * slices are instead ranges of sequence numbers up to the given maximum.
+     * The last slice has no upper bound, so documents written after the
+     * maximum was found are not missed. Sequence numbers are assigned by each
+     * shard, so the slices are only even if the shards have had similar
+     * numbers of writes. Updating a document gives it a new sequence number,
+     * so a document can move to a different slice between two points in
+     * time.
+     *
+     * @param query
+     *            The query to restrict.
+     * @param slice
+     *            The slice, from 0 to slices - 1.
+     * @param slices
+     *            The number of slices.
+     * @param maxSeqNo
+     *            The largest sequence number from
+     *            {@link #getMaxSeqNo(RestHighLevelClient, String)}.
+     * @return The query for the slice, which is the given query if there is
+     *         only one slice.
+     */
+    public static QueryBuilder sliceQuery(final QueryBuilder query, final int slice,
+            final int slices, final long maxSeqNo) {
+        if (slice < 0 || slice >= slices) {
+            throw new IllegalArgumentException(
+                    "Slice must be between 0 and " + (slices - 1) + ": " + slice);
+        }
+        if (slices == 1) {
+            return query;
+        }
+        final long width = Math.max(1L, (maxSeqNo + slices) / slices);
+        final RangeQueryBuilder range = QueryBuilders.rangeQuery(SLICE_FIELD);
+        if (slice > 0) {
+            range.gte(slice * width);
+        }
+        if (slice < slices - 1) {
+            range.lt((slice + 1) * width);
+        }
+        return QueryBuilders.boolQuery().must(query).filter(range);
     }
 }
@@ -0,0 +1,913 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
+import org.elasticsearch.action.fieldcaps.FieldCapabilities;
+import org.elasticsearch.action.fieldcaps.FieldCapabilitiesRequest;
+import org.elasticsearch.action.fieldcaps.FieldCapabilitiesResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.master.AcknowledgedResponse;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.GetIndexTemplatesRequest;
+import org.elasticsearch.client.indices.GetIndexTemplatesResponse;
+import org.elasticsearch.client.indices.IndexTemplateMetadata;
+import org.elasticsearch.client.indices.PutIndexTemplateRequest;
+import org.elasticsearch.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.cluster.health.ClusterIndexHealth;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+
+/**
+ * Non-blocking counterparts of the methods in {@link AlaElasticsearchUtils},
+ * built on the asynchronous methods of the {@link RestHighLevelClient}.
+ * <p>
+ * No method blocks the calling thread. Retries and waits between attempts are
+ * scheduled on a shared timer thread instead of sleeping, so many concurrent
+ * calls do not need a thread each. Cancelling a returned
+ * {@link CompletableFuture} cancels the request in progress and any retries.
+ * <p>
+ * The returned futures are completed on the IO reactor threads of the client.
+ * Callers that block in dependent stages should use the {@code *Async}
+ * variants of the {@link CompletableFuture} methods with their own executor,
+ * to avoid stalling other requests.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class AsyncAlaElasticsearchUtils {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncAlaElasticsearchUtils.class);
+
+    private static final ElasticsearchMetrics METRICS = ElasticsearchMetrics.getDefault();
+
+    // Only used to schedule the next attempt, which is itself asynchronous, so
+    // a single thread is enough for any number of waiting callers
+    private static final ScheduledExecutorService TIMER = Executors
+            .newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "elasticsearch-async-utils-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Wait for task to complete, including any child tasks that it started,
+     * using the default wait timeout and backoff settings.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param taskId
+     *            The task id to find and wait for completion.
+     * @return A {@link CompletableFuture} that completes with the
+     *         {@link TaskResult} for the completed task.
+     * @see AlaElasticsearchUtils#waitForTask(RestHighLevelClient, String)
+     */
+    public static CompletableFuture<TaskResult> waitForTask(final RestHighLevelClient client,
+            final String taskId) {
+        return waitForTask(client, taskId, AlaElasticsearchUtils.DEFAULT_TASK_WAIT_TIMEOUT,
+                AlaElasticsearchUtils.DEFAULT_TASK_MAX_BACKOFF);
+    }
+
+    /**
+     * Wait for task to complete, including any child tasks that it started,
+     * such as the slices of a sliced reindex.
+     * <p>
+     * The server is asked to wait for completion for up to the given timeout
+     * on each attempt. Between attempts that do not see the task complete,
+     * the next attempt is scheduled after an exponential backoff with jitter,
+     * up to the given maximum backoff.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param taskId
+     *            The task id to find and wait for completion.
+     * @param waitTimeout
+     *            The time the server will wait for completion on each
+     *            attempt. Must be less than the socket timeout of the client.
+     * @param maxBackoff
+     *            The maximum time to wait between attempts.
+     * @return A {@link CompletableFuture} that completes with the
+     *         {@link TaskResult} for the completed task.
+     * @see AlaElasticsearchUtils#waitForTask(RestHighLevelClient, String,
+     *      TimeValue, TimeValue)
+     */
+    public static CompletableFuture<TaskResult> waitForTask(final RestHighLevelClient client,
+            final String taskId, final TimeValue waitTimeout, final TimeValue maxBackoff) {
+        return waitForTask(client, taskId, waitTimeout, maxBackoff,
+                AlaElasticsearchUtils.DEFAULT_TASK_MAX_WAIT);
+    }
+
+    /**
+     * Wait for task to complete, including any child tasks that it started,
+     * for up to the given maximum total wait.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param taskId
+     *            The task id to find and wait for completion.
+     * @param waitTimeout
+     *            The time the server will wait for completion on each
+     *            attempt. Must be less than the socket timeout of the client.
+     * @param maxBackoff
+     *            The maximum time to wait between attempts.
+     * @param maxWait
+     *            The maximum total time to wait, after which the returned
+     *            future completes with an {@link IOException}.
+     * @return A {@link CompletableFuture} that completes with the
+     *         {@link TaskResult} for the completed task.
+     * @see AlaElasticsearchUtils#waitForTask(RestHighLevelClient, String,
+     *      TimeValue, TimeValue, TimeValue)
+     */
+    public static CompletableFuture<TaskResult> waitForTask(final RestHighLevelClient client,
+            final String taskId, final TimeValue waitTimeout, final TimeValue maxBackoff,
+            final TimeValue maxWait) {
+        final CompletableFuture<TaskResult> result = new CompletableFuture<>();
+        final long startNanos = System.nanoTime();
+        result.whenComplete(
+                (taskResult, e) -> METRICS.record(Operation.TASK_WAIT, startNanos, e == null));
+        waitForTaskAttempt(client, taskId, waitTimeout, maxBackoff, maxWait,
+                startNanos + maxWait.nanos(),
+                AlaElasticsearchUtils.INITIAL_TASK_BACKOFF.getMillis(), 1, result);
+        return result;
+    }
+
+    private static void waitForTaskAttempt(final RestHighLevelClient client, final String taskId,
+            final TimeValue waitTimeout, final TimeValue maxBackoff, final TimeValue maxWait,
+            final long deadline, final long backoffMillis, final int attempt,
+            final CompletableFuture<TaskResult> result) {
+        if (result.isDone()) {
+            return;
+        }
+        final CompletableFuture<Optional<TaskResult>> nextResult = getTask(client, taskId,
+                AlaElasticsearchUtils.taskWaitTimeout(waitTimeout, deadline));
+        propagateCancel(result, nextResult);
+        nextResult.whenComplete((taskResult, e) -> {
+            if (e != null) {
+                result.completeExceptionally(unwrap(e));
+            } else if (taskResult.isPresent() && taskResult.get().isCompleted()) {
+                LOG.debug("Task {} completed after {} attempts: {}", taskId, attempt,
+                        taskResult.get());
+                result.complete(taskResult.get());
+            } else if (deadline - System.nanoTime() <= 0L) {
+                result.completeExceptionally(new IOException("Task " + taskId
+                        + " did not complete after " + attempt + " attempts in " + maxWait));
+            } else {
+                // Full jitter to avoid many waiters retrying in lockstep
+                final long delayMillis = Math.min(
+                        ThreadLocalRandom.current().nextLong(backoffMillis + 1),
+                        TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1L);
+                LOG.debug("Task still running after {} attempts, waiting {}ms: {}", attempt,
+                        delayMillis, taskId);
+                schedule(result, delayMillis,
+                        () -> waitForTaskAttempt(client, taskId, waitTimeout, maxBackoff,
+                                maxWait, deadline,
+                                Math.min(backoffMillis * 2, maxBackoff.getMillis()),
+                                attempt + 1, result));
+            }
+        });
+    }
+
+    /**
+     * Get the current state of a task without waiting for it to complete.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param taskId
+     *            The task id to get the result for.
+     * @return A {@link CompletableFuture} that completes with the
+     *         {@link TaskResult} for the task, which will not be
+     *         {@link TaskResult#isCompleted() completed} if the task is still
+     *         running.
+     * @see AlaElasticsearchUtils#getTaskResult(RestHighLevelClient, String)
+     */
+    public static CompletableFuture<TaskResult> getTaskResult(final RestHighLevelClient client,
+            final String taskId) {
+        return getTask(client, taskId, null).thenApply(taskResult -> taskResult
+                .orElseGet(() -> new TaskResult(taskId, false, null, null)));
+    }
+
+    private static CompletableFuture<Optional<TaskResult>> getTask(
+            final RestHighLevelClient client, final String taskId, final TimeValue waitTimeout) {
+        final CompletableFuture<Optional<TaskResult>> result = new CompletableFuture<>();
+        final Cancellable cancellable = client.getLowLevelClient().performRequestAsync(
+                AlaElasticsearchUtils.taskRequest(taskId, waitTimeout), new ResponseListener() {
+                    @Override
+                    public void onSuccess(final Response response) {
+                        try {
+                            result.complete(Optional
+                                    .of(AlaElasticsearchUtils.parseTaskResult(taskId, response)));
+                        } catch (final IOException | RuntimeException e) {
+                            result.completeExceptionally(e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(final Exception e) {
+                        if (e instanceof ResponseException && AlaElasticsearchUtils
+                                .isTaskPending(taskId, (ResponseException) e)) {
+                            result.complete(Optional.empty());
+                        } else {
+                            result.completeExceptionally(e);
+                        }
+                    }
+                });
+        cancelOnCancel(result, cancellable);
+        return result;
+    }
+
+    /**
+     * Deletes the given index.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexToDelete
+     *            The name of the index to delete.
+     * @return A {@link CompletableFuture} that completes when the index has
+     *         been deleted.
+     * @see AlaElasticsearchUtils#deleteIndex(RestHighLevelClient, String)
+     */
+    public static CompletableFuture<Void> deleteIndex(final RestHighLevelClient client,
+            final String indexToDelete) {
+        final DeleteIndexRequest request = new DeleteIndexRequest(indexToDelete);
+        final CompletableFuture<AcknowledgedResponse> response = metered(Operation.DELETE_INDEX,
+                result -> client.indices().deleteAsync(request, RequestOptions.DEFAULT,
+                        listener(result)));
+        return response.thenApply(acknowledged -> null);
+    }
+
+    /**
+     * Get the names of the indexes in the cluster.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @return A {@link CompletableFuture} that completes with the index names.
+     * @see AlaElasticsearchUtils#listIndexes(RestHighLevelClient)
+     */
+    public static CompletableFuture<Set<String>> listIndexes(final RestHighLevelClient client) {
+        return getClusterStatus(client, 6, AlaElasticsearchUtils.clusterHealthRequest(
+                ClusterHealthRequest.Level.INDICES, ClusterHealthStatus.YELLOW,
+                AlaElasticsearchUtils.DEFAULT_HEALTH_WAIT_TIMEOUT), Operation.LIST_INDEXES)
+                .thenApply(response -> Collections.unmodifiableSet(response.getIndices().keySet()));
+    }
+
+    /**
+     * Get the cluster status, including the health of each index, waiting for
+     * it to be at least yellow. If the server times out waiting, the request is
+     * retried after an exponential backoff with jitter, up to the given number
+     * of times.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param maxRetries
+     *            The maximum number of times to retry before failing.
+     * @param indexNames
+     *            An optional array of index names to focus on. If not present,
+     *            all indexes will be returned.
+     * @return A {@link CompletableFuture} that completes with the
+     *         {@link ClusterHealthResponse}, or fails with an
+     *         {@link IOException} if all of the attempts timed out.
+     * @see AlaElasticsearchUtils#getClusterStatus(RestHighLevelClient, int,
+     *      String...)
+     */
+    public static CompletableFuture<ClusterHealthResponse> getClusterStatus(
+            final RestHighLevelClient client, final int maxRetries, final String... indexNames) {
+        return getClusterStatus(client, maxRetries, ClusterHealthRequest.Level.INDICES,
+                ClusterHealthStatus.YELLOW, AlaElasticsearchUtils.DEFAULT_HEALTH_WAIT_TIMEOUT,
+                indexNames);
+    }
+
+    /**
+     * Get the cluster status. The server waits for up to the given timeout for
+     * the status to be reached before responding. If it times out, the request
+     * is retried after an exponential backoff with jitter, up to the given
+     * number of times.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param maxRetries
+     *            The maximum number of times to retry before failing.
+     * @param level
+     *            The level of detail to return.
+     * @param waitForStatus
+     *            The status to wait for, or null to respond immediately.
+     * @param waitTimeout
+     *            The time the server will wait for the status on each attempt.
+     *            Must be less than the socket timeout of the client.
+     * @param indexNames
+     *            An optional array of index names to focus on. If not present,
+     *            all indexes will be used.
+     * @return A {@link CompletableFuture} that completes with the
+     *         {@link ClusterHealthResponse}, or fails with an
+     *         {@link IOException} if all of the attempts timed out.
+     * @see AlaElasticsearchUtils#getClusterStatus(RestHighLevelClient, int,
+     *      ClusterHealthRequest.Level, ClusterHealthStatus, TimeValue,
+     *      String...)
+     */
+    public static CompletableFuture<ClusterHealthResponse> getClusterStatus(
+            final RestHighLevelClient client, final int maxRetries,
+            final ClusterHealthRequest.Level level, final ClusterHealthStatus waitForStatus,
+            final TimeValue waitTimeout, final String... indexNames) {
+        return getClusterStatus(client, maxRetries, AlaElasticsearchUtils
+                .clusterHealthRequest(level, waitForStatus, waitTimeout, indexNames),
+                Operation.HEALTH);
+    }
+
+    private static CompletableFuture<ClusterHealthResponse> getClusterStatus(
+            final RestHighLevelClient client, final int maxRetries,
+            final ClusterHealthRequest request, final Operation operation) {
+        final CompletableFuture<ClusterHealthResponse> result = new CompletableFuture<>();
+        final long startNanos = System.nanoTime();
+        result.whenComplete((response, e) -> METRICS.record(operation, startNanos, e == null));
+        clusterStatusAttempt(client, maxRetries, 0,
+                AlaElasticsearchUtils.INITIAL_TASK_BACKOFF.getMillis(), request, result);
+        return result;
+    }
+
+    private static void clusterStatusAttempt(final RestHighLevelClient client,
+            final int maxRetries, final int retries, final long backoffMillis,
+            final ClusterHealthRequest request,
+            final CompletableFuture<ClusterHealthResponse> result) {
+        if (result.isDone()) {
+            return;
+        }
+        final CompletableFuture<ClusterHealthResponse> attempt = new CompletableFuture<>();
+        cancelOnCancel(attempt, client.cluster().healthAsync(request, RequestOptions.DEFAULT,
+                listener(attempt)));
+        propagateCancel(result, attempt);
+        attempt.whenComplete((response, e) -> {
+            if (e != null) {
+                result.completeExceptionally(unwrap(e));
+            } else if (!response.isTimedOut()) {
+                result.complete(response);
+            } else if (retries < maxRetries) {
+                final long delayMillis = ThreadLocalRandom.current().nextLong(backoffMillis + 1);
+                LOG.warn("Cluster Health Request timed out with status {} on attempt {}, "
+                        + "retrying in {}ms", response.getStatus(), (retries + 1), delayMillis);
+                schedule(result, delayMillis,
+                        () -> clusterStatusAttempt(client, maxRetries, retries + 1,
+                                Math.min(backoffMillis * 2,
+                                        AlaElasticsearchUtils.DEFAULT_HEALTH_MAX_BACKOFF
+                                                .getMillis()),
+                                request, result));
+            } else {
+                LOG.error("Failed to get cluster status after {} attempts", maxRetries + 1);
+                result.completeExceptionally(new IOException("Failed to get cluster status after "
+                        + (maxRetries + 1) + " attempts."));
+            }
+        });
+    }
+
+    /**
+     * Obtain detailed information about the indexes in the cluster.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            An optional array of index names to focus on. If not present,
+     *            all indexes will be returned.
+     * @return A {@link CompletableFuture} that completes with a {@link Map}
+     *         containing the information about the indexes.
+     * @see AlaElasticsearchUtils#indexInfo(RestHighLevelClient, String...)
+     */
+    public static CompletableFuture<Map<String, ClusterIndexHealth>> indexInfo(
+            final RestHighLevelClient client, final String... indexNames) {
+        return getClusterStatus(client, 3, indexNames)
+                .thenApply(ClusterHealthResponse::getIndices);
+    }
+
+    /**
+     * Put the template into elasticsearch.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param templateName
+     *            The name of the template.
+     * @param templateContentJson
+     *            The JSON-encoded template.
+     * @return A {@link CompletableFuture} that completes with true if the
+     *         request was acknowledged.
+     * @see AlaElasticsearchUtils#putTemplate(RestHighLevelClient, String,
+     *      String)
+     */
+    public static CompletableFuture<Boolean> putTemplate(final RestHighLevelClient client,
+            final String templateName, final String templateContentJson) {
+        final PutIndexTemplateRequest request = new PutIndexTemplateRequest(templateName);
+        request.source(templateContentJson, XContentType.JSON);
+        final CompletableFuture<AcknowledgedResponse> response = metered(Operation.PUT_TEMPLATE,
+                result -> client.indices().putTemplateAsync(request, RequestOptions.DEFAULT,
+                        listener(result)));
+        return response.thenApply(acknowledged -> {
+            // New indexes matching the template may have different mappings
+            FieldCapabilitiesCache.templatesChanged();
+            if (acknowledged.isAcknowledged()) {
+                LOG.info("Put template request for {} was acknowledged", templateName);
+            } else {
+                LOG.error("Put template request for {} was not acknowledged", templateName);
+            }
+            return acknowledged.isAcknowledged();
+        });
+    }
+
+    /**
+     * Gets templates using the given template name as a reference.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param templateName
+     *            The name, or pattern, of the templates.
+     * @return A {@link CompletableFuture} that completes with the matching
+     *         templates.
+     * @see AlaElasticsearchUtils#getTemplate(RestHighLevelClient, String)
+     */
+    public static CompletableFuture<List<IndexTemplateMetadata>> getTemplate(
+            final RestHighLevelClient client, final String templateName) {
+        final GetIndexTemplatesRequest request = new GetIndexTemplatesRequest(templateName);
+        final CompletableFuture<GetIndexTemplatesResponse> response = metered(
+                Operation.GET_TEMPLATE, result -> client.indices().getIndexTemplateAsync(request,
+                        RequestOptions.DEFAULT, listener(result)));
+        return response.thenApply(GetIndexTemplatesResponse::getIndexTemplates);
+    }
+
+    /**
+     * Get the capabilities of all of the fields in the given indexes, merged
+     * over the indexes.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            The indexes to get the field capabilities for.
+     * @return A {@link CompletableFuture} that completes with a {@link Map}
+     *         from field name to a {@link Map} from field type to
+     *         capabilities.
+     * @see AlaElasticsearchUtils#getFieldCapabilities(RestHighLevelClient,
+     *      String...)
+     */
+    public static CompletableFuture<Map<String, Map<String, FieldCapabilities>>> getFieldCapabilities(
+            final RestHighLevelClient client, final String... indexNames) {
+        final FieldCapabilitiesRequest request = new FieldCapabilitiesRequest().indices(indexNames);
+        request.fields("*");
+        request.indicesOptions(IndicesOptions.LENIENT_EXPAND_OPEN);
+        final CompletableFuture<FieldCapabilitiesResponse> response = metered(Operation.FIELD_CAPS,
+                result -> client.fieldCapsAsync(request, RequestOptions.DEFAULT, listener(result)));
+        return response.thenApply(FieldCapabilitiesResponse::get);
+    }
+
+    /**
+     * Get the capabilities of the fields in the given indexes, excluding the
+     * metadata fields.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            The indexes to get the field capabilities for.
+     * @return A {@link CompletableFuture} that completes with a {@link Map}
+     *         from field name to a {@link Map} from field type to
+     *         capabilities.
+     * @see AlaElasticsearchUtils#getUserDefinedFieldCapabilities(RestHighLevelClient,
+     *      String...)
+     */
+    public static CompletableFuture<Map<String, Map<String, FieldCapabilities>>> getUserDefinedFieldCapabilities(
+            final RestHighLevelClient client, final String... indexNames) {
+        return getFieldCapabilities(client, indexNames)
+                .thenApply(AlaElasticsearchUtils::filterUserDefinedFields);
+    }
+
+    /**
+     * Get the mapping version of each of the open indexes matching the given
+     * index names.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            The index names or patterns to check, or none to check all
+     *            indexes.
+     * @return A {@link CompletableFuture} that completes with a {@link Map}
+     *         from index name to mapping version.
+     * @see AlaElasticsearchUtils#getMappingVersions(RestHighLevelClient,
+     *      String...)
+     */
+    public static CompletableFuture<Map<String, Long>> getMappingVersions(
+            final RestHighLevelClient client, final String... indexNames) {
+        return performRequest(client, Operation.CLUSTER_STATE,
+                AlaElasticsearchUtils.mappingVersionsRequest(indexNames))
+                        .thenApply(response -> {
+                            try {
+                                return AlaElasticsearchUtils.parseMappingVersions(response);
+                            } catch (final IOException e) {
+                                throw new CompletionException(e);
+                            }
+                        });
+    }
+
+    /**
+     * Get the source of a document by ID.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param documentID
+     *            The ID of the document.
+     * @param indexName
+     *            The index containing the document.
+     * @return A {@link CompletableFuture} that completes with the source of
+     *         the document, or an empty {@link Optional} if it was not found.
+     * @see AlaElasticsearchUtils#getDocumentByID(RestHighLevelClient, String,
+     *      String)
+     */
+    public static CompletableFuture<Optional<Map<String, Object>>> getDocumentByID(
+            final RestHighLevelClient client, final String documentID, final String indexName) {
+        return get(client, documentID, indexName)
+                .thenApply(response -> Optional.ofNullable(response.getSourceAsMap()));
+    }
+
+    /**
+     * Get the raw JSON source of a document by ID.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param documentID
+     *            The ID of the document.
+     * @param indexName
+     *            The index containing the document.
+     * @return A {@link CompletableFuture} that completes with the source
+     *         bytes, or an empty {@link Optional} if the document was not
+     *         found.
+     * @see AlaElasticsearchUtils#getDocumentSourceByID(RestHighLevelClient,
+     *      String, String)
+     */
+    public static CompletableFuture<Optional<BytesReference>> getDocumentSourceByID(
+            final RestHighLevelClient client, final String documentID, final String indexName) {
+        return get(client, documentID, indexName).thenApply(
+                response -> !response.isExists() || response.isSourceEmpty() ? Optional.empty()
+                        : Optional.of(response.getSourceAsBytesRef()));
+    }
+
+    private static CompletableFuture<GetResponse> get(final RestHighLevelClient client,
+            final String documentID, final String indexName) {
+        final GetRequest request = new GetRequest(indexName, documentID);
+        request.fetchSourceContext(FetchSourceContext.FETCH_SOURCE);
+        return metered(Operation.GET,
+                result -> client.getAsync(request, RequestOptions.DEFAULT, listener(result)));
+    }
+
+    /**
+     * Get the source of multiple documents from the given index in a single
+     * multi-get request.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param documentIDs
+     *            The IDs of the documents to get.
+     * @param indexName
+     *            The index containing the documents.
+     * @return A {@link CompletableFuture} that completes with a {@link Map}
+     *         from document ID to source, in the order of the given IDs,
+     *         containing only the documents that were found.
+     * @see AlaElasticsearchUtils#getDocumentsByIDs(RestHighLevelClient,
+     *      Collection, String)
+     */
+    public static CompletableFuture<Map<String, Map<String, Object>>> getDocumentsByIDs(
+            final RestHighLevelClient client, final Collection<String> documentIDs,
+            final String indexName) {
+        if (documentIDs.isEmpty()) {
+            return CompletableFuture.completedFuture(new LinkedHashMap<>());
+        }
+        final MultiGetRequest request = AlaElasticsearchUtils.multiGetRequest(documentIDs,
+                indexName);
+        final CompletableFuture<MultiGetResponse> response = metered(Operation.MULTI_GET,
+                result -> client.mgetAsync(request, RequestOptions.DEFAULT, listener(result)));
+        return response.thenApply(multiGetResponse -> {
+            try {
+                return AlaElasticsearchUtils.sourcesByID(multiGetResponse);
+            } catch (final IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Search the given indexes for all documents, returning the first page of
+     * hits.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            The indexes to search.
+     * @return A {@link CompletableFuture} that completes with the
+     *         {@link SearchResponse}.
+     * @see AlaElasticsearchUtils#search(RestHighLevelClient, String...)
+     */
+    public static CompletableFuture<SearchResponse> search(final RestHighLevelClient client,
+            final String... indexNames) {
+        return search(client, AlaElasticsearchUtils.matchAllSearchRequest(indexNames));
+    }
+
+    /**
+     * Run the given search.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param searchRequest
+     *            The search to run.
+     * @return A {@link CompletableFuture} that completes with the
+     *         {@link SearchResponse}.
+     */
+    public static CompletableFuture<SearchResponse> search(final RestHighLevelClient client,
+            final SearchRequest searchRequest) {
+        return metered(Operation.SEARCH, result -> client.searchAsync(searchRequest,
+                RequestOptions.DEFAULT, listener(result)));
+    }
+
+    /**
+     * Refresh the given indexes in a single request.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            The indexes to refresh.
+     * @return A {@link CompletableFuture} that completes when the indexes have
+     *         been refreshed.
+     * @see AlaElasticsearchUtils#refresh(RestHighLevelClient, String...)
+     */
+    public static CompletableFuture<Void> refresh(final RestHighLevelClient client,
+            final String... indexNames) {
+        final RefreshRequest request = new RefreshRequest(indexNames);
+        request.indicesOptions(IndicesOptions.lenientExpandOpen());
+        final CompletableFuture<RefreshResponse> response = metered(Operation.REFRESH,
+                result -> client.indices().refreshAsync(request, RequestOptions.DEFAULT,
+                        listener(result)));
+        return response.thenApply(refreshed -> null);
+    }
+
+    /**
+     * Open a point in time over the given indexes.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param keepAlive
+     *            The time to keep the point in time alive between requests.
+     * @param indexNames
+     *            The indexes to open the point in time on.
+     * @return A {@link CompletableFuture} that completes with the id of the
+     *         point in time, which must be closed afterwards using
+     *         {@link #closePointInTime(RestHighLevelClient, String)}.
+     * @see AlaElasticsearchUtils#openPointInTime(RestHighLevelClient,
+     *      TimeValue, String...)
+     */
+    public static CompletableFuture<String> openPointInTime(final RestHighLevelClient client,
+            final TimeValue keepAlive, final String... indexNames) {
+        return performRequest(client, Operation.POINT_IN_TIME,
+                AlaElasticsearchUtils.openPointInTimeRequest(keepAlive, indexNames))
+                        .thenApply(response -> {
+                            try {
+                                return AlaElasticsearchUtils.parsePointInTimeId(response,
+                                        indexNames);
+                            } catch (final IOException e) {
+                                throw new CompletionException(e);
+                            }
+                        });
+    }
+
+    /**
+     * Close a point in time.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param pitId
+     *            The id of the point in time to close.
+     * @return A {@link CompletableFuture} that completes when the point in
+     *         time has been closed.
+     * @see AlaElasticsearchUtils#closePointInTime(RestHighLevelClient, String)
+     */
+    public static CompletableFuture<Void> closePointInTime(final RestHighLevelClient client,
+            final String pitId) {
+        final Request request;
+        try {
+            request = AlaElasticsearchUtils.closePointInTimeRequest(pitId);
+        } catch (final IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return performRequest(client, Operation.POINT_IN_TIME, request)
+                .thenApply(response -> null);
+    }
+
+    /**
+     * Refresh each of the given indexes concurrently, using a separate request
+     * for each, so that a slow or missing index does not delay the others.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            The indexes to refresh.
+     * @return A {@link CompletableFuture} that completes when all of the
+     *         indexes have been refreshed, or fails with the first failure
+     *         after all of the requests have finished.
+     */
+    public static CompletableFuture<Void> refreshEach(final RestHighLevelClient client,
+            final Collection<String> indexNames) {
+        return forEachIndex(indexNames, indexName -> refresh(client, indexName))
+                .thenApply(results -> null);
+    }
+
+    /**
+     * Get the capabilities of the fields in each of the given indexes
+     * concurrently, keeping the results for each index separate rather than
+     * merging them as a single request would.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            The indexes to inspect.
+     * @return A {@link CompletableFuture} that completes with a {@link Map}
+     *         from index name to the user defined field capabilities of that
+     *         index, in the order of the given index names.
+     */
+    public static CompletableFuture<Map<String, Map<String, Map<String, FieldCapabilities>>>> getUserDefinedFieldCapabilitiesEach(
+            final RestHighLevelClient client, final Collection<String> indexNames) {
+        return forEachIndex(indexNames,
+                indexName -> getUserDefinedFieldCapabilities(client, indexName));
+    }
+
+    /**
+     * Get the document counts of each of the given indexes concurrently.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            The indexes to inspect.
+     * @return A {@link CompletableFuture} that completes with a {@link Map}
+     *         from index name to the total number of documents in that index,
+     *         in the order of the given index names.
+     */
+    public static CompletableFuture<Map<String, Long>> countEach(
+            final RestHighLevelClient client, final Collection<String> indexNames) {
+        return forEachIndex(indexNames, indexName -> {
+            final SearchRequest request = AlaElasticsearchUtils.matchAllSearchRequest(indexName);
+            request.source().size(0).trackTotalHits(true);
+            return search(client, request)
+                    .thenApply(response -> response.getHits().getTotalHits().value);
+        });
+    }
+
+    /**
+     * Start the given operation for each of the given indexes concurrently,
+     * and join the results.
+     *
+     * @param <T>
+     *            The type of the result for each index.
+     * @param indexNames
+     *            The indexes to start the operation for.
+     * @param operation
+     *            The operation to start for each index.
+     * @return A {@link CompletableFuture} that completes with a {@link Map}
+     *         from index name to result, in the order of the given index
+     *         names, or fails with the first failure after all of the
+     *         operations have finished.
+     */
+    public static <T> CompletableFuture<Map<String, T>> forEachIndex(
+            final Collection<String> indexNames,
+            final Function<String, CompletableFuture<T>> operation) {
+        final Map<String, CompletableFuture<T>> futures = new LinkedHashMap<>();
+        for (final String indexName : indexNames) {
+            futures.put(indexName, operation.apply(indexName));
+        }
+        return allOf(futures.values()).thenApply(results -> {
+            final Map<String, T> result = new LinkedHashMap<>();
+            for (final Map.Entry<String, CompletableFuture<T>> entry : futures.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().join());
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Join the results of the given futures.
+     *
+     * @param <T>
+     *            The type of the results.
+     * @param futures
+     *            The futures to join.
+     * @return A {@link CompletableFuture} that completes with the results in
+     *         the order of the given futures, or fails with the first failure
+     *         after all of the futures have completed. Cancelling it cancels
+     *         all of the given futures.
+     */
+    public static <T> CompletableFuture<List<T>> allOf(
+            final Collection<CompletableFuture<T>> futures) {
+        final List<CompletableFuture<T>> copy = new ArrayList<>(futures);
+        final CompletableFuture<List<T>> result = CompletableFuture
+                .allOf(copy.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                    final List<T> results = new ArrayList<>(copy.size());
+                    for (final CompletableFuture<T> future : copy) {
+                        results.add(future.join());
+                    }
+                    return results;
+                });
+        for (final CompletableFuture<T> future : copy) {
+            propagateCancel(result, future);
+        }
+        return result;
+    }
+
+    private static CompletableFuture<Response> performRequest(final RestHighLevelClient client,
+            final Operation operation, final Request request) {
+        return metered(operation, result -> client.getLowLevelClient().performRequestAsync(request,
+                new ResponseListener() {
+                    @Override
+                    public void onSuccess(final Response response) {
+                        result.complete(response);
+                    }
+
+                    @Override
+                    public void onFailure(final Exception e) {
+                        result.completeExceptionally(e);
+                    }
+                }));
+    }
+
+    /**
+     * Start an asynchronous request, record its metrics, and cancel it if the
+     * returned future is cancelled.
+     */
+    private static <T> CompletableFuture<T> metered(final Operation operation,
+            final Function<CompletableFuture<T>, Cancellable> request) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final long startNanos = System.nanoTime();
+        result.whenComplete((response, e) -> METRICS.record(operation, startNanos, e == null));
+        cancelOnCancel(result, request.apply(result));
+        return result;
+    }
+
+    private static <T> ActionListener<T> listener(final CompletableFuture<T> result) {
+        return ActionListener.wrap(result::complete, result::completeExceptionally);
+    }
+
+    private static void cancelOnCancel(final CompletableFuture<?> future,
+            final Cancellable cancellable) {
+        future.whenComplete((response, e) -> {
+            if (future.isCancelled()) {
+                cancellable.cancel();
+            }
+        });
+    }
+
+    private static void propagateCancel(final CompletableFuture<?> from,
+            final CompletableFuture<?> to) {
+        from.whenComplete((response, e) -> {
+            if (from.isCancelled()) {
+                to.cancel(false);
+            }
+        });
+    }
+
+    private static void schedule(final CompletableFuture<?> result, final long delayMillis,
+            final Runnable attempt) {
+        final ScheduledFuture<?> scheduled = TIMER.schedule(attempt, delayMillis,
+                TimeUnit.MILLISECONDS);
+        result.whenComplete((response, e) -> scheduled.cancel(false));
+    }
+
+    private static Throwable unwrap(final Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+
+/**
+ * Loads documents by ID, coalescing individual lookups into multi-get
+ * requests.
+ * <p>
+ * Lookups are queued until either the maximum batch size is reached or the
+ * maximum delay has passed since the first queued lookup, and are then sent
+ * as a single multi-get request. Lookups for a document that is already queued
+ * or being fetched share the same result.
+ * <p>
+ * Futures are completed on the client IO threads, so any expensive processing
+ * of the results should use the asynchronous {@link CompletableFuture}
+ * methods.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class BatchingDocumentLoader implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingDocumentLoader.class);
+
+    private static final ElasticsearchMetrics METRICS = ElasticsearchMetrics.getDefault();
+
+    /**
+     * The default maximum number of documents in each multi-get request.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+    /**
+     * The default maximum time a lookup waits for other lookups to join its
+     * batch.
+     */
+    public static final TimeValue DEFAULT_MAX_DELAY = TimeValue.timeValueMillis(5);
+
+    private final RestHighLevelClient client;
+    private final int maxBatchSize;
+    private final TimeValue maxDelay;
+    private final ScheduledExecutorService scheduler;
+
+    private final Object lock = new Object();
+    private Map<DocumentKey, CompletableFuture<Optional<Map<String, Object>>>> pending = new LinkedHashMap<>();
+    private final Map<DocumentKey, CompletableFuture<Optional<Map<String, Object>>>> inFlight = new HashMap<>();
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean closed = false;
+
+    /**
+     * Create a new {@link BatchingDocumentLoader} using the default batch size
+     * and delay.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     */
+    public BatchingDocumentLoader(final RestHighLevelClient client) {
+        this(client, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Create a new {@link BatchingDocumentLoader}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param maxBatchSize
+     *            The maximum number of documents in each multi-get request.
+     * @param maxDelay
+     *            The maximum time a lookup waits for other lookups to join its
+     *            batch.
+     */
+    public BatchingDocumentLoader(final RestHighLevelClient client, final int maxBatchSize,
+            final TimeValue maxDelay) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Max batch size must be at least 1: " + maxBatchSize);
+        }
+        this.client = client;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "batching-document-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Load a document asynchronously.
+     *
+     * @param documentID
+     *            The ID of the document.
+     * @param indexName
+     *            The index containing the document.
+     * @return A {@link CompletableFuture} that completes with the source of
+     *         the document, or an empty {@link Optional} if it was not found.
+     */
+    public CompletableFuture<Optional<Map<String, Object>>> load(final String documentID,
+            final String indexName) {
+        final DocumentKey key = new DocumentKey(indexName, documentID);
+        Map<DocumentKey, CompletableFuture<Optional<Map<String, Object>>>> batch = null;
+        CompletableFuture<Optional<Map<String, Object>>> result;
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Document loader has been closed");
+            }
+            result = inFlight.get(key);
+            if (result != null) {
+                return result;
+            }
+            result = pending.get(key);
+            if (result != null) {
+                return result;
+            }
+            result = new CompletableFuture<>();
+            pending.put(key, result);
+            if (pending.size() >= maxBatchSize) {
+                batch = takePending();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(this::flush, maxDelay.getMillis(),
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        if (batch != null) {
+            dispatch(batch);
+        }
+        return result;
+    }
+
+    /**
+     * Load a document, waiting for the batch that it is part of.
+     *
+     * @param documentID
+     *            The ID of the document.
+     * @param indexName
+     *            The index containing the document.
+     * @return The source of the document, or an empty {@link Optional} if it
+     *         was not found.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public Optional<Map<String, Object>> get(final String documentID, final String indexName)
+            throws IOException, InterruptedException {
+        try {
+            return load(documentID, indexName).get();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Send all of the queued lookups without waiting for the batch to fill.
+     */
+    public void flush() {
+        final Map<DocumentKey, CompletableFuture<Optional<Map<String, Object>>>> batch;
+        synchronized (lock) {
+            batch = takePending();
+        }
+        if (!batch.isEmpty()) {
+            dispatch(batch);
+        }
+    }
+
+    /**
+     * Send any queued lookups and stop accepting new lookups. Lookups that
+     * have already been sent will still be completed.
+     */
+    @Override
+    public void close() {
+        flush();
+        synchronized (lock) {
+            closed = true;
+        }
+        scheduler.shutdown();
+    }
+
+    private Map<DocumentKey, CompletableFuture<Optional<Map<String, Object>>>> takePending() {
+        final Map<DocumentKey, CompletableFuture<Optional<Map<String, Object>>>> batch = pending;
+        pending = new LinkedHashMap<>();
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        inFlight.putAll(batch);
+        return batch;
+    }
+
+    private void dispatch(
+            final Map<DocumentKey, CompletableFuture<Optional<Map<String, Object>>>> batch) {
+        final MultiGetRequest multiGetRequest = new MultiGetRequest();
+        for (final DocumentKey key : batch.keySet()) {
+            multiGetRequest.add(new MultiGetRequest.Item(key.indexName, key.documentID)
+                    .fetchSourceContext(FetchSourceContext.FETCH_SOURCE));
+        }
+        LOG.debug("Sending multi-get request for {} documents", batch.size());
+        final long startNanos = System.nanoTime();
+        client.mgetAsync(multiGetRequest, RequestOptions.DEFAULT,
+                ActionListener.wrap(response -> {
+                    METRICS.record(Operation.MULTI_GET, startNanos, true);
+                    onResponse(batch, response);
+                }, e -> {
+                    METRICS.record(Operation.MULTI_GET, startNanos, false);
+                    onFailure(batch, e);
+                }));
+    }
+
+    private void onResponse(
+            final Map<DocumentKey, CompletableFuture<Optional<Map<String, Object>>>> batch,
+            final MultiGetResponse response) {
+        removeInFlight(batch);
+        // Responses are in the same order as the requested items
+        final Iterator<Entry<DocumentKey, CompletableFuture<Optional<Map<String, Object>>>>> requests = batch
+                .entrySet().iterator();
+        for (final MultiGetItemResponse item : response.getResponses()) {
+            final CompletableFuture<Optional<Map<String, Object>>> result = requests.next()
+                    .getValue();
+            if (item.isFailed()) {
+                result.completeExceptionally(item.getFailure().getFailure());
+            } else {
+                final GetResponse getResponse = item.getResponse();
+                result.complete(Optional.ofNullable(
+                        getResponse.isExists() ? getResponse.getSourceAsMap() : null));
+            }
+        }
+    }
+
+    private void onFailure(
+            final Map<DocumentKey, CompletableFuture<Optional<Map<String, Object>>>> batch,
+            final Exception e) {
+        removeInFlight(batch);
+        for (final CompletableFuture<Optional<Map<String, Object>>> result : batch.values()) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void removeInFlight(
+            final Map<DocumentKey, CompletableFuture<Optional<Map<String, Object>>>> batch) {
+        synchronized (lock) {
+            inFlight.keySet().removeAll(batch.keySet());
+        }
+    }
+
+    private static final class DocumentKey {
+        private final String indexName;
+        private final String documentID;
+
+        private DocumentKey(final String indexName, final String documentID) {
+            this.indexName = Objects.requireNonNull(indexName);
+            this.documentID = Objects.requireNonNull(documentID);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(indexName, documentID);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof DocumentKey)) {
+                return false;
+            }
+            final DocumentKey other = (DocumentKey) obj;
+            return indexName.equals(other.indexName) && documentID.equals(other.documentID);
+        }
+    }
+}
@@ -0,0 +1,837 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+/**
+ * Loads newline delimited JSON files, with one document source per line,
+ * into an index using concurrent bulk requests. Files written by
+ * {@link Export} have an {@code index} action line holding the document id
+ * before each source line, which can be kept instead of generating new ids.
+ * <p>
+ * Uncompressed files are memory mapped and split at line boundaries into
+ * chunks that are read by concurrent readers. Gzip compressed files, and
+ * files with action lines, are read by a single reader. Each line is copied
+ * unchanged into the body of a bulk request after an {@code index} action,
+ * or after its own action line, so documents are never parsed on the
+ * client. Bulk requests are limited by size in bytes rather than by
+ * number of documents, and the number of requests waiting for or being
+ * written is bounded, so reading blocks when the writers fall behind. Items
+ * that are rejected by the cluster are retried with exponential backoff.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class BulkLoad {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkLoad.class);
+
+    private static final ElasticsearchMetrics METRICS = ElasticsearchMetrics.getDefault();
+
+    /**
+     * The default number of concurrent bulk writers.
+     */
+    public static final int DEFAULT_CONCURRENCY = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The default maximum size in bytes of each bulk request.
+     */
+    public static final long DEFAULT_BATCH_BYTES = 5L * 1024L * 1024L;
+
+    /**
+     * The default number of times that rejected items are retried.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    /**
+     * The largest chunk of an uncompressed file that is mapped at once.
+     */
+    static final long MAX_CHUNK_BYTES = 64L * 1024L * 1024L;
+
+    static final TimeValue INITIAL_RETRY_BACKOFF = TimeValue.timeValueMillis(100);
+
+    private static final TimeValue PROGRESS_INTERVAL = TimeValue.timeValueSeconds(10);
+
+    private static final byte[] INDEX_ACTION = "{\"index\":{}}\n"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson",
+            StandardCharsets.UTF_8);
+
+    public static void main(String... args) throws Exception {
+        final OptionParser parser = new OptionParser();
+
+        final OptionSpec<Void> help = parser.accepts("help").forHelp();
+        final OptionSpec<File> inputOption = parser.accepts("input").withRequiredArg()
+                .ofType(File.class).required().describedAs(
+                        "A newline delimited JSON file, optionally gzip compressed, with one document per line. May be repeated.");
+        final OptionSpec<String> indexOption = parser.accepts("index").withRequiredArg()
+                .ofType(String.class).required()
+                .describedAs("The index to load the documents into.");
+        final ElasticsearchClientOptions clientOptions = new ElasticsearchClientOptions(parser);
+        final OptionSpec<Integer> concurrencyOption = parser.accepts("concurrency")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_CONCURRENCY)
+                .describedAs("The number of concurrent bulk requests.");
+        final OptionSpec<Integer> batchSizeOption = parser.accepts("batch-size-mb")
+                .withRequiredArg().ofType(Integer.class)
+                .defaultsTo((int) (DEFAULT_BATCH_BYTES / (1024L * 1024L)))
+                .describedAs("The maximum size of each bulk request in megabytes.");
+        final OptionSpec<Integer> maxRetriesOption = parser.accepts("max-retries")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_MAX_RETRIES)
+                .describedAs("The number of times that rejected documents are retried.");
+        final OptionSpec<Void> actionsOption = parser.accepts("actions",
+                "Each document is preceded by an index action line, as written by export, so that its id is kept.");
+
+        OptionSet options = null;
+
+        try {
+            options = parser.parse(args);
+        } catch (final OptionException e) {
+            System.out.println(e.getMessage());
+            parser.printHelpOn(System.out);
+            throw e;
+        }
+
+        if (options.has(help)) {
+            parser.printHelpOn(System.out);
+            return;
+        }
+
+        final String index = indexOption.value(options);
+        final long batchBytes = batchSizeOption.value(options) * 1024L * 1024L;
+
+        final Closeable metrics = clientOptions.startMetrics(options);
+        try (RestHighLevelClient client = clientOptions.newClient(options);) {
+            for (final File input : inputOption.values(options)) {
+                final Result result = load(client, input.toPath(), index,
+                        concurrencyOption.value(options), batchBytes,
+                        maxRetriesOption.value(options), options.has(actionsOption));
+                System.out.println(input + ": " + result);
+            }
+        } finally {
+            metrics.close();
+        }
+    }
+
+    /**
+     * Load the given newline delimited JSON file into the given index using
+     * the default concurrency, batch size and retries.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param file
+     *            The file to load, optionally gzip compressed.
+     * @param indexName
+     *            The index to load the documents into.
+     * @return The {@link Result} summarising the load.
+     * @throws IOException
+     *             If the file could not be read or communication with the
+     *             server had an issue.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static Result load(final RestHighLevelClient client, final Path file,
+            final String indexName) throws IOException, InterruptedException {
+        return load(client, file, indexName, DEFAULT_CONCURRENCY, DEFAULT_BATCH_BYTES,
+                DEFAULT_MAX_RETRIES);
+    }
+
+    /**
+     * Load the given newline delimited JSON file into the given index.
+     * <p>
+     * Blank lines are skipped. Documents are given automatically generated
+     * ids. Items that fail for reasons other than rejection, or that are
+     * still rejected after the maximum number of retries, are counted in
+     * {@link Result#getFailed()} and logged, but do not stop the load.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param file
+     *            The file to load, optionally gzip compressed.
+     * @param indexName
+     *            The index to load the documents into.
+     * @param concurrency
+     *            The number of concurrent bulk requests, which is also the
+     *            number of concurrent readers for uncompressed files.
+     * @param batchBytes
+     *            The maximum size of each bulk request in bytes. Documents
+     *            larger than this are sent in a request on their own.
+     * @param maxRetries
+     *            The number of times that rejected items are retried.
+     * @return The {@link Result} summarising the load.
+     * @throws IOException
+     *             If the file could not be read or communication with the
+     *             server had an issue.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static Result load(final RestHighLevelClient client, final Path file,
+            final String indexName, final int concurrency, final long batchBytes,
+            final int maxRetries) throws IOException, InterruptedException {
+        return load(client, file, indexName, concurrency, batchBytes, maxRetries, false);
+    }
+
+    /**
+     * Load the given newline delimited JSON file into the given index.
+     * <p>
+     * Blank lines are skipped. If the file has action lines, each document
+     * source line must follow an {@code index} or {@code create} action line,
+     * which is sent unchanged so that the id in it is kept. Otherwise
+     * documents are given automatically generated ids. Items that fail for
+     * reasons other than rejection, or that are still rejected after the
+     * maximum number of retries, are counted in {@link Result#getFailed()}
+     * and logged, but do not stop the load.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param file
+     *            The file to load, optionally gzip compressed.
+     * @param indexName
+     *            The index to load the documents into.
+     * @param concurrency
+     *            The number of concurrent bulk requests, which is also the
+     *            number of concurrent readers for uncompressed files without
+     *            action lines.
+     * @param batchBytes
+     *            The maximum size of each bulk request in bytes. Documents
+     *            larger than this are sent in a request on their own.
+     * @param maxRetries
+     *            The number of times that rejected items are retried.
+     * @param actions
+     *            True if each document source line follows an action line,
+     *            as in the files written by {@link Export}.
+     * @return The {@link Result} summarising the load.
+     * @throws IOException
+     *             If the file could not be read or communication with the
+     *             server had an issue.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static Result load(final RestHighLevelClient client, final Path file,
+            final String indexName, final int concurrency, final long batchBytes,
+            final int maxRetries, final boolean actions)
+            throws IOException, InterruptedException {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1: " + concurrency);
+        }
+        if (batchBytes < 1L || batchBytes > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("Batch size is out of range: " + batchBytes);
+        }
+
+        final Loader loader = new Loader(client, indexName, concurrency, (int) batchBytes,
+                maxRetries, actions);
+        try {
+            if (isGzip(file)) {
+                loader.readCompressed(file);
+            } else {
+                loader.readMapped(file);
+            }
+            loader.awaitWritten();
+        } finally {
+            loader.close();
+        }
+
+        if (loader.writerError.get() != null) {
+            throw new IOException("Bulk load of " + file + " into " + indexName + " failed",
+                    loader.writerError.get());
+        }
+
+        AlaElasticsearchUtils.refresh(client, indexName);
+
+        final Result result = loader.result();
+        LOG.info("Bulk load of {} into {} completed: {}", file, indexName, result);
+        return result;
+    }
+
+    private static boolean isGzip(final Path file) throws IOException {
+        try (InputStream input = Files.newInputStream(file);) {
+            return input.read() == 0x1f && input.read() == 0x8b;
+        }
+    }
+
+    /**
+     * Split the given file into chunks that end at line boundaries, so that
+     * they can be mapped and read independently.
+     *
+     * @param channel
+     *            The channel for the file.
+     * @param minimumChunks
+     *            The minimum number of chunks to split the file into, if it
+     *            has enough lines.
+     * @return The offsets of the start of each chunk, followed by the size of
+     *         the file.
+     * @throws IOException
+     *             If the file could not be read.
+     */
+    static long[] chunkBoundaries(final FileChannel channel, final int minimumChunks)
+            throws IOException {
+        final long size = channel.size();
+        final long chunkBytes = Math.max(1L,
+                Math.min(MAX_CHUNK_BYTES, (size + minimumChunks - 1) / minimumChunks));
+        final List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = chunkBytes;
+        while (position < size) {
+            // Move forward to the start of the next line
+            long lineEnd = -1L;
+            long readPosition = position - 1L;
+            while (lineEnd < 0L && readPosition < size) {
+                buffer.clear();
+                final int read = channel.read(buffer, readPosition);
+                if (read < 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        lineEnd = readPosition + i + 1L;
+                        break;
+                    }
+                }
+                readPosition += read;
+            }
+            if (lineEnd < 0L || lineEnd >= size) {
+                break;
+            }
+            if (lineEnd - boundaries.get(boundaries.size() - 1) > Integer.MAX_VALUE) {
+                throw new IOException("Line is too long to map starting at offset "
+                        + boundaries.get(boundaries.size() - 1));
+            }
+            boundaries.add(lineEnd);
+            position = lineEnd + chunkBytes;
+        }
+        if (size - boundaries.get(boundaries.size() - 1) > Integer.MAX_VALUE) {
+            throw new IOException("Line is too long to map starting at offset "
+                    + boundaries.get(boundaries.size() - 1));
+        }
+        boundaries.add(size);
+        return boundaries.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * The body of a bulk request, holding an action line followed by the
+     * unparsed source line for each document, along with the offset of each
+     * document so that rejected documents can be resent.
+     */
+    private static final class BulkBody {
+
+        private byte[] bytes;
+        private int length;
+        private int[] offsets = new int[256];
+        private int documents;
+        private long sourceBytes;
+
+        BulkBody(final int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        int length() {
+            return length;
+        }
+
+        int documents() {
+            return documents;
+        }
+
+        void add(final byte[] action, final ByteBuffer source, final int sourceLength) {
+            startDocument(action, sourceLength);
+            source.get(bytes, length, sourceLength);
+            endDocument(sourceLength);
+        }
+
+        private void startDocument(final byte[] action, final int sourceLength) {
+            final int needed = length + action.length + sourceLength + 1;
+            if (needed > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+            }
+            if (documents == offsets.length) {
+                offsets = Arrays.copyOf(offsets, documents * 2);
+            }
+            offsets[documents++] = length;
+            System.arraycopy(action, 0, bytes, length, action.length);
+            length += action.length;
+        }
+
+        private void endDocument(final int sourceLength) {
+            length += sourceLength;
+            bytes[length++] = '\n';
+            sourceBytes += sourceLength + 1;
+        }
+
+        /**
+         * Copy the given documents into a new body.
+         */
+        BulkBody subset(final int[] documentIndexes, final int count) {
+            int subsetLength = 0;
+            for (int i = 0; i < count; i++) {
+                subsetLength += end(documentIndexes[i]) - offsets[documentIndexes[i]];
+            }
+            final BulkBody result = new BulkBody(subsetLength);
+            for (int i = 0; i < count; i++) {
+                final int start = offsets[documentIndexes[i]];
+                final int documentLength = end(documentIndexes[i]) - start;
+                if (result.documents == result.offsets.length) {
+                    result.offsets = Arrays.copyOf(result.offsets, result.documents * 2);
+                }
+                result.offsets[result.documents++] = result.length;
+                System.arraycopy(bytes, start, result.bytes, result.length, documentLength);
+                result.length += documentLength;
+            }
+            return result;
+        }
+
+        private int end(final int documentIndex) {
+            return documentIndex + 1 < documents ? offsets[documentIndex + 1] : length;
+        }
+    }
+
+    /**
+     * The state shared by the readers and writers for a single file.
+     */
+    private static final class Loader implements Closeable {
+
+        private final RestHighLevelClient client;
+        private final String indexName;
+        private final int concurrency;
+        private final int batchBytes;
+        private final int maxRetries;
+        private final boolean actions;
+        private final int maxInFlightBatches;
+        private final long startTime = System.nanoTime();
+
+        private final AtomicLong documents = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong lastProgress = new AtomicLong(System.nanoTime());
+        private final AtomicReference<Exception> writerError = new AtomicReference<>();
+
+        private final Semaphore inFlightBatches;
+        private final ExecutorService writers;
+
+        Loader(final RestHighLevelClient client, final String indexName, final int concurrency,
+                final int batchBytes, final int maxRetries, final boolean actions) {
+            this.client = client;
+            this.indexName = indexName;
+            this.concurrency = concurrency;
+            this.batchBytes = batchBytes;
+            this.maxRetries = maxRetries;
+            this.actions = actions;
+            this.maxInFlightBatches = concurrency * 2;
+            this.inFlightBatches = new Semaphore(maxInFlightBatches);
+            this.writers = Executors.newFixedThreadPool(concurrency);
+        }
+
+        void readMapped(final Path file) throws IOException, InterruptedException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);) {
+                if (actions) {
+                    // A document and its action line may be split between
+                    // chunks, so the chunks are read in order by one reader
+                    final long[] boundaries = chunkBoundaries(channel, 1);
+                    final Lines lines = new Lines();
+                    for (int i = 0; i < boundaries.length - 1; i++) {
+                        readChunk(channel.map(FileChannel.MapMode.READ_ONLY, boundaries[i],
+                                boundaries[i + 1] - boundaries[i]), lines);
+                    }
+                    lines.finish(file);
+                    return;
+                }
+                final long[] boundaries = chunkBoundaries(channel, concurrency);
+                final int chunks = boundaries.length - 1;
+                LOG.debug("Reading {} in {} chunks", file, chunks);
+                final ExecutorService readers = Executors
+                        .newFixedThreadPool(Math.min(concurrency, chunks));
+                try {
+                    final List<Future<Void>> reads = new ArrayList<>();
+                    for (int i = 0; i < chunks; i++) {
+                        final long start = boundaries[i];
+                        final long end = boundaries[i + 1];
+                        reads.add(readers.submit(() -> {
+                            final Lines lines = new Lines();
+                            readChunk(channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                    end - start), lines);
+                            lines.finish(file);
+                            return null;
+                        }));
+                    }
+                    for (final Future<Void> read : reads) {
+                        read.get();
+                    }
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Failed to read " + file, e.getCause());
+                } finally {
+                    readers.shutdownNow();
+                    readers.awaitTermination(1, TimeUnit.MINUTES);
+                }
+            }
+        }
+
+        private void readChunk(final MappedByteBuffer chunk, final Lines lines)
+                throws InterruptedException {
+            // A separate view is used to copy lines without disturbing the scan
+            final ByteBuffer copy = chunk.duplicate();
+            final int limit = chunk.limit();
+            int lineStart = 0;
+            for (int i = 0; i <= limit && writerError.get() == null; i++) {
+                if (i < limit && chunk.get(i) != '\n') {
+                    continue;
+                }
+                int lineEnd = i;
+                if (lineEnd > lineStart && chunk.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+                if (lineEnd > lineStart) {
+                    copy.position(lineStart);
+                    lines.add(copy, lineEnd - lineStart);
+                }
+                lineStart = i + 1;
+            }
+        }
+
+        void readCompressed(final Path file) throws IOException, InterruptedException {
+            try (InputStream input = new GZIPInputStream(
+                    new BufferedInputStream(Files.newInputStream(file)), 65536);) {
+                final byte[] buffer = new byte[65536];
+                byte[] line = new byte[8192];
+                int lineLength = 0;
+                final Lines lines = new Lines();
+                int read;
+                while ((read = input.read(buffer)) >= 0 && writerError.get() == null) {
+                    int lineStart = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] != '\n') {
+                            continue;
+                        }
+                        if (lineLength == 0) {
+                            lines.add(buffer, lineStart, i - lineStart);
+                        } else {
+                            line = append(line, lineLength, buffer, lineStart, i - lineStart);
+                            lines.add(line, 0, lineLength + i - lineStart);
+                            lineLength = 0;
+                        }
+                        lineStart = i + 1;
+                    }
+                    line = append(line, lineLength, buffer, lineStart, read - lineStart);
+                    lineLength += read - lineStart;
+                }
+                lines.add(line, 0, lineLength);
+                lines.finish(file);
+            }
+        }
+
+        private static byte[] append(final byte[] line, final int lineLength,
+                final byte[] source, final int offset, final int length) {
+            final byte[] result = lineLength + length > line.length
+                    ? Arrays.copyOf(line, Math.max(lineLength + length, line.length * 2))
+                    : line;
+            System.arraycopy(source, offset, result, lineLength, length);
+            return result;
+        }
+
+        /**
+         * The bulk body being filled by a single reader, along with the
+         * action line that is waiting for its document source line when the
+         * file has action lines.
+         */
+        private final class Lines {
+
+            private BulkBody body = new BulkBody(batchBytes);
+            private byte[] action;
+
+            void add(final ByteBuffer source, final int length) throws InterruptedException {
+                if (actions && action == null) {
+                    action = new byte[length + 1];
+                    source.get(action, 0, length);
+                    action[length] = '\n';
+                    return;
+                }
+                final byte[] nextAction = actions ? action : INDEX_ACTION;
+                flushIfFull(nextAction.length + length);
+                body.add(nextAction, source, length);
+                action = null;
+            }
+
+            void add(final byte[] source, final int offset, final int length)
+                    throws InterruptedException {
+                int lineLength = length;
+                if (lineLength > 0 && source[offset + lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                if (lineLength == 0) {
+                    return;
+                }
+                add(ByteBuffer.wrap(source, offset, lineLength), lineLength);
+            }
+
+            private void flushIfFull(final int nextDocumentLength) throws InterruptedException {
+                if (body.documents() == 0
+                        || body.length() + nextDocumentLength + 1 <= batchBytes) {
+                    return;
+                }
+                submit(body);
+                body = new BulkBody(batchBytes);
+            }
+
+            void finish(final Path file) throws IOException, InterruptedException {
+                submit(body);
+                if (action != null && writerError.get() == null) {
+                    throw new IOException("The last action line in " + file
+                            + " is not followed by a document source line");
+                }
+            }
+        }
+
+        private void submit(final BulkBody body) throws InterruptedException {
+            if (body.documents() == 0 || writerError.get() != null) {
+                return;
+            }
+            bytes.addAndGet(body.sourceBytes);
+            // Blocks reading when the writers are falling behind
+            inFlightBatches.acquire();
+            try {
+                writers.execute(() -> {
+                    try {
+                        write(body);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        writerError.compareAndSet(null, e);
+                    } catch (final Exception e) {
+                        LOG.error("Failed to write batch to {}", indexName, e);
+                        writerError.compareAndSet(null, e);
+                    } finally {
+                        inFlightBatches.release();
+                    }
+                });
+            } catch (final RuntimeException e) {
+                inFlightBatches.release();
+                throw e;
+            }
+        }
+
+        private void write(final BulkBody body) throws IOException, InterruptedException {
+            BulkBody pending = body;
+            long backoff = INITIAL_RETRY_BACKOFF.millis();
+            for (int attempt = 0;; attempt++) {
+                final BulkResponse response;
+                try {
+                    response = execute(pending);
+                } catch (final ResponseException e) {
+                    if (e.getResponse().getStatusLine().getStatusCode() != RestStatus.TOO_MANY_REQUESTS
+                            .getStatus() || attempt >= maxRetries) {
+                        throw e;
+                    }
+                    // The whole request was rejected, so resend all of it
+                    retries.addAndGet(pending.documents());
+                    backoff = sleep(backoff);
+                    continue;
+                }
+                batches.incrementAndGet();
+
+                final int[] rejected = new int[pending.documents()];
+                int rejectedCount = 0;
+                for (final BulkItemResponse item : response.getItems()) {
+                    if (!item.isFailed()) {
+                        documents.incrementAndGet();
+                    } else if (item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS
+                            && attempt < maxRetries) {
+                        rejected[rejectedCount++] = item.getItemId();
+                    } else {
+                        if (failed.incrementAndGet() <= 10) {
+                            LOG.warn("Failed to load document into {}: {}", indexName,
+                                    item.getFailureMessage());
+                        }
+                    }
+                }
+                logProgress();
+                if (rejectedCount == 0) {
+                    return;
+                }
+                retries.addAndGet(rejectedCount);
+                backoff = sleep(backoff);
+                pending = pending.subset(rejected, rejectedCount);
+            }
+        }
+
+        private static long sleep(final long backoff) throws InterruptedException {
+            // Jitter avoids the writers retrying in lockstep
+            Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+            return backoff * 2;
+        }
+
+        private BulkResponse execute(final BulkBody body) throws IOException {
+            final Request request = new Request("POST", "/" + indexName + "/_bulk");
+            request.setEntity(new NByteArrayEntity(body.bytes, 0, body.length(), NDJSON));
+            final Response response = METRICS.time(Operation.BULK,
+                    () -> client.getLowLevelClient().performRequest(request));
+            METRICS.recordBytes(Operation.BULK, body.length(),
+                    response.getEntity().getContentLength());
+            try (InputStream content = response.getEntity().getContent();
+                    XContentParser parser = XContentType.JSON.xContent().createParser(
+                            NamedXContentRegistry.EMPTY,
+                            DeprecationHandler.THROW_UNSUPPORTED_OPERATION, content);) {
+                return BulkResponse.fromXContent(parser);
+            }
+        }
+
+        private void logProgress() {
+            final long now = System.nanoTime();
+            final long last = lastProgress.get();
+            if (now - last >= PROGRESS_INTERVAL.nanos() && lastProgress.compareAndSet(last, now)) {
+                LOG.info("Bulk load into {} in progress: {}", indexName, result());
+            }
+        }
+
+        void awaitWritten() throws InterruptedException {
+            inFlightBatches.acquire(maxInFlightBatches);
+            inFlightBatches.release(maxInFlightBatches);
+        }
+
+        Result result() {
+            return new Result(documents.get(), failed.get(), retries.get(), batches.get(),
+                    bytes.get(), TimeValue.timeValueNanos(System.nanoTime() - startTime));
+        }
+
+        @Override
+        public void close() {
+            writers.shutdownNow();
+            try {
+                writers.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A summary of a completed bulk load.
+     */
+    public static final class Result {
+
+        private final long documents;
+        private final long failed;
+        private final long retries;
+        private final long batches;
+        private final long bytes;
+        private final TimeValue took;
+
+        Result(final long documents, final long failed, final long retries, final long batches,
+                final long bytes, final TimeValue took) {
+            this.documents = documents;
+            this.failed = failed;
+            this.retries = retries;
+            this.batches = batches;
+            this.bytes = bytes;
+            this.took = took;
+        }
+
+        /**
+         * @return The number of documents that were loaded.
+         */
+        public long getDocuments() {
+            return documents;
+        }
+
+        /**
+         * @return The number of documents that could not be loaded.
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return The number of times that documents were resent after being
+         *         rejected.
+         */
+        public long getRetries() {
+            return retries;
+        }
+
+        /**
+         * @return The number of bulk requests, including retries.
+         */
+        public long getBatches() {
+            return batches;
+        }
+
+        /**
+         * @return The number of uncompressed bytes of document source read.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public TimeValue getTook() {
+            return took;
+        }
+
+        public double getDocumentsPerSecond() {
+            return documents / Math.max(took.nanos() / 1e9, 1e-9);
+        }
+
+        public double getMegabytesPerSecond() {
+            return bytes / (1024.0 * 1024.0) / Math.max(took.nanos() / 1e9, 1e-9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%d documents (%.1f MB) in %s: %.0f docs/s, %.2f MB/s, %d batches, %d retried, %d failed",
+                    documents, bytes / (1024.0 * 1024.0), took, getDocumentsPerSecond(),
+                    getMegabytesPerSecond(), batches, retries, failed);
+        }
+    }
+}
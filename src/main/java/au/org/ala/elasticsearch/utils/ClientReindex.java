@@ -0,0 +1,676 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.BulkByScrollTask;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+
+/**
+ * Reindexes documents by streaming them through the client, so that
+ * documents can be transformed using Java code instead of a Painless script
+ * running inside the cluster.
+ * <p>
+ * The source is read using
+ * {@link AlaElasticsearchUtils#searchAll(RestHighLevelClient, SearchSourceBuilder, int, int, String...)},
+ * which prefetches pages while earlier pages are being transformed. The
+ * transformed batches are written by a pool of concurrent bulk writers. The
+ * number of batches waiting for or being written is bounded, so reading
+ * blocks when the writers fall behind. Documents that are rejected by the
+ * cluster are retried with exponential backoff.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ClientReindex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClientReindex.class);
+
+    /**
+     * The default number of documents read and written in each batch.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * The default number of concurrent bulk writers.
+     */
+    public static final int DEFAULT_WRITERS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The number of times that documents rejected by the cluster are retried
+     * before they are counted as failures.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    static final TimeValue INITIAL_RETRY_BACKOFF = TimeValue.timeValueMillis(100);
+
+    static final TimeValue MAX_RETRY_BACKOFF = TimeValue.timeValueSeconds(10);
+
+    /**
+     * Reindex the given source index to the given destination index using the
+     * default batch size and number of writers.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @param transform
+     *            The transform to apply to the source of each document. May
+     *            return null to skip the document. Called concurrently from
+     *            multiple threads.
+     * @return The {@link BulkByScrollResponse} summarising the reindex.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static BulkByScrollResponse doReindex(final RestHighLevelClient client,
+            final String sourceIndex, final String destinationIndex,
+            final Function<Map<String, Object>, Map<String, Object>> transform)
+            throws IOException, InterruptedException {
+        return doReindex(client, sourceIndex, destinationIndex, transform, DEFAULT_BATCH_SIZE,
+                DEFAULT_WRITERS, DEFAULT_WRITERS * 2);
+    }
+
+    /**
+     * Reindex the given source index to the given destination index, applying
+     * the transform on the client, and reading the source sorted on
+     * {@link SearchHitSpliterator#DEFAULT_SORT_FIELD}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @param transform
+     *            The transform to apply to the source of each document. May
+     *            return null to skip the document. Called concurrently from
+     *            multiple threads.
+     * @param batchSize
+     *            The number of documents to read and write in each batch.
+     * @param writers
+     *            The number of concurrent bulk writers.
+     * @param maxInFlightBatches
+     *            The maximum number of batches that are waiting to be written
+     *            or are being written before reading blocks.
+     * @return The {@link BulkByScrollResponse} summarising the reindex.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static BulkByScrollResponse doReindex(final RestHighLevelClient client,
+            final String sourceIndex, final String destinationIndex,
+            final Function<Map<String, Object>, Map<String, Object>> transform,
+            final int batchSize, final int writers, final int maxInFlightBatches)
+            throws IOException, InterruptedException {
+        return doReindex(client, sourceIndex, destinationIndex, transform, batchSize, writers,
+                maxInFlightBatches, SearchHitSpliterator.DEFAULT_SORT_FIELD);
+    }
+
+    /**
+     * Reindex the given source index to the given destination index, applying
+     * the transform on the client.
+     * <p>
+     * Documents are written using {@link VersionType#EXTERNAL} with the
+     * version of the source document, matching {@link Reindex}. Documents
+     * that the destination already has at the same or a newer version are
+     * counted as version conflicts rather than as failures.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @param transform
+     *            The transform to apply to the source of each document. May
+     *            return null to skip the document. Called concurrently from
+     *            multiple threads.
+     * @param batchSize
+     *            The number of documents to read and write in each batch.
+     * @param writers
+     *            The number of concurrent bulk writers.
+     * @param maxInFlightBatches
+     *            The maximum number of batches that are waiting to be written
+     *            or are being written before reading blocks.
+     * @param sortField
+     *            The field to sort the source on, which must have a different
+     *            value in every document. See
+     *            {@link SearchHitSpliterator#DEFAULT_SORT_FIELD} for the cost
+     *            of sorting on {@code _id}.
+     * @return The {@link BulkByScrollResponse} summarising the reindex.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static BulkByScrollResponse doReindex(final RestHighLevelClient client,
+            final String sourceIndex, final String destinationIndex,
+            final Function<Map<String, Object>, Map<String, Object>> transform,
+            final int batchSize, final int writers, final int maxInFlightBatches,
+            final String sortField) throws IOException, InterruptedException {
+        SearchHitSpliterator.warnIfSortedOnId(sortField, sourceIndex);
+        final long startTime = System.nanoTime();
+
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong created = new AtomicLong();
+        final AtomicLong updated = new AtomicLong();
+        final AtomicLong batches = new AtomicLong();
+        final AtomicLong versionConflicts = new AtomicLong();
+        final AtomicLong noops = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final List<BulkItemResponse.Failure> failures = Collections
+                .synchronizedList(new ArrayList<>());
+        final AtomicReference<Exception> writerError = new AtomicReference<>();
+
+        final Semaphore inFlightBatches = new Semaphore(maxInFlightBatches);
+        final ExecutorService executor = Executors.newFixedThreadPool(writers);
+
+        final SearchSourceBuilder searchSource = new SearchSourceBuilder()
+                .query(QueryBuilders.matchAllQuery()).version(true)
+                .sort(sortField, SortOrder.ASC);
+        try (Stream<SearchHit> sourceHits = AlaElasticsearchUtils.searchAll(client, searchSource,
+                batchSize, 2, sourceIndex);) {
+            final Iterator<SearchHit> sourceIterator = sourceHits.iterator();
+            while (sourceIterator.hasNext() && writerError.get() == null) {
+                final SearchHit[] hits = new SearchHit[batchSize];
+                int batchCount = 0;
+                while (batchCount < batchSize && sourceIterator.hasNext()) {
+                    hits[batchCount++] = sourceIterator.next();
+                }
+                final SearchHit[] batch = Arrays.copyOf(hits, batchCount);
+
+                // Blocks reading when the writers are falling behind
+                inFlightBatches.acquire();
+                executor.execute(() -> {
+                    try {
+                        writeBatch(client, destinationIndex, transform, batch, total, created,
+                                updated, batches, versionConflicts, noops, retries, failures);
+                    } catch (final Exception e) {
+                        LOG.error("Failed to write batch to {}", destinationIndex, e);
+                        writerError.compareAndSet(null, e);
+                    } finally {
+                        inFlightBatches.release();
+                    }
+                });
+            }
+
+            // Wait for all of the batches to be written
+            inFlightBatches.acquire(maxInFlightBatches);
+            inFlightBatches.release(maxInFlightBatches);
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        if (writerError.get() != null) {
+            throw new IOException("Client reindex from " + sourceIndex + " to "
+                    + destinationIndex + " failed", writerError.get());
+        }
+
+        AlaElasticsearchUtils.refresh(client, destinationIndex);
+
+        final BulkByScrollTask.Status status = new BulkByScrollTask.Status(null, total.get(),
+                updated.get(), created.get(), 0L, (int) batches.get(), versionConflicts.get(),
+                noops.get(), retries.get(), 0L, TimeValue.ZERO, Float.POSITIVE_INFINITY, null,
+                TimeValue.ZERO);
+        final BulkByScrollResponse response = new BulkByScrollResponse(
+                TimeValue.timeValueNanos(System.nanoTime() - startTime), status,
+                new ArrayList<>(failures), Collections.emptyList(), false);
+        LOG.info("Client reindex from {} to {} completed: {}", sourceIndex, destinationIndex,
+                response);
+        return response;
+    }
+
+    /**
+     * Reindex the given source index to the given destination index, applying
+     * the transform on the client, and recording progress in a checkpoint
+     * file so that the reindex can be resumed if it is stopped, reading the
+     * source sorted on {@link SearchHitSpliterator#DEFAULT_SORT_FIELD}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @param transform
+     *            The transform to apply to the source of each document. May
+     *            return null to skip the document. Called concurrently from
+     *            multiple threads.
+     * @param batchSize
+     *            The number of documents to read and write in each batch.
+     * @param slices
+     *            The number of slices to read and write in parallel. Must be
+     *            the same as when the checkpoint file was written.
+     * @param checkpointFile
+     *            The local file to read the checkpoint from and write it to.
+     * @param checkpointInterval
+     *            The interval between writes of the checkpoint file.
+     * @return The {@link BulkByScrollResponse} summarising the documents
+     *         written since the reindex was started or resumed.
+     * @throws IOException
+     *             If communication with the server had an issue, or the
+     *             checkpoint file could not be read or written.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static BulkByScrollResponse doResumableReindex(final RestHighLevelClient client,
+            final String sourceIndex, final String destinationIndex,
+            final Function<Map<String, Object>, Map<String, Object>> transform,
+            final int batchSize, final int slices, final Path checkpointFile,
+            final TimeValue checkpointInterval) throws IOException, InterruptedException {
+        return doResumableReindex(client, sourceIndex, destinationIndex, transform, batchSize,
+                slices, checkpointFile, checkpointInterval,
+                SearchHitSpliterator.DEFAULT_SORT_FIELD);
+    }
+
+    /**
+     * Reindex the given source index to the given destination index, applying
+     * the transform on the client, and recording progress in a checkpoint
+     * file so that the reindex can be resumed if it is stopped.
+     * <p>
+     * The source is read in slices over a single point in time, sorted on
+     * the given sort field. The slices are ranges
+     * of sequence numbers from
+     * {@link AlaElasticsearchUtils#sliceQuery(QueryBuilder, int, int, long)},
+     * and the largest sequence number is kept in the checkpoint so that a
+     * resumed reindex uses the same slices, and only reads documents up to it.
+     * Each slice writes its batches in
+     * order, and its checkpoint is advanced to the last document of a batch
+     * only after the batch has been written, so a resumed reindex never skips
+     * documents. If the checkpoint file exists, slices continue after their
+     * checkpoints, and completed slices are skipped. Documents after the last
+     * written checkpoint may be written again, which is safe as they are
+     * written using {@link VersionType#EXTERNAL} with the version of the
+     * source document, so they either replace the document with a newer
+     * version or are counted as version conflicts.
+     * <p>
+     * Updating a document gives it a new sequence number, which can move it
+     * out of the slices, or into a slice whose checkpoint is already past it.
+     * Before the first run opens its point in time, the smallest of the
+     * largest sequence numbers of the primary shards of the source is kept in
+     * the checkpoint. Every document that is changed after that has a larger
+     * sequence number, so after the slices are complete a resumed reindex
+     * copies every document above it again.
+     * <p>
+     * A slice with a failed document stops advancing its checkpoint, so
+     * that resuming the reindex retries the document. The checkpoint file is
+     * deleted when the reindex completes without failed documents, and kept
+     * otherwise.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @param transform
+     *            The transform to apply to the source of each document. May
+     *            return null to skip the document. Called concurrently from
+     *            multiple threads.
+     * @param batchSize
+     *            The number of documents to read and write in each batch.
+     * @param slices
+     *            The number of slices to read and write in parallel. Must be
+     *            the same as when the checkpoint file was written.
+     * @param checkpointFile
+     *            The local file to read the checkpoint from and write it to.
+     * @param checkpointInterval
+     *            The interval between writes of the checkpoint file.
+     * @param sortField
+     *            The field to sort each slice on, which must have a different
+     *            value in every document. Must be the same as when the
+     *            checkpoint file was written. See
+     *            {@link SearchHitSpliterator#DEFAULT_SORT_FIELD} for the cost
+     *            of sorting on {@code _id}.
+     * @return The {@link BulkByScrollResponse} summarising the documents
+     *         written since the reindex was started or resumed.
+     * @throws IOException
+     *             If communication with the server had an issue, or the
+     *             checkpoint file could not be read or written.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static BulkByScrollResponse doResumableReindex(final RestHighLevelClient client,
+            final String sourceIndex, final String destinationIndex,
+            final Function<Map<String, Object>, Map<String, Object>> transform,
+            final int batchSize, final int slices, final Path checkpointFile,
+            final TimeValue checkpointInterval, final String sortField)
+            throws IOException, InterruptedException {
+        SearchHitSpliterator.warnIfSortedOnId(sortField, sourceIndex);
+        final long startTime = System.nanoTime();
+        final boolean resumed = Files.exists(checkpointFile);
+        final ReindexCheckpoint checkpoint = ReindexCheckpoint.readOrCreate(checkpointFile,
+                sourceIndex, destinationIndex, slices, sortField);
+        if (resumed) {
+            LOG.info("Resuming reindex from {} to {} after {} documents", sourceIndex,
+                    destinationIndex, checkpoint.getDocuments());
+            if (checkpoint.getChangedAfterSeqNo() == SequenceNumbers.UNASSIGNED_SEQ_NO) {
+                LOG.warn("Checkpoint {} does not record when the reindex started, so every "
+                        + "document will be copied again after the slices are complete",
+                        checkpointFile);
+            }
+        } else {
+            // Must be found before the point in time is opened, so that
+            // every document changed after it was opened is above it
+            checkpoint.setChangedAfterSeqNo(
+                    AlaElasticsearchUtils.getMinShardMaxSeqNo(client, sourceIndex));
+        }
+
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong created = new AtomicLong();
+        final AtomicLong updated = new AtomicLong();
+        final AtomicLong batches = new AtomicLong();
+        final AtomicLong versionConflicts = new AtomicLong();
+        final AtomicLong noops = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final List<BulkItemResponse.Failure> failures = Collections
+                .synchronizedList(new ArrayList<>());
+
+        final String pitId = AlaElasticsearchUtils.openPointInTime(client,
+                SearchHitSpliterator.DEFAULT_KEEP_ALIVE, sourceIndex);
+        final ExecutorService executor = Executors.newFixedThreadPool(slices);
+        final ScheduledExecutorService checkpointWriter = Executors
+                .newSingleThreadScheduledExecutor();
+        checkpointWriter.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint.write(checkpointFile);
+            } catch (final IOException e) {
+                LOG.warn("Failed to write checkpoint to {}", checkpointFile, e);
+            }
+        }, checkpointInterval.millis(), checkpointInterval.millis(), TimeUnit.MILLISECONDS);
+        try {
+            // Documents written after the first run opened its point in time
+            // are above this, so a resumed run keeps the same slices
+            if (checkpoint.getMaxSeqNo() == SequenceNumbers.UNASSIGNED_SEQ_NO) {
+                checkpoint.setMaxSeqNo(AlaElasticsearchUtils.getMaxSeqNo(client, pitId));
+            }
+            final long maxSeqNo = checkpoint.getMaxSeqNo();
+            final List<Future<Void>> sliceResults = new ArrayList<>();
+            for (int i = 0; i < slices; i++) {
+                final int slice = i;
+                if (checkpoint.isCompleted(slice)) {
+                    continue;
+                }
+                final SearchSourceBuilder searchSource = new SearchSourceBuilder()
+                        .query(AlaElasticsearchUtils.sliceQuery(
+                                QueryBuilders.rangeQuery(AlaElasticsearchUtils.SLICE_FIELD)
+                                        .lte(maxSeqNo),
+                                slice, slices, maxSeqNo))
+                        .version(true)
+                        .sort(sortField, SortOrder.ASC);
+                sliceResults.add(executor.submit(() -> {
+                    if (copy(client, destinationIndex, transform, batchSize, searchSource, pitId,
+                            checkpoint.getSearchAfter(slice),
+                            (lastSearchAfter, batchCount) -> checkpoint.update(slice,
+                                    lastSearchAfter, batchCount),
+                            total, created, updated, batches, versionConflicts, noops, retries,
+                            failures)) {
+                        checkpoint.complete(slice);
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<Void> sliceResult : sliceResults) {
+                sliceResult.get();
+            }
+
+            if (resumed) {
+                // Documents changed since the first run may have moved
+                // behind a slice checkpoint, or above the largest sequence
+                // number, so copy them again in slices of the same point in
+                // time
+                final List<Future<Boolean>> catchUpResults = new ArrayList<>();
+                for (int i = 0; i < slices; i++) {
+                    final SearchSourceBuilder searchSource = new SearchSourceBuilder()
+                            .query(AlaElasticsearchUtils.sliceQuery(
+                                    QueryBuilders.rangeQuery(AlaElasticsearchUtils.SLICE_FIELD)
+                                            .gt(checkpoint.getChangedAfterSeqNo()),
+                                    i, slices, maxSeqNo))
+                            .version(true)
+                            .sort(sortField, SortOrder.ASC);
+                    catchUpResults.add(executor.submit(() -> copy(client, destinationIndex,
+                            transform, batchSize, searchSource, pitId, null,
+                            (lastSearchAfter, batchCount) -> LOG.debug(
+                                    "Copied {} documents changed since the reindex started",
+                                    batchCount),
+                            total, created, updated, batches, versionConflicts, noops, retries,
+                            failures)));
+                }
+                for (final Future<Boolean> catchUpResult : catchUpResults) {
+                    catchUpResult.get();
+                }
+            }
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Client reindex from " + sourceIndex + " to "
+                    + destinationIndex + " failed", e.getCause());
+        } finally {
+            checkpointWriter.shutdownNow();
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            checkpointWriter.awaitTermination(1, TimeUnit.MINUTES);
+            // Keep the progress that was made, even if the reindex failed
+            checkpoint.write(checkpointFile);
+            AlaElasticsearchUtils.closePointInTime(client, pitId);
+        }
+
+        AlaElasticsearchUtils.refresh(client, destinationIndex);
+        if (failures.isEmpty()) {
+            Files.deleteIfExists(checkpointFile);
+        } else {
+            LOG.warn("Resumable client reindex from {} to {} had {} failed documents, "
+                    + "keeping checkpoint {} so that they are retried when it is resumed",
+                    sourceIndex, destinationIndex, failures.size(), checkpointFile);
+        }
+
+        final BulkByScrollTask.Status status = new BulkByScrollTask.Status(null, total.get(),
+                updated.get(), created.get(), 0L, (int) batches.get(), versionConflicts.get(),
+                noops.get(), retries.get(), 0L, TimeValue.ZERO, Float.POSITIVE_INFINITY, null,
+                TimeValue.ZERO);
+        final BulkByScrollResponse response = new BulkByScrollResponse(
+                TimeValue.timeValueNanos(System.nanoTime() - startTime), status,
+                new ArrayList<>(failures), Collections.emptyList(), false);
+        LOG.info("Resumable client reindex from {} to {} completed with {} documents in total: {}",
+                sourceIndex, destinationIndex, checkpoint.getDocuments(), response);
+        return response;
+    }
+
+    /**
+     * Copy the documents matching a search of a point in time in batches,
+     * reporting the sort values of the last document and the size of each
+     * batch to the progress callback until a document fails.
+     *
+     * @return True if every document was written, not including version
+     *         conflicts.
+     */
+    private static boolean copy(final RestHighLevelClient client,
+            final String destinationIndex,
+            final Function<Map<String, Object>, Map<String, Object>> transform,
+            final int batchSize, final SearchSourceBuilder searchSource, final String pitId,
+            final Object[] searchAfter, final BiConsumer<Object[], Integer> progress,
+            final AtomicLong total, final AtomicLong created, final AtomicLong updated,
+            final AtomicLong batches, final AtomicLong versionConflicts, final AtomicLong noops,
+            final AtomicLong retries, final List<BulkItemResponse.Failure> failures)
+            throws IOException, InterruptedException {
+        final SearchHitSpliterator spliterator = new SearchHitSpliterator(client, searchSource,
+                batchSize, 1, SearchHitSpliterator.DEFAULT_KEEP_ALIVE, pitId, false,
+                searchAfter);
+        boolean failed = false;
+        try (Stream<SearchHit> sourceHits = StreamSupport.stream(spliterator, false)
+                .onClose(spliterator::close);) {
+            final Iterator<SearchHit> sourceIterator = sourceHits.iterator();
+            while (sourceIterator.hasNext()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Interrupted while reindexing to " + destinationIndex);
+                }
+                final SearchHit[] hits = new SearchHit[batchSize];
+                int batchCount = 0;
+                while (batchCount < batchSize && sourceIterator.hasNext()) {
+                    hits[batchCount++] = sourceIterator.next();
+                }
+                final SearchHit[] batch = Arrays.copyOf(hits, batchCount);
+                if (writeBatch(client, destinationIndex, transform, batch, total, created,
+                        updated, batches, versionConflicts, noops, retries, failures) > 0) {
+                    failed = true;
+                }
+                // Only advance once the whole batch has been written, and
+                // never past a failed document
+                if (!failed) {
+                    progress.accept(batch[batchCount - 1].getSortValues(), batchCount);
+                }
+            }
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return !failed;
+    }
+
+    /**
+     * Transform and write a batch of documents, retrying rejected documents.
+     *
+     * @return The number of documents that failed, not including version
+     *         conflicts.
+     */
+    private static int writeBatch(final RestHighLevelClient client,
+            final String destinationIndex,
+            final Function<Map<String, Object>, Map<String, Object>> transform,
+            final SearchHit[] hits, final AtomicLong total, final AtomicLong created,
+            final AtomicLong updated, final AtomicLong batches, final AtomicLong versionConflicts,
+            final AtomicLong noops, final AtomicLong retries,
+            final List<BulkItemResponse.Failure> failures)
+            throws IOException, InterruptedException {
+        final BulkRequest bulkRequest = new BulkRequest();
+        for (final SearchHit hit : hits) {
+            final Map<String, Object> transformed = transform.apply(hit.getSourceAsMap());
+            if (transformed == null) {
+                noops.incrementAndGet();
+                continue;
+            }
+            final IndexRequest indexRequest = new IndexRequest(destinationIndex);
+            indexRequest.id(hit.getId());
+            indexRequest.source(transformed);
+            indexRequest.versionType(VersionType.EXTERNAL);
+            indexRequest.version(hit.getVersion());
+            bulkRequest.add(indexRequest);
+        }
+        total.addAndGet(hits.length);
+        batches.incrementAndGet();
+
+        if (bulkRequest.numberOfActions() == 0) {
+            return 0;
+        }
+
+        BulkRequest pending = bulkRequest;
+        long backoff = INITIAL_RETRY_BACKOFF.millis();
+        int failed = 0;
+        for (int attempt = 0;; attempt++) {
+            final BulkRequest nextRequest = pending;
+            final BulkResponse bulkResponse;
+            try {
+                bulkResponse = ElasticsearchMetrics.getDefault().time(Operation.BULK,
+                        () -> client.bulk(nextRequest, RequestOptions.DEFAULT));
+            } catch (final ElasticsearchException e) {
+                if (e.status() != RestStatus.TOO_MANY_REQUESTS || attempt >= DEFAULT_MAX_RETRIES) {
+                    throw e;
+                }
+                // The whole request was rejected, so resend all of it
+                retries.addAndGet(pending.numberOfActions());
+                backoff = sleep(backoff);
+                continue;
+            }
+
+            BulkRequest rejected = null;
+            for (final BulkItemResponse item : bulkResponse.getItems()) {
+                if (item.isFailed()) {
+                    if (item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS
+                            && attempt < DEFAULT_MAX_RETRIES) {
+                        if (rejected == null) {
+                            rejected = new BulkRequest();
+                        }
+                        rejected.add(pending.requests().get(item.getItemId()));
+                        continue;
+                    }
+                    if (item.getFailure().getStatus() == RestStatus.CONFLICT) {
+                        // The destination already has this or a newer version
+                        versionConflicts.incrementAndGet();
+                    } else {
+                        failures.add(item.getFailure());
+                        failed++;
+                    }
+                } else if (item.getResponse().getResult() == DocWriteResponse.Result.CREATED) {
+                    created.incrementAndGet();
+                } else {
+                    updated.incrementAndGet();
+                }
+            }
+            if (rejected == null) {
+                return failed;
+            }
+            // Only the rejected documents are resent
+            retries.addAndGet(rejected.numberOfActions());
+            backoff = sleep(backoff);
+            pending = rejected;
+        }
+    }
+
+    private static long sleep(final long backoff) throws InterruptedException {
+        // Jitter avoids the writers retrying in lockstep
+        Thread.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+        return Math.min(backoff * 2, MAX_RETRY_BACKOFF.millis());
+    }
+}
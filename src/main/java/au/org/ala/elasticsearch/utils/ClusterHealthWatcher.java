@@ -0,0 +1,299 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.cluster.health.ClusterIndexHealth;
+import org.elasticsearch.common.unit.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+
+/**
+ * Polls the cluster health on a single thread and notifies any number of
+ * listeners when it changes, so that callers that need to react to the
+ * health do not each poll the cluster themselves.
+ * <p>
+ * Each poll asks for the health immediately without waiting for a status, at
+ * the configured level. At {@link ClusterHealthRequest.Level#CLUSTER} only the
+ * overall status is compared, while at
+ * {@link ClusterHealthRequest.Level#INDICES} a change in the status of any
+ * index is also reported.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ClusterHealthWatcher implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterHealthWatcher.class);
+
+    private static final ElasticsearchMetrics METRICS = ElasticsearchMetrics.getDefault();
+
+    /**
+     * The default interval between polls.
+     */
+    public static final TimeValue DEFAULT_INTERVAL = TimeValue.timeValueSeconds(10);
+
+    /**
+     * Notified when the health that is being watched changes.
+     */
+    @FunctionalInterface
+    public interface Listener {
+
+        /**
+         * Called on the watcher thread when the health changes, and once with
+         * the current health after the listener is added.
+         *
+         * @param previous
+         *            The previous health, or null if this is the first health
+         *            seen by the listener.
+         * @param current
+         *            The current health.
+         */
+        void healthChanged(ClusterHealthResponse previous, ClusterHealthResponse current);
+    }
+
+    private final RestHighLevelClient client;
+    private final ClusterHealthRequest.Level level;
+    private final TimeValue interval;
+    private final String[] indexNames;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Queue<Listener> pendingListeners = new ConcurrentLinkedQueue<>();
+
+    private volatile ClusterHealthResponse lastResponse;
+    private volatile boolean closed;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Create a new {@link ClusterHealthWatcher} that watches the overall
+     * status using the default interval.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            An optional array of index names to focus on. If not present,
+     *            the whole cluster is watched.
+     */
+    public ClusterHealthWatcher(final RestHighLevelClient client, final String... indexNames) {
+        this(client, ClusterHealthRequest.Level.CLUSTER, DEFAULT_INTERVAL, indexNames);
+    }
+
+    /**
+     * Create a new {@link ClusterHealthWatcher}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param level
+     *            The level of detail to request on each poll.
+     * @param interval
+     *            The interval between polls.
+     * @param indexNames
+     *            An optional array of index names to focus on. If not present,
+     *            the whole cluster is watched.
+     */
+    public ClusterHealthWatcher(final RestHighLevelClient client,
+            final ClusterHealthRequest.Level level, final TimeValue interval,
+            final String... indexNames) {
+        this.client = Objects.requireNonNull(client, "Client must not be null");
+        this.level = Objects.requireNonNull(level, "Level must not be null");
+        this.interval = Objects.requireNonNull(interval, "Interval must not be null");
+        this.indexNames = indexNames.clone();
+    }
+
+    /**
+     * Start polling the cluster health.
+     *
+     * @return This watcher, for chaining.
+     */
+    public synchronized ClusterHealthWatcher start() {
+        if (scheduler != null) {
+            throw new IllegalStateException("Cluster health watcher already started");
+        }
+        closed = false;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "cluster-health-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::poll, 0, interval.getMillis(),
+                TimeUnit.MILLISECONDS);
+        LOG.debug("Started watching cluster health every {} at level {}", interval, level);
+        return this;
+    }
+
+    /**
+     * Stop polling the cluster health. Listeners that are waiting in
+     * {@link #awaitStatus(ClusterHealthStatus)} are not completed.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            closed = true;
+            scheduler.shutdownNow();
+            scheduler = null;
+            LOG.debug("Stopped watching cluster health");
+        }
+    }
+
+    /**
+     * @return The health from the most recent successful poll, or null if
+     *         there has not been one yet.
+     */
+    public ClusterHealthResponse getLastResponse() {
+        return lastResponse;
+    }
+
+    /**
+     * Add a listener to be notified of changes. The listener is first
+     * notified of the current health on the watcher thread, as soon as it is
+     * known.
+     *
+     * @param listener
+     *            The listener to add.
+     */
+    public void addListener(final Listener listener) {
+        pendingListeners.add(Objects.requireNonNull(listener, "Listener must not be null"));
+        final ScheduledExecutorService currentScheduler;
+        synchronized (this) {
+            currentScheduler = scheduler;
+        }
+        if (currentScheduler != null) {
+            currentScheduler.execute(this::addPendingListeners);
+        }
+    }
+
+    /**
+     * Only called on the watcher thread, so that a new listener is notified of
+     * the current health exactly once, either here or by the next poll.
+     */
+    private void addPendingListeners() {
+        Listener listener;
+        while ((listener = pendingListeners.poll()) != null) {
+            listeners.add(listener);
+            final ClusterHealthResponse current = lastResponse;
+            if (current != null) {
+                notify(listener, null, current);
+            }
+        }
+    }
+
+    /**
+     * Remove a listener so that it is no longer notified.
+     *
+     * @param listener
+     *            The listener to remove.
+     */
+    public void removeListener(final Listener listener) {
+        pendingListeners.remove(listener);
+        listeners.remove(listener);
+    }
+
+    /**
+     * Wait for the watched health to reach at least the given status.
+     *
+     * @param status
+     *            The status to wait for.
+     * @return A {@link CompletableFuture} that completes with the first
+     *         health at or better than the given status. Cancelling it stops
+     *         waiting.
+     */
+    public CompletableFuture<ClusterHealthResponse> awaitStatus(
+            final ClusterHealthStatus status) {
+        final CompletableFuture<ClusterHealthResponse> result = new CompletableFuture<>();
+        final Listener listener = (previous, current) -> {
+            if (current.getStatus().value() <= status.value()) {
+                result.complete(current);
+            }
+        };
+        result.whenComplete((response, e) -> removeListener(listener));
+        addListener(listener);
+        return result;
+    }
+
+    private void poll() {
+        addPendingListeners();
+        final ClusterHealthResponse current;
+        try {
+            current = METRICS.time(Operation.HEALTH, () -> client.cluster().health(
+                    AlaElasticsearchUtils.clusterHealthRequest(level, null,
+                            AlaElasticsearchUtils.DEFAULT_HEALTH_WAIT_TIMEOUT, indexNames),
+                    RequestOptions.DEFAULT));
+        } catch (final Exception e) {
+            // Interrupted by close, otherwise keep the last health and try
+            // again on the next interval
+            if (!closed) {
+                LOG.warn("Failed to get cluster health", e);
+            }
+            return;
+        }
+        final ClusterHealthResponse previous = lastResponse;
+        lastResponse = current;
+        if (previous != null && !changed(previous, current)) {
+            return;
+        }
+        LOG.info("Cluster health changed from {} to {}",
+                previous == null ? null : previous.getStatus(), current.getStatus());
+        for (final Listener listener : listeners) {
+            notify(listener, previous, current);
+        }
+    }
+
+    private static void notify(final Listener listener, final ClusterHealthResponse previous,
+            final ClusterHealthResponse current) {
+        try {
+            listener.healthChanged(previous, current);
+        } catch (final RuntimeException e) {
+            // One listener failing must not stop the others being notified
+            LOG.warn("Cluster health listener failed", e);
+        }
+    }
+
+    /**
+     * Compare the overall status, and the status of each index if the
+     * responses contain them.
+     *
+     * @param previous
+     *            The previous health.
+     * @param current
+     *            The current health.
+     * @return True if the status has changed and false otherwise.
+     */
+    static boolean changed(final ClusterHealthResponse previous,
+            final ClusterHealthResponse current) {
+        return previous.getStatus() != current.getStatus()
+                || !indexStatuses(previous).equals(indexStatuses(current));
+    }
+
+    private static Map<String, ClusterHealthStatus> indexStatuses(
+            final ClusterHealthResponse response) {
+        final Map<String, ClusterIndexHealth> indices = response.getIndices();
+        if (indices == null || indices.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, ClusterHealthStatus> result = new TreeMap<>();
+        for (final Map.Entry<String, ClusterIndexHealth> entry : indices.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getStatus());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregation;
+import org.elasticsearch.search.aggregations.metrics.Percentiles;
+
+/**
+ * A single bucket from a composite aggregation, with the values of its key
+ * fields, its document count and the values of its metrics.
+ * <p>
+ * The document count and metric values are kept as primitives so that
+ * millions of buckets can be streamed and summed without boxing. The key
+ * values are in the order of the key fields, and the metric values are in
+ * the order of the {@link Metric}s that were requested.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public final class CompositeBucket {
+
+    private final Object[] keys;
+    private final long docCount;
+    private final double[] values;
+
+    CompositeBucket(final Object[] keys, final long docCount, final double[] values) {
+        this.keys = keys;
+        this.docCount = docCount;
+        this.values = values;
+    }
+
+    /**
+     * @return The number of key fields.
+     */
+    public int getKeyCount() {
+        return keys.length;
+    }
+
+    /**
+     * @param index
+     *            The index of the key field.
+     * @return The value of the key field in this bucket, which is a
+     *         {@link String} for keyword fields and a {@link Number} for
+     *         numeric fields, or null for documents that do not have the
+     *         field.
+     */
+    public Object getKey(final int index) {
+        return keys[index];
+    }
+
+    /**
+     * @return The number of documents in the bucket.
+     */
+    public long getDocCount() {
+        return docCount;
+    }
+
+    /**
+     * @return The number of metric values.
+     */
+    public int getValueCount() {
+        return values.length;
+    }
+
+    /**
+     * @param index
+     *            The index of the metric.
+     * @return The value of the metric in this bucket. A min or max over no
+     *         values is infinite, and a percentile over no values is NaN.
+     */
+    public double getValue(final int index) {
+        return values[index];
+    }
+
+    @Override
+    public String toString() {
+        return "CompositeBucket [keys=" + Arrays.toString(keys) + ", docCount=" + docCount
+                + ", values=" + Arrays.toString(values) + "]";
+    }
+
+    /**
+     * A metric to calculate over the numeric values of a field for each
+     * bucket.
+     */
+    public static final class Metric {
+
+        /**
+         * The supported metrics.
+         */
+        public enum Type {
+            SUM, MIN, MAX, PERCENTILE
+        }
+
+        private final Type type;
+        private final String field;
+        private final double percent;
+
+        private Metric(final Type type, final String field, final double percent) {
+            this.type = type;
+            this.field = Objects.requireNonNull(field, "Field must not be null");
+            this.percent = percent;
+        }
+
+        public static Metric sum(final String field) {
+            return new Metric(Type.SUM, field, Double.NaN);
+        }
+
+        public static Metric min(final String field) {
+            return new Metric(Type.MIN, field, Double.NaN);
+        }
+
+        public static Metric max(final String field) {
+            return new Metric(Type.MAX, field, Double.NaN);
+        }
+
+        /**
+         * @param field
+         *            The field to calculate the percentile of.
+         * @param percent
+         *            The percentile, between 0 and 100.
+         * @return A metric for the approximate percentile of the field.
+         */
+        public static Metric percentile(final String field, final double percent) {
+            if (!(percent >= 0.0 && percent <= 100.0)) {
+                throw new IllegalArgumentException(
+                        "Percentile must be between 0 and 100: " + percent);
+            }
+            return new Metric(Type.PERCENTILE, field, percent);
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        /**
+         * @return The percentile for {@link Type#PERCENTILE} metrics, and NaN
+         *         otherwise.
+         */
+        public double getPercent() {
+            return percent;
+        }
+
+        AggregationBuilder toAggregation(final String name) {
+            switch (type) {
+            case SUM:
+                return AggregationBuilders.sum(name).field(field);
+            case MIN:
+                return AggregationBuilders.min(name).field(field);
+            case MAX:
+                return AggregationBuilders.max(name).field(field);
+            case PERCENTILE:
+                return AggregationBuilders.percentiles(name).field(field).percentiles(percent);
+            default:
+                throw new IllegalStateException("Unknown metric type: " + type);
+            }
+        }
+
+        double valueOf(final Aggregations aggregations, final String name) {
+            if (type == Type.PERCENTILE) {
+                final Percentiles percentiles = aggregations.get(name);
+                return percentiles.percentile(percent);
+            }
+            final NumericMetricsAggregation.SingleValue value = aggregations.get(name);
+            return value.value();
+        }
+
+        @Override
+        public String toString() {
+            return type == Type.PERCENTILE ? "percentile(" + field + ", " + percent + ")"
+                    : type.name().toLowerCase(Locale.ROOT) + "(" + field + ")";
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import au.org.ala.elasticsearch.utils.CompositeBucket.Metric;
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+
+/**
+ * A {@link Spliterator} over all of the buckets of a composite aggregation,
+ * paging through them using the after_key of each page.
+ * <p>
+ * Only one page of buckets is held at a time, so the memory used does not
+ * depend on the total number of buckets. The next page is only fetched when
+ * the current page has been consumed. A page from a search with failed or
+ * timed out shards throws an exception, as its buckets would be incomplete.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class CompositeBucketSpliterator
+        extends Spliterators.AbstractSpliterator<CompositeBucket> {
+
+    private static final ElasticsearchMetrics METRICS = ElasticsearchMetrics.getDefault();
+
+    /**
+     * The name of the composite aggregation in each request.
+     */
+    static final String AGGREGATION_NAME = "buckets";
+
+    private final RestHighLevelClient client;
+    private final String[] indexNames;
+    private final QueryBuilder query;
+    private final List<String> keyFields;
+    private final List<Metric> metrics;
+    private final int pageSize;
+
+    private Map<String, Object> afterKey;
+    private boolean exhausted = false;
+    private List<? extends CompositeAggregation.Bucket> currentPage = List.of();
+    private int currentIndex;
+
+    /**
+     * Create a spliterator that fetches its first page when it is first
+     * advanced.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param query
+     *            The query selecting the documents to aggregate.
+     * @param keyFields
+     *            The fields to group the documents by, which should be keyword
+     *            or numeric fields. Documents without a value for a field are
+     *            grouped into buckets with a null key for that field.
+     * @param metrics
+     *            The metrics to calculate for each bucket.
+     * @param pageSize
+     *            The number of buckets to fetch in each page.
+     * @param indexNames
+     *            The indexes to search.
+     */
+    public CompositeBucketSpliterator(final RestHighLevelClient client,
+            final QueryBuilder query, final List<String> keyFields, final List<Metric> metrics,
+            final int pageSize, final String... indexNames) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be at least 1: " + pageSize);
+        }
+        if (keyFields.isEmpty()) {
+            throw new IllegalArgumentException("At least one key field is required");
+        }
+        this.client = client;
+        this.indexNames = indexNames;
+        this.query = query;
+        this.keyFields = List.copyOf(keyFields);
+        this.metrics = List.copyOf(metrics);
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super CompositeBucket> action) {
+        while (currentIndex >= currentPage.size()) {
+            if (exhausted) {
+                return false;
+            }
+            try {
+                fetchPage();
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        action.accept(toBucket(currentPage.get(currentIndex++)));
+        return true;
+    }
+
+    private void fetchPage() throws IOException {
+        final List<CompositeValuesSourceBuilder<?>> sources = new ArrayList<>();
+        for (int i = 0; i < keyFields.size(); i++) {
+            sources.add(new TermsValuesSourceBuilder(keyName(i)).field(keyFields.get(i))
+                    .missingBucket(true));
+        }
+        final CompositeAggregationBuilder composite = new CompositeAggregationBuilder(
+                AGGREGATION_NAME, sources).size(pageSize);
+        if (afterKey != null) {
+            composite.aggregateAfter(afterKey);
+        }
+        for (int i = 0; i < metrics.size(); i++) {
+            composite.subAggregation(metrics.get(i).toAggregation(metricName(i)));
+        }
+
+        // Only the buckets are needed, not the hits or their total
+        final SearchRequest searchRequest = new SearchRequest(indexNames)
+                .source(new SearchSourceBuilder().query(query).size(0).trackTotalHits(false)
+                        .aggregation(composite));
+        searchRequest.indicesOptions(IndicesOptions.LENIENT_EXPAND_OPEN);
+        final SearchResponse searchResponse = METRICS.time(Operation.SEARCH,
+                () -> client.search(searchRequest, RequestOptions.DEFAULT));
+        // The buckets from a partial search would be missing documents
+        AlaElasticsearchUtils.checkComplete(searchResponse);
+
+        final CompositeAggregation result = searchResponse.getAggregations() == null ? null
+                : searchResponse.getAggregations().get(AGGREGATION_NAME);
+        currentPage = result == null ? List.of() : result.getBuckets();
+        currentIndex = 0;
+        afterKey = result == null ? null : result.afterKey();
+        if (afterKey == null || currentPage.isEmpty()) {
+            exhausted = true;
+        }
+    }
+
+    private CompositeBucket toBucket(final CompositeAggregation.Bucket bucket) {
+        final Object[] keys = new Object[keyFields.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = bucket.getKey().get(keyName(i));
+        }
+        final double[] values = new double[metrics.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = metrics.get(i).valueOf(bucket.getAggregations(), metricName(i));
+        }
+        return new CompositeBucket(keys, bucket.getDocCount(), values);
+    }
+
+    private static String keyName(final int index) {
+        return "k" + index;
+    }
+
+    private static String metricName(final int index) {
+        return "m" + index;
+    }
+}
@@ -0,0 +1,351 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.sniff.ElasticsearchNodesSniffer;
+import org.elasticsearch.client.sniff.SniffOnFailureListener;
+import org.elasticsearch.client.sniff.Sniffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds {@link RestHighLevelClient} instances that spread requests over
+ * multiple hosts, with tuned connection pools and optional node sniffing and
+ * compression of requests and responses.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ElasticsearchClientBuilder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ElasticsearchClientBuilder.class);
+
+    /**
+     * The default interval between sniffing the nodes in the cluster.
+     */
+    public static final int DEFAULT_SNIFF_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+    private final List<HttpHost> hosts = new ArrayList<>();
+    private boolean sniff = false;
+    private int sniffIntervalMillis = DEFAULT_SNIFF_INTERVAL_MILLIS;
+    private int maxConnectionsPerRoute = RestClientBuilder.DEFAULT_MAX_CONN_PER_ROUTE;
+    private int maxConnectionsTotal = RestClientBuilder.DEFAULT_MAX_CONN_TOTAL;
+    private int ioThreadCount = -1;
+    private long keepAliveMillis = -1L;
+    private int connectTimeoutMillis = RestClientBuilder.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int socketTimeoutMillis = RestClientBuilder.DEFAULT_SOCKET_TIMEOUT_MILLIS;
+    private boolean compression = false;
+    private ElasticsearchMetrics metrics = ElasticsearchMetrics.getDefault();
+
+    /**
+     * Add a host to send requests to. Requests are spread over all of the
+     * hosts that are added.
+     *
+     * @param hostname
+     *            The hostname of an elasticsearch node.
+     * @param port
+     *            The HTTP port of the elasticsearch node.
+     * @param scheme
+     *            The HTTP/HTTPS scheme to use.
+     * @return This builder, for chaining.
+     */
+    public ElasticsearchClientBuilder host(final String hostname, final int port,
+            final String scheme) {
+        hosts.add(new HttpHost(hostname, port, scheme));
+        return this;
+    }
+
+    /**
+     * Enable or disable sniffing the nodes in the cluster, so that requests
+     * are spread over all of the nodes, not only the hosts that were added.
+     * Nodes are also sniffed after a failure.
+     *
+     * @param sniff
+     *            True to enable sniffing and false otherwise.
+     * @return This builder, for chaining.
+     */
+    public ElasticsearchClientBuilder sniff(final boolean sniff) {
+        this.sniff = sniff;
+        return this;
+    }
+
+    public ElasticsearchClientBuilder sniffIntervalMillis(final int sniffIntervalMillis) {
+        this.sniffIntervalMillis = sniffIntervalMillis;
+        return this;
+    }
+
+    public ElasticsearchClientBuilder maxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        return this;
+    }
+
+    public ElasticsearchClientBuilder maxConnectionsTotal(final int maxConnectionsTotal) {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+        return this;
+    }
+
+    /**
+     * @param ioThreadCount
+     *            The number of IO reactor threads, or -1 to use the number of
+     *            available processors.
+     * @return This builder, for chaining.
+     */
+    public ElasticsearchClientBuilder ioThreadCount(final int ioThreadCount) {
+        this.ioThreadCount = ioThreadCount;
+        return this;
+    }
+
+    /**
+     * @param keepAliveMillis
+     *            The time to keep idle connections alive, or -1 to use the
+     *            keep alive sent by the server, if any.
+     * @return This builder, for chaining.
+     */
+    public ElasticsearchClientBuilder keepAliveMillis(final long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+        return this;
+    }
+
+    public ElasticsearchClientBuilder connectTimeoutMillis(final int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param socketTimeoutMillis
+     *            The socket timeout. Must be greater than
+     *            {@link AlaElasticsearchUtils#DEFAULT_TASK_WAIT_TIMEOUT} when
+     *            waiting for tasks.
+     * @return This builder, for chaining.
+     */
+    public ElasticsearchClientBuilder socketTimeoutMillis(final int socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Enable or disable gzip compression of request bodies and responses.
+     * Responses are decompressed by the {@link RestClient}.
+     *
+     * @param compression
+     *            True to compress request bodies and ask for compressed
+     *            responses, and false otherwise.
+     * @return This builder, for chaining.
+     */
+    public ElasticsearchClientBuilder compression(final boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @param metrics
+     *            The {@link ElasticsearchMetrics} to record the bytes sent and
+     *            received by each request to, or null to not record them.
+     *            Defaults to {@link ElasticsearchMetrics#getDefault()}.
+     * @return This builder, for chaining.
+     */
+    public ElasticsearchClientBuilder metrics(final ElasticsearchMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Build a new {@link RestHighLevelClient}. If sniffing is enabled, the
+     * sniffer is closed when the client is closed.
+     *
+     * @return A {@link RestHighLevelClient} configured using this builder.
+     */
+    public RestHighLevelClient build() {
+        if (hosts.isEmpty()) {
+            throw new IllegalStateException("At least one host must be added");
+        }
+
+        final RestClientBuilder restClientBuilder = RestClient
+                .builder(hosts.toArray(new HttpHost[0]));
+        restClientBuilder.setRequestConfigCallback(
+                requestConfigBuilder -> requestConfigBuilder.setConnectTimeout(connectTimeoutMillis)
+                        .setSocketTimeout(socketTimeoutMillis));
+        restClientBuilder.setHttpClientConfigCallback(httpClientBuilder -> {
+            httpClientBuilder.setMaxConnPerRoute(maxConnectionsPerRoute);
+            httpClientBuilder.setMaxConnTotal(maxConnectionsTotal);
+            final IOReactorConfig.Builder ioReactorConfig = IOReactorConfig.custom()
+                    .setSoKeepAlive(true);
+            if (ioThreadCount > 0) {
+                ioReactorConfig.setIoThreadCount(ioThreadCount);
+            }
+            httpClientBuilder.setDefaultIOReactorConfig(ioReactorConfig.build());
+            if (keepAliveMillis >= 0L) {
+                httpClientBuilder.setKeepAliveStrategy((response, context) -> keepAliveMillis);
+            }
+            if (metrics != null) {
+                // Sees the response before it is decompressed, so records the
+                // bytes on the wire
+                final ElasticsearchMetrics clientMetrics = metrics;
+                httpClientBuilder.addInterceptorLast((HttpResponseInterceptor) (response,
+                        context) -> clientMetrics
+                                .recordExchange(HttpCoreContext.adapt(context).getRequest(),
+                                        response));
+            }
+            if (compression) {
+                return new GzipRequestHttpAsyncClientBuilder(httpClientBuilder);
+            }
+            return httpClientBuilder;
+        });
+        if (compression) {
+            restClientBuilder.setDefaultHeaders(
+                    new Header[] { new BasicHeader(HttpHeaders.ACCEPT_ENCODING, "gzip") });
+        }
+
+        if (!sniff) {
+            return new RestHighLevelClient(restClientBuilder);
+        }
+
+        final SniffOnFailureListener sniffOnFailureListener = new SniffOnFailureListener();
+        restClientBuilder.setFailureListener(sniffOnFailureListener);
+        final RestClient restClient = restClientBuilder.build();
+        final ElasticsearchNodesSniffer.Scheme scheme = "https"
+                .equalsIgnoreCase(hosts.get(0).getSchemeName())
+                        ? ElasticsearchNodesSniffer.Scheme.HTTPS
+                        : ElasticsearchNodesSniffer.Scheme.HTTP;
+        final Sniffer sniffer = Sniffer.builder(restClient)
+                .setSniffIntervalMillis(sniffIntervalMillis)
+                .setNodesSniffer(new ElasticsearchNodesSniffer(restClient,
+                        ElasticsearchNodesSniffer.DEFAULT_SNIFF_REQUEST_TIMEOUT, scheme))
+                .build();
+        sniffOnFailureListener.setSniffer(sniffer);
+        LOG.debug("Sniffing nodes every {}ms starting from {}", sniffIntervalMillis, hosts);
+
+        // The sniffer must be closed before the client it uses
+        return new RestHighLevelClient(restClient, nextRestClient -> {
+            sniffer.close();
+            nextRestClient.close();
+        }, Collections.emptyList()) {
+        };
+    }
+
+    /**
+     * Compress the body of the given request using gzip, unless it has no body
+     * or it is already encoded. The request is changed, so the compressed body
+     * is reused if the {@link RestClient} retries the request on another node.
+     *
+     * @param requestProducer
+     *            The producer for the request from the {@link RestClient}.
+     * @return A producer for the request with a compressed body, or the given
+     *         producer if the body was not compressed.
+     * @throws IOException
+     *             If the body could not be compressed.
+     * @throws HttpException
+     *             If the request could not be generated.
+     */
+    static HttpAsyncRequestProducer compressRequest(final HttpAsyncRequestProducer requestProducer)
+            throws IOException, HttpException {
+        final HttpRequest request = requestProducer.generateRequest();
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return requestProducer;
+        }
+        final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if (entity == null || entity.getContentLength() == 0L
+                || entity.getContentEncoding() != null) {
+            return requestProducer;
+        }
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed);) {
+            entity.writeTo(gzip);
+        }
+        final ByteArrayEntity compressedEntity = new ByteArrayEntity(compressed.toByteArray());
+        compressedEntity.setContentType(entity.getContentType());
+        compressedEntity.setContentEncoding("gzip");
+        ((HttpEntityEnclosingRequest) request).setEntity(compressedEntity);
+        final HttpHost target = requestProducer.getTarget();
+        requestProducer.close();
+        return HttpAsyncMethods.create(target, request);
+    }
+
+    /**
+     * Builds the client from the {@link HttpAsyncClientBuilder} that was
+     * configured by the {@link RestClientBuilder}, and compresses request
+     * bodies before they are sent.
+     * <p>
+     * The {@link RestClient} creates the producer for the request body before
+     * any request interceptors are run, so an interceptor that replaces the
+     * entity changes the headers but not the bytes that are sent. Instead the
+     * request is compressed before it is given to the client, and the headers
+     * are then set from the compressed entity.
+     */
+    private static final class GzipRequestHttpAsyncClientBuilder extends HttpAsyncClientBuilder {
+
+        private final HttpAsyncClientBuilder delegate;
+
+        private GzipRequestHttpAsyncClientBuilder(final HttpAsyncClientBuilder delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public CloseableHttpAsyncClient build() {
+            final CloseableHttpAsyncClient client = delegate.build();
+            return new CloseableHttpAsyncClient() {
+                @Override
+                public <T> Future<T> execute(final HttpAsyncRequestProducer requestProducer,
+                        final HttpAsyncResponseConsumer<T> responseConsumer,
+                        final HttpContext context, final FutureCallback<T> callback) {
+                    final HttpAsyncRequestProducer compressedProducer;
+                    try {
+                        compressedProducer = compressRequest(requestProducer);
+                    } catch (final IOException | HttpException e) {
+                        final BasicFuture<T> failed = new BasicFuture<>(callback);
+                        failed.failed(e);
+                        return failed;
+                    }
+                    return client.execute(compressedProducer, responseConsumer, context,
+                            callback);
+                }
+
+                @Override
+                public boolean isRunning() {
+                    return client.isRunning();
+                }
+
+                @Override
+                public void start() {
+                    client.start();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    client.close();
+                }
+            };
+        }
+    }
+}
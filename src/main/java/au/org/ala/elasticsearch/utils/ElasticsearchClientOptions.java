@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import javax.management.JMException;
+
+import org.elasticsearch.client.RestClientBuilder;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+/**
+ * The command line options used by all of the programs to create a
+ * {@link RestHighLevelClient}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ElasticsearchClientOptions {
+
+    private final OptionSpec<String> esHostnameOption;
+    private final OptionSpec<Integer> esPortOption;
+    private final OptionSpec<String> esSchemeOption;
+    private final OptionSpec<Void> esSniffOption;
+    private final OptionSpec<Integer> esMaxConnectionsPerRouteOption;
+    private final OptionSpec<Integer> esMaxConnectionsTotalOption;
+    private final OptionSpec<Integer> esIoThreadsOption;
+    private final OptionSpec<Long> esKeepAliveOption;
+    private final OptionSpec<Integer> esSocketTimeoutOption;
+    private final OptionSpec<Void> esCompressionOption;
+    private final OptionSpec<Long> metricsIntervalOption;
+    private final OptionSpec<File> metricsJsonOption;
+    private final OptionSpec<Void> metricsJmxOption;
+
+    /**
+     * Add the client options to the given parser.
+     *
+     * @param parser
+     *            The {@link OptionParser} to add the options to.
+     */
+    public ElasticsearchClientOptions(final OptionParser parser) {
+        esHostnameOption = parser.accepts("es-hostname").withRequiredArg().ofType(String.class)
+                .withValuesSeparatedBy(',').defaultsTo("localhost").describedAs(
+                        "The hostname of the elasticsearch cluster. Multiple comma separated hostnames may be given to spread requests over them.");
+        esPortOption = parser.accepts("es-port").withRequiredArg().ofType(Integer.class)
+                .defaultsTo(9200).describedAs("The TCP port of the elasticsearch cluster.");
+        esSchemeOption = parser.accepts("es-scheme").withRequiredArg().ofType(String.class)
+                .defaultsTo("http").describedAs(
+                        "The scheme (HTTP or HTTPS) to use to contact the elasticsearch cluster.");
+        esSniffOption = parser.accepts("es-sniff",
+                "Sniff the nodes in the elasticsearch cluster to spread requests over all of them.");
+        esMaxConnectionsPerRouteOption = parser.accepts("es-max-connections-per-route")
+                .withRequiredArg().ofType(Integer.class)
+                .defaultsTo(RestClientBuilder.DEFAULT_MAX_CONN_PER_ROUTE)
+                .describedAs("The maximum number of connections to each elasticsearch node.");
+        esMaxConnectionsTotalOption = parser.accepts("es-max-connections-total")
+                .withRequiredArg().ofType(Integer.class)
+                .defaultsTo(RestClientBuilder.DEFAULT_MAX_CONN_TOTAL)
+                .describedAs("The maximum number of connections to all elasticsearch nodes.");
+        esIoThreadsOption = parser.accepts("es-io-threads").withRequiredArg()
+                .ofType(Integer.class).defaultsTo(-1).describedAs(
+                        "The number of IO reactor threads, or -1 to use the number of available processors.");
+        esKeepAliveOption = parser.accepts("es-keep-alive-ms").withRequiredArg()
+                .ofType(Long.class).defaultsTo(-1L).describedAs(
+                        "The time in milliseconds to keep idle connections alive, or -1 to use the server keep alive.");
+        esSocketTimeoutOption = parser.accepts("es-socket-timeout-ms").withRequiredArg()
+                .ofType(Integer.class).defaultsTo(RestClientBuilder.DEFAULT_SOCKET_TIMEOUT_MILLIS)
+                .describedAs("The socket timeout in milliseconds.");
+        esCompressionOption = parser.accepts("es-compression",
+                "Compress request bodies using gzip and ask the elasticsearch cluster for gzip compressed responses.");
+        metricsIntervalOption = parser.accepts("metrics-interval-seconds").withRequiredArg()
+                .ofType(Long.class).defaultsTo(0L).describedAs(
+                        "The time in seconds between logged summaries of the latency of each elasticsearch operation, or 0 to not log them.");
+        metricsJsonOption = parser.accepts("metrics-json").withRequiredArg().ofType(File.class)
+                .describedAs(
+                        "A file to replace with the latency histograms of each elasticsearch operation as JSON after each metrics interval.");
+        metricsJmxOption = parser.accepts("metrics-jmx",
+                "Register the latency histograms of each elasticsearch operation as JMX MBeans.");
+    }
+
+    /**
+     * Start exporting the {@link ElasticsearchMetrics#getDefault() default
+     * metrics} as requested by the parsed options.
+     *
+     * @param options
+     *            The parsed {@link OptionSet}.
+     * @return A {@link Closeable} that stops exporting the metrics, after
+     *         writing a final report, when it is closed.
+     * @throws IOException
+     *             If the MBeans could not be registered.
+     */
+    public Closeable startMetrics(final OptionSet options) throws IOException {
+        final ElasticsearchMetrics metrics = ElasticsearchMetrics.getDefault();
+        final boolean jmx = options.has(metricsJmxOption);
+        if (jmx) {
+            try {
+                metrics.registerMBeans();
+            } catch (final JMException e) {
+                throw new IOException("Could not register the metrics MBeans", e);
+            }
+        }
+        final long intervalSeconds = metricsIntervalOption.value(options);
+        final File jsonFile = metricsJsonOption.value(options);
+        final Closeable reporting;
+        if (intervalSeconds > 0L || jsonFile != null) {
+            reporting = metrics.startReporting(
+                    TimeValue.timeValueSeconds(intervalSeconds > 0L ? intervalSeconds : 60L),
+                    jsonFile != null ? jsonFile.toPath() : null);
+        } else {
+            reporting = () -> {
+            };
+        }
+        return () -> {
+            try {
+                reporting.close();
+            } finally {
+                if (jmx) {
+                    try {
+                        metrics.unregisterMBeans();
+                    } catch (final JMException e) {
+                        throw new IOException("Could not unregister the metrics MBeans", e);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Create a new {@link RestHighLevelClient} using the parsed options.
+     *
+     * @param options
+     *            The parsed {@link OptionSet}.
+     * @return A new {@link RestHighLevelClient}, which must be closed after
+     *         use.
+     */
+    public RestHighLevelClient newClient(final OptionSet options) {
+        final ElasticsearchClientBuilder builder = new ElasticsearchClientBuilder();
+        final int esPort = esPortOption.value(options);
+        final String esScheme = esSchemeOption.value(options);
+        for (final String esHostname : esHostnameOption.values(options)) {
+            builder.host(esHostname.trim(), esPort, esScheme);
+        }
+        return builder.sniff(options.has(esSniffOption))
+                .maxConnectionsPerRoute(esMaxConnectionsPerRouteOption.value(options))
+                .maxConnectionsTotal(esMaxConnectionsTotalOption.value(options))
+                .ioThreadCount(esIoThreadsOption.value(options))
+                .keepAliveMillis(esKeepAliveOption.value(options))
+                .socketTimeoutMillis(esSocketTimeoutOption.value(options))
+                .compression(options.has(esCompressionOption)).build();
+    }
+}
@@ -0,0 +1,648 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the latency, call count, error count and bytes transferred for each
+ * {@link Operation} performed by the utilities, and exports them over JMX and
+ * as periodic log and JSON snapshots.
+ * <p>
+ * Latencies are recorded for each utility call, including any retries and
+ * waiting that the call does, using HdrHistogram {@link Recorder}s, which are
+ * wait-free, so the metrics are cheap enough to leave enabled in production.
+ * Bytes are recorded for each HTTP request by clients built using
+ * {@link ElasticsearchClientBuilder}, and are attributed to operations based
+ * on the REST endpoint, so for example the bytes for
+ * {@link AlaElasticsearchUtils#listIndexes(org.elasticsearch.client.RestHighLevelClient)}
+ * are counted under {@link Operation#HEALTH}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public final class ElasticsearchMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ElasticsearchMetrics.class);
+
+    /**
+     * The JMX domain that the operation MBeans are registered in.
+     */
+    public static final String JMX_DOMAIN = "au.org.ala.elasticsearch.utils";
+
+    private static final ElasticsearchMetrics DEFAULT = new ElasticsearchMetrics();
+
+    /**
+     * The operations that metrics are recorded for.
+     */
+    public enum Operation {
+        HEALTH("health"), LIST_INDEXES("listIndexes"), PUT_TEMPLATE("putTemplate"),
+        GET_TEMPLATE("getTemplate"), FIELD_CAPS("fieldCaps"), CLUSTER_STATE("clusterState"),
+        GET("get"), MULTI_GET("multiGet"), SEARCH("search"), POINT_IN_TIME("pointInTime"),
+        BULK("bulk"), REFRESH("refresh"), DELETE_INDEX("deleteIndex"),
+        REINDEX_SUBMIT("reindexSubmit"), TASK_WAIT("taskWait"), INDEX_STATS("indexStats"),
+        OTHER("other");
+
+        private final String metricName;
+
+        Operation(final String metricName) {
+            this.metricName = metricName;
+        }
+
+        /**
+         * @return The name used for the operation in logs, JSON and JMX.
+         */
+        public String getMetricName() {
+            return metricName;
+        }
+
+        /**
+         * Find the operation for a REST request.
+         *
+         * @param method
+         *            The HTTP method.
+         * @param path
+         *            The path of the request, without any query string.
+         * @return The operation that the request is attributed to.
+         */
+        static Operation forRequest(final String method, final String path) {
+            if (path.startsWith("/_cluster/health")) {
+                return HEALTH;
+            } else if (path.startsWith("/_cluster/state")) {
+                return CLUSTER_STATE;
+            } else if (path.startsWith("/_template")) {
+                return "GET".equals(method) || "HEAD".equals(method) ? GET_TEMPLATE
+                        : PUT_TEMPLATE;
+            } else if (path.startsWith("/_tasks")) {
+                return TASK_WAIT;
+            } else if (path.startsWith("/_reindex")) {
+                return REINDEX_SUBMIT;
+            } else if (path.contains("/_stats")) {
+                return INDEX_STATS;
+            } else if (path.endsWith("/_search")) {
+                return SEARCH;
+            } else if (path.endsWith("/_pit")) {
+                return POINT_IN_TIME;
+            } else if (path.endsWith("/_mget")) {
+                return MULTI_GET;
+            } else if (path.endsWith("/_bulk")) {
+                return BULK;
+            } else if (path.endsWith("/_field_caps")) {
+                return FIELD_CAPS;
+            } else if (path.endsWith("/_refresh")) {
+                return REFRESH;
+            } else if (path.contains("/_doc/")
+                    && ("GET".equals(method) || "HEAD".equals(method))) {
+                return GET;
+            } else if ("DELETE".equals(method) && path.lastIndexOf('/') == 0) {
+                return DELETE_INDEX;
+            }
+            return OTHER;
+        }
+    }
+
+    /**
+     * A call that is timed using {@link ElasticsearchMetrics#time(Operation, MeteredCall)}.
+     *
+     * @param <T>
+     *            The type returned by the call.
+     */
+    @FunctionalInterface
+    public interface MeteredCall<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * The JMX view of the metrics for a single operation. Latencies are over
+     * the lifetime of the metrics.
+     */
+    public interface OperationMXBean {
+        long getCalls();
+
+        long getErrors();
+
+        long getBytesIn();
+
+        long getBytesOut();
+
+        double getMeanMillis();
+
+        double getP50Millis();
+
+        double getP90Millis();
+
+        double getP99Millis();
+
+        double getP999Millis();
+
+        double getMaxMillis();
+    }
+
+    private final Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+    private volatile boolean enabled = true;
+    private final List<ObjectName> registeredMBeans = new ArrayList<>();
+
+    ElasticsearchMetrics() {
+        for (final Operation operation : Operation.values()) {
+            stats.put(operation, new OperationStats());
+        }
+    }
+
+    /**
+     * @return The metrics that the utilities record to.
+     */
+    public static ElasticsearchMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param enabled
+     *            False to stop recording metrics, and true to start recording
+     *            them again.
+     */
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Time the given call, recording it as an error if it throws.
+     *
+     * @param <T>
+     *            The type returned by the call.
+     * @param operation
+     *            The operation the call performs.
+     * @param call
+     *            The call to time.
+     * @return The result of the call.
+     * @throws IOException
+     *             If the call throws an {@link IOException}.
+     */
+    public <T> T time(final Operation operation, final MeteredCall<T> call) throws IOException {
+        final long startNanos = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            final T result = call.call();
+            succeeded = true;
+            return result;
+        } finally {
+            record(operation, startNanos, succeeded);
+        }
+    }
+
+    /**
+     * Record a call that started at the given time and has just finished.
+     *
+     * @param operation
+     *            The operation the call performed.
+     * @param startNanos
+     *            The {@link System#nanoTime()} when the call started.
+     * @param succeeded
+     *            False if the call failed.
+     */
+    public void record(final Operation operation, final long startNanos,
+            final boolean succeeded) {
+        if (!enabled) {
+            return;
+        }
+        final OperationStats operationStats = stats.get(operation);
+        operationStats.calls.increment();
+        if (!succeeded) {
+            operationStats.errors.increment();
+        }
+        operationStats.recorder
+                .recordValue(Math.max(0L, (System.nanoTime() - startNanos) / 1000L));
+    }
+
+    /**
+     * Record the bytes sent and received for an operation.
+     *
+     * @param operation
+     *            The operation.
+     * @param bytesOut
+     *            The number of bytes sent.
+     * @param bytesIn
+     *            The number of bytes received.
+     */
+    public void recordBytes(final Operation operation, final long bytesOut, final long bytesIn) {
+        if (!enabled) {
+            return;
+        }
+        final OperationStats operationStats = stats.get(operation);
+        if (bytesOut > 0L) {
+            operationStats.bytesOut.add(bytesOut);
+        }
+        if (bytesIn > 0L) {
+            operationStats.bytesIn.add(bytesIn);
+        }
+    }
+
+    /**
+     * Record the bytes of a completed HTTP exchange, attributing them to an
+     * operation based on the request path.
+     *
+     * @param request
+     *            The HTTP request.
+     * @param response
+     *            The HTTP response.
+     */
+    void recordExchange(final HttpRequest request, final HttpResponse response) {
+        if (!enabled || request == null) {
+            return;
+        }
+        final String path = URI.create(request.getRequestLine().getUri()).getPath();
+        long bytesOut = 0L;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            bytesOut = entity == null ? 0L : entity.getContentLength();
+        }
+        final long bytesIn = response.getEntity() == null ? 0L
+                : response.getEntity().getContentLength();
+        recordBytes(Operation.forRequest(request.getRequestLine().getMethod(), path), bytesOut,
+                bytesIn);
+    }
+
+    /**
+     * @param operation
+     *            The operation.
+     * @return The metrics for the operation over the lifetime of these
+     *         metrics.
+     */
+    public OperationMXBean getOperation(final Operation operation) {
+        return stats.get(operation).snapshot(operation, false);
+    }
+
+    /**
+     * Reset all of the metrics.
+     */
+    public void reset() {
+        for (final OperationStats operationStats : stats.values()) {
+            operationStats.reset();
+        }
+    }
+
+    /**
+     * Register an MBean for each operation with the platform MBean server,
+     * named {@code au.org.ala.elasticsearch.utils:type=ElasticsearchMetrics,operation=<name>}.
+     *
+     * @throws JMException
+     *             If the MBeans could not be registered.
+     */
+    public synchronized void registerMBeans() throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (final Operation operation : Operation.values()) {
+            final ObjectName name = new ObjectName(JMX_DOMAIN
+                    + ":type=ElasticsearchMetrics,operation=" + operation.getMetricName());
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new OperationMXBeanView(operation), name);
+                registeredMBeans.add(name);
+            }
+        }
+    }
+
+    /**
+     * Unregister the MBeans registered using {@link #registerMBeans()}.
+     *
+     * @throws JMException
+     *             If the MBeans could not be unregistered.
+     */
+    public synchronized void unregisterMBeans() throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (final ObjectName name : registeredMBeans) {
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+        registeredMBeans.clear();
+    }
+
+    /**
+     * Write the metrics for the operations that have been called as JSON.
+     *
+     * @param interval
+     *            True to write the latencies since the last interval snapshot
+     *            and start a new interval, and false to write the latencies
+     *            over the lifetime of these metrics.
+     * @return The metrics as a JSON string.
+     * @throws IOException
+     *             If the JSON could not be written.
+     */
+    public String toJson(final boolean interval) throws IOException {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().prettyPrint();
+        builder.startObject();
+        builder.field("timestamp", Instant.now().toString());
+        builder.startObject("operations");
+        for (final OperationSnapshot snapshot : snapshots(interval)) {
+            builder.startObject(snapshot.operation.getMetricName());
+            builder.field("calls", snapshot.calls);
+            builder.field("errors", snapshot.errors);
+            builder.field("bytes_in", snapshot.bytesIn);
+            builder.field("bytes_out", snapshot.bytesOut);
+            builder.startObject("latency_millis");
+            builder.field("count", snapshot.latencyCount);
+            builder.field("mean", snapshot.meanMillis);
+            builder.field("p50", snapshot.p50Millis);
+            builder.field("p90", snapshot.p90Millis);
+            builder.field("p99", snapshot.p99Millis);
+            builder.field("p999", snapshot.p999Millis);
+            builder.field("max", snapshot.maxMillis);
+            builder.endObject();
+            builder.endObject();
+        }
+        builder.endObject();
+        builder.endObject();
+        return Strings.toString(builder);
+    }
+
+    /**
+     * Log a summary of the operations called since the last interval, and
+     * optionally write the lifetime metrics as JSON, every interval.
+     *
+     * @param interval
+     *            The time between reports.
+     * @param jsonFile
+     *            The file to replace with the lifetime metrics as JSON after
+     *            each interval, or null to only log the metrics.
+     * @return A {@link Closeable} that stops reporting and writes a final
+     *         report when it is closed.
+     */
+    public Closeable startReporting(final TimeValue interval, final Path jsonFile) {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "elasticsearch-metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Runnable report = () -> {
+            try {
+                report(jsonFile);
+            } catch (final IOException | RuntimeException e) {
+                LOG.warn("Failed to report elasticsearch metrics", e);
+            }
+        };
+        executor.scheduleAtFixedRate(report, interval.millis(), interval.millis(),
+                TimeUnit.MILLISECONDS);
+        return () -> {
+            executor.shutdownNow();
+            report.run();
+        };
+    }
+
+    private void report(final Path jsonFile) throws IOException {
+        for (final OperationSnapshot snapshot : snapshots(true)) {
+            if (snapshot.calls == 0L && snapshot.bytesIn == 0L) {
+                continue;
+            }
+            LOG.info(String.format(Locale.ROOT,
+                    "%s: calls=%d errors=%d p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms in=%dB out=%dB",
+                    snapshot.operation.getMetricName(), snapshot.calls, snapshot.errors,
+                    snapshot.p50Millis, snapshot.p90Millis, snapshot.p99Millis, snapshot.maxMillis,
+                    snapshot.bytesIn, snapshot.bytesOut));
+        }
+        if (jsonFile != null) {
+            // Replace the file atomically so readers never see a partial file
+            final Path tempFile = jsonFile.resolveSibling(jsonFile.getFileName() + ".tmp");
+            try (OutputStream output = Files.newOutputStream(tempFile);) {
+                output.write(toJson(false).getBytes(StandardCharsets.UTF_8));
+            }
+            Files.move(tempFile, jsonFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private List<OperationSnapshot> snapshots(final boolean interval) {
+        final List<OperationSnapshot> result = new ArrayList<>();
+        for (final Map.Entry<Operation, OperationStats> entry : stats.entrySet()) {
+            final OperationSnapshot snapshot = entry.getValue().snapshot(entry.getKey(),
+                    interval);
+            if (snapshot.calls > 0L || snapshot.bytesIn > 0L || snapshot.bytesOut > 0L) {
+                result.add(snapshot);
+            }
+        }
+        return result;
+    }
+
+    private static final class OperationStats {
+        private final Recorder recorder = new Recorder(2);
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        // Guarded by this
+        private Histogram recycled;
+        private final Histogram lifetime = new Histogram(2);
+        private final Histogram sinceLastInterval = new Histogram(2);
+        private final long[] lastInterval = new long[4];
+
+        private synchronized OperationSnapshot snapshot(final Operation operation,
+                final boolean interval) {
+            recycled = recorder.getIntervalHistogram(recycled);
+            lifetime.add(recycled);
+            sinceLastInterval.add(recycled);
+            final long[] totals = { calls.sum(), errors.sum(), bytesIn.sum(), bytesOut.sum() };
+            if (!interval) {
+                return new OperationSnapshot(operation, totals[0], totals[1], totals[2],
+                        totals[3], lifetime);
+            }
+            final OperationSnapshot snapshot = new OperationSnapshot(operation,
+                    totals[0] - lastInterval[0], totals[1] - lastInterval[1],
+                    totals[2] - lastInterval[2], totals[3] - lastInterval[3],
+                    sinceLastInterval);
+            System.arraycopy(totals, 0, lastInterval, 0, totals.length);
+            sinceLastInterval.reset();
+            return snapshot;
+        }
+
+        private synchronized void reset() {
+            recycled = recorder.getIntervalHistogram(recycled);
+            lifetime.reset();
+            sinceLastInterval.reset();
+            calls.reset();
+            errors.reset();
+            bytesIn.reset();
+            bytesOut.reset();
+            Arrays.fill(lastInterval, 0L);
+        }
+    }
+
+    private static final class OperationSnapshot implements OperationMXBean {
+        private final Operation operation;
+        private final long calls;
+        private final long errors;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long latencyCount;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p90Millis;
+        private final double p99Millis;
+        private final double p999Millis;
+        private final double maxMillis;
+
+        private OperationSnapshot(final Operation operation, final long calls, final long errors,
+                final long bytesIn, final long bytesOut, final Histogram latencyMicros) {
+            this.operation = operation;
+            this.calls = calls;
+            this.errors = errors;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.latencyCount = latencyMicros.getTotalCount();
+            this.meanMillis = latencyCount == 0L ? 0.0 : latencyMicros.getMean() / 1000.0;
+            this.p50Millis = latencyMicros.getValueAtPercentile(50.0) / 1000.0;
+            this.p90Millis = latencyMicros.getValueAtPercentile(90.0) / 1000.0;
+            this.p99Millis = latencyMicros.getValueAtPercentile(99.0) / 1000.0;
+            this.p999Millis = latencyMicros.getValueAtPercentile(99.9) / 1000.0;
+            this.maxMillis = latencyMicros.getMaxValue() / 1000.0;
+        }
+
+        @Override
+        public long getCalls() {
+            return calls;
+        }
+
+        @Override
+        public long getErrors() {
+            return errors;
+        }
+
+        @Override
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        @Override
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        @Override
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        @Override
+        public double getP90Millis() {
+            return p90Millis;
+        }
+
+        @Override
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        @Override
+        public double getP999Millis() {
+            return p999Millis;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+    }
+
+    /**
+     * A live view of an operation for JMX, taking a new snapshot for each
+     * attribute that is read.
+     */
+    private final class OperationMXBeanView implements OperationMXBean {
+        private final Operation operation;
+
+        private OperationMXBeanView(final Operation operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        public long getCalls() {
+            return getOperation(operation).getCalls();
+        }
+
+        @Override
+        public long getErrors() {
+            return getOperation(operation).getErrors();
+        }
+
+        @Override
+        public long getBytesIn() {
+            return getOperation(operation).getBytesIn();
+        }
+
+        @Override
+        public long getBytesOut() {
+            return getOperation(operation).getBytesOut();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            return getOperation(operation).getMeanMillis();
+        }
+
+        @Override
+        public double getP50Millis() {
+            return getOperation(operation).getP50Millis();
+        }
+
+        @Override
+        public double getP90Millis() {
+            return getOperation(operation).getP90Millis();
+        }
+
+        @Override
+        public double getP99Millis() {
+            return getOperation(operation).getP99Millis();
+        }
+
+        @Override
+        public double getP999Millis() {
+            return getOperation(operation).getP999Millis();
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return getOperation(operation).getMaxMillis();
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPOutputStream;
+
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+/**
+ * Exports the documents in an index to gzip compressed newline delimited JSON
+ * files, in the format of a bulk request body: an {@code index} action line
+ * holding the document id, followed by the document source on the next line.
+ * <p>
+ * The index is read in parallel slices over a single point in time, so the
+ * export is consistent even if the index is written to while it runs. As
+ * elasticsearch 7.10 does not support sliced searches with a point in time,
+ * the slices are ranges of sequence numbers, using
+ * {@link AlaElasticsearchUtils#sliceQuery(QueryBuilder, int, int, long)}.
+ * Each slice writes to its own part file. Hits are written as they arrive
+ * through fixed size buffers, so memory use depends on the page size and
+ * number of slices rather than on the size of the index.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class Export {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Export.class);
+
+    /**
+     * The default size in bytes of the buffers used to write each part file.
+     */
+    public static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * The suffix of the part files.
+     */
+    public static final String PART_SUFFIX = ".ndjson.gz";
+
+    private static final byte[] EMPTY_SOURCE = "{}".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String... args) throws Exception {
+        final OptionParser parser = new OptionParser();
+
+        final OptionSpec<Void> help = parser.accepts("help").forHelp();
+        final OptionSpec<String> indexOption = parser.accepts("index").withRequiredArg()
+                .ofType(String.class).required().describedAs("The index to export.");
+        final OptionSpec<File> outputOption = parser.accepts("output").withRequiredArg()
+                .ofType(File.class).required()
+                .describedAs("The directory to write the part files to.");
+        final ElasticsearchClientOptions clientOptions = new ElasticsearchClientOptions(parser);
+        final OptionSpec<String> slicesOption = parser.accepts("slices").withRequiredArg()
+                .ofType(String.class).defaultsTo(Reindex.AUTO_SLICES).describedAs(
+                        "The number of slices to read in parallel, or \"auto\" to use the number of shards in the index.");
+        final OptionSpec<String> queryOption = parser.accepts("query").withRequiredArg()
+                .ofType(String.class).describedAs(
+                        "A JSON query to select the documents to export. Defaults to all documents.");
+        final OptionSpec<String> includesOption = parser.accepts("includes").withRequiredArg()
+                .ofType(String.class).withValuesSeparatedBy(',')
+                .describedAs("Comma separated source fields to include.");
+        final OptionSpec<String> excludesOption = parser.accepts("excludes").withRequiredArg()
+                .ofType(String.class).withValuesSeparatedBy(',')
+                .describedAs("Comma separated source fields to exclude.");
+        final OptionSpec<Integer> pageSizeOption = parser.accepts("page-size").withRequiredArg()
+                .ofType(Integer.class).defaultsTo(AlaElasticsearchUtils.DEFAULT_PAGE_SIZE)
+                .describedAs("The number of documents to fetch for each slice in each request.");
+        final OptionSpec<String> sortFieldOption = parser.accepts("sort-field").withRequiredArg()
+                .ofType(String.class).defaultsTo(SearchHitSpliterator.DEFAULT_SORT_FIELD)
+                .describedAs(
+                        "A field with a different value in every document to read the index in order of. Sorting on _id uses heap memory for every id, so a keyword copy of the id with doc values is recommended for large indexes.");
+
+        OptionSet options = null;
+
+        try {
+            options = parser.parse(args);
+        } catch (final OptionException e) {
+            System.out.println(e.getMessage());
+            parser.printHelpOn(System.out);
+            throw e;
+        }
+
+        if (options.has(help)) {
+            parser.printHelpOn(System.out);
+            return;
+        }
+
+        final String indexName = indexOption.value(options);
+        final QueryBuilder query = options.has(queryOption)
+                ? QueryBuilders.wrapperQuery(queryOption.value(options))
+                : QueryBuilders.matchAllQuery();
+        final List<String> includes = includesOption.values(options);
+        final List<String> excludes = excludesOption.values(options);
+
+        final Closeable metrics = clientOptions.startMetrics(options);
+        try (RestHighLevelClient client = clientOptions.newClient(options);) {
+            final int slices = Reindex.getNumberOfSlices(client, indexName,
+                    slicesOption.value(options));
+            final Result result = export(client, indexName,
+                    outputOption.value(options).toPath(), slices, query,
+                    includes.toArray(new String[0]), excludes.toArray(new String[0]),
+                    pageSizeOption.value(options), sortFieldOption.value(options));
+            System.out.print(result);
+        } finally {
+            metrics.close();
+        }
+    }
+
+    /**
+     * Export the documents matching the query in the given index to part
+     * files in the given directory, named using the index name and slice
+     * number followed by {@link #PART_SUFFIX}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexName
+     *            The index to export.
+     * @param outputDirectory
+     *            The directory to write the part files to, which is created
+     *            if it does not exist.
+     * @param slices
+     *            The number of slices to read and write in parallel.
+     * @param query
+     *            The query selecting the documents to export.
+     * @param includes
+     *            The source fields to include, or an empty array to include
+     *            all fields.
+     * @param excludes
+     *            The source fields to exclude.
+     * @param pageSize
+     *            The number of documents to fetch for each slice in each
+     *            request.
+     * @return The {@link Result} summarising the export.
+     * @throws IOException
+     *             If communication with the server had an issue or a part
+     *             file could not be written.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static Result export(final RestHighLevelClient client, final String indexName,
+            final Path outputDirectory, final int slices, final QueryBuilder query,
+            final String[] includes, final String[] excludes, final int pageSize)
+            throws IOException, InterruptedException {
+        return export(client, indexName, outputDirectory, slices, query, includes, excludes,
+                pageSize, SearchHitSpliterator.DEFAULT_SORT_FIELD);
+    }
+
+    /**
+     * Export the documents matching the query in the given index to part
+     * files in the given directory, named using the index name and slice
+     * number followed by {@link #PART_SUFFIX}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexName
+     *            The index to export.
+     * @param outputDirectory
+     *            The directory to write the part files to, which is created
+     *            if it does not exist.
+     * @param slices
+     *            The number of slices to read and write in parallel.
+     * @param query
+     *            The query selecting the documents to export.
+     * @param includes
+     *            The source fields to include, or an empty array to include
+     *            all fields.
+     * @param excludes
+     *            The source fields to exclude.
+     * @param pageSize
+     *            The number of documents to fetch for each slice in each
+     *            request.
+     * @param sortField
+     *            The field to sort each slice on, which must have a different
+     *            value in every document. See
+     *            {@link SearchHitSpliterator#DEFAULT_SORT_FIELD} for the cost
+     *            of sorting on {@code _id}.
+     * @return The {@link Result} summarising the export.
+     * @throws IOException
+     *             If communication with the server had an issue or a part
+     *             file could not be written.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static Result export(final RestHighLevelClient client, final String indexName,
+            final Path outputDirectory, final int slices, final QueryBuilder query,
+            final String[] includes, final String[] excludes, final int pageSize,
+            final String sortField) throws IOException, InterruptedException {
+        if (slices < 1) {
+            throw new IllegalArgumentException("Number of slices must be at least 1: " + slices);
+        }
+        SearchHitSpliterator.warnIfSortedOnId(sortField, indexName);
+        final long startTime = System.nanoTime();
+        Files.createDirectories(outputDirectory);
+
+        final SearchSourceBuilder searchSource = new SearchSourceBuilder().query(query)
+                .fetchSource(includes, excludes).sort(sortField, SortOrder.ASC);
+        final String pitId = AlaElasticsearchUtils.openPointInTime(client,
+                SearchHitSpliterator.DEFAULT_KEEP_ALIVE, indexName);
+        final ExecutorService executor = Executors.newFixedThreadPool(slices);
+        final List<SliceResult> results = new ArrayList<>();
+        try {
+            final long maxSeqNo = slices > 1 ? AlaElasticsearchUtils.getMaxSeqNo(client, pitId)
+                    : SequenceNumbers.NO_OPS_PERFORMED;
+            final List<Future<SliceResult>> futures = new ArrayList<>();
+            for (int i = 0; i < slices; i++) {
+                final int sliceId = i;
+                final SearchSourceBuilder sliceSource = searchSource.shallowCopy()
+                        .query(AlaElasticsearchUtils.sliceQuery(query, sliceId, slices, maxSeqNo));
+                final Path partFile = outputDirectory.resolve(
+                        String.format(Locale.ROOT, "%s-%05d%s", indexName, sliceId, PART_SUFFIX));
+                futures.add(executor.submit(() -> exportSlice(client, sliceSource, pageSize,
+                        pitId, sliceId, partFile)));
+            }
+            for (final Future<SliceResult> future : futures) {
+                results.add(future.get());
+            }
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Export of " + indexName + " failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            AlaElasticsearchUtils.closePointInTime(client, pitId);
+        }
+
+        final Result result = new Result(results,
+                TimeValue.timeValueNanos(System.nanoTime() - startTime));
+        LOG.info("Export of {} to {} completed: {} documents in {} parts", indexName,
+                outputDirectory, result.getDocuments(), results.size());
+        return result;
+    }
+
+    private static SliceResult exportSlice(final RestHighLevelClient client,
+            final SearchSourceBuilder searchSource, final int pageSize, final String pitId,
+            final int sliceId, final Path partFile) throws IOException {
+        final long startTime = System.nanoTime();
+        long documents = 0L;
+        long bytes = 0L;
+        final SearchHitSpliterator spliterator = new SearchHitSpliterator(client, searchSource,
+                pageSize, 1, SearchHitSpliterator.DEFAULT_KEEP_ALIVE, pitId, false, null);
+        try (Stream<SearchHit> hits = StreamSupport.stream(spliterator, false)
+                .onClose(spliterator::close);
+                CountingOutputStream output = new CountingOutputStream(new BufferedOutputStream(
+                        new GZIPOutputStream(Files.newOutputStream(partFile),
+                                DEFAULT_BUFFER_BYTES),
+                        DEFAULT_BUFFER_BYTES));) {
+            final Iterator<SearchHit> iterator = hits.iterator();
+            while (iterator.hasNext()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Interrupted while exporting slice " + sliceId);
+                }
+                final SearchHit hit = iterator.next();
+                BytesReference.bytes(XContentFactory.jsonBuilder().startObject()
+                        .startObject("index").field("_id", hit.getId()).endObject()
+                        .endObject()).writeTo(output);
+                output.write('\n');
+                // The source is copied as it was received, without parsing it
+                // into a map
+                final BytesReference source = hit.getSourceRef();
+                if (source != null) {
+                    source.writeTo(output);
+                } else {
+                    output.write(EMPTY_SOURCE);
+                }
+                output.write('\n');
+                documents++;
+            }
+            bytes = output.getCount();
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+        LOG.debug("Exported {} documents to {}", documents, partFile);
+        return new SliceResult(sliceId, partFile, documents, bytes, Files.size(partFile),
+                TimeValue.timeValueNanos(System.nanoTime() - startTime));
+    }
+
+    /**
+     * Counts the bytes written through it, without buffering them.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+
+        private final OutputStream delegate;
+        private long count;
+
+        CountingOutputStream(final OutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            delegate.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            delegate.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+
+    /**
+     * The outcome of exporting a single slice.
+     */
+    public static final class SliceResult {
+
+        private final int slice;
+        private final Path file;
+        private final long documents;
+        private final long bytes;
+        private final long compressedBytes;
+        private final TimeValue took;
+
+        SliceResult(final int slice, final Path file, final long documents, final long bytes,
+                final long compressedBytes, final TimeValue took) {
+            this.slice = slice;
+            this.file = file;
+            this.documents = documents;
+            this.bytes = bytes;
+            this.compressedBytes = compressedBytes;
+            this.took = took;
+        }
+
+        public int getSlice() {
+            return slice;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public long getDocuments() {
+            return documents;
+        }
+
+        /**
+         * @return The number of uncompressed bytes written.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return The size of the part file.
+         */
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        public TimeValue getTook() {
+            return took;
+        }
+
+        public double getDocumentsPerSecond() {
+            return took.nanos() > 0L ? documents * 1e9 / took.nanos() : 0.0;
+        }
+
+        public double getMegabytesPerSecond() {
+            return took.nanos() > 0L ? bytes / (1024.0 * 1024.0) * 1e9 / took.nanos() : 0.0;
+        }
+    }
+
+    /**
+     * A summary of a completed export.
+     */
+    public static final class Result {
+
+        private final List<SliceResult> slices;
+        private final TimeValue wallClock;
+
+        Result(final List<SliceResult> slices, final TimeValue wallClock) {
+            this.slices = Collections.unmodifiableList(new ArrayList<>(slices));
+            this.wallClock = wallClock;
+        }
+
+        /**
+         * @return The result for each slice, in slice order.
+         */
+        public List<SliceResult> getSlices() {
+            return slices;
+        }
+
+        public TimeValue getWallClock() {
+            return wallClock;
+        }
+
+        public long getDocuments() {
+            return slices.stream().mapToLong(SliceResult::getDocuments).sum();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder report = new StringBuilder();
+            report.append(String.format(Locale.ROOT, "%-6s %10s %10s %10s %8s %10s %8s  %s%n",
+                    "slice", "documents", "mb", "gzip_mb", "run_s", "docs/s", "mb/s", "file"));
+            long totalBytes = 0L;
+            long totalCompressedBytes = 0L;
+            for (final SliceResult slice : slices) {
+                totalBytes += slice.getBytes();
+                totalCompressedBytes += slice.getCompressedBytes();
+                report.append(String.format(Locale.ROOT,
+                        "%-6d %10d %10.1f %10.1f %8.1f %10.0f %8.2f  %s%n", slice.getSlice(),
+                        slice.getDocuments(), slice.getBytes() / (1024.0 * 1024.0),
+                        slice.getCompressedBytes() / (1024.0 * 1024.0),
+                        slice.getTook().secondsFrac(), slice.getDocumentsPerSecond(),
+                        slice.getMegabytesPerSecond(), slice.getFile().getFileName()));
+            }
+            report.append(String.format(Locale.ROOT,
+                    "%d documents (%.1f MB, %.1f MB compressed) in %d parts in %.1fs wall clock%n",
+                    getDocuments(), totalBytes / (1024.0 * 1024.0),
+                    totalCompressedBytes / (1024.0 * 1024.0), slices.size(),
+                    wallClock.secondsFrac()));
+            return report.toString();
+        }
+    }
+}
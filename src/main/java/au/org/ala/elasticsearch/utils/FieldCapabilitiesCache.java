@@ -0,0 +1,291 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.elasticsearch.action.fieldcaps.FieldCapabilities;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the field capabilities for index names or patterns, so that services
+ * that need them for every request do not fetch them from the cluster each
+ * time.
+ * <p>
+ * Cached entries are used without contacting the cluster until their time to
+ * live expires. After that, the mapping versions of the matching indexes are
+ * checked, and the field capabilities are only fetched again if an index was
+ * added, removed or had its mapping changed. All entries are invalidated when
+ * a template is put using
+ * {@link AlaElasticsearchUtils#putTemplate(RestHighLevelClient, String, String)}.
+ * The least recently used entries are evicted when the cache is full.
+ * Concurrent requests that miss the cache for the same index names or
+ * patterns wait for a single fetch and share its result.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class FieldCapabilitiesCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FieldCapabilitiesCache.class);
+
+    /**
+     * The default time that an entry is used before checking whether it has
+     * changed.
+     */
+    public static final TimeValue DEFAULT_TIME_TO_LIVE = TimeValue.timeValueMinutes(1);
+
+    /**
+     * The default maximum number of index names or patterns to cache.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+
+    /**
+     * Incremented each time a template is put, to invalidate all of the caches.
+     */
+    private static final AtomicLong TEMPLATE_GENERATION = new AtomicLong();
+
+    private final RestHighLevelClient client;
+    private final long timeToLiveNanos;
+    private final Map<String, CacheEntry> entries;
+    private final Map<String, CompletableFuture<CacheEntry>> loading = new HashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+
+    /**
+     * Create a new {@link FieldCapabilitiesCache} using the default time to
+     * live and maximum number of entries.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     */
+    public FieldCapabilitiesCache(final RestHighLevelClient client) {
+        this(client, DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Create a new {@link FieldCapabilitiesCache}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param timeToLive
+     *            The time that an entry is used before checking whether it has
+     *            changed.
+     * @param maxEntries
+     *            The maximum number of index names or patterns to cache.
+     */
+    public FieldCapabilitiesCache(final RestHighLevelClient client, final TimeValue timeToLive,
+            final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Max entries must be at least 1: " + maxEntries);
+        }
+        this.client = client;
+        this.timeToLiveNanos = timeToLive.nanos();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Invalidate all of the entries in all caches. Called when a template is
+     * put, as new indexes matching the template may have different mappings.
+     */
+    static void templatesChanged() {
+        TEMPLATE_GENERATION.incrementAndGet();
+    }
+
+    /**
+     * Get the field capabilities for the given indexes, from the cache if
+     * possible.
+     *
+     * @param indexNames
+     *            The index names or patterns.
+     * @return An unmodifiable {@link Map} from field name to type to
+     *         {@link FieldCapabilities}, as for
+     *         {@link AlaElasticsearchUtils#getFieldCapabilities(RestHighLevelClient, String...)}.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public Map<String, Map<String, FieldCapabilities>> getFieldCapabilities(
+            final String... indexNames) throws IOException, InterruptedException {
+        return getEntry(indexNames).fieldCapabilities;
+    }
+
+    /**
+     * Get the field capabilities for the fields that are not internal to
+     * elasticsearch, from the cache if possible.
+     *
+     * @param indexNames
+     *            The index names or patterns.
+     * @return An unmodifiable {@link Map} from field name to type to
+     *         {@link FieldCapabilities}, as for
+     *         {@link AlaElasticsearchUtils#getUserDefinedFieldCapabilities(RestHighLevelClient, String...)}.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public Map<String, Map<String, FieldCapabilities>> getUserDefinedFieldCapabilities(
+            final String... indexNames) throws IOException, InterruptedException {
+        return getEntry(indexNames).userDefinedFieldCapabilities;
+    }
+
+    /**
+     * Remove the entry for the given index names or patterns, so that the
+     * next request fetches them from the cluster.
+     *
+     * @param indexNames
+     *            The index names or patterns, as given to the get methods.
+     */
+    public void invalidate(final String... indexNames) {
+        synchronized (entries) {
+            entries.remove(String.join(",", indexNames));
+        }
+    }
+
+    /**
+     * Remove all of the entries.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return The number of requests that were answered from the cache,
+     *         including those that were revalidated and those that waited for
+     *         a concurrent fetch.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of requests that fetched the field capabilities from
+     *         the cluster.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of expired entries that were found to be unchanged
+     *         using their mapping versions.
+     */
+    public long getRevalidationCount() {
+        return revalidations.sum();
+    }
+
+    private CacheEntry getEntry(final String... indexNames)
+            throws IOException, InterruptedException {
+        final String key = String.join(",", indexNames);
+        final long generation = TEMPLATE_GENERATION.get();
+        final CacheEntry existing;
+        synchronized (entries) {
+            existing = entries.get(key);
+        }
+
+        if (existing != null && existing.generation == generation) {
+            if (System.nanoTime() - existing.validatedAt < timeToLiveNanos) {
+                hits.increment();
+                return existing;
+            }
+            if (existing.mappingVersions
+                    .equals(AlaElasticsearchUtils.getMappingVersions(client, indexNames))) {
+                revalidations.increment();
+                hits.increment();
+                existing.validatedAt = System.nanoTime();
+                return existing;
+            }
+            LOG.debug("Mappings changed for {}", key);
+        }
+
+        // Fetches started before a template was put are not shared
+        final String loadingKey = generation + "/" + key;
+        final CompletableFuture<CacheEntry> loader = new CompletableFuture<>();
+        final CompletableFuture<CacheEntry> concurrent;
+        synchronized (entries) {
+            // Another fetch may have finished since the entry was checked
+            final CacheEntry loaded = entries.get(key);
+            if (loaded != null && loaded != existing && loaded.generation == generation) {
+                hits.increment();
+                return loaded;
+            }
+            concurrent = loading.putIfAbsent(loadingKey, loader);
+        }
+        if (concurrent != null) {
+            hits.increment();
+            try {
+                return concurrent.get();
+            } catch (final ExecutionException e) {
+                throw new IOException("Concurrent fetch of field capabilities for " + key
+                        + " failed", e.getCause());
+            }
+        }
+
+        misses.increment();
+        try {
+            final CacheEntry loaded = load(generation, indexNames);
+            synchronized (entries) {
+                entries.put(key, loaded);
+            }
+            loader.complete(loaded);
+            return loaded;
+        } catch (final IOException | InterruptedException | RuntimeException e) {
+            loader.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (entries) {
+                loading.remove(loadingKey, loader);
+            }
+        }
+    }
+
+    private CacheEntry load(final long generation, final String... indexNames)
+            throws IOException, InterruptedException {
+        // Check the mapping versions first, so a change during the fetch is
+        // found when the entry is next revalidated
+        final Map<String, Long> mappingVersions = AlaElasticsearchUtils.getMappingVersions(client,
+                indexNames);
+        final Map<String, Map<String, FieldCapabilities>> fieldCapabilities = Collections
+                .unmodifiableMap(AlaElasticsearchUtils.getFieldCapabilities(client, indexNames));
+        return new CacheEntry(generation, mappingVersions, fieldCapabilities,
+                AlaElasticsearchUtils.filterUserDefinedFields(fieldCapabilities));
+    }
+
+    private static final class CacheEntry {
+        private final long generation;
+        private final Map<String, Long> mappingVersions;
+        private final Map<String, Map<String, FieldCapabilities>> fieldCapabilities;
+        private final Map<String, Map<String, FieldCapabilities>> userDefinedFieldCapabilities;
+        private volatile long validatedAt = System.nanoTime();
+
+        private CacheEntry(final long generation, final Map<String, Long> mappingVersions,
+                final Map<String, Map<String, FieldCapabilities>> fieldCapabilities,
+                final Map<String, Map<String, FieldCapabilities>> userDefinedFieldCapabilities) {
+            this.generation = generation;
+            this.mappingVersions = mappingVersions;
+            this.fieldCapabilities = fieldCapabilities;
+            this.userDefinedFieldCapabilities = userDefinedFieldCapabilities;
+        }
+    }
+}
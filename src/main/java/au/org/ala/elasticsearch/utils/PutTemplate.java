@@ -3,12 +3,39 @@
  */
 package au.org.ala.elasticsearch.utils;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
 
+import org.elasticsearch.action.admin.indices.alias.Alias;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.IndexTemplateMetadata;
+import org.elasticsearch.client.indices.PutIndexTemplateRequest;
+import org.elasticsearch.cluster.metadata.AliasMetadata;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.carrotsearch.hppc.cursors.ObjectCursor;
 
 import joptsimple.OptionException;
 import joptsimple.OptionParser;
@@ -18,30 +45,72 @@ import joptsimple.OptionSpec;
 /**
  * Puts a template into elasticsearch so that it can be used for future indexes
  * or reindexing.
+ * <p>
+ * A whole directory of templates can also be synchronised, in which case
+ * each template is only put if its content differs from the template that is
+ * already in the cluster, so that an unchanged deploy does not update the
+ * cluster state.
  *
  * @author Peter Ansell p_ansell@yahoo.com
  */
 public class PutTemplate {
 
+    private static final Logger LOG = LoggerFactory.getLogger(PutTemplate.class);
+
+    /**
+     * The default number of templates to put at the same time when
+     * synchronising a directory.
+     */
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    private static final String TEMPLATE_FILE_SUFFIX = ".json";
+
+    private static final ToXContent.Params FLAT_SETTINGS = new ToXContent.MapParams(
+            Map.of("flat_settings", "true"));
+
+    /**
+     * The outcome of synchronising a single template.
+     */
+    public enum Outcome {
+        /**
+         * The template in the cluster already had the same content.
+         */
+        SKIPPED,
+
+        /**
+         * The template did not exist in the cluster and was put.
+         */
+        CREATED,
+
+        /**
+         * The template in the cluster had different content and was replaced.
+         */
+        UPDATED,
+
+        /**
+         * The template could not be read or put.
+         */
+        FAILED
+    }
+
     public static void main(String... args) throws Exception {
         final OptionParser parser = new OptionParser();
 
         final OptionSpec<Void> help = parser.accepts("help").forHelp();
         final OptionSpec<String> templateNameOption = parser.accepts("template-name")
-                .withRequiredArg().ofType(String.class).required()
+                .requiredUnless("template-dir").withRequiredArg().ofType(String.class)
                 .describedAs("The name of the template");
         final OptionSpec<File> templateJsonOption = parser.accepts("template-json")
-                .withRequiredArg().ofType(File.class).required()
+                .requiredUnless("template-dir").withRequiredArg().ofType(File.class)
                 .describedAs("The file containing the JSON for the template");
-        final OptionSpec<String> esHostnameOption = parser.accepts("es-hostname").withRequiredArg()
-                .ofType(String.class).defaultsTo("localhost")
-                .describedAs("The hostname of the elasticsearch cluster.");
-        final OptionSpec<Integer> esPortOption = parser.accepts("es-port").withRequiredArg()
-                .ofType(Integer.class).defaultsTo(9200)
-                .describedAs("The TCP port of the elasticsearch cluster.");
-        final OptionSpec<String> esSchemeOption = parser.accepts("es-scheme").withRequiredArg()
-                .ofType(String.class).defaultsTo("http").describedAs(
-                        "The scheme (HTTP or HTTPS) to use to contact the elasticsearch cluster.");
+        final OptionSpec<File> templateDirOption = parser.accepts("template-dir")
+                .availableUnless("template-name", "template-json").withRequiredArg()
+                .ofType(File.class).describedAs(
+                        "A directory of templates to synchronise, named after their files without the .json suffix");
+        final OptionSpec<Integer> concurrencyOption = parser.accepts("concurrency")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_CONCURRENCY)
+                .describedAs("The number of changed templates to put at the same time");
+        final ElasticsearchClientOptions clientOptions = new ElasticsearchClientOptions(parser);
 
         OptionSet options = null;
 
@@ -58,22 +127,340 @@ public class PutTemplate {
             return;
         }
 
+        if (options.has(templateDirOption)) {
+            final Path templateDirectory = templateDirOption.value(options).toPath().normalize()
+                    .toAbsolutePath();
+            final Closeable metrics = clientOptions.startMetrics(options);
+            try (RestHighLevelClient client = clientOptions.newClient(options);) {
+                final SyncResult result = syncTemplates(client, templateDirectory,
+                        concurrencyOption.value(options));
+                System.out.print(result);
+                if (!result.getFailed().isEmpty()) {
+                    throw new IOException(
+                            "Failed to synchronise templates: " + result.getFailed());
+                }
+            } finally {
+                metrics.close();
+            }
+            return;
+        }
+
         final String templateName = templateNameOption.value(options);
         final Path templateJsonPath = templateJsonOption.value(options).toPath().normalize()
                 .toAbsolutePath();
         final String templateContentJson = Files.readString(templateJsonPath,
                 StandardCharsets.UTF_8);
 
-        final String esHostname = esHostnameOption.value(options);
-        final int esPort = esPortOption.value(options);
-        final String esScheme = esSchemeOption.value(options);
-
         // Reference:
         // https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.10/java-rest-high-getting-started-initialization.html
-        try (RestHighLevelClient client = AlaElasticsearchUtils.newElasticsearchClient(esHostname,
-                esPort, esScheme);) {
+        final Closeable metrics = clientOptions.startMetrics(options);
+        try (RestHighLevelClient client = clientOptions.newClient(options);) {
             AlaElasticsearchUtils.putTemplate(client, templateName, templateContentJson);
+        } finally {
+            metrics.close();
+        }
+    }
+
+    /**
+     * Synchronise every template in the given directory with the cluster.
+     * <p>
+     * The existing templates are fetched in a single request, and a template
+     * is only put if the hash of its normalised content differs from the hash
+     * of the existing template with the same name. Changed templates are put
+     * concurrently.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param templateDirectory
+     *            The directory containing the templates, each in a file named
+     *            after the template with a .json suffix.
+     * @param concurrency
+     *            The maximum number of templates to put at the same time.
+     * @return A {@link SyncResult} containing the outcome for each template.
+     * @throws IOException
+     *             If the directory could not be listed or the existing
+     *             templates could not be fetched.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static SyncResult syncTemplates(final RestHighLevelClient client,
+            final Path templateDirectory, final int concurrency)
+            throws IOException, InterruptedException {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1: " + concurrency);
+        }
+        final long startTime = System.nanoTime();
+
+        final List<Path> templateFiles = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(templateDirectory,
+                "*" + TEMPLATE_FILE_SUFFIX);) {
+            for (final Path file : files) {
+                templateFiles.add(file);
+            }
+        }
+        Collections.sort(templateFiles);
+
+        final Map<String, String> existingHashes = new TreeMap<>();
+        for (final IndexTemplateMetadata existing : AlaElasticsearchUtils.getTemplate(client,
+                "*")) {
+            existingHashes.put(existing.name(), templateHash(existing));
+        }
+
+        final SyncResult result = new SyncResult();
+        final Semaphore permits = new Semaphore(concurrency);
+        for (final Path templateFile : templateFiles) {
+            final String fileName = templateFile.getFileName().toString();
+            final String templateName = fileName.substring(0,
+                    fileName.length() - TEMPLATE_FILE_SUFFIX.length());
+            final String templateContentJson;
+            final String hash;
+            try {
+                templateContentJson = Files.readString(templateFile, StandardCharsets.UTF_8);
+                hash = templateHash(templateName, templateContentJson);
+            } catch (final IOException | RuntimeException e) {
+                LOG.error("Could not read template {} from {}", templateName, templateFile, e);
+                result.add(templateName, Outcome.FAILED, e.toString());
+                continue;
+            }
+
+            final String existingHash = existingHashes.get(templateName);
+            if (hash.equals(existingHash)) {
+                LOG.debug("Template {} is unchanged", templateName);
+                result.add(templateName, Outcome.SKIPPED, null);
+                continue;
+            }
+
+            final Outcome changed = existingHash == null ? Outcome.CREATED : Outcome.UPDATED;
+            permits.acquire();
+            AsyncAlaElasticsearchUtils.putTemplate(client, templateName, templateContentJson)
+                    .whenComplete((acknowledged, e) -> {
+                        try {
+                            if (e != null) {
+                                LOG.error("Failed to put template {}", templateName, e);
+                                result.add(templateName, Outcome.FAILED, e.toString());
+                            } else if (!acknowledged) {
+                                result.add(templateName, Outcome.FAILED, "Not acknowledged");
+                            } else {
+                                result.add(templateName, changed, null);
+                            }
+                        } finally {
+                            permits.release();
+                        }
+                    });
+        }
+        // Wait for the puts that are still running
+        permits.acquire(concurrency);
+
+        result.took = TimeValue.timeValueNanos(System.nanoTime() - startTime);
+        LOG.info("Synchronised templates from {}: {}", templateDirectory, result.summary());
+        return result;
+    }
+
+    /**
+     * Hash the normalised content of a template that is going to be put.
+     *
+     * @param templateName
+     *            The name of the template.
+     * @param templateContentJson
+     *            The JSON-encoded template.
+     * @return A hex encoded SHA-256 hash of the normalised template.
+     * @throws IOException
+     *             If the template could not be parsed.
+     */
+    static String templateHash(final String templateName, final String templateContentJson)
+            throws IOException {
+        final PutIndexTemplateRequest request = new PutIndexTemplateRequest(templateName)
+                .source(templateContentJson, XContentType.JSON);
+        final Map<String, Object> mappings = request.mappings() == null
+                ? Collections.emptyMap()
+                : XContentHelper.convertToMap(request.mappings(), true, XContentType.JSON)
+                        .v2();
+        final Map<String, Object> aliases = new TreeMap<>();
+        for (final Alias alias : request.aliases()) {
+            aliases.put(alias.name(), aliasMap(alias.filter(), alias.indexRouting(),
+                    alias.searchRouting(), alias.writeIndex(), alias.isHidden()));
+        }
+        return templateHash(request.patterns(), request.order(), request.version(),
+                request.settings(), mappings, aliases);
+    }
+
+    /**
+     * Hash the normalised content of a template that is in the cluster.
+     *
+     * @param template
+     *            The template returned by the cluster.
+     * @return A hex encoded SHA-256 hash of the normalised template.
+     * @throws IOException
+     *             If the template could not be serialised.
+     */
+    static String templateHash(final IndexTemplateMetadata template) throws IOException {
+        final Map<String, Object> mappings = template.mappings() == null
+                ? Collections.emptyMap()
+                : template.mappings().getSourceAsMap();
+        final Map<String, Object> aliases = new TreeMap<>();
+        for (final ObjectCursor<AliasMetadata> cursor : template.aliases().values()) {
+            final AliasMetadata alias = cursor.value;
+            aliases.put(alias.alias(),
+                    aliasMap(alias.filter() == null ? null : alias.filter().string(),
+                            alias.indexRouting(), alias.searchRouting(), alias.writeIndex(),
+                            alias.isHidden()));
         }
+        return templateHash(template.patterns(), template.order(), template.version(),
+                template.settings(), mappings, aliases);
     }
 
+    private static String templateHash(final List<String> patterns, final int order,
+            final Integer version, final Settings settings, final Map<String, Object> mappings,
+            final Map<String, Object> aliases) throws IOException {
+        // The cluster prefixes index settings and returns every value as a
+        // string, so the settings are compared in the same form
+        final Settings normalisedSettings = Settings.builder().put(settings)
+                .normalizePrefix("index.").build();
+        // A type name around the mappings is removed by the cluster
+        final Map<String, Object> unwrappedMappings = mappings.size() == 1
+                && mappings.get("_doc") instanceof Map ? asMap(mappings.get("_doc")) : mappings;
+
+        final XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        builder.field("index_patterns", patterns);
+        builder.field("order", order);
+        builder.field("version", version);
+        builder.startObject("settings");
+        normalisedSettings.toXContent(builder, FLAT_SETTINGS);
+        builder.endObject();
+        builder.field("mappings", sorted(unwrappedMappings));
+        builder.field("aliases", sorted(aliases));
+        builder.endObject();
+        final byte[] normalised = BytesReference.toBytes(BytesReference.bytes(builder));
+        return MessageDigests.toHexString(MessageDigests.sha256().digest(normalised));
+    }
+
+    private static Map<String, Object> aliasMap(final String filter, final String indexRouting,
+            final String searchRouting, final Boolean writeIndex, final Boolean hidden) {
+        final Map<String, Object> result = new TreeMap<>();
+        if (filter != null) {
+            result.put("filter",
+                    XContentHelper.convertToMap(XContentType.JSON.xContent(), filter, true));
+        }
+        if (indexRouting != null) {
+            result.put("index_routing", indexRouting);
+        }
+        if (searchRouting != null) {
+            result.put("search_routing", searchRouting);
+        }
+        if (writeIndex != null) {
+            result.put("is_write_index", writeIndex);
+        }
+        if (hidden != null) {
+            result.put("is_hidden", hidden);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(final Object value) {
+        return (Map<String, Object>) value;
+    }
+
+    private static Object sorted(final Object value) {
+        if (value instanceof Map) {
+            final Map<String, Object> result = new TreeMap<>();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                result.put(entry.getKey().toString(), sorted(entry.getValue()));
+            }
+            return result;
+        }
+        if (value instanceof List) {
+            final List<Object> result = new ArrayList<>();
+            for (final Object element : (List<?>) value) {
+                result.add(sorted(element));
+            }
+            return result;
+        }
+        return value;
+    }
+
+    /**
+     * The outcome of synchronising a directory of templates.
+     */
+    public static final class SyncResult {
+        private final Map<String, Outcome> outcomes = new TreeMap<>();
+        private final Map<String, String> failures = new TreeMap<>();
+        private TimeValue took;
+
+        private synchronized void add(final String templateName, final Outcome outcome,
+                final String failure) {
+            outcomes.put(templateName, outcome);
+            if (failure != null) {
+                failures.put(templateName, failure);
+            }
+        }
+
+        /**
+         * @return The outcome for each template, by template name.
+         */
+        public synchronized Map<String, Outcome> getOutcomes() {
+            return Collections.unmodifiableMap(new TreeMap<>(outcomes));
+        }
+
+        public List<String> getSkipped() {
+            return get(Outcome.SKIPPED);
+        }
+
+        public List<String> getCreated() {
+            return get(Outcome.CREATED);
+        }
+
+        public List<String> getUpdated() {
+            return get(Outcome.UPDATED);
+        }
+
+        public List<String> getFailed() {
+            return get(Outcome.FAILED);
+        }
+
+        /**
+         * @return The reason each failed template failed, by template name.
+         */
+        public synchronized Map<String, String> getFailures() {
+            return Collections.unmodifiableMap(new TreeMap<>(failures));
+        }
+
+        public TimeValue getTook() {
+            return took;
+        }
+
+        private synchronized List<String> get(final Outcome outcome) {
+            final List<String> result = new ArrayList<>();
+            for (final Map.Entry<String, Outcome> entry : outcomes.entrySet()) {
+                if (entry.getValue() == outcome) {
+                    result.add(entry.getKey());
+                }
+            }
+            return Collections.unmodifiableList(result);
+        }
+
+        private String summary() {
+            return String.format(Locale.ROOT,
+                    "%d templates in %s: %d skipped, %d created, %d updated, %d failed",
+                    getOutcomes().size(), took, getSkipped().size(), getCreated().size(),
+                    getUpdated().size(), getFailed().size());
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder result = new StringBuilder();
+            for (final Map.Entry<String, Outcome> entry : getOutcomes().entrySet()) {
+                result.append(String.format(Locale.ROOT, "%-8s %s", entry.getValue(),
+                        entry.getKey()));
+                final String failure = getFailures().get(entry.getKey());
+                if (failure != null) {
+                    result.append(": ").append(failure);
+                }
+                result.append(System.lineSeparator());
+            }
+            result.append(summary()).append(System.lineSeparator());
+            return result.toString();
+        }
+    }
 }
@@ -0,0 +1,266 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexTemplatesRequest;
+import org.elasticsearch.client.indices.IndexTemplateMetadata;
+import org.elasticsearch.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.cluster.metadata.AliasMetadata;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+
+/**
+ * Rebuilds an index into a new index that is tuned for bulk loading, and then
+ * atomically moves an alias to the new index, so that searches using the
+ * alias are not interrupted.
+ * <p>
+ * The destination is created from the templates that match it, but with no
+ * replicas and refresh disabled while the reindex runs. Afterwards it is
+ * optionally force merged, and then the replicas and refresh interval from
+ * the templates are restored, which is also done if the reindex or force
+ * merge fails. The alias is swapped once the destination is green.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class Rebuild {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Rebuild.class);
+
+    private static final ElasticsearchMetrics METRICS = ElasticsearchMetrics.getDefault();
+
+    /**
+     * The default time to wait for the destination to become green before
+     * swapping the alias.
+     */
+    public static final TimeValue DEFAULT_HEALTH_TIMEOUT = TimeValue.timeValueMinutes(30);
+
+    static final String REPLICAS_SETTING = "index.number_of_replicas";
+
+    static final String REFRESH_INTERVAL_SETTING = "index.refresh_interval";
+
+    /**
+     * Rebuild the source index into the destination index and swap the alias
+     * to the destination.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param sourceIndex
+     *            The source index, which may be the alias itself.
+     * @param destinationIndex
+     *            The destination index, which must not exist.
+     * @param alias
+     *            The alias to move from the indexes that currently have it to
+     *            the destination.
+     * @param script
+     *            The script to use to translate documents that are being
+     *            reindexed, or null to copy them unchanged.
+     * @param slices
+     *            The number of slices to use for the reindex.
+     * @param maxNumSegments
+     *            The number of segments to force merge the destination to,
+     *            or 0 to not force merge it.
+     * @param healthTimeout
+     *            The maximum time to wait for the destination to become green.
+     * @return The {@link TaskResult} of the reindex.
+     * @throws IOException
+     *             If communication with the server had an issue, the reindex
+     *             did not succeed, or the destination did not become green,
+     *             in which case the alias is not changed.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static TaskResult rebuild(final RestHighLevelClient client, final String sourceIndex,
+            final String destinationIndex, final String alias, final Script script,
+            final int slices, final int maxNumSegments, final TimeValue healthTimeout)
+            throws IOException, InterruptedException {
+        final long startTime = System.nanoTime();
+
+        // Settings given when creating the index override the templates, so
+        // the settings to restore are found from the templates first
+        final Settings templateSettings = getTemplateSettings(client, destinationIndex);
+        final String replicas = templateSettings.get(REPLICAS_SETTING);
+        final String refreshInterval = templateSettings.get(REFRESH_INTERVAL_SETTING);
+        METRICS.time(Operation.OTHER, () -> client.indices().create(
+                new CreateIndexRequest(destinationIndex).settings(Settings.builder()
+                        .put(REPLICAS_SETTING, 0).put(REFRESH_INTERVAL_SETTING, "-1")),
+                RequestOptions.DEFAULT));
+        LOG.info("Created {} for rebuild, restoring replicas={} refresh_interval={} afterwards",
+                destinationIndex, replicas, refreshInterval);
+
+        // A null value resets a setting that the templates did not give
+        final Settings.Builder restored = Settings.builder();
+        if (replicas == null) {
+            restored.putNull(REPLICAS_SETTING);
+        } else {
+            restored.put(REPLICAS_SETTING, replicas);
+        }
+        if (refreshInterval == null) {
+            restored.putNull(REFRESH_INTERVAL_SETTING);
+        } else {
+            restored.put(REFRESH_INTERVAL_SETTING, refreshInterval);
+        }
+
+        Exception failure = null;
+        final TaskResult result;
+        try {
+            result = Reindex.doReindex(client, sourceIndex, destinationIndex, script, slices);
+            if (!result.isSuccessful()) {
+                throw new IOException("Rebuild of " + sourceIndex + " into " + destinationIndex
+                        + " failed, so " + alias + " was not changed: " + result);
+            }
+
+            // Merging before adding replicas means the replicas copy the
+            // merged segments instead of merging them again
+            if (maxNumSegments > 0) {
+                final long mergeStart = System.nanoTime();
+                METRICS.time(Operation.OTHER, () -> client.indices().forcemerge(
+                        new ForceMergeRequest(destinationIndex).maxNumSegments(maxNumSegments),
+                        RequestOptions.DEFAULT));
+                LOG.info("Force merged {} to {} segments in {}", destinationIndex,
+                        maxNumSegments, TimeValue.timeValueNanos(System.nanoTime() - mergeStart));
+            }
+        } catch (final IOException | InterruptedException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            // A failed rebuild still leaves the destination with the settings
+            // from the templates
+            restoreSettings(client, destinationIndex, restored.build(), failure);
+        }
+
+        waitForGreen(client, destinationIndex, healthTimeout);
+        swapAlias(client, alias, destinationIndex);
+
+        LOG.info("Rebuild of {} into {} as {} completed in {}", sourceIndex, destinationIndex,
+                alias, TimeValue.timeValueNanos(System.nanoTime() - startTime));
+        return result;
+    }
+
+    /**
+     * Get the settings that the legacy templates matching the given index
+     * name would give to a new index with that name.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexName
+     *            The name of the index.
+     * @return The merged settings, with higher order templates overriding
+     *         lower order templates.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    static Settings getTemplateSettings(final RestHighLevelClient client,
+            final String indexName) throws IOException {
+        final List<IndexTemplateMetadata> templates = METRICS.time(Operation.GET_TEMPLATE,
+                () -> client.indices().getIndexTemplate(new GetIndexTemplatesRequest(),
+                        RequestOptions.DEFAULT))
+                .getIndexTemplates().stream()
+                .filter(template -> Regex.simpleMatch(template.patterns(), indexName))
+                .sorted(Comparator.comparingInt(IndexTemplateMetadata::order))
+                .collect(Collectors.toList());
+        final Settings.Builder result = Settings.builder();
+        for (final IndexTemplateMetadata template : templates) {
+            result.put(template.settings());
+        }
+        return result.normalizePrefix("index.").build();
+    }
+
+    private static void restoreSettings(final RestHighLevelClient client,
+            final String indexName, final Settings settings, final Exception failure)
+            throws IOException {
+        try {
+            METRICS.time(Operation.OTHER, () -> client.indices().putSettings(
+                    new UpdateSettingsRequest(settings, indexName), RequestOptions.DEFAULT));
+        } catch (final IOException | RuntimeException e) {
+            if (failure == null) {
+                throw e;
+            }
+            LOG.error("Failed to restore the settings of {} after the rebuild failed", indexName,
+                    e);
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Wait for the given index to become green, with the server waiting on
+     * each check and backing off between them.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexName
+     *            The index to wait for.
+     * @param timeout
+     *            The maximum time to wait.
+     * @throws IOException
+     *             If communication with the server had an issue or the index
+     *             did not become green in time.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    static void waitForGreen(final RestHighLevelClient client, final String indexName,
+            final TimeValue timeout) throws IOException, InterruptedException {
+        AlaElasticsearchUtils.waitForStatus(client, ClusterHealthStatus.GREEN, timeout,
+                indexName);
+    }
+
+    /**
+     * Move the alias from every index that has it to the given index, in a
+     * single atomic request.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param alias
+     *            The alias to move.
+     * @param indexName
+     *            The index to move the alias to.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    static void swapAlias(final RestHighLevelClient client, final String alias,
+            final String indexName) throws IOException {
+        final GetAliasesResponse existing = METRICS.time(Operation.OTHER, () -> client.indices()
+                .getAlias(new GetAliasesRequest(alias), RequestOptions.DEFAULT));
+        if (existing.status() != RestStatus.OK && existing.status() != RestStatus.NOT_FOUND) {
+            throw new IOException("Could not get the indexes for alias " + alias + ": "
+                    + existing.status() + " " + existing.getError());
+        }
+
+        final IndicesAliasesRequest request = new IndicesAliasesRequest();
+        for (final Map.Entry<String, Set<AliasMetadata>> entry : existing.getAliases()
+                .entrySet()) {
+            if (!entry.getKey().equals(indexName) && !entry.getValue().isEmpty()) {
+                request.addAliasAction(
+                        AliasActions.remove().index(entry.getKey()).alias(alias));
+            }
+        }
+        request.addAliasAction(AliasActions.add().index(indexName).alias(alias));
+        METRICS.time(Operation.OTHER,
+                () -> client.indices().updateAliases(request, RequestOptions.DEFAULT));
+        LOG.info("Moved alias {} from {} to {}", alias, existing.getAliases().keySet(),
+                indexName);
+    }
+}
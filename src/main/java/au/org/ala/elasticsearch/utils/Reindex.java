@@ -3,19 +3,29 @@
  */
 package au.org.ala.elasticsearch.utils;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.tasks.TaskSubmissionResponse;
+import org.elasticsearch.cluster.health.ClusterIndexHealth;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
 import org.elasticsearch.index.reindex.ReindexRequest;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+
 import joptsimple.OptionException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -29,25 +39,84 @@ public class Reindex {
 
     private static final Logger LOG = LoggerFactory.getLogger(Reindex.class);
 
+    /**
+     * The value for the slices option to indicate that the number of slices
+     * should be chosen based on the number of shards in the source index.
+     */
+    public static final String AUTO_SLICES = "auto";
+
     public static void main(String... args) throws Exception {
         final OptionParser parser = new OptionParser();
 
         final OptionSpec<Void> help = parser.accepts("help").forHelp();
-        final OptionSpec<String> sourceOption = parser.accepts("source").withRequiredArg()
-                .ofType(String.class).required()
+        final OptionSpec<File> jobsOption = parser.accepts("jobs").withRequiredArg()
+                .ofType(File.class).describedAs(
+                        "A JSON file containing an array of reindex jobs, each with a source, destination, and optionally a painless script, slices and priority, to run concurrently instead of a single reindex.");
+        final OptionSpec<String> sourceOption = parser.accepts("source").requiredUnless("jobs")
+                .withRequiredArg().ofType(String.class)
                 .describedAs("The elasticsearch index to use as the source for the reindex");
-        final OptionSpec<String> destinationOption = parser.accepts("destination").withRequiredArg()
-                .ofType(String.class).required()
+        final OptionSpec<String> destinationOption = parser.accepts("destination")
+                .requiredUnless("jobs").withRequiredArg().ofType(String.class)
                 .describedAs("The elasticsearch index to use as the destination for the reindex");
-        final OptionSpec<String> esHostnameOption = parser.accepts("es-hostname").withRequiredArg()
-                .ofType(String.class).defaultsTo("localhost")
-                .describedAs("The hostname of the elasticsearch cluster.");
-        final OptionSpec<Integer> esPortOption = parser.accepts("es-port").withRequiredArg()
-                .ofType(Integer.class).defaultsTo(9200)
-                .describedAs("The TCP port of the elasticsearch cluster.");
-        final OptionSpec<String> esSchemeOption = parser.accepts("es-scheme").withRequiredArg()
-                .ofType(String.class).defaultsTo("http").describedAs(
-                        "The scheme (HTTP or HTTPS) to use to contact the elasticsearch cluster.");
+        final OptionSpec<Integer> maxInFlightSlicesOption = parser
+                .accepts("max-in-flight-slices").withRequiredArg().ofType(Integer.class)
+                .defaultsTo(ReindexScheduler.DEFAULT_MAX_IN_FLIGHT_SLICES).describedAs(
+                        "The maximum number of reindex slices to run at the same time over all of the jobs when using --jobs.");
+        final OptionSpec<Long> maxWriteQueueOption = parser.accepts("max-write-queue")
+                .withRequiredArg().ofType(Long.class)
+                .defaultsTo(ReindexScheduler.DEFAULT_MAX_WRITE_QUEUE).describedAs(
+                        "The number of queued write requests in the cluster above which no more jobs are started when using --jobs.");
+        final ElasticsearchClientOptions clientOptions = new ElasticsearchClientOptions(parser);
+        final OptionSpec<String> slicesOption = parser.accepts("slices").withRequiredArg()
+                .ofType(String.class).defaultsTo("1").describedAs(
+                        "The number of slices to run the reindex in parallel with, or \"auto\" to use the number of shards in the source index.");
+        final OptionSpec<String> transformClassOption = parser.accepts("transform-class")
+                .withRequiredArg().ofType(String.class).describedAs(
+                        "The name of a class implementing java.util.function.Function<Map<String, Object>, Map<String, Object>> to transform documents on the client instead of using a script in the cluster.");
+        final OptionSpec<Integer> batchSizeOption = parser.accepts("batch-size").withRequiredArg()
+                .ofType(Integer.class).defaultsTo(ClientReindex.DEFAULT_BATCH_SIZE)
+                .describedAs("The number of documents in each batch when using --transform-class.");
+        final OptionSpec<Integer> writersOption = parser.accepts("writers").withRequiredArg()
+                .ofType(Integer.class).defaultsTo(ClientReindex.DEFAULT_WRITERS)
+                .describedAs("The number of concurrent bulk writers when using --transform-class.");
+        final OptionSpec<String> sortFieldOption = parser.accepts("sort-field").withRequiredArg()
+                .ofType(String.class).defaultsTo(SearchHitSpliterator.DEFAULT_SORT_FIELD)
+                .describedAs(
+                        "A field with a different value in every document to read the source in order of when using --transform-class or --checkpoint-file. Sorting on _id uses heap memory for every id, so a keyword copy of the id with doc values is recommended for large indexes.");
+        final OptionSpec<String> aliasOption = parser.accepts("alias").withRequiredArg()
+                .ofType(String.class).describedAs(
+                        "Rebuild into a new destination index that is tuned for bulk loading, and then move this alias to it. The destination must not exist.");
+        final OptionSpec<Integer> forceMergeSegmentsOption = parser
+                .accepts("force-merge-segments").withRequiredArg().ofType(Integer.class)
+                .defaultsTo(0).describedAs(
+                        "The number of segments to force merge the destination to when using --alias, or 0 to not force merge.");
+        final OptionSpec<Long> healthTimeoutOption = parser.accepts("health-timeout-seconds")
+                .withRequiredArg().ofType(Long.class)
+                .defaultsTo(Rebuild.DEFAULT_HEALTH_TIMEOUT.seconds()).describedAs(
+                        "The maximum time in seconds to wait for the destination to become green before moving the alias when using --alias.");
+        final OptionSpec<File> checkpointFileOption = parser.accepts("checkpoint-file")
+                .withRequiredArg().ofType(File.class).describedAs(
+                        "A local file to record the progress of each slice in, so that the reindex continues from where it stopped if it is run again. The documents are copied through the client, using --transform-class if given.");
+        final OptionSpec<Long> checkpointIntervalOption = parser
+                .accepts("checkpoint-interval-seconds").withRequiredArg().ofType(Long.class)
+                .defaultsTo(30L).describedAs(
+                        "The interval in seconds between writes of the checkpoint file when using --checkpoint-file.");
+        final OptionSpec<Float> throttleMaxOption = parser.accepts("throttle-max-rps")
+                .withRequiredArg().ofType(Float.class).describedAs(
+                        "The maximum requests per second for the reindex. If set, the reindex is dynamically throttled based on cluster pressure.");
+        final OptionSpec<Float> throttleMinOption = parser.accepts("throttle-min-rps")
+                .withRequiredArg().ofType(Float.class).defaultsTo(100.0f).describedAs(
+                        "The minimum requests per second that the reindex will be throttled to.");
+        final OptionSpec<Long> throttleSearchLatencyOption = parser
+                .accepts("throttle-search-latency-ms").withRequiredArg().ofType(Long.class)
+                .defaultsTo(200L).describedAs(
+                        "The average search latency in milliseconds above which the reindex will be throttled.");
+        final OptionSpec<Void> dryRunOption = parser.accepts("dry-run",
+                "Reindex a sample of the source into a temporary index and print the estimated duration and size of the full reindex, without changing the destination.");
+        final OptionSpec<Integer> dryRunSampleSizeOption = parser.accepts("dry-run-sample-size")
+                .withRequiredArg().ofType(Integer.class)
+                .defaultsTo(ReindexDryRun.DEFAULT_SAMPLE_SIZE)
+                .describedAs("The maximum number of documents to reindex when using --dry-run.");
 
         OptionSet options = null;
 
@@ -64,24 +133,190 @@ public class Reindex {
             return;
         }
 
+        if (options.has(jobsOption)) {
+            final List<ReindexJob> jobs = ReindexJob.readJobs(jobsOption.value(options).toPath());
+            final Closeable metrics = clientOptions.startMetrics(options);
+            try (RestHighLevelClient client = clientOptions.newClient(options);) {
+                final ReindexScheduler scheduler = new ReindexScheduler(client,
+                        maxInFlightSlicesOption.value(options),
+                        maxWriteQueueOption.value(options),
+                        ReindexScheduler.DEFAULT_LOAD_CHECK_INTERVAL);
+                final ReindexScheduler.Report report = scheduler.run(jobs);
+                System.out.print(report);
+                if (!report.isSuccessful()) {
+                    throw new IOException("Not all of the reindex jobs in "
+                            + jobsOption.value(options) + " succeeded");
+                }
+            } finally {
+                metrics.close();
+            }
+            return;
+        }
+
         final String sourceIndex = sourceOption.value(options);
         final String destinationIndex = destinationOption.value(options);
 
-        final String esHostname = esHostnameOption.value(options);
-        final int esPort = esPortOption.value(options);
-        final String esScheme = esSchemeOption.value(options);
+        final String slices = slicesOption.value(options);
 
         final Script script = new Script(ScriptType.INLINE, "painless",
                 "if (ctx. == '') {ctx._source.likes++;}", Collections.emptyMap());
 
         // Reference:
         // https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.10/java-rest-high-getting-started-initialization.html
-        try (RestHighLevelClient client = AlaElasticsearchUtils.newElasticsearchClient(esHostname,
-                esPort, esScheme);) {
-            doReindex(client, sourceIndex, destinationIndex, script);
+        final Closeable metrics = clientOptions.startMetrics(options);
+        try (RestHighLevelClient client = clientOptions.newClient(options);) {
+            if (options.has(dryRunOption)) {
+                System.out.print(ReindexDryRun.estimate(client, sourceIndex, destinationIndex,
+                        script, getNumberOfSlices(client, sourceIndex, slices),
+                        dryRunSampleSizeOption.value(options)));
+            } else if (options.has(aliasOption)) {
+                checkResult(Rebuild.rebuild(client, sourceIndex, destinationIndex,
+                        aliasOption.value(options), script,
+                        getNumberOfSlices(client, sourceIndex, slices),
+                        forceMergeSegmentsOption.value(options),
+                        TimeValue.timeValueSeconds(healthTimeoutOption.value(options))),
+                        sourceIndex, destinationIndex);
+            } else if (options.has(checkpointFileOption)) {
+                final Function<Map<String, Object>, Map<String, Object>> transform = options
+                        .has(transformClassOption)
+                                ? newTransform(transformClassOption.value(options))
+                                : Function.identity();
+                final BulkByScrollResponse response = ClientReindex.doResumableReindex(client,
+                        sourceIndex, destinationIndex, transform, batchSizeOption.value(options),
+                        getNumberOfSlices(client, sourceIndex, slices),
+                        checkpointFileOption.value(options).toPath(),
+                        TimeValue.timeValueSeconds(checkpointIntervalOption.value(options)),
+                        sortFieldOption.value(options));
+                checkFailures(response, sourceIndex, destinationIndex);
+            } else if (options.has(transformClassOption)) {
+                final Function<Map<String, Object>, Map<String, Object>> transform = newTransform(
+                        transformClassOption.value(options));
+                final int writers = writersOption.value(options);
+                checkFailures(ClientReindex.doReindex(client, sourceIndex, destinationIndex,
+                        transform, batchSizeOption.value(options), writers, writers * 2,
+                        sortFieldOption.value(options)), sourceIndex, destinationIndex);
+            } else {
+                final int numberOfSlices = getNumberOfSlices(client, sourceIndex, slices);
+                ReindexThrottleController throttle = null;
+                if (options.has(throttleMaxOption)) {
+                    throttle = new ReindexThrottleController(client,
+                            throttleMinOption.value(options), throttleMaxOption.value(options),
+                            throttleSearchLatencyOption.value(options));
+                }
+                checkResult(doReindex(client, sourceIndex, destinationIndex, script,
+                        numberOfSlices, throttle), sourceIndex, destinationIndex);
+            }
+        } finally {
+            metrics.close();
+        }
+    }
+
+    /**
+     * Print the summary of a client reindex, and fail if any documents were
+     * not written, so that the program exits with an error.
+     *
+     * @param response
+     *            The {@link BulkByScrollResponse} from {@link ClientReindex}.
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @throws IOException
+     *             If any documents failed.
+     */
+    static void checkFailures(final BulkByScrollResponse response, final String sourceIndex,
+            final String destinationIndex) throws IOException {
+        System.out.println(response);
+        if (!response.getBulkFailures().isEmpty()) {
+            throw new IOException("Client reindex from " + sourceIndex + " to "
+                    + destinationIndex + " failed for " + response.getBulkFailures().size()
+                    + " documents, the first failure was: "
+                    + response.getBulkFailures().get(0).getMessage());
+        }
+    }
+
+    /**
+     * Print the summary of a reindex in the cluster, and fail if it did not
+     * succeed, so that the program exits with an error.
+     *
+     * @param result
+     *            The {@link TaskResult} of the reindex task.
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @throws IOException
+     *             If the reindex did not succeed.
+     */
+    static void checkResult(final TaskResult result, final String sourceIndex,
+            final String destinationIndex) throws IOException {
+        System.out.println(result);
+        if (!result.isSuccessful()) {
+            throw new IOException("Reindex from " + sourceIndex + " to " + destinationIndex
+                    + " did not succeed: " + result
+                    + (result.getBulkFailures().isEmpty() ? ""
+                            : ", the first failure was: "
+                                    + result.getBulkFailures().get(0).getMessage()));
         }
     }
 
+    /**
+     * Create a new instance of the given transform class for use with
+     * {@link ClientReindex}.
+     *
+     * @param transformClassName
+     *            The name of a class with a public no-argument constructor that
+     *            implements {@link Function}.
+     * @return A new instance of the transform class.
+     * @throws ReflectiveOperationException
+     *             If the class could not be found or instantiated.
+     */
+    @SuppressWarnings("unchecked")
+    static Function<Map<String, Object>, Map<String, Object>> newTransform(
+            final String transformClassName) throws ReflectiveOperationException {
+        return Class.forName(transformClassName).asSubclass(Function.class)
+                .getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Get the number of slices to use for a reindex from the given source
+     * index.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param sourceIndex
+     *            The source index.
+     * @param slices
+     *            Either a positive number of slices, or {@link #AUTO_SLICES}
+     *            to use the number of shards in the source index.
+     * @return The number of slices to use.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static int getNumberOfSlices(final RestHighLevelClient client,
+            final String sourceIndex, final String slices)
+            throws IOException, InterruptedException {
+        if (!AUTO_SLICES.equalsIgnoreCase(slices)) {
+            final int numberOfSlices = Integer.parseInt(slices);
+            if (numberOfSlices < 1) {
+                throw new IllegalArgumentException(
+                        "Number of slices must be at least 1 or \"auto\": " + slices);
+            }
+            return numberOfSlices;
+        }
+
+        // Matches the Elasticsearch auto slicing by using the smallest
+        // number of shards over the matching source indices
+        final Map<String, ClusterIndexHealth> sourceIndexInfo = AlaElasticsearchUtils
+                .indexInfo(client, sourceIndex);
+        final int numberOfSlices = sourceIndexInfo.values().stream()
+                .mapToInt(ClusterIndexHealth::getNumberOfShards).min().orElse(1);
+        LOG.info("Using {} slices for reindex of {}", numberOfSlices, sourceIndex);
+        return numberOfSlices;
+    }
+
     /**
      * Reindex the given source index to the given destination index.
      *
@@ -93,18 +328,104 @@ public class Reindex {
      * @param destinationIndex
      *            The destination for the reindex.
      * @param script
+     * @return The {@link TaskResult} summarising the reindex.
      * @throws IOException
      *             If communication with the server had an issue.
      * @throws InterruptedException
      *             If waiting was interrupted.
      */
-    public static void doReindex(RestHighLevelClient client, String sourceIndex,
+    public static TaskResult doReindex(RestHighLevelClient client, String sourceIndex,
             String destinationIndex, Script script) throws IOException, InterruptedException {
-        final String taskId = Reindex.asyncReindex(client, sourceIndex, destinationIndex, script);
+        return doReindex(client, sourceIndex, destinationIndex, script, 1);
+    }
 
-        AlaElasticsearchUtils.waitForTask(client, taskId);
+    /**
+     * Reindex the given source index to the given destination index, using
+     * the given number of slices to run the reindex in parallel.
+     *
+     * @param client
+     *            The Elasticsearch {@link RestHighLevelClient} to use to
+     *            connect to the elasticsearch cluster.
+     * @param sourceIndex
+     *            The source for the reindex.
+     * @param destinationIndex
+     *            The destination for the reindex.
+     * @param script
+     *            The script to use to translate documents that are being
+     *            reindexed.
+     * @param slices
+     *            The number of slices to use for the reindex.
+     * @return The {@link TaskResult} summarising the reindex, aggregated over
+     *         all of the slices.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static TaskResult doReindex(RestHighLevelClient client, String sourceIndex,
+            String destinationIndex, Script script, int slices)
+            throws IOException, InterruptedException {
+        return doReindex(client, sourceIndex, destinationIndex, script, slices, null);
+    }
+
+    /**
+     * Reindex the given source index to the given destination index, using
+     * the given number of slices to run the reindex in parallel, and
+     * optionally throttling the reindex based on cluster pressure.
+     *
+     * @param client
+     *            The Elasticsearch {@link RestHighLevelClient} to use to
+     *            connect to the elasticsearch cluster.
+     * @param sourceIndex
+     *            The source for the reindex.
+     * @param destinationIndex
+     *            The destination for the reindex.
+     * @param script
+     *            The script to use to translate documents that are being
+     *            reindexed.
+     * @param slices
+     *            The number of slices to use for the reindex.
+     * @param throttle
+     *            The {@link ReindexThrottleController} to adjust the rate of
+     *            the reindex while it is running, or null to run the reindex
+     *            without throttling.
+     * @return The {@link TaskResult} summarising the reindex, aggregated over
+     *         all of the slices.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static TaskResult doReindex(RestHighLevelClient client, String sourceIndex,
+            String destinationIndex, Script script, int slices,
+            ReindexThrottleController throttle) throws IOException, InterruptedException {
+        final float requestsPerSecond = throttle == null ? Float.POSITIVE_INFINITY
+                : throttle.getRequestsPerSecond();
+        final String taskId = Reindex.asyncReindex(client, sourceIndex, destinationIndex, script,
+                slices, requestsPerSecond);
+
+        final TaskResult result;
+        if (throttle != null) {
+            throttle.start(taskId);
+        }
+        try {
+            result = AlaElasticsearchUtils.waitForTask(client, taskId);
+        } finally {
+            if (throttle != null) {
+                throttle.stop();
+            }
+        }
 
         AlaElasticsearchUtils.refresh(client, sourceIndex, destinationIndex);
+
+        if (result.isSuccessful()) {
+            LOG.info("Reindex from {} to {} with {} slices completed: {}", sourceIndex,
+                    destinationIndex, slices, result);
+        } else {
+            LOG.error("Reindex from {} to {} with {} slices did not succeed: {}", sourceIndex,
+                    destinationIndex, slices, result);
+        }
+        return result;
     }
 
     /**
@@ -126,6 +447,91 @@ public class Reindex {
      */
     public static String asyncReindex(final RestHighLevelClient client, final String sourceIndex,
             final String destinationIndex, Script script) throws IOException {
+        return asyncReindex(client, sourceIndex, destinationIndex, script, 1);
+    }
+
+    /**
+     * Asynchronously trigger a reindex of the given source index to the given
+     * destination index, using the given number of slices to run the reindex
+     * in parallel.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @param script
+     *            The script to use to translate documents that are being
+     *            reindexed.
+     * @param slices
+     *            The number of slices to use for the reindex. Each slice runs
+     *            as a child task of the returned task.
+     * @return The task ID of the parent reindex task that was asynchronously
+     *         run.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public static String asyncReindex(final RestHighLevelClient client, final String sourceIndex,
+            final String destinationIndex, Script script, int slices) throws IOException {
+        return asyncReindex(client, sourceIndex, destinationIndex, script, slices,
+                Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Asynchronously trigger a reindex of the given source index to the given
+     * destination index, using the given number of slices to run the reindex
+     * in parallel, at the given rate.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @param script
+     *            The script to use to translate documents that are being
+     *            reindexed.
+     * @param slices
+     *            The number of slices to use for the reindex. Each slice runs
+     *            as a child task of the returned task.
+     * @param requestsPerSecond
+     *            The initial requests per second for the reindex, or
+     *            {@link Float#POSITIVE_INFINITY} to not throttle the reindex.
+     * @return The task ID of the parent reindex task that was asynchronously
+     *         run.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    public static String asyncReindex(final RestHighLevelClient client, final String sourceIndex,
+            final String destinationIndex, Script script, int slices, float requestsPerSecond)
+            throws IOException {
+        return submitReindex(client, newReindexRequest(sourceIndex, destinationIndex, script,
+                slices, requestsPerSecond));
+    }
+
+    /**
+     * Create the {@link ReindexRequest} used to reindex the given source index
+     * to the given destination index, so that it can be further restricted,
+     * for example to a sample of the source documents.
+     *
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @param script
+     *            The script to use to translate documents that are being
+     *            reindexed.
+     * @param slices
+     *            The number of slices to use for the reindex.
+     * @param requestsPerSecond
+     *            The initial requests per second for the reindex, or
+     *            {@link Float#POSITIVE_INFINITY} to not throttle the reindex.
+     * @return A new {@link ReindexRequest}.
+     */
+    static ReindexRequest newReindexRequest(final String sourceIndex,
+            final String destinationIndex, final Script script, final int slices,
+            final float requestsPerSecond) {
         // Reference:
         // https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.10/java-rest-high-document-reindex.html
         final ReindexRequest reindexRequest = new ReindexRequest();
@@ -134,16 +540,32 @@ public class Reindex {
         reindexRequest.setDestVersionType(VersionType.EXTERNAL);
         reindexRequest.setDestOpType("index");
         reindexRequest.setRefresh(true);
+        reindexRequest.setSlices(slices);
+        reindexRequest.setRequestsPerSecond(requestsPerSecond);
 
         reindexRequest.setScript(script);
+        return reindexRequest;
+    }
 
-        // TODO: Very small fixed sample size while creating the algorithms
-        // reindexRequest.setMaxDocs(10);
-
-        final TaskSubmissionResponse reindexSubmission = client.submitReindexTask(reindexRequest,
-                RequestOptions.DEFAULT);
+    /**
+     * Asynchronously submit the given reindex request.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param reindexRequest
+     *            The {@link ReindexRequest} to submit.
+     * @return The task ID of the parent reindex task that was asynchronously
+     *         run.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    static String submitReindex(final RestHighLevelClient client,
+            final ReindexRequest reindexRequest) throws IOException {
+        final TaskSubmissionResponse reindexSubmission = ElasticsearchMetrics.getDefault().time(
+                Operation.REINDEX_SUBMIT,
+                () -> client.submitReindexTask(reindexRequest, RequestOptions.DEFAULT));
         final String taskId = reindexSubmission.getTask();
-        LOG.debug("Task created with id: {}", taskId);
+        LOG.debug("Task created with id: {} slices: {}", taskId, reindexRequest.getSlices());
         return taskId;
     }
 
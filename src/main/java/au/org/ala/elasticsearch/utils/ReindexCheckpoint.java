@@ -0,0 +1,357 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+
+/**
+ * The progress of a resumable reindex, recording for each slice the sort
+ * values of the last document that has been written to the destination, so
+ * that a reindex that was stopped can continue after it. The largest
+ * sequence number that the slices were split at is also recorded, so that a
+ * resumed reindex uses the same slices, along with the sequence number that
+ * every document changed after the reindex started is above, so that a
+ * resumed reindex can copy those documents again.
+ * <p>
+ * The checkpoint is kept in memory and written to a local JSON file by
+ * {@link #write(Path)}, which replaces the file atomically so that a crash
+ * while writing leaves the previous checkpoint in place.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public final class ReindexCheckpoint {
+
+    private final String sourceIndex;
+    private final String destinationIndex;
+    private final int slices;
+    private final String sortField;
+    private long maxSeqNo = SequenceNumbers.UNASSIGNED_SEQ_NO;
+    private long changedAfterSeqNo = SequenceNumbers.UNASSIGNED_SEQ_NO;
+    private final Object[][] searchAfter;
+    private final long[] documents;
+    private final boolean[] completed;
+
+    /**
+     * Create a new {@link ReindexCheckpoint} for a reindex that has not
+     * started.
+     *
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @param slices
+     *            The number of slices the source is read in.
+     */
+    public ReindexCheckpoint(final String sourceIndex, final String destinationIndex,
+            final int slices) {
+        this(sourceIndex, destinationIndex, slices, SearchHitSpliterator.DEFAULT_SORT_FIELD);
+    }
+
+    /**
+     * Create a new {@link ReindexCheckpoint} for a reindex that has not
+     * started.
+     *
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @param slices
+     *            The number of slices the source is read in.
+     * @param sortField
+     *            The field that the slices are sorted on.
+     */
+    public ReindexCheckpoint(final String sourceIndex, final String destinationIndex,
+            final int slices, final String sortField) {
+        if (slices < 1) {
+            throw new IllegalArgumentException("Number of slices must be at least 1: " + slices);
+        }
+        this.sourceIndex = Objects.requireNonNull(sourceIndex, "Source index must not be null");
+        this.destinationIndex = Objects.requireNonNull(destinationIndex,
+                "Destination index must not be null");
+        this.slices = slices;
+        this.sortField = Objects.requireNonNull(sortField, "Sort field must not be null");
+        this.searchAfter = new Object[slices][];
+        this.documents = new long[slices];
+        this.completed = new boolean[slices];
+    }
+
+    /**
+     * Read the checkpoint from the given file if it exists, or create a new
+     * checkpoint if it does not.
+     *
+     * @param checkpointFile
+     *            The checkpoint file.
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @param slices
+     *            The number of slices the source is read in.
+     * @return The checkpoint to resume from.
+     * @throws IOException
+     *             If the file could not be read, or is a checkpoint for a
+     *             different reindex or number of slices.
+     */
+    public static ReindexCheckpoint readOrCreate(final Path checkpointFile,
+            final String sourceIndex, final String destinationIndex, final int slices)
+            throws IOException {
+        return readOrCreate(checkpointFile, sourceIndex, destinationIndex, slices,
+                SearchHitSpliterator.DEFAULT_SORT_FIELD);
+    }
+
+    /**
+     * Read the checkpoint from the given file if it exists, or create a new
+     * checkpoint if it does not.
+     *
+     * @param checkpointFile
+     *            The checkpoint file.
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @param slices
+     *            The number of slices the source is read in.
+     * @param sortField
+     *            The field that the slices are sorted on.
+     * @return The checkpoint to resume from.
+     * @throws IOException
+     *             If the file could not be read, or is a checkpoint for a
+     *             different reindex, number of slices or sort field.
+     */
+    public static ReindexCheckpoint readOrCreate(final Path checkpointFile,
+            final String sourceIndex, final String destinationIndex, final int slices,
+            final String sortField) throws IOException {
+        final ReindexCheckpoint result = new ReindexCheckpoint(sourceIndex, destinationIndex,
+                slices, sortField);
+        if (!Files.exists(checkpointFile)) {
+            return result;
+        }
+        final Map<String, Object> content;
+        try (InputStream input = Files.newInputStream(checkpointFile);
+                XContentParser parser = XContentType.JSON.xContent().createParser(
+                        NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                        input);) {
+            content = parser.map();
+        }
+        if (!sourceIndex.equals(content.get("source"))
+                || !destinationIndex.equals(content.get("destination"))
+                || !(content.get("slices") instanceof Number)
+                || ((Number) content.get("slices")).intValue() != slices) {
+            throw new IOException("Checkpoint file " + checkpointFile + " is for "
+                    + content.get("source") + " -> " + content.get("destination") + " with "
+                    + content.get("slices") + " slices, not " + sourceIndex + " -> "
+                    + destinationIndex + " with " + slices + " slices");
+        }
+        // Checkpoints written before the sort field was recorded used the
+        // default
+        final Object checkpointSortField = content.getOrDefault("sort_field",
+                SearchHitSpliterator.DEFAULT_SORT_FIELD);
+        if (!sortField.equals(checkpointSortField)) {
+            throw new IOException("Checkpoint file " + checkpointFile + " is sorted on "
+                    + checkpointSortField + ", not " + sortField);
+        }
+        try {
+            if (content.containsKey("max_seq_no")) {
+                result.maxSeqNo = ((Number) content.get("max_seq_no")).longValue();
+            }
+            if (content.containsKey("changed_after_seq_no")) {
+                result.changedAfterSeqNo = ((Number) content.get("changed_after_seq_no"))
+                        .longValue();
+            }
+            final List<?> sliceCheckpoints = (List<?>) content.get("checkpoints");
+            for (int i = 0; i < slices; i++) {
+                final Map<?, ?> sliceCheckpoint = (Map<?, ?>) sliceCheckpoints.get(i);
+                final List<?> sliceSearchAfter = (List<?>) sliceCheckpoint.get("search_after");
+                result.searchAfter[i] = sliceSearchAfter == null ? null
+                        : sliceSearchAfter.toArray();
+                result.documents[i] = ((Number) sliceCheckpoint.get("documents")).longValue();
+                result.completed[i] = Boolean.TRUE.equals(sliceCheckpoint.get("completed"));
+            }
+        } catch (final ClassCastException | IndexOutOfBoundsException | NullPointerException e) {
+            throw new IOException("Checkpoint file " + checkpointFile + " is not valid", e);
+        }
+        return result;
+    }
+
+    public String getSourceIndex() {
+        return sourceIndex;
+    }
+
+    public String getDestinationIndex() {
+        return destinationIndex;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    public String getSortField() {
+        return sortField;
+    }
+
+    /**
+     * @return The largest sequence number used to split the source into
+     *         slices, or {@link SequenceNumbers#UNASSIGNED_SEQ_NO} if it has
+     *         not been set.
+     */
+    public synchronized long getMaxSeqNo() {
+        return maxSeqNo;
+    }
+
+    /**
+     * @param maxSeqNo
+     *            The largest sequence number used to split the source into
+     *            slices.
+     */
+    public synchronized void setMaxSeqNo(final long maxSeqNo) {
+        this.maxSeqNo = maxSeqNo;
+    }
+
+    /**
+     * @return The sequence number that every document changed since the
+     *         reindex started is above, or
+     *         {@link SequenceNumbers#UNASSIGNED_SEQ_NO} if it has not been
+     *         set.
+     */
+    public synchronized long getChangedAfterSeqNo() {
+        return changedAfterSeqNo;
+    }
+
+    /**
+     * @param changedAfterSeqNo
+     *            The sequence number that every document changed since the
+     *            reindex started is above.
+     */
+    public synchronized void setChangedAfterSeqNo(final long changedAfterSeqNo) {
+        this.changedAfterSeqNo = changedAfterSeqNo;
+    }
+
+    /**
+     * @param slice
+     *            The slice.
+     * @return The sort values of the last document in the slice that has been
+     *         written, or null if none have been written.
+     */
+    public synchronized Object[] getSearchAfter(final int slice) {
+        return searchAfter[slice] == null ? null : searchAfter[slice].clone();
+    }
+
+    /**
+     * @param slice
+     *            The slice.
+     * @return True if every document in the slice has been written.
+     */
+    public synchronized boolean isCompleted(final int slice) {
+        return completed[slice];
+    }
+
+    /**
+     * @return The number of documents that have been written over all of the
+     *         slices, including those written before resuming.
+     */
+    public synchronized long getDocuments() {
+        long result = 0L;
+        for (final long sliceDocuments : documents) {
+            result += sliceDocuments;
+        }
+        return result;
+    }
+
+    /**
+     * @return True if every slice has been completed.
+     */
+    public synchronized boolean isCompleted() {
+        for (final boolean sliceCompleted : completed) {
+            if (!sliceCompleted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record that a batch of documents up to and including the document with
+     * the given sort values has been written.
+     *
+     * @param slice
+     *            The slice.
+     * @param lastSearchAfter
+     *            The sort values of the last document in the batch.
+     * @param batchDocuments
+     *            The number of documents in the batch.
+     */
+    public synchronized void update(final int slice, final Object[] lastSearchAfter,
+            final long batchDocuments) {
+        searchAfter[slice] = lastSearchAfter.clone();
+        documents[slice] += batchDocuments;
+    }
+
+    /**
+     * Record that every document in the slice has been written.
+     *
+     * @param slice
+     *            The slice.
+     */
+    public synchronized void complete(final int slice) {
+        completed[slice] = true;
+    }
+
+    /**
+     * Write the checkpoint to the given file, replacing it atomically.
+     *
+     * @param checkpointFile
+     *            The checkpoint file.
+     * @throws IOException
+     *             If the file could not be written.
+     */
+    public void write(final Path checkpointFile) throws IOException {
+        final Path tempFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try (OutputStream output = Files.newOutputStream(tempFile);
+                XContentBuilder builder = XContentFactory.jsonBuilder(output);) {
+            builder.startObject();
+            builder.field("source", sourceIndex);
+            builder.field("destination", destinationIndex);
+            builder.field("slices", slices);
+            builder.field("sort_field", sortField);
+            synchronized (this) {
+                if (maxSeqNo != SequenceNumbers.UNASSIGNED_SEQ_NO) {
+                    builder.field("max_seq_no", maxSeqNo);
+                }
+                if (changedAfterSeqNo != SequenceNumbers.UNASSIGNED_SEQ_NO) {
+                    builder.field("changed_after_seq_no", changedAfterSeqNo);
+                }
+                builder.startArray("checkpoints");
+                for (int i = 0; i < slices; i++) {
+                    builder.startObject();
+                    if (searchAfter[i] != null) {
+                        builder.array("search_after", searchAfter[i]);
+                    }
+                    builder.field("documents", documents[i]);
+                    builder.field("completed", completed[i]);
+                    builder.endObject();
+                }
+                builder.endArray();
+            }
+            builder.endObject();
+        }
+        Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
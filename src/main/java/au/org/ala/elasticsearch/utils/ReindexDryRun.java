@@ -0,0 +1,395 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
+import org.elasticsearch.index.reindex.ReindexRequest;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+
+/**
+ * Estimates how long a reindex will take, and how large its destination will
+ * be, by reindexing a sample of the source into a temporary index.
+ * <p>
+ * The sample is chosen by searching the whole source for the IDs of the
+ * documents with the highest random_score, so that every source document is
+ * equally likely to be in the sample. Only those IDs are then reindexed, so
+ * that the time the reindex took measures indexing into the destination
+ * rather than the scan for the sample. The sample size is limited by the
+ * index.max_result_window setting of the source, which is 10000 by default.
+ * The temporary index is named after the destination, so that it is created
+ * from the same templates, and it is deleted afterwards. If the reindex fails
+ * or waiting is interrupted, the task is cancelled before the temporary index
+ * is deleted, so that it does not recreate it.
+ * <p>
+ * The throughput of a small sample does not include the cost of merges and
+ * refreshes on a large destination, so the estimated duration should be
+ * treated as a lower bound. The estimated size is for the primary shards
+ * before they are merged.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ReindexDryRun {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReindexDryRun.class);
+
+    private static final ElasticsearchMetrics METRICS = ElasticsearchMetrics.getDefault();
+
+    /**
+     * The default maximum number of documents to reindex for the sample.
+     */
+    public static final int DEFAULT_SAMPLE_SIZE = 10000;
+
+    static final String DRY_RUN_SUFFIX = "-dry-run-";
+
+    /**
+     * Reindex a sample of the source index into a temporary index and
+     * extrapolate the duration and size of reindexing all of it.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param sourceIndex
+     *            The source for the reindex.
+     * @param destinationIndex
+     *            The destination for the reindex, which is not modified.
+     * @param script
+     *            The script to use to translate documents that are being
+     *            reindexed, or null to copy them unchanged.
+     * @param slices
+     *            The number of slices to use for the reindex.
+     * @param sampleSize
+     *            The maximum number of documents to reindex, which must not
+     *            be more than the index.max_result_window of the source.
+     * @return The {@link Estimate} for the full reindex.
+     * @throws IOException
+     *             If communication with the server had an issue, or the
+     *             sample reindex did not succeed.
+     * @throws InterruptedException
+     *             If waiting was interrupted.
+     */
+    public static Estimate estimate(final RestHighLevelClient client, final String sourceIndex,
+            final String destinationIndex, final Script script, final int slices,
+            final int sampleSize) throws IOException, InterruptedException {
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("Sample size must be at least 1: " + sampleSize);
+        }
+        final long[] sourceStats = getPrimaryStats(client, sourceIndex);
+        if (sourceStats[0] == 0L) {
+            return new Estimate(0L, TimeValue.ZERO, 0L, 0L, sourceStats[0], sourceStats[1],
+                    0L);
+        }
+
+        final String[] sampleIds = getSampleIds(client, sourceIndex, sampleSize);
+        final String scratchIndex = destinationIndex + DRY_RUN_SUFFIX
+                + System.currentTimeMillis();
+        final ReindexRequest reindexRequest = Reindex.newReindexRequest(sourceIndex,
+                scratchIndex, script, slices, Float.POSITIVE_INFINITY);
+        reindexRequest.setSourceQuery(QueryBuilders.idsQuery().addIds(sampleIds));
+
+        String taskId = null;
+        Exception failure = null;
+        final TaskResult result;
+        final long[] scratchStats;
+        try {
+            taskId = Reindex.submitReindex(client, reindexRequest);
+            result = AlaElasticsearchUtils.waitForTask(client, taskId);
+            if (!result.isSuccessful()) {
+                throw new IOException("Sample reindex from " + sourceIndex + " to "
+                        + scratchIndex + " did not succeed: " + result);
+            }
+            AlaElasticsearchUtils.refresh(client, scratchIndex);
+            scratchStats = getPrimaryStats(client, scratchIndex);
+        } catch (final IOException | InterruptedException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            cleanUp(client, failure == null ? null : taskId, scratchIndex, failure);
+        }
+        LOG.info("Sample reindex from {} to {} completed: {}", sourceIndex, scratchIndex,
+                result);
+
+        final long written = result.getCreated() + result.getUpdated();
+        final long bytesPerDocument = scratchStats[0] == 0L ? 0L
+                : scratchStats[1] / scratchStats[0];
+        final long destinationDocuments = result.getTotal() == 0L ? 0L
+                : sourceStats[0] * written / result.getTotal();
+        return new Estimate(result.getTotal(), result.getTook(), bytesPerDocument,
+                destinationDocuments, sourceStats[0], sourceStats[1],
+                bytesPerDocument * destinationDocuments);
+    }
+
+    /**
+     * Get the IDs of a random sample of the source documents.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param sourceIndex
+     *            The source for the reindex.
+     * @param sampleSize
+     *            The maximum number of IDs to get.
+     * @return The IDs of the documents in the sample.
+     * @throws IOException
+     *             If communication with the server had an issue, or not all
+     *             of the shards were searched.
+     */
+    static String[] getSampleIds(final RestHighLevelClient client, final String sourceIndex,
+            final int sampleSize) throws IOException {
+        // The top hits by a random score are a sample from all of the shards,
+        // rather than the first documents in each of them
+        final SearchSourceBuilder sampleSource = new SearchSourceBuilder()
+                .query(QueryBuilders.functionScoreQuery(ScoreFunctionBuilders.randomFunction()
+                        .seed(ThreadLocalRandom.current().nextInt()).setField("_seq_no")))
+                .size(sampleSize).fetchSource(false).trackTotalHits(false);
+        final SearchResponse response = AlaElasticsearchUtils.search(client, sampleSource,
+                sourceIndex);
+        AlaElasticsearchUtils.checkComplete(response);
+        final SearchHit[] hits = response.getHits().getHits();
+        final String[] result = new String[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            result[i] = hits[i].getId();
+        }
+        return result;
+    }
+
+    /**
+     * Delete the temporary index after a sample reindex, cancelling the task
+     * first if the reindex failed, as it may still be running. Errors while
+     * cleaning up are added to the original failure rather than replacing it.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param taskId
+     *            The task to cancel, or null if it does not need to be
+     *            cancelled.
+     * @param scratchIndex
+     *            The temporary index to delete if it exists.
+     * @param failure
+     *            The exception that the sample reindex failed with, or null
+     *            if it succeeded.
+     * @throws IOException
+     *             If communication with the server had an issue and the
+     *             sample reindex succeeded.
+     */
+    private static void cleanUp(final RestHighLevelClient client, final String taskId,
+            final String scratchIndex, final Exception failure) throws IOException {
+        // The requests would fail immediately if the thread was interrupted,
+        // so clear the flag until they are done
+        final boolean interrupted = Thread.interrupted();
+        try {
+            if (taskId != null) {
+                AlaElasticsearchUtils.cancelTask(client, taskId);
+            }
+            // The temporary index is not created if the sample was empty
+            if (client.indices().exists(new GetIndexRequest(scratchIndex),
+                    RequestOptions.DEFAULT)) {
+                AlaElasticsearchUtils.deleteIndex(client, scratchIndex);
+            }
+        } catch (final IOException | RuntimeException e) {
+            if (failure == null) {
+                throw e;
+            }
+            failure.addSuppressed(e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Get the number of documents and the store size in bytes of the primary
+     * shards of the given indexes, summed over all of the indexes.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexNames
+     *            The index names or patterns.
+     * @return An array containing the number of documents followed by the
+     *         store size in bytes.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    static long[] getPrimaryStats(final RestHighLevelClient client, final String... indexNames)
+            throws IOException {
+        // The high level client does not expose the index stats API
+        final Request request = new Request("GET",
+                "/" + String.join(",", indexNames) + "/_stats/docs,store");
+        request.addParameter("filter_path",
+                "indices.*.primaries.docs.count,indices.*.primaries.store.size_in_bytes");
+        request.addParameter("expand_wildcards", "open");
+        request.addParameter("ignore_unavailable", "true");
+        request.addParameter("allow_no_indices", "true");
+        final Response response = METRICS.time(Operation.INDEX_STATS,
+                () -> client.getLowLevelClient().performRequest(request));
+
+        final long[] result = new long[2];
+        try (InputStream content = response.getEntity().getContent();
+                XContentParser parser = XContentType.JSON.xContent().createParser(
+                        NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                        content);) {
+            final Object indices = parser.map().get("indices");
+            if (!(indices instanceof Map)) {
+                // The filtered response is empty when no indexes matched
+                return result;
+            }
+            for (final Entry<?, ?> nextIndex : ((Map<?, ?>) indices).entrySet()) {
+                final Map<?, ?> primaries = (Map<?, ?>) ((Map<?, ?>) nextIndex.getValue())
+                        .get("primaries");
+                result[0] += ((Number) ((Map<?, ?>) primaries.get("docs")).get("count"))
+                        .longValue();
+                result[1] += ((Number) ((Map<?, ?>) primaries.get("store"))
+                        .get("size_in_bytes")).longValue();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The measurements from a sample reindex, and the duration and size of the
+     * full reindex extrapolated from them.
+     */
+    public static final class Estimate {
+
+        private final long sampleDocuments;
+        private final TimeValue sampleTook;
+        private final long bytesPerDocument;
+        private final long destinationDocuments;
+        private final long sourceDocuments;
+        private final long sourceBytes;
+        private final long destinationBytes;
+
+        Estimate(final long sampleDocuments, final TimeValue sampleTook,
+                final long bytesPerDocument, final long destinationDocuments,
+                final long sourceDocuments, final long sourceBytes,
+                final long destinationBytes) {
+            this.sampleDocuments = sampleDocuments;
+            this.sampleTook = sampleTook;
+            this.bytesPerDocument = bytesPerDocument;
+            this.destinationDocuments = destinationDocuments;
+            this.sourceDocuments = sourceDocuments;
+            this.sourceBytes = sourceBytes;
+            this.destinationBytes = destinationBytes;
+        }
+
+        /**
+         * @return The number of documents that were reindexed for the sample.
+         */
+        public long getSampleDocuments() {
+            return sampleDocuments;
+        }
+
+        /**
+         * @return The time that the sample reindex took.
+         */
+        public TimeValue getSampleTook() {
+            return sampleTook;
+        }
+
+        /**
+         * @return The number of documents reindexed per second for the
+         *         sample.
+         */
+        public double getDocumentsPerSecond() {
+            // Very small samples may report that they took no time
+            return sampleDocuments * 1000.0 / Math.max(1L, sampleTook.millis());
+        }
+
+        /**
+         * @return The average size in bytes of each document in the primary
+         *         shards of the sample.
+         */
+        public long getBytesPerDocument() {
+            return bytesPerDocument;
+        }
+
+        /**
+         * @return The number of documents in the primary shards of the source.
+         */
+        public long getSourceDocuments() {
+            return sourceDocuments;
+        }
+
+        /**
+         * @return The store size of the primary shards of the source.
+         */
+        public ByteSizeValue getSourceSize() {
+            return new ByteSizeValue(sourceBytes);
+        }
+
+        /**
+         * @return The estimated number of documents that the reindex will
+         *         write, excluding those that the script skips.
+         */
+        public long getEstimatedDestinationDocuments() {
+            return destinationDocuments;
+        }
+
+        /**
+         * @return The estimated time to reindex all of the source documents.
+         */
+        public TimeValue getEstimatedDuration() {
+            if (sampleDocuments == 0L) {
+                return TimeValue.ZERO;
+            }
+            return TimeValue.timeValueMillis(
+                    (long) Math.ceil(sourceDocuments * 1000.0 / getDocumentsPerSecond()));
+        }
+
+        /**
+         * @return The estimated store size of the primary shards of the
+         *         destination.
+         */
+        public ByteSizeValue getEstimatedDestinationSize() {
+            return new ByteSizeValue(destinationBytes);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder report = new StringBuilder();
+            report.append(String.format(Locale.ROOT, "%-22s %s%n", "sample_docs",
+                    sampleDocuments));
+            report.append(String.format(Locale.ROOT, "%-22s %s%n", "sample_took", sampleTook));
+            report.append(String.format(Locale.ROOT, "%-22s %.1f%n", "docs/s",
+                    getDocumentsPerSecond()));
+            report.append(String.format(Locale.ROOT, "%-22s %s%n", "bytes/doc",
+                    bytesPerDocument));
+            report.append(String.format(Locale.ROOT, "%-22s %s%n", "source_docs",
+                    sourceDocuments));
+            report.append(String.format(Locale.ROOT, "%-22s %s%n", "source_size",
+                    getSourceSize()));
+            report.append(String.format(Locale.ROOT, "%-22s %s%n", "estimated_docs",
+                    destinationDocuments));
+            report.append(String.format(Locale.ROOT, "%-22s %s%n", "estimated_duration",
+                    getEstimatedDuration()));
+            report.append(String.format(Locale.ROOT, "%-22s %s%n", "estimated_size",
+                    getEstimatedDestinationSize()));
+            return report.toString();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+
+/**
+ * A single reindex to be run by a {@link ReindexScheduler}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public final class ReindexJob {
+
+    private final String sourceIndex;
+    private final String destinationIndex;
+    private final Script script;
+    private final String slices;
+    private final int priority;
+
+    /**
+     * Create a new {@link ReindexJob}.
+     *
+     * @param sourceIndex
+     *            The source index.
+     * @param destinationIndex
+     *            The destination index.
+     * @param script
+     *            The script to use to translate documents that are being
+     *            reindexed, or null to copy them unchanged.
+     * @param slices
+     *            Either a positive number of slices, or
+     *            {@link Reindex#AUTO_SLICES} to use the number of shards in
+     *            the source index.
+     * @param priority
+     *            The priority of the job. Jobs with higher priorities are
+     *            started first.
+     */
+    public ReindexJob(final String sourceIndex, final String destinationIndex,
+            final Script script, final String slices, final int priority) {
+        this.sourceIndex = Objects.requireNonNull(sourceIndex, "Source index must not be null");
+        this.destinationIndex = Objects.requireNonNull(destinationIndex,
+                "Destination index must not be null");
+        this.script = script;
+        this.slices = Objects.requireNonNull(slices, "Slices must not be null");
+        this.priority = priority;
+    }
+
+    public String getSourceIndex() {
+        return sourceIndex;
+    }
+
+    public String getDestinationIndex() {
+        return destinationIndex;
+    }
+
+    public Script getScript() {
+        return script;
+    }
+
+    public String getSlices() {
+        return slices;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Read a list of jobs from a JSON file containing an array of objects
+     * with the fields {@code source}, {@code destination}, and optionally
+     * {@code script} (the source of an inline painless script),
+     * {@code slices} (a number or {@code "auto"}, defaulting to 1) and
+     * {@code priority} (defaulting to 0).
+     *
+     * @param jobsFile
+     *            The file to read.
+     * @return The jobs in the order they appear in the file.
+     * @throws IOException
+     *             If the file could not be read or was not valid.
+     */
+    public static List<ReindexJob> readJobs(final Path jobsFile) throws IOException {
+        try (InputStream content = Files.newInputStream(jobsFile);
+                XContentParser parser = XContentType.JSON.xContent().createParser(
+                        NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                        content);) {
+            final List<ReindexJob> result = new ArrayList<>();
+            for (final Object nextJob : parser.list()) {
+                if (!(nextJob instanceof Map)) {
+                    throw new IOException("Reindex jobs must be JSON objects: " + nextJob);
+                }
+                result.add(fromMap((Map<?, ?>) nextJob));
+            }
+            return result;
+        }
+    }
+
+    private static ReindexJob fromMap(final Map<?, ?> job) throws IOException {
+        final Object source = job.get("source");
+        final Object destination = job.get("destination");
+        if (source == null || destination == null) {
+            throw new IOException("Reindex jobs must have a source and destination: " + job);
+        }
+        final Object scriptSource = job.get("script");
+        final Script script = scriptSource == null ? null
+                : new Script(ScriptType.INLINE, "painless", scriptSource.toString(),
+                        Collections.emptyMap());
+        final Object slices = job.get("slices");
+        final Object priority = job.get("priority");
+        try {
+            return new ReindexJob(source.toString(), destination.toString(), script,
+                    slices == null ? "1" : slices.toString(),
+                    priority == null ? 0 : ((Number) priority).intValue());
+        } catch (final ClassCastException e) {
+            throw new IOException("Reindex job priority must be a number: " + job, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return sourceIndex + " -> " + destinationIndex;
+    }
+}
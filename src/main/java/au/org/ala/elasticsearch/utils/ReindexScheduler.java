@@ -0,0 +1,398 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.org.ala.elasticsearch.utils.ReindexThrottleController.NodeStats;
+
+/**
+ * Runs many {@link ReindexJob}s concurrently as server side reindex tasks,
+ * within a budget for the total number of slices running in the cluster.
+ * <p>
+ * Jobs are started in order of priority, and then in the order they were
+ * given. A job is only started if its slices fit within the budget, unless no
+ * other jobs are running, and if the cluster is not under load. The cluster
+ * is treated as under load if the write or search thread pools rejected
+ * requests since the last check, or the write thread pool queues are longer
+ * than the configured maximum. Completed tasks are waited for without
+ * blocking a thread for each job.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ReindexScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReindexScheduler.class);
+
+    /**
+     * The default maximum number of slices to run at the same time over all
+     * of the jobs.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_SLICES = 8;
+
+    /**
+     * The default maximum number of tasks waiting in the write thread pool
+     * queues, over all of the nodes, before new jobs are held back.
+     */
+    public static final long DEFAULT_MAX_WRITE_QUEUE = 200L;
+
+    /**
+     * The default interval between checks of the cluster load while jobs are
+     * being held back.
+     */
+    public static final TimeValue DEFAULT_LOAD_CHECK_INTERVAL = TimeValue.timeValueSeconds(5);
+
+    private final RestHighLevelClient client;
+    private final int maxInFlightSlices;
+    private final long maxWriteQueue;
+    private final TimeValue loadCheckInterval;
+
+    private long lastRejected = -1L;
+
+    /**
+     * Create a new {@link ReindexScheduler} using the default load limits.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param maxInFlightSlices
+     *            The maximum number of slices to run at the same time over all
+     *            of the jobs.
+     */
+    public ReindexScheduler(final RestHighLevelClient client, final int maxInFlightSlices) {
+        this(client, maxInFlightSlices, DEFAULT_MAX_WRITE_QUEUE, DEFAULT_LOAD_CHECK_INTERVAL);
+    }
+
+    /**
+     * Create a new {@link ReindexScheduler}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param maxInFlightSlices
+     *            The maximum number of slices to run at the same time over all
+     *            of the jobs.
+     * @param maxWriteQueue
+     *            The maximum number of tasks waiting in the write thread pool
+     *            queues before new jobs are held back.
+     * @param loadCheckInterval
+     *            The interval between checks of the cluster load while jobs
+     *            are being held back.
+     */
+    public ReindexScheduler(final RestHighLevelClient client, final int maxInFlightSlices,
+            final long maxWriteQueue, final TimeValue loadCheckInterval) {
+        if (maxInFlightSlices < 1) {
+            throw new IllegalArgumentException(
+                    "Maximum in flight slices must be at least 1: " + maxInFlightSlices);
+        }
+        this.client = client;
+        this.maxInFlightSlices = maxInFlightSlices;
+        this.maxWriteQueue = maxWriteQueue;
+        this.loadCheckInterval = loadCheckInterval;
+    }
+
+    /**
+     * Run all of the given jobs, returning when they have all finished.
+     *
+     * @param jobs
+     *            The jobs to run.
+     * @return A {@link Report} containing the result of each job in the order
+     *         they finished.
+     * @throws InterruptedException
+     *             If waiting was interrupted. Tasks that were already
+     *             started continue to run in the cluster.
+     */
+    public Report run(final Collection<ReindexJob> jobs) throws InterruptedException {
+        final long startNanos = System.nanoTime();
+        final PriorityQueue<QueuedJob> queue = new PriorityQueue<>(
+                Comparator.comparingInt((QueuedJob job) -> job.job.getPriority()).reversed()
+                        .thenComparingLong(job -> job.sequence));
+        final List<JobResult> results = new ArrayList<>();
+        long sequence = 0L;
+        for (final ReindexJob job : jobs) {
+            try {
+                final int slices = Reindex.getNumberOfSlices(client, job.getSourceIndex(),
+                        job.getSlices());
+                queue.add(new QueuedJob(job, slices, sequence++, startNanos));
+            } catch (final IOException | RuntimeException e) {
+                LOG.error("Could not queue reindex {}", job, e);
+                results.add(new JobResult(job, 0, null, null, e, startNanos, startNanos,
+                        startNanos));
+            }
+        }
+        final int total = queue.size() + results.size();
+
+        final BlockingQueue<JobResult> completed = new LinkedBlockingQueue<>();
+        final List<CompletableFuture<?>> waits = new ArrayList<>();
+        int running = 0;
+        int inFlightSlices = 0;
+        try {
+            while (!queue.isEmpty() || running > 0) {
+                boolean loadChecked = false;
+                while (!queue.isEmpty()) {
+                    final QueuedJob next = queue.peek();
+                    if (running > 0 && inFlightSlices + next.slices > maxInFlightSlices) {
+                        break;
+                    }
+                    if (!loadChecked) {
+                        if (isClusterUnderLoad()) {
+                            break;
+                        }
+                        loadChecked = true;
+                    }
+                    queue.poll();
+                    waits.add(start(next, completed));
+                    running++;
+                    inFlightSlices += next.slices;
+                }
+
+                final JobResult result = completed.poll(loadCheckInterval.millis(),
+                        TimeUnit.MILLISECONDS);
+                if (result != null) {
+                    running--;
+                    inFlightSlices -= result.getSlices();
+                    results.add(result);
+                    logProgress(result, results.size(), total, running, queue.size());
+                }
+            }
+        } finally {
+            if (running > 0) {
+                LOG.warn("Stopped waiting for {} running reindex jobs", running);
+                for (final CompletableFuture<?> wait : waits) {
+                    wait.cancel(false);
+                }
+            }
+        }
+        return new Report(results, TimeValue.timeValueNanos(System.nanoTime() - startNanos));
+    }
+
+    private CompletableFuture<?> start(final QueuedJob queued,
+            final BlockingQueue<JobResult> completed) {
+        final ReindexJob job = queued.job;
+        final long startNanos = System.nanoTime();
+        final String taskId;
+        try {
+            taskId = Reindex.asyncReindex(client, job.getSourceIndex(), job.getDestinationIndex(),
+                    job.getScript(), queued.slices);
+        } catch (final IOException | RuntimeException e) {
+            LOG.error("Could not start reindex {}", job, e);
+            completed.add(new JobResult(job, queued.slices, null, null, e, queued.queuedNanos,
+                    startNanos, System.nanoTime()));
+            return CompletableFuture.completedFuture(null);
+        }
+        LOG.info("Started reindex {} with {} slices as task {}", job, queued.slices, taskId);
+
+        return AsyncAlaElasticsearchUtils.waitForTask(client, taskId)
+                .thenCompose(result -> AsyncAlaElasticsearchUtils
+                        .refresh(client, job.getSourceIndex(), job.getDestinationIndex())
+                        .thenApply(refreshed -> result))
+                .whenComplete((result, e) -> completed.add(new JobResult(job, queued.slices,
+                        taskId, result, e, queued.queuedNanos, startNanos, System.nanoTime())));
+    }
+
+    /**
+     * @return True if the cluster rejected requests since the last check, or
+     *         the write queues are too long, and false otherwise.
+     */
+    private boolean isClusterUnderLoad() {
+        final NodeStats stats;
+        try {
+            stats = ReindexThrottleController.getNodeStats(client);
+        } catch (final IOException e) {
+            // Do not hold back jobs forever if the statistics are unavailable
+            LOG.warn("Failed to check cluster load, starting jobs anyway", e);
+            return false;
+        }
+        final boolean newRejections = lastRejected >= 0L && stats.rejected > lastRejected;
+        lastRejected = stats.rejected;
+        if (newRejections || stats.writeQueue > maxWriteQueue) {
+            LOG.info("Holding back reindex jobs: new rejections={} write queue={}",
+                    newRejections, stats.writeQueue);
+            return true;
+        }
+        return false;
+    }
+
+    private static void logProgress(final JobResult result, final int finished, final int total,
+            final int running, final int queued) {
+        if (result.isSuccessful()) {
+            LOG.info("Reindex {} completed in {} ({}/{} finished, {} running, {} queued): {}",
+                    result.getJob(), result.getRunTime(), finished, total, running, queued,
+                    result.getResult().get());
+        } else {
+            LOG.error("Reindex {} did not succeed in {} ({}/{} finished, {} running, {} queued): {}",
+                    result.getJob(), result.getRunTime(), finished, total, running, queued,
+                    result.getResult().map(Object::toString)
+                            .orElseGet(() -> String.valueOf(result.getFailure().orElse(null))));
+        }
+    }
+
+    private static final class QueuedJob {
+        private final ReindexJob job;
+        private final int slices;
+        private final long sequence;
+        private final long queuedNanos;
+
+        private QueuedJob(final ReindexJob job, final int slices, final long sequence,
+                final long queuedNanos) {
+            this.job = job;
+            this.slices = slices;
+            this.sequence = sequence;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+
+    /**
+     * The outcome and timing of a single {@link ReindexJob}.
+     */
+    public static final class JobResult {
+        private final ReindexJob job;
+        private final int slices;
+        private final String taskId;
+        private final TaskResult result;
+        private final Throwable failure;
+        private final long queuedNanos;
+        private final long startNanos;
+        private final long endNanos;
+
+        JobResult(final ReindexJob job, final int slices, final String taskId,
+                final TaskResult result, final Throwable failure, final long queuedNanos,
+                final long startNanos, final long endNanos) {
+            this.job = job;
+            this.slices = slices;
+            this.taskId = taskId;
+            this.result = result;
+            this.failure = failure;
+            this.queuedNanos = queuedNanos;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+        }
+
+        public ReindexJob getJob() {
+            return job;
+        }
+
+        public int getSlices() {
+            return slices;
+        }
+
+        public Optional<String> getTaskId() {
+            return Optional.ofNullable(taskId);
+        }
+
+        public Optional<TaskResult> getResult() {
+            return Optional.ofNullable(result);
+        }
+
+        public Optional<Throwable> getFailure() {
+            return Optional.ofNullable(failure);
+        }
+
+        /**
+         * @return The time the job waited in the queue before it was started.
+         */
+        public TimeValue getQueuedTime() {
+            return TimeValue.timeValueNanos(startNanos - queuedNanos);
+        }
+
+        /**
+         * @return The time from starting the job until its task completed and
+         *         the indexes were refreshed.
+         */
+        public TimeValue getRunTime() {
+            return TimeValue.timeValueNanos(endNanos - startNanos);
+        }
+
+        public boolean isSuccessful() {
+            return failure == null && result != null && result.isSuccessful();
+        }
+    }
+
+    /**
+     * The results of all of the jobs given to
+     * {@link ReindexScheduler#run(Collection)}.
+     */
+    public static final class Report {
+        private final List<JobResult> results;
+        private final TimeValue wallClock;
+
+        Report(final List<JobResult> results, final TimeValue wallClock) {
+            this.results = Collections.unmodifiableList(results);
+            this.wallClock = wallClock;
+        }
+
+        /**
+         * @return The result of each job, in the order they finished.
+         */
+        public List<JobResult> getResults() {
+            return results;
+        }
+
+        /**
+         * @return The time taken to run all of the jobs.
+         */
+        public TimeValue getWallClock() {
+            return wallClock;
+        }
+
+        /**
+         * @return True if every job succeeded, and false otherwise.
+         */
+        public boolean isSuccessful() {
+            return results.stream().allMatch(JobResult::isSuccessful);
+        }
+
+        /**
+         * @return A table of the outcome and timing of each job, followed by
+         *         the totals over all of the jobs.
+         */
+        @Override
+        public String toString() {
+            final StringBuilder report = new StringBuilder();
+            report.append(String.format(Locale.ROOT, "%-8s %-9s %6s %10s %10s %10s %8s %10s  %s%n",
+                    "priority", "status", "slices", "queued_s", "run_s", "total", "failed",
+                    "docs/s", "job"));
+            long totalRunNanos = 0L;
+            long totalDocuments = 0L;
+            int succeeded = 0;
+            for (final JobResult result : results) {
+                final long runNanos = result.endNanos - result.startNanos;
+                final long documents = result.getResult().map(TaskResult::getTotal).orElse(0L);
+                totalRunNanos += runNanos;
+                totalDocuments += documents;
+                if (result.isSuccessful()) {
+                    succeeded++;
+                }
+                report.append(String.format(Locale.ROOT,
+                        "%-8d %-9s %6d %10.1f %10.1f %10d %8d %10.0f  %s%n",
+                        result.getJob().getPriority(),
+                        result.isSuccessful() ? "succeeded" : "failed", result.getSlices(),
+                        result.getQueuedTime().secondsFrac(), runNanos / 1e9, documents,
+                        result.getResult().map(TaskResult::getFailed).orElse(0L),
+                        runNanos > 0L ? documents * 1e9 / runNanos : 0.0, result.getJob()));
+            }
+            report.append(String.format(Locale.ROOT,
+                    "%d of %d jobs succeeded, %d documents in %.1fs wall clock, %.1fs total job time (%.1fx concurrency)%n",
+                    succeeded, results.size(), totalDocuments, wallClock.secondsFrac(),
+                    totalRunNanos / 1e9,
+                    wallClock.nanos() > 0L ? (double) totalRunNanos / wallClock.nanos() : 0.0));
+            return report.toString();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.RethrottleRequest;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.tasks.TaskId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the requests per second of a running reindex task based on the
+ * pressure it is putting on the cluster.
+ * <p>
+ * Each interval the node statistics are checked. If the write or search
+ * thread pools rejected any requests, or the average search latency exceeded
+ * the target, the rate is halved. Otherwise it is increased additively. The
+ * rate always stays within the configured minimum and maximum.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ReindexThrottleController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReindexThrottleController.class);
+
+    /**
+     * The default interval between adjustments.
+     */
+    public static final TimeValue DEFAULT_INTERVAL = TimeValue.timeValueSeconds(10);
+
+    /**
+     * The factor applied to the rate when the cluster is under pressure.
+     */
+    private static final float DECREASE_FACTOR = 0.5f;
+
+    /**
+     * The number of additive steps to go from the minimum to the maximum rate.
+     */
+    private static final int INCREASE_STEPS = 10;
+
+    private final RestHighLevelClient client;
+    private final float minRequestsPerSecond;
+    private final float maxRequestsPerSecond;
+    private final long targetSearchLatencyMillis;
+    private final TimeValue interval;
+
+    private volatile float requestsPerSecond;
+
+    private ScheduledExecutorService scheduler;
+    private String taskId;
+    private long lastRejected = -1L;
+    private long lastQueryTotal = -1L;
+    private long lastQueryTimeMillis = -1L;
+
+    /**
+     * Create a new {@link ReindexThrottleController} using the default
+     * interval.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param minRequestsPerSecond
+     *            The lowest rate the reindex will be throttled to.
+     * @param maxRequestsPerSecond
+     *            The highest rate the reindex will be allowed to run at, which
+     *            is also the rate it starts at.
+     * @param targetSearchLatencyMillis
+     *            The average search latency above which the reindex is
+     *            throttled.
+     */
+    public ReindexThrottleController(final RestHighLevelClient client,
+            final float minRequestsPerSecond, final float maxRequestsPerSecond,
+            final long targetSearchLatencyMillis) {
+        this(client, minRequestsPerSecond, maxRequestsPerSecond, targetSearchLatencyMillis,
+                DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Create a new {@link ReindexThrottleController}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param minRequestsPerSecond
+     *            The lowest rate the reindex will be throttled to.
+     * @param maxRequestsPerSecond
+     *            The highest rate the reindex will be allowed to run at, which
+     *            is also the rate it starts at.
+     * @param targetSearchLatencyMillis
+     *            The average search latency above which the reindex is
+     *            throttled.
+     * @param interval
+     *            The interval between checks of the cluster pressure.
+     */
+    public ReindexThrottleController(final RestHighLevelClient client,
+            final float minRequestsPerSecond, final float maxRequestsPerSecond,
+            final long targetSearchLatencyMillis, final TimeValue interval) {
+        if (minRequestsPerSecond <= 0 || maxRequestsPerSecond < minRequestsPerSecond
+                || Float.isInfinite(maxRequestsPerSecond)) {
+            throw new IllegalArgumentException("Invalid requests per second bounds: min="
+                    + minRequestsPerSecond + " max=" + maxRequestsPerSecond);
+        }
+        this.client = client;
+        this.minRequestsPerSecond = minRequestsPerSecond;
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+        this.targetSearchLatencyMillis = targetSearchLatencyMillis;
+        this.interval = interval;
+        this.requestsPerSecond = maxRequestsPerSecond;
+    }
+
+    /**
+     * @return The requests per second that the reindex should currently be
+     *         running at.
+     */
+    public float getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * Start adjusting the rate of the given task. The task should have been
+     * started using {@link #getRequestsPerSecond()} as its rate.
+     *
+     * @param taskId
+     *            The id of the reindex task to adjust.
+     */
+    public synchronized void start(final String taskId) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Throttle controller already started for " + taskId);
+        }
+        this.taskId = taskId;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "reindex-throttle-" + taskId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkPressure, 0, interval.getMillis(),
+                TimeUnit.MILLISECONDS);
+        LOG.info("Started throttling task {} between {} and {} requests per second", taskId,
+                minRequestsPerSecond, maxRequestsPerSecond);
+    }
+
+    /**
+     * Stop adjusting the rate of the task.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            LOG.info("Stopped throttling task {} at {} requests per second", taskId,
+                    requestsPerSecond);
+        }
+    }
+
+    private void checkPressure() {
+        try {
+            if (AlaElasticsearchUtils.getTaskResult(client, taskId).isCompleted()) {
+                LOG.debug("Task {} completed, no longer adjusting", taskId);
+                return;
+            }
+
+            final boolean underPressure = isUnderPressure();
+            final float nextRequestsPerSecond = nextRequestsPerSecond(requestsPerSecond,
+                    minRequestsPerSecond, maxRequestsPerSecond, underPressure);
+            if (nextRequestsPerSecond != requestsPerSecond) {
+                client.reindexRethrottle(
+                        new RethrottleRequest(new TaskId(taskId), nextRequestsPerSecond),
+                        RequestOptions.DEFAULT);
+                LOG.info("Rethrottled task {} from {} to {} requests per second (pressure={})",
+                        taskId, requestsPerSecond, nextRequestsPerSecond, underPressure);
+                requestsPerSecond = nextRequestsPerSecond;
+            }
+        } catch (final Exception e) {
+            // Keep the current rate and try again on the next interval
+            LOG.warn("Failed to check cluster pressure for task {}", taskId, e);
+        }
+    }
+
+    /**
+     * Checks the node statistics for thread pool rejections and search
+     * latency since the last check.
+     *
+     * @return True if the cluster is under pressure and false otherwise.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    private boolean isUnderPressure() throws IOException {
+        final NodeStats stats = getNodeStats(client);
+        final long rejected = stats.rejected;
+        final long queryTotal = stats.queryTotal;
+        final long queryTimeMillis = stats.queryTimeMillis;
+
+        boolean underPressure = false;
+        if (lastRejected >= 0L) {
+            final long newRejections = rejected - lastRejected;
+            final long newQueries = queryTotal - lastQueryTotal;
+            final long newQueryTimeMillis = queryTimeMillis - lastQueryTimeMillis;
+            final long averageLatencyMillis = newQueries > 0 ? newQueryTimeMillis / newQueries
+                    : 0L;
+            LOG.debug("Task {}: new rejections={} average search latency={}ms", taskId,
+                    newRejections, averageLatencyMillis);
+            underPressure = newRejections > 0 || averageLatencyMillis > targetSearchLatencyMillis;
+        }
+        lastRejected = rejected;
+        lastQueryTotal = queryTotal;
+        lastQueryTimeMillis = queryTimeMillis;
+        return underPressure;
+    }
+
+    /**
+     * Gets the thread pool and search statistics summed over all of the nodes.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @return The {@link NodeStats} for the cluster.
+     * @throws IOException
+     *             If communication with the server had an issue.
+     */
+    static NodeStats getNodeStats(final RestHighLevelClient client) throws IOException {
+        final Request request = new Request("GET", "/_nodes/stats/thread_pool,indices");
+        request.addParameter("filter_path",
+                "nodes.*.thread_pool.write.rejected,nodes.*.thread_pool.write.queue,nodes.*.thread_pool.search.rejected,nodes.*.indices.search.query_total,nodes.*.indices.search.query_time_in_millis");
+        final Response response = client.getLowLevelClient().performRequest(request);
+
+        final NodeStats stats = new NodeStats();
+        try (InputStream content = response.getEntity().getContent();
+                XContentParser parser = XContentType.JSON.xContent().createParser(
+                        NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                        content);) {
+            final Map<String, Object> nodes = getMap(parser.map(), "nodes");
+            for (final Object nextNode : nodes.values()) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> node = (Map<String, Object>) nextNode;
+                final Map<String, Object> threadPool = getMap(node, "thread_pool");
+                stats.rejected += getLong(getMap(threadPool, "write"), "rejected");
+                stats.rejected += getLong(getMap(threadPool, "search"), "rejected");
+                stats.writeQueue += getLong(getMap(threadPool, "write"), "queue");
+                final Map<String, Object> search = getMap(getMap(node, "indices"), "search");
+                stats.queryTotal += getLong(search, "query_total");
+                stats.queryTimeMillis += getLong(search, "query_time_in_millis");
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Thread pool and search statistics summed over all of the nodes.
+     */
+    static final class NodeStats {
+        /**
+         * The total write and search thread pool rejections.
+         */
+        long rejected;
+        /**
+         * The number of tasks waiting in the write thread pool queues.
+         */
+        long writeQueue;
+        long queryTotal;
+        long queryTimeMillis;
+    }
+
+    /**
+     * Calculates the next rate using additive increase and multiplicative
+     * decrease.
+     *
+     * @param current
+     *            The current rate.
+     * @param min
+     *            The minimum rate.
+     * @param max
+     *            The maximum rate.
+     * @param underPressure
+     *            True if the cluster is under pressure and false otherwise.
+     * @return The next rate, between the minimum and maximum.
+     */
+    static float nextRequestsPerSecond(final float current, final float min, final float max,
+            final boolean underPressure) {
+        if (underPressure) {
+            return Math.max(min, current * DECREASE_FACTOR);
+        } else {
+            return Math.min(max, current + Math.max((max - min) / INCREASE_STEPS, 1.0f));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> getMap(final Map<String, Object> map, final String key) {
+        final Object value = map == null ? null : map.get(key);
+        return value instanceof Map ? (Map<String, Object>) value : Map.of();
+    }
+
+    private static long getLong(final Map<String, Object> map, final String key) {
+        final Object value = map.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0L;
+    }
+}
@@ -0,0 +1,332 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+
+/**
+ * A {@link Spliterator} over all of the hits for a search, paging through them
+ * using a point in time and search_after.
+ * <p>
+ * Pages are fetched asynchronously, up to the given number of pages ahead of
+ * the page being consumed, so network and server time overlaps with the time
+ * spent processing hits. The point in time is closed when the last page has
+ * been consumed, or when {@link #close()} is called. The last page is the
+ * first empty page. A page missing the hits from failed or timed out shards
+ * stops the stream with an exception, so the results are never silently
+ * truncated.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SearchHitSpliterator extends Spliterators.AbstractSpliterator<SearchHit>
+        implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchHitSpliterator.class);
+
+    private static final ElasticsearchMetrics METRICS = ElasticsearchMetrics.getDefault();
+
+    /**
+     * The default time to keep the point in time alive between pages.
+     */
+    public static final TimeValue DEFAULT_KEEP_ALIVE = TimeValue.timeValueMinutes(5);
+
+    /**
+     * The field used to give a consistent total order for search_after when
+     * the search does not specify a sort.
+     * <p>
+     * The {@code _id} field does not have doc values, so sorting on it loads
+     * the ids of every document in each shard into fielddata on the heap,
+     * which can trip the fielddata circuit breaker on large indexes, and
+     * Elasticsearch 7.10 logs a deprecation warning for each search. Indexes
+     * that are read in full should instead have a copy of the id in a
+     * {@code keyword} field with doc values, which is given as the sort.
+     */
+    public static final String DEFAULT_SORT_FIELD = "_id";
+
+    private final RestHighLevelClient client;
+    private final SearchSourceBuilder searchSource;
+    private final int prefetchPages;
+    private final TimeValue keepAlive;
+    private final boolean ownsPointInTime;
+
+    private final Deque<SearchHit[]> bufferedPages = new ArrayDeque<>();
+
+    private String pitId;
+    private Object[] searchAfter;
+    private boolean fetchInFlight = false;
+    private boolean exhausted = false;
+    private boolean closed = false;
+    private Exception failure;
+
+    private SearchHit[] currentPage;
+    private int currentIndex;
+
+    /**
+     * Open a point in time on the given indexes and start fetching the first
+     * page.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param searchSource
+     *            The search to run. The size, point in time and search_after
+     *            are set for each page, and a sort on
+     *            {@link #DEFAULT_SORT_FIELD} is used if no sort is given. The
+     *            sort must give a total order over the hits.
+     * @param pageSize
+     *            The number of hits to fetch in each page.
+     * @param prefetchPages
+     *            The maximum number of pages to fetch ahead of the page being
+     *            consumed.
+     * @param keepAlive
+     *            The time to keep the point in time alive between pages.
+     * @param indexNames
+     *            The indexes to search.
+     * @throws IOException
+     *             If the point in time could not be opened.
+     */
+    public SearchHitSpliterator(final RestHighLevelClient client,
+            final SearchSourceBuilder searchSource, final int pageSize, final int prefetchPages,
+            final TimeValue keepAlive, final String... indexNames) throws IOException {
+        this(client, searchSource, pageSize, prefetchPages, keepAlive,
+                AlaElasticsearchUtils.openPointInTime(client, keepAlive, indexNames), true,
+                null);
+    }
+
+    /**
+     * Start fetching the first page using an existing point in time, such as
+     * one that is shared by the slices of a sliced search.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param searchSource
+     *            The search to run, as for the public constructor.
+     * @param pageSize
+     *            The number of hits to fetch in each page.
+     * @param prefetchPages
+     *            The maximum number of pages to fetch ahead of the page being
+     *            consumed.
+     * @param keepAlive
+     *            The time to keep the point in time alive between pages.
+     * @param pitId
+     *            The id of the point in time to search.
+     * @param ownsPointInTime
+     *            True to close the point in time when this spliterator is
+     *            closed, and false if the caller closes it.
+     * @param searchAfter
+     *            The sort values of the last hit that was already consumed, to
+     *            resume an earlier search, or null to start from the first
+     *            hit.
+     */
+    SearchHitSpliterator(final RestHighLevelClient client,
+            final SearchSourceBuilder searchSource, final int pageSize, final int prefetchPages,
+            final TimeValue keepAlive, final String pitId, final boolean ownsPointInTime,
+            final Object[] searchAfter) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        if (pageSize < 1 || prefetchPages < 1) {
+            throw new IllegalArgumentException("Page size and prefetch pages must be at least 1: "
+                    + pageSize + " " + prefetchPages);
+        }
+        this.client = client;
+        this.searchSource = searchSource.shallowCopy();
+        if (this.searchSource.sorts() == null || this.searchSource.sorts().isEmpty()) {
+            this.searchSource.sort(DEFAULT_SORT_FIELD, SortOrder.ASC);
+        }
+        this.searchSource.size(pageSize);
+        this.searchSource.trackTotalHits(false);
+        this.prefetchPages = prefetchPages;
+        this.keepAlive = keepAlive;
+        this.pitId = pitId;
+        this.ownsPointInTime = ownsPointInTime;
+        this.searchAfter = searchAfter;
+        maybeFetch();
+    }
+
+    /**
+     * Log a warning if the given sort field is {@code _id}, as described for
+     * {@link #DEFAULT_SORT_FIELD}.
+     *
+     * @param sortField
+     *            The field that a whole index is sorted on.
+     * @param indexName
+     *            The index that is sorted.
+     */
+    static void warnIfSortedOnId(final String sortField, final String indexName) {
+        if ("_id".equals(sortField)) {
+            LOG.warn("Sorting {} on _id loads every id into fielddata on the heap, which can "
+                    + "trip the fielddata circuit breaker on large indexes. Consider sorting "
+                    + "on a keyword copy of the id with doc values instead.", indexName);
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super SearchHit> action) {
+        if (currentPage == null || currentIndex >= currentPage.length) {
+            if (!nextPage()) {
+                return false;
+            }
+        }
+        action.accept(currentPage[currentIndex++]);
+        return true;
+    }
+
+    /**
+     * Wait for the next page to be available.
+     *
+     * @return True if there is a new current page and false if there are no
+     *         more pages.
+     */
+    private boolean nextPage() {
+        Exception pageFailure = null;
+        boolean finished = false;
+        // The point in time must be closed outside of the lock, as the
+        // asynchronous responses also need the lock
+        synchronized (this) {
+            maybeFetch();
+            while (bufferedPages.isEmpty() && !exhausted && failure == null && !closed) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pageFailure = new IOException("Interrupted while waiting for search page", e);
+                    break;
+                }
+            }
+            if (pageFailure == null && failure != null) {
+                pageFailure = failure;
+            } else if (pageFailure == null && bufferedPages.isEmpty()) {
+                finished = true;
+            } else if (pageFailure == null) {
+                currentPage = bufferedPages.poll();
+                currentIndex = 0;
+            }
+        }
+        if (pageFailure != null) {
+            close();
+            if (pageFailure instanceof ElasticsearchException) {
+                throw (ElasticsearchException) pageFailure;
+            } else if (pageFailure instanceof IOException) {
+                throw new UncheckedIOException((IOException) pageFailure);
+            }
+            throw new UncheckedIOException(new IOException(pageFailure));
+        }
+        if (finished) {
+            close();
+            return false;
+        }
+        // There is room for another page now
+        maybeFetch();
+        return true;
+    }
+
+    private synchronized void maybeFetch() {
+        if (fetchInFlight || exhausted || closed || failure != null
+                || bufferedPages.size() >= prefetchPages) {
+            return;
+        }
+        fetchInFlight = true;
+
+        final SearchSourceBuilder pageSource = searchSource.shallowCopy();
+        pageSource.pointInTimeBuilder(new PointInTimeBuilder(pitId).setKeepAlive(keepAlive));
+        if (searchAfter != null) {
+            pageSource.searchAfter(searchAfter);
+        }
+        final SearchRequest searchRequest = new SearchRequest().source(pageSource);
+        searchRequest.setCcsMinimizeRoundtrips(false);
+        final long startNanos = System.nanoTime();
+        client.searchAsync(searchRequest, RequestOptions.DEFAULT,
+                ActionListener.wrap(searchResponse -> {
+                    METRICS.record(Operation.SEARCH, startNanos, true);
+                    onPage(searchResponse);
+                }, e -> {
+                    METRICS.record(Operation.SEARCH, startNanos, false);
+                    onFailure(e);
+                }));
+    }
+
+    private void onPage(final SearchResponse searchResponse) {
+        synchronized (this) {
+            fetchInFlight = false;
+            if (closed) {
+                return;
+            }
+            if (searchResponse.pointInTimeId() != null) {
+                pitId = searchResponse.pointInTimeId();
+            }
+            try {
+                // A page missing the hits from some shards must not be
+                // mistaken for the last page
+                AlaElasticsearchUtils.checkComplete(searchResponse);
+            } catch (final IOException e) {
+                failure = e;
+                notifyAll();
+                return;
+            }
+            final SearchHit[] hits = searchResponse.getHits().getHits();
+            if (hits.length > 0) {
+                bufferedPages.add(hits);
+                searchAfter = hits[hits.length - 1].getSortValues();
+            } else {
+                exhausted = true;
+            }
+            notifyAll();
+        }
+        maybeFetch();
+    }
+
+    private synchronized void onFailure(final Exception e) {
+        fetchInFlight = false;
+        if (!closed) {
+            failure = e;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stop fetching pages and close the point in time.
+     */
+    @Override
+    public void close() {
+        final String pitIdToClose;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            bufferedPages.clear();
+            pitIdToClose = pitId;
+            notifyAll();
+        }
+        if (!ownsPointInTime) {
+            return;
+        }
+        try {
+            AlaElasticsearchUtils.closePointInTime(client, pitIdToClose);
+        } catch (final IOException e) {
+            // The point in time will expire after the keep alive
+            LOG.warn("Failed to close point in time", e);
+        }
+    }
+}
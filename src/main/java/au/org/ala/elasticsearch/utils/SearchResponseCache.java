@@ -0,0 +1,425 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation.Bucket;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches search responses, so that dashboards that send the same searches
+ * and aggregations many times between index refreshes do not send each of
+ * them to the cluster.
+ * <p>
+ * Entries are keyed by the sorted index names and a SHA-256 hash of the JSON
+ * of the {@link SearchSourceBuilder}. An entry is only used while the
+ * refresh counts of the indexes it searched are unchanged, as search results
+ * can only change when an index is refreshed, an index is added or an index
+ * is removed. The refresh counts for each set of indexes are fetched at most
+ * once per check interval, and shared by all of the entries for those
+ * indexes, so the check is a single small index stats request. Entries are
+ * also never used after the maximum staleness, in case a change is not
+ * reflected in the refresh counts. The least recently used entries are
+ * evicted when either the number of entries or their size exceeds the
+ * maximum. The size is estimated from the sources of the hits and the number
+ * of aggregations and buckets, without serialising the response.
+ * <p>
+ * Only complete responses are cached, so a response with failed shards, or
+ * that timed out or terminated early, is returned but searched again next
+ * time. Concurrent searches for the same source and indexes that miss the
+ * cache wait for a single search to the cluster and share its response.
+ * <p>
+ * The cached {@link SearchResponse} instances are shared between callers, so
+ * they must not be modified.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SearchResponseCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchResponseCache.class);
+
+    /**
+     * The default maximum number of searches to cache.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    /**
+     * The default maximum estimated size of the cached responses.
+     */
+    public static final ByteSizeValue DEFAULT_MAX_SIZE = new ByteSizeValue(64, ByteSizeUnit.MB);
+
+    /**
+     * The default time after which an entry is not used even if its indexes
+     * have not been refreshed.
+     */
+    public static final TimeValue DEFAULT_MAX_STALENESS = TimeValue.timeValueMinutes(5);
+
+    /**
+     * The default time that the refresh counts for a set of indexes are used
+     * before they are fetched again.
+     */
+    public static final TimeValue DEFAULT_CHECK_INTERVAL = TimeValue.timeValueSeconds(1);
+
+    /**
+     * The estimated size of the parts of a response that are not counted
+     * separately.
+     */
+    static final long RESPONSE_OVERHEAD = 256L;
+
+    /**
+     * The estimated size of each hit, excluding its source and ID.
+     */
+    static final long HIT_OVERHEAD = 128L;
+
+    /**
+     * The estimated size of each aggregation and bucket, excluding any
+     * sub-aggregations.
+     */
+    static final long AGGREGATION_OVERHEAD = 128L;
+
+    private final RestHighLevelClient client;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long maxStalenessNanos;
+    private final long checkIntervalNanos;
+
+    private final Map<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, RefreshState> refreshStates = new HashMap<>();
+    private final Map<String, CompletableFuture<SearchResponse>> loading = new HashMap<>();
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create a new {@link SearchResponseCache} using the default limits.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     */
+    public SearchResponseCache(final RestHighLevelClient client) {
+        this(client, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_SIZE, DEFAULT_MAX_STALENESS,
+                DEFAULT_CHECK_INTERVAL);
+    }
+
+    /**
+     * Create a new {@link SearchResponseCache}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param maxEntries
+     *            The maximum number of searches to cache.
+     * @param maxSize
+     *            The maximum estimated size of the cached responses. Responses
+     *            larger than this are not cached.
+     * @param maxStaleness
+     *            The time after which an entry is not used even if its indexes
+     *            have not been refreshed.
+     * @param checkInterval
+     *            The time that the refresh counts for a set of indexes are used
+     *            before they are fetched again. Changes to the indexes may not
+     *            be seen for up to this long.
+     */
+    public SearchResponseCache(final RestHighLevelClient client, final int maxEntries,
+            final ByteSizeValue maxSize, final TimeValue maxStaleness,
+            final TimeValue checkInterval) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Max entries must be at least 1: " + maxEntries);
+        }
+        this.client = client;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxSize.getBytes();
+        this.maxStalenessNanos = maxStaleness.nanos();
+        this.checkIntervalNanos = checkInterval.nanos();
+    }
+
+    /**
+     * Search the given indexes, using a cached response if the indexes have
+     * not been refreshed since it was cached.
+     *
+     * @param searchSourceBuilder
+     *            The query, aggregations and other options for the search.
+     * @param indexNames
+     *            The index names or patterns to search.
+     * @return The {@link SearchResponse}, which must not be modified.
+     * @throws IOException
+     *             If communication with the server had an issue, or waiting
+     *             for a concurrent search was interrupted.
+     */
+    public SearchResponse search(final SearchSourceBuilder searchSourceBuilder,
+            final String... indexNames) throws IOException {
+        final String indexKey = indexKey(indexNames);
+        final String key = indexKey + "/" + sourceHash(searchSourceBuilder);
+        final long now = System.nanoTime();
+        final CacheEntry existing;
+        synchronized (this) {
+            existing = entries.get(key);
+        }
+
+        // Check the refresh counts first, so a refresh during the search is
+        // found when the entry is next used
+        final Map<String, Long> refreshCounts = getRefreshCounts(indexKey, now, indexNames);
+        if (existing != null) {
+            if (now - existing.cachedAt < maxStalenessNanos
+                    && existing.refreshCounts.equals(refreshCounts)) {
+                hits.increment();
+                return existing.response;
+            }
+            LOG.debug("Indexes changed for {}", key);
+            invalidations.increment();
+            synchronized (this) {
+                if (entries.get(key) == existing) {
+                    remove(key);
+                }
+            }
+        }
+
+        final CompletableFuture<SearchResponse> loader = new CompletableFuture<>();
+        final CompletableFuture<SearchResponse> concurrent;
+        synchronized (this) {
+            concurrent = loading.putIfAbsent(key, loader);
+        }
+        if (concurrent != null) {
+            hits.increment();
+            return waitFor(key, concurrent);
+        }
+
+        misses.increment();
+        try {
+            final SearchResponse response = AlaElasticsearchUtils.search(client,
+                    searchSourceBuilder, indexNames);
+            if (isComplete(response)) {
+                final long size = estimateSize(response);
+                if (size <= maxBytes) {
+                    put(key, new CacheEntry(response, refreshCounts, size, now));
+                }
+            } else {
+                LOG.debug("Not caching incomplete response for {}", key);
+            }
+            loader.complete(response);
+            return response;
+        } catch (final IOException | RuntimeException e) {
+            loader.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                loading.remove(key, loader);
+            }
+        }
+    }
+
+    private static SearchResponse waitFor(final String key,
+            final CompletableFuture<SearchResponse> loader) throws IOException {
+        try {
+            return loader.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException interrupted = new InterruptedIOException(
+                    "Interrupted waiting for a concurrent search for " + key);
+            interrupted.initCause(e);
+            throw interrupted;
+        } catch (final ExecutionException e) {
+            throw new IOException("Concurrent search for " + key + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * Remove all of the entries.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        refreshStates.clear();
+        bytes = 0L;
+    }
+
+    /**
+     * @return The number of searches that were answered from the cache,
+     *         including those that waited for a concurrent search.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of searches that were sent to the cluster.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of entries that were removed because their indexes
+     *         changed or they were older than the maximum staleness.
+     */
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    /**
+     * @return The number of entries that were removed to stay within the
+     *         maximum number of entries or size.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The number of cached searches.
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return The estimated size in bytes of the cached responses.
+     */
+    public synchronized long getSizeInBytes() {
+        return bytes;
+    }
+
+    private Map<String, Long> getRefreshCounts(final String indexKey, final long now,
+            final String... indexNames) throws IOException {
+        synchronized (this) {
+            final RefreshState state = refreshStates.get(indexKey);
+            if (state != null && now - state.checkedAt < checkIntervalNanos) {
+                return state.refreshCounts;
+            }
+        }
+        final Map<String, Long> refreshCounts = AlaElasticsearchUtils.getRefreshCounts(client,
+                indexNames);
+        synchronized (this) {
+            refreshStates.put(indexKey, new RefreshState(refreshCounts, now));
+        }
+        return refreshCounts;
+    }
+
+    private synchronized void put(final String key, final CacheEntry entry) {
+        remove(key);
+        entries.put(key, entry);
+        bytes += entry.size;
+        // The eldest entry in access order is the least recently used
+        final Iterator<CacheEntry> iterator = entries.values().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= iterator.next().size;
+            iterator.remove();
+            evictions.increment();
+        }
+        // Refresh states older than the check interval are never used again
+        if (refreshStates.size() > maxEntries) {
+            final long now = System.nanoTime();
+            refreshStates.values().removeIf(state -> now - state.checkedAt >= checkIntervalNanos);
+        }
+    }
+
+    private void remove(final String key) {
+        final CacheEntry removed = entries.remove(key);
+        if (removed != null) {
+            bytes -= removed.size;
+        }
+    }
+
+    /**
+     * @param response
+     *            A {@link SearchResponse}.
+     * @return True if all of the shards were searched to completion, so that
+     *         the response can be reused.
+     */
+    static boolean isComplete(final SearchResponse response) {
+        return response.getFailedShards() == 0 && !response.isTimedOut()
+                && !Boolean.TRUE.equals(response.isTerminatedEarly());
+    }
+
+    /**
+     * @param response
+     *            A {@link SearchResponse}.
+     * @return The estimated size in bytes of the response.
+     */
+    static long estimateSize(final SearchResponse response) {
+        long size = RESPONSE_OVERHEAD;
+        for (final SearchHit hit : response.getHits().getHits()) {
+            size += HIT_OVERHEAD + (hit.getId() == null ? 0 : hit.getId().length());
+            if (hit.getSourceRef() != null) {
+                size += hit.getSourceRef().length();
+            }
+        }
+        return size + estimateSize(response.getAggregations());
+    }
+
+    private static long estimateSize(final Aggregations aggregations) {
+        if (aggregations == null) {
+            return 0L;
+        }
+        long size = 0L;
+        for (final Aggregation aggregation : aggregations) {
+            size += AGGREGATION_OVERHEAD;
+            if (aggregation instanceof MultiBucketsAggregation) {
+                for (final Bucket bucket : ((MultiBucketsAggregation) aggregation).getBuckets()) {
+                    size += AGGREGATION_OVERHEAD + estimateSize(bucket.getAggregations());
+                }
+            }
+        }
+        return size;
+    }
+
+    static String indexKey(final String... indexNames) {
+        final String[] sorted = indexNames.clone();
+        Arrays.sort(sorted);
+        return String.join(",", sorted);
+    }
+
+    static String sourceHash(final SearchSourceBuilder searchSourceBuilder) {
+        return MessageDigests.toHexString(MessageDigests.sha256()
+                .digest(searchSourceBuilder.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static final class CacheEntry {
+        private final SearchResponse response;
+        private final Map<String, Long> refreshCounts;
+        private final long size;
+        private final long cachedAt;
+
+        private CacheEntry(final SearchResponse response, final Map<String, Long> refreshCounts,
+                final long size, final long cachedAt) {
+            this.response = response;
+            this.refreshCounts = refreshCounts;
+            this.size = size;
+            this.cachedAt = cachedAt;
+        }
+    }
+
+    private static final class RefreshState {
+        private final Map<String, Long> refreshCounts;
+        private final long checkedAt;
+
+        private RefreshState(final Map<String, Long> refreshCounts, final long checkedAt) {
+            this.refreshCounts = refreshCounts;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Decodes the source of a document directly from a streaming
+ * {@link XContentParser} into a typed record, without first building a
+ * {@link java.util.Map} for the whole document.
+ * <p>
+ * The parser is positioned before the start of the source object, so the
+ * first call to {@link XContentParser#nextToken()} returns
+ * {@link XContentParser.Token#START_OBJECT}. Fields that are not needed can be
+ * skipped using {@link XContentParser#skipChildren()}.
+ *
+ * @param <T>
+ *            The type of record that is decoded.
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+@FunctionalInterface
+public interface SourceDecoder<T> {
+
+    /**
+     * Decode a record from the given parser.
+     *
+     * @param parser
+     *            The {@link XContentParser} over the source of a document.
+     * @return The decoded record.
+     * @throws IOException
+     *             If the source could not be parsed.
+     */
+    T decode(XContentParser parser) throws IOException;
+
+    /**
+     * Decode a record from the given source bytes.
+     *
+     * @param source
+     *            The source of a document, as returned by
+     *            {@link SearchHit#getSourceRef()} or
+     *            {@link org.elasticsearch.action.get.GetResponse#getSourceAsBytesRef()}.
+     * @return The decoded record.
+     * @throws IOException
+     *             If the source could not be parsed.
+     */
+    default T decode(final BytesReference source) throws IOException {
+        try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, source, XContentType.JSON);) {
+            return decode(parser);
+        }
+    }
+
+    /**
+     * Decode a record from the source of the given hit, for use in
+     * {@link java.util.stream.Stream#map(java.util.function.Function)}.
+     *
+     * @param hit
+     *            A {@link SearchHit} that includes its source.
+     * @return The decoded record.
+     * @throws UncheckedIOException
+     *             If the source could not be parsed.
+     * @throws IllegalArgumentException
+     *             If the hit does not include its source.
+     */
+    default T decodeHit(final SearchHit hit) {
+        final BytesReference source = hit.getSourceRef();
+        if (source == null) {
+            throw new IllegalArgumentException("Search hit did not include source: " + hit.getId());
+        }
+        try {
+            return decode(source);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,533 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.carrotsearch.hppc.LongIntHashMap;
+import com.carrotsearch.hppc.LongObjectHashMap;
+import com.carrotsearch.hppc.ObjectIntHashMap;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+
+/**
+ * Rolls up biocache-store statistics events per category, type and entity
+ * in fixed time windows before indexing them, so that one document is
+ * indexed for each key in each window instead of one for each event.
+ * <p>
+ * Each rolled up document has the fields from
+ * {@code example-biocache-store-template.json}, with the start of the window
+ * as its {@code @timestamp} and the sum of the values as its
+ * {@code biocache_store.statistics.long_value}. The number of events and the
+ * minimum and maximum values are added under
+ * {@code biocache_store.statistics.rollup}, so sums and counts over the rolled
+ * up documents match those over the original events.
+ * <p>
+ * The category, type and entity strings are interned to integer IDs, and the
+ * values are accumulated in primitive maps and arrays, so adding an event for
+ * a key that has already been seen in its window does not allocate. A window
+ * is flushed when an event arrives at least the allowed lateness after the end
+ * of the window, and the oldest windows are flushed early if the number of
+ * keys held in all of the open windows exceeds the maximum. Events that
+ * arrive for a window that has already been flushed start a new rollup for
+ * that window, which is indexed as a separate document.
+ * <p>
+ * Flushes send synchronous bulk requests while holding the lock, so threads
+ * adding events wait for the flush, which limits the memory used when the
+ * cluster is slower than the rate of events. Documents that are rejected by
+ * the cluster are retried with exponential backoff. Documents that still
+ * fail are dropped, as resending a partly indexed flush would duplicate the
+ * documents that were indexed, and the flush then fails with the number of
+ * documents that were dropped.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class StatisticsRollup implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StatisticsRollup.class);
+
+    private static final ElasticsearchMetrics METRICS = ElasticsearchMetrics.getDefault();
+
+    /**
+     * The default length of each window.
+     */
+    public static final TimeValue DEFAULT_WINDOW = TimeValue.timeValueMinutes(1);
+
+    /**
+     * The default time after the end of a window that events are still
+     * accumulated into it.
+     */
+    public static final TimeValue DEFAULT_ALLOWED_LATENESS = TimeValue.timeValueSeconds(30);
+
+    /**
+     * The default maximum number of keys held in all of the open windows.
+     */
+    public static final int DEFAULT_MAX_KEYS = 100_000;
+
+    /**
+     * The maximum number of rolled up documents in each bulk request.
+     */
+    static final int MAX_BULK_ACTIONS = 1000;
+
+    /**
+     * The maximum number of times a rejected bulk request or document is
+     * retried before it is dropped.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    static final TimeValue INITIAL_RETRY_BACKOFF = TimeValue.timeValueMillis(100);
+
+    static final TimeValue MAX_RETRY_BACKOFF = TimeValue.timeValueSeconds(10);
+
+    /**
+     * The number of bits used for each of the interned IDs in a key.
+     */
+    private static final int ID_BITS = 21;
+    private static final long ID_MASK = (1L << ID_BITS) - 1;
+
+    private final RestHighLevelClient client;
+    private final String indexName;
+    private final long windowMillis;
+    private final long allowedLatenessMillis;
+    private final int maxKeys;
+
+    private final ObjectIntHashMap<String> ids = new ObjectIntHashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final LongObjectHashMap<Window> windows = new LongObjectHashMap<>();
+    private Window lastWindow;
+    private long maxTimestamp = Long.MIN_VALUE;
+    private long nextCloseMillis = Long.MAX_VALUE;
+    private int keys;
+
+    private long events;
+    private long documents;
+    private long failed;
+    private boolean closed = false;
+
+    /**
+     * Create a new {@link StatisticsRollup} using the default window, allowed
+     * lateness and maximum number of keys.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexName
+     *            The index or alias to index the rolled up documents into.
+     */
+    public StatisticsRollup(final RestHighLevelClient client, final String indexName) {
+        this(client, indexName, DEFAULT_WINDOW, DEFAULT_ALLOWED_LATENESS, DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * Create a new {@link StatisticsRollup}.
+     *
+     * @param client
+     *            The {@link RestHighLevelClient} to use.
+     * @param indexName
+     *            The index or alias to index the rolled up documents into.
+     * @param window
+     *            The length of each window.
+     * @param allowedLateness
+     *            The time after the end of a window, measured using the
+     *            timestamps of the events, that events are still accumulated
+     *            into it.
+     * @param maxKeys
+     *            The maximum number of keys held in all of the open windows
+     *            before the oldest windows are flushed.
+     */
+    public StatisticsRollup(final RestHighLevelClient client, final String indexName,
+            final TimeValue window, final TimeValue allowedLateness, final int maxKeys) {
+        if (window.millis() < 1) {
+            throw new IllegalArgumentException("Window must be at least 1ms: " + window);
+        }
+        if (allowedLateness.millis() < 0) {
+            throw new IllegalArgumentException(
+                    "Allowed lateness must not be negative: " + allowedLateness);
+        }
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("Max keys must be at least 1: " + maxKeys);
+        }
+        this.client = client;
+        this.indexName = indexName;
+        this.windowMillis = window.millis();
+        this.allowedLatenessMillis = allowedLateness.millis();
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Add a statistics event.
+     *
+     * @param timestampMillis
+     *            The time of the event, in milliseconds since the epoch.
+     * @param category
+     *            The category of the statistic, or null if it does not have
+     *            one.
+     * @param type
+     *            The type of the statistic, or null if it does not have one.
+     * @param entity
+     *            The entity the statistic is for, or null if it does not have
+     *            one.
+     * @param value
+     *            The value of the statistic.
+     * @throws IOException
+     *             If a window was flushed and communication with the server had
+     *             an issue, or documents were dropped after being retried.
+     */
+    public synchronized void add(final long timestampMillis, final String category,
+            final String type, final String entity, final long value) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Statistics rollup has been closed");
+        }
+        final long key = ((long) intern(category) << (2 * ID_BITS))
+                | ((long) intern(type) << ID_BITS) | intern(entity);
+        final long windowStart = timestampMillis - Math.floorMod(timestampMillis, windowMillis);
+
+        Window window = lastWindow;
+        if (window == null || window.start != windowStart) {
+            window = windows.get(windowStart);
+            if (window == null) {
+                window = new Window(windowStart);
+                windows.put(windowStart, window);
+                nextCloseMillis = Math.min(nextCloseMillis, closeMillis(window));
+            }
+            lastWindow = window;
+        }
+        if (window.add(key, value)) {
+            keys++;
+        }
+        events++;
+
+        if (timestampMillis > maxTimestamp) {
+            maxTimestamp = timestampMillis;
+            if (maxTimestamp >= nextCloseMillis) {
+                flushClosedWindows();
+            }
+        }
+        while (keys > maxKeys) {
+            LOG.debug("Flushing oldest window early as {} keys are held", keys);
+            flushWindows(List.of(oldestWindow()));
+        }
+    }
+
+    /**
+     * Index the rolled up documents for all of the open windows, even if
+     * they have not ended yet.
+     *
+     * @throws IOException
+     *             If communication with the server had an issue, or documents
+     *             were dropped after being retried.
+     */
+    public synchronized void flush() throws IOException {
+        final List<Window> toFlush = new ArrayList<>(windows.size());
+        for (final LongObjectCursor<Window> cursor : windows) {
+            toFlush.add(cursor.value);
+        }
+        toFlush.sort((a, b) -> Long.compare(a.start, b.start));
+        flushWindows(toFlush);
+    }
+
+    /**
+     * Flush all of the open windows and stop accepting new events.
+     *
+     * @throws IOException
+     *             If communication with the server had an issue, or documents
+     *             were dropped after being retried.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flush();
+    }
+
+    /**
+     * @return The number of events that have been added.
+     */
+    public synchronized long getEventCount() {
+        return events;
+    }
+
+    /**
+     * @return The number of rolled up documents that have been indexed.
+     */
+    public synchronized long getDocumentCount() {
+        return documents;
+    }
+
+    /**
+     * @return The number of rolled up documents that were dropped as they
+     *         failed to be indexed after being retried.
+     */
+    public synchronized long getFailedCount() {
+        return failed;
+    }
+
+    /**
+     * @return The number of keys held in all of the open windows.
+     */
+    public synchronized int getOpenKeyCount() {
+        return keys;
+    }
+
+    private int intern(final String name) {
+        final int slot = ids.indexOf(name);
+        if (ids.indexExists(slot)) {
+            return ids.indexGet(slot);
+        }
+        final int id = names.size();
+        if (id > ID_MASK) {
+            throw new IllegalStateException(
+                    "Too many distinct statistics names to roll up: " + id);
+        }
+        names.add(name);
+        ids.indexInsert(slot, name, id);
+        return id;
+    }
+
+    private long closeMillis(final Window window) {
+        return window.start + windowMillis + allowedLatenessMillis;
+    }
+
+    private Window oldestWindow() {
+        Window oldest = null;
+        for (final LongObjectCursor<Window> cursor : windows) {
+            if (oldest == null || cursor.value.start < oldest.start) {
+                oldest = cursor.value;
+            }
+        }
+        return oldest;
+    }
+
+    private void flushClosedWindows() throws IOException {
+        final List<Window> toFlush = new ArrayList<>();
+        for (final LongObjectCursor<Window> cursor : windows) {
+            if (closeMillis(cursor.value) <= maxTimestamp) {
+                toFlush.add(cursor.value);
+            }
+        }
+        toFlush.sort((a, b) -> Long.compare(a.start, b.start));
+        flushWindows(toFlush);
+    }
+
+    private void flushWindows(final List<Window> toFlush) throws IOException {
+        // Remove the windows first so that a failed flush does not resend them
+        for (final Window window : toFlush) {
+            windows.remove(window.start);
+            keys -= window.size;
+            if (window == lastWindow) {
+                lastWindow = null;
+            }
+        }
+        nextCloseMillis = Long.MAX_VALUE;
+        for (final LongObjectCursor<Window> cursor : windows) {
+            nextCloseMillis = Math.min(nextCloseMillis, closeMillis(cursor.value));
+        }
+
+        // Every batch is sent even if an earlier batch failed, so that one
+        // failure does not drop the rest of the windows
+        final List<Exception> failures = new ArrayList<>();
+        BulkRequest bulkRequest = new BulkRequest();
+        for (final Window window : toFlush) {
+            final String timestamp = Instant.ofEpochMilli(window.start).toString();
+            for (int i = 0; i < window.size; i++) {
+                bulkRequest.add(new IndexRequest(indexName).source(toSource(timestamp, window, i)));
+                if (bulkRequest.numberOfActions() >= MAX_BULK_ACTIONS) {
+                    send(bulkRequest, failures);
+                    bulkRequest = new BulkRequest();
+                }
+            }
+        }
+        if (bulkRequest.numberOfActions() > 0) {
+            send(bulkRequest, failures);
+        }
+        if (!failures.isEmpty()) {
+            final IOException e = new IOException("Dropped rolled up statistics for "
+                    + indexName + " after " + DEFAULT_MAX_RETRIES + " retries, " + failed
+                    + " documents have been dropped in total, the first failure was: "
+                    + failures.get(0).getMessage(), failures.get(0));
+            for (int i = 1; i < failures.size(); i++) {
+                e.addSuppressed(failures.get(i));
+            }
+            throw e;
+        }
+    }
+
+    private Map<String, Object> toSource(final String timestamp, final Window window,
+            final int slot) {
+        final long key = window.keys[slot];
+        final Map<String, Object> rollup = new HashMap<>();
+        rollup.put("count", window.counts[slot]);
+        rollup.put("min", window.mins[slot]);
+        rollup.put("max", window.maxs[slot]);
+        rollup.put("window", TimeValue.timeValueMillis(windowMillis).getStringRep());
+
+        final Map<String, Object> statistics = new HashMap<>();
+        putIfNotNull(statistics, "category", names.get((int) (key >>> (2 * ID_BITS))));
+        putIfNotNull(statistics, "type", names.get((int) ((key >>> ID_BITS) & ID_MASK)));
+        putIfNotNull(statistics, "entity", names.get((int) (key & ID_MASK)));
+        statistics.put("long_value", window.sums[slot]);
+        statistics.put("rollup", rollup);
+
+        final Map<String, Object> source = new HashMap<>();
+        source.put("@timestamp", timestamp);
+        source.put("biocache_store", Map.of("statistics", statistics));
+        return source;
+    }
+
+    private static void putIfNotNull(final Map<String, Object> map, final String field,
+            final String value) {
+        if (value != null) {
+            map.put(field, value);
+        }
+    }
+
+    /**
+     * Send a bulk request, retrying rejected documents, and adding an
+     * exception to the failures for each request or document that is
+     * dropped.
+     */
+    private void send(final BulkRequest bulkRequest, final List<Exception> failures)
+            throws InterruptedIOException {
+        LOG.debug("Indexing {} rolled up statistics into {}", bulkRequest.numberOfActions(),
+                indexName);
+        BulkRequest pending = bulkRequest;
+        long backoff = INITIAL_RETRY_BACKOFF.millis();
+        for (int attempt = 0;; attempt++) {
+            final BulkRequest nextRequest = pending;
+            final BulkResponse response;
+            try {
+                response = METRICS.time(Operation.BULK,
+                        () -> client.bulk(nextRequest, RequestOptions.DEFAULT));
+            } catch (final ElasticsearchException e) {
+                if (e.status() == RestStatus.TOO_MANY_REQUESTS && attempt < DEFAULT_MAX_RETRIES) {
+                    // The whole request was rejected, so resend all of it
+                    backoff = sleep(backoff);
+                    continue;
+                }
+                drop(pending.numberOfActions(), e, failures);
+                return;
+            } catch (final IOException e) {
+                drop(pending.numberOfActions(), e, failures);
+                return;
+            }
+
+            BulkRequest rejected = null;
+            int dropped = 0;
+            Exception firstDropped = null;
+            for (final BulkItemResponse item : response.getItems()) {
+                if (!item.isFailed()) {
+                    documents++;
+                } else if (item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS
+                        && attempt < DEFAULT_MAX_RETRIES) {
+                    if (rejected == null) {
+                        rejected = new BulkRequest();
+                    }
+                    rejected.add(pending.requests().get(item.getItemId()));
+                } else if (dropped++ == 0) {
+                    firstDropped = item.getFailure().getCause();
+                }
+            }
+            if (dropped > 0) {
+                drop(dropped, firstDropped, failures);
+            }
+            if (rejected == null) {
+                return;
+            }
+            // Only the rejected documents are resent
+            backoff = sleep(backoff);
+            pending = rejected;
+        }
+    }
+
+    private void drop(final int count, final Exception cause, final List<Exception> failures) {
+        failed += count;
+        failures.add(cause);
+        LOG.error("Dropped {} rolled up statistics for {}, the first failure was: {}", count,
+                indexName, cause.getMessage());
+    }
+
+    private static long sleep(final long backoff) throws InterruptedIOException {
+        try {
+            // Jitter avoids the retries of different rollups lining up
+            Thread.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while retrying rolled up statistics");
+        }
+        return Math.min(backoff * 2, MAX_RETRY_BACKOFF.millis());
+    }
+
+    /**
+     * The rolled up values for each key in a single window, held in parallel
+     * primitive arrays indexed by a slot for each key.
+     */
+    private static final class Window {
+        private final long start;
+        private final LongIntHashMap slots = new LongIntHashMap();
+        private long[] keys = new long[16];
+        private long[] counts = new long[16];
+        private long[] sums = new long[16];
+        private long[] mins = new long[16];
+        private long[] maxs = new long[16];
+        private int size;
+
+        private Window(final long start) {
+            this.start = start;
+        }
+
+        /**
+         * @return True if the key was not already in the window.
+         */
+        private boolean add(final long key, final long value) {
+            final int index = slots.indexOf(key);
+            if (slots.indexExists(index)) {
+                final int slot = slots.indexGet(index);
+                counts[slot]++;
+                sums[slot] += value;
+                mins[slot] = Math.min(mins[slot], value);
+                maxs[slot] = Math.max(maxs[slot], value);
+                return false;
+            }
+            if (size == keys.length) {
+                final int capacity = size * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                sums = Arrays.copyOf(sums, capacity);
+                mins = Arrays.copyOf(mins, capacity);
+                maxs = Arrays.copyOf(maxs, capacity);
+            }
+            final int slot = size++;
+            slots.indexInsert(index, key, slot);
+            keys[slot] = key;
+            counts[slot] = 1;
+            sums[slot] = value;
+            mins[slot] = value;
+            maxs[slot] = value;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+
+/**
+ * The outcome of a reindex, update-by-query or delete-by-query task, as
+ * reported by the Elasticsearch tasks API.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public final class TaskResult {
+
+    private final String taskId;
+    private final boolean completed;
+    private final BulkByScrollResponse response;
+    private final ElasticsearchException error;
+
+    /**
+     * Create a new {@link TaskResult}.
+     *
+     * @param taskId
+     *            The id of the task.
+     * @param completed
+     *            True if the task has completed and false otherwise.
+     * @param response
+     *            The response stored for the task, or null if no response was
+     *            available.
+     * @param error
+     *            The error stored for the task if it failed, or null if it did
+     *            not fail.
+     */
+    public TaskResult(final String taskId, final boolean completed,
+            final BulkByScrollResponse response, final ElasticsearchException error) {
+        this.taskId = taskId;
+        this.completed = completed;
+        this.response = response;
+        this.error = error;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public Optional<BulkByScrollResponse> getResponse() {
+        return Optional.ofNullable(response);
+    }
+
+    public Optional<ElasticsearchException> getError() {
+        return Optional.ofNullable(error);
+    }
+
+    public TimeValue getTook() {
+        return response == null ? TimeValue.ZERO : response.getTook();
+    }
+
+    public long getTotal() {
+        return response == null ? 0L : response.getTotal();
+    }
+
+    public long getCreated() {
+        return response == null ? 0L : response.getCreated();
+    }
+
+    public long getUpdated() {
+        return response == null ? 0L : response.getUpdated();
+    }
+
+    public long getDeleted() {
+        return response == null ? 0L : response.getDeleted();
+    }
+
+    public long getVersionConflicts() {
+        return response == null ? 0L : response.getVersionConflicts();
+    }
+
+    /**
+     * @return The number of documents that failed to be written, plus the
+     *         number of search failures while reading documents.
+     */
+    public long getFailed() {
+        return response == null ? 0L
+                : response.getBulkFailures().size() + response.getSearchFailures().size();
+    }
+
+    public List<BulkItemResponse.Failure> getBulkFailures() {
+        return response == null ? Collections.emptyList() : response.getBulkFailures();
+    }
+
+    /**
+     * @return True if the task completed without an error, without timing
+     *         out, and without any failures, and false otherwise.
+     */
+    public boolean isSuccessful() {
+        return completed && error == null && response != null && !response.isTimedOut()
+                && getFailed() == 0L;
+    }
+
+    @Override
+    public String toString() {
+        return "TaskResult [taskId=" + taskId + ", completed=" + completed + ", took="
+                + getTook() + ", total=" + getTotal() + ", created=" + getCreated()
+                + ", updated=" + getUpdated() + ", deleted=" + getDeleted()
+                + ", versionConflicts=" + getVersionConflicts() + ", failed=" + getFailed()
+                + ", error=" + (error == null ? "none" : error.getMessage()) + "]";
+    }
+}
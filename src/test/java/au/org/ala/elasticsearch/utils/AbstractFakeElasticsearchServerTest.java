@@ -0,0 +1,37 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+
+/**
+ * Abstract superclass for tests that run against a new
+ * {@link FakeElasticsearchServer} for each test. Subclasses seed their data in
+ * their own {@link BeforeEach} methods, which run after the server and client
+ * have been created.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+abstract class AbstractFakeElasticsearchServerTest {
+
+    protected FakeElasticsearchServer server;
+    protected RestHighLevelClient client;
+
+    @BeforeEach
+    void setUpServer() throws Exception {
+        server = new FakeElasticsearchServer(42L);
+        client = server.newClient();
+    }
+
+    @AfterEach
+    void tearDownServer() throws Exception {
+        try {
+            client.close();
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.jupiter.api.Test;
+
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.Endpoint;
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.LatencyDistribution;
+
+/**
+ * Tests for {@link AdaptiveBulkWriter} using a
+ * {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class AdaptiveBulkWriterTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String INDEX = "example-adaptive-bulk-writer-test";
+    private static final ByteSizeValue MIN_BATCH_SIZE = new ByteSizeValue(2, ByteSizeUnit.KB);
+    private static final ByteSizeValue MAX_BATCH_SIZE = new ByteSizeValue(32, ByteSizeUnit.KB);
+
+    private AdaptiveBulkWriter newWriter(final TimeValue targetLatency) {
+        return new AdaptiveBulkWriter(client, MIN_BATCH_SIZE, MAX_BATCH_SIZE, 4, targetLatency,
+                AdaptiveBulkWriter.DEFAULT_MAX_RETRIES);
+    }
+
+    private static void write(final AdaptiveBulkWriter writer, final int count)
+            throws IOException, InterruptedException {
+        for (int i = 0; i < count; i++) {
+            writer.add(new IndexRequest(INDEX).id(Integer.toString(i)).source(Map.of("name",
+                    "document " + i, "description", "a description of document number " + i)));
+        }
+    }
+
+    @Test
+    final void testGrowsWhileHealthy() throws Exception {
+        final AdaptiveBulkWriter writer = newWriter(TimeValue.timeValueSeconds(10));
+        try (writer) {
+            write(writer, 2000);
+        }
+        assertEquals(2000L, writer.getDocuments(), writer.toString());
+        assertEquals(0L, writer.getRetries(), writer.toString());
+        assertEquals(MAX_BATCH_SIZE.getBytes(), writer.getBatchBytes(), writer.toString());
+        assertEquals(4, writer.getConcurrency(), writer.toString());
+        assertEquals(0, writer.getInFlight());
+        assertEquals(2000L, server.getDocumentCount(INDEX));
+    }
+
+    @Test
+    final void testRetriesOnlyRejectedItems() throws Exception {
+        server.bulkItemRejectionRate(0.1);
+        final AdaptiveBulkWriter writer = newWriter(TimeValue.timeValueSeconds(10));
+        try (writer) {
+            write(writer, 1000);
+        }
+        assertEquals(1000L, writer.getDocuments(), writer.toString());
+        assertEquals(0L, writer.getFailed(), writer.toString());
+        assertTrue(writer.getRetries() > 0L, writer.toString());
+        // Each rejected item was resent on its own, not with the rest of its batch
+        assertEquals(server.getWriteRejectedCount(), writer.getRetries(), writer.toString());
+        assertEquals(writer.getRejections(), writer.getRetries(), writer.toString());
+        assertEquals(1000L, server.getDocumentCount(INDEX));
+    }
+
+    @Test
+    final void testThrowsFailedDocuments() throws Exception {
+        server.failDocuments("42");
+        final AdaptiveBulkWriter writer = newWriter(TimeValue.timeValueSeconds(10));
+        write(writer, 100);
+        final IOException e = assertThrows(IOException.class, writer::close);
+        assertTrue(e.getMessage().contains("Failed to write 1 documents"), e.getMessage());
+        assertTrue(e.getMessage().contains("failed to parse document [42]"), e.getMessage());
+        assertEquals(99L, writer.getDocuments(), writer.toString());
+        assertEquals(1L, writer.getFailed(), writer.toString());
+        assertEquals(99L, server.getDocumentCount(INDEX));
+    }
+
+    @Test
+    final void testThrowsDocumentsRejectedAfterMaxRetries() throws Exception {
+        server.bulkItemRejectionRate(1.0);
+        final AdaptiveBulkWriter writer = new AdaptiveBulkWriter(client, MIN_BATCH_SIZE,
+                MAX_BATCH_SIZE, 4, TimeValue.timeValueSeconds(10), 2);
+        write(writer, 10);
+        final IOException e = assertThrows(IOException.class, writer::flush);
+        assertTrue(e.getMessage().contains("Failed to write 10 documents"), e.getMessage());
+        assertTrue(e.getMessage().contains("es_rejected_execution_exception"), e.getMessage());
+        assertEquals(0L, writer.getDocuments(), writer.toString());
+        assertEquals(20L, writer.getRetries(), writer.toString());
+        // The failure is still thrown when the writer is closed
+        assertThrows(IOException.class, writer::close);
+    }
+
+    @Test
+    final void testBacksOffOnRejectedRequests() throws Exception {
+        final AdaptiveBulkWriter writer = newWriter(TimeValue.timeValueSeconds(10));
+        try (writer) {
+            write(writer, 500);
+            writer.flush();
+            final long grownBatchBytes = writer.getBatchBytes();
+            assertTrue(grownBatchBytes > MIN_BATCH_SIZE.getBytes(), writer.toString());
+
+            server.rejectNext(Endpoint.BULK, 1);
+            write(writer, 10);
+            writer.flush();
+            assertTrue(writer.getBatchBytes() < grownBatchBytes, writer.toString());
+            assertEquals(10L, writer.getRetries(), writer.toString());
+        }
+        assertEquals(500L, server.getDocumentCount(INDEX));
+    }
+
+    @Test
+    final void testStaysSmallWhenLatencyIsHigh() throws Exception {
+        server.latency(Endpoint.BULK, LatencyDistribution.fixed(20L));
+        final AdaptiveBulkWriter writer = newWriter(TimeValue.timeValueMillis(5));
+        try (writer) {
+            write(writer, 300);
+        }
+        assertEquals(300L, writer.getDocuments(), writer.toString());
+        assertEquals(MIN_BATCH_SIZE.getBytes(), writer.getBatchBytes(), writer.toString());
+        assertEquals(1, writer.getConcurrency(), writer.toString());
+    }
+
+    @Test
+    final void testRegistersMBean() throws Exception {
+        final ObjectName name = new ObjectName(
+                ElasticsearchMetrics.JMX_DOMAIN + ":type=AdaptiveBulkWriter,name=test");
+        final AdaptiveBulkWriter writer = newWriter(TimeValue.timeValueSeconds(10));
+        try (writer) {
+            writer.registerMBean("test");
+            write(writer, 100);
+            writer.flush();
+            assertEquals(100L, ManagementFactory.getPlatformMBeanServer().getAttribute(name,
+                    "Documents"));
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        assertThrows(IllegalStateException.class,
+                () -> writer.add(new IndexRequest(INDEX).source(Map.of("name", "closed"))));
+    }
+
+    @Test
+    final void testNextBatchBytes() {
+        assertEquals(1024L, AdaptiveBulkWriter.nextBatchBytes(2048L, 1024L, 11264L, true));
+        assertEquals(1024L, AdaptiveBulkWriter.nextBatchBytes(1500L, 1024L, 11264L, true));
+        assertEquals(3072L, AdaptiveBulkWriter.nextBatchBytes(2048L, 1024L, 11264L, false));
+        assertEquals(11264L, AdaptiveBulkWriter.nextBatchBytes(11000L, 1024L, 11264L, false));
+    }
+
+    @Test
+    final void testNextConcurrency() {
+        assertEquals(4, AdaptiveBulkWriter.nextConcurrency(8, 8, true));
+        assertEquals(1, AdaptiveBulkWriter.nextConcurrency(1, 8, true));
+        assertEquals(3, AdaptiveBulkWriter.nextConcurrency(2, 8, false));
+        assertEquals(8, AdaptiveBulkWriter.nextConcurrency(8, 8, false));
+    }
+}
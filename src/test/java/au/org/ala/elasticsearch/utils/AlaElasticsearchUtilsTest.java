@@ -3,9 +3,15 @@
  */
 package au.org.ala.elasticsearch.utils;
 
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.elasticsearch.action.fieldcaps.FieldCapabilities;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -90,4 +96,26 @@ class AlaElasticsearchUtilsTest extends AbstractAlaElasticsearchUtilsTest {
                 destinationFieldCapabilitiesAfter.get("postTime").get("date").getType());
     }
 
+    @Test
+    public void testSearchAll() throws Exception {
+        for (int i = 2; i <= 5; i++) {
+            AlaElasticsearchTestUtils.addSampleDocument(testESClient, testSourceIndex,
+                    Integer.toString(i));
+        }
+
+        final SearchSourceBuilder searchSource = new SearchSourceBuilder()
+                .query(QueryBuilders.matchAllQuery());
+        try (Stream<SearchHit> hits = AlaElasticsearchUtils.searchAll(testESClient, searchSource,
+                2, 2, testSourceIndex);) {
+            final List<String> ids = hits.map(SearchHit::getId).collect(Collectors.toList());
+            Assertions.assertEquals(List.of("1", "2", "3", "4", "5"), ids);
+        }
+
+        // Closing before the stream is fully consumed
+        try (Stream<SearchHit> hits = AlaElasticsearchUtils.searchAll(testESClient,
+                QueryBuilders.matchAllQuery(), testSourceIndex);) {
+            Assertions.assertTrue(hits.findFirst().isPresent());
+        }
+    }
+
 }
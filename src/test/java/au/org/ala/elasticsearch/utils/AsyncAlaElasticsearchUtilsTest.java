@@ -0,0 +1,180 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.fieldcaps.FieldCapabilities;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.Endpoint;
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.LatencyDistribution;
+
+/**
+ * Tests for {@link AsyncAlaElasticsearchUtils} using a
+ * {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class AsyncAlaElasticsearchUtilsTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String SOURCE_INDEX = "example-source-index-utils-test";
+    private static final String DESTINATION_INDEX = "example-destination-index-utils-test";
+
+    @BeforeEach
+    void setUp() throws Exception {
+        AlaElasticsearchTestUtils.deleteAndRecreateIndexes(client, SOURCE_INDEX,
+                DESTINATION_INDEX);
+        AlaElasticsearchTestUtils.addSampleDocument(client, SOURCE_INDEX, "1");
+    }
+
+    @Test
+    final void testGetAndSearch() throws Exception {
+        final Optional<Map<String, Object>> document = AsyncAlaElasticsearchUtils
+                .getDocumentByID(client, "1", SOURCE_INDEX).get(10, TimeUnit.SECONDS);
+        assertEquals("Testing reindex process", document.get().get("message"));
+        assertFalse(AsyncAlaElasticsearchUtils.getDocumentByID(client, "2", SOURCE_INDEX)
+                .get(10, TimeUnit.SECONDS).isPresent());
+
+        final Map<String, Map<String, Object>> documents = AsyncAlaElasticsearchUtils
+                .getDocumentsByIDs(client, List.of("2", "1"), SOURCE_INDEX)
+                .get(10, TimeUnit.SECONDS);
+        assertEquals(List.of("1"), List.copyOf(documents.keySet()));
+
+        final SearchResponse response = AsyncAlaElasticsearchUtils.search(client, SOURCE_INDEX)
+                .get(10, TimeUnit.SECONDS);
+        assertEquals(1L, response.getHits().getTotalHits().value);
+    }
+
+    @Test
+    final void testClusterStatus() throws Exception {
+        assertTrue(AsyncAlaElasticsearchUtils.listIndexes(client).get(10, TimeUnit.SECONDS)
+                .contains(DESTINATION_INDEX));
+        assertEquals(1, AsyncAlaElasticsearchUtils.indexInfo(client, SOURCE_INDEX)
+                .get(10, TimeUnit.SECONDS).get(SOURCE_INDEX).getNumberOfShards());
+
+        // The request times out on the server for a missing index, and is
+        // retried on the timer
+        final long before = server.getRequestCount(Endpoint.HEALTH);
+        final ExecutionException e = assertThrows(ExecutionException.class,
+                () -> AsyncAlaElasticsearchUtils.getClusterStatus(client, 2, "does-not-exist")
+                        .get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+        assertEquals(3L, server.getRequestCount(Endpoint.HEALTH) - before);
+    }
+
+    @Test
+    final void testWaitForSlowTask() throws Exception {
+        server.taskDuration(LatencyDistribution.fixed(1000));
+        final String taskId = Reindex.asyncReindex(client, SOURCE_INDEX, DESTINATION_INDEX, null);
+
+        assertFalse(AsyncAlaElasticsearchUtils.getTaskResult(client, taskId)
+                .get(10, TimeUnit.SECONDS).isCompleted());
+
+        final CompletableFuture<TaskResult> wait = AsyncAlaElasticsearchUtils.waitForTask(client,
+                taskId, TimeValue.timeValueMillis(200), TimeValue.timeValueMillis(50));
+        // The calling thread is not used to wait
+        assertFalse(wait.isDone());
+
+        final TaskResult result = wait.get(10, TimeUnit.SECONDS);
+        assertTrue(result.isSuccessful());
+        assertEquals(1L, result.getResponse().get().getCreated());
+        assertTrue(server.getRequestCount(Endpoint.TASKS) > 2);
+    }
+
+    @Test
+    final void testWaitForTaskRejected() throws Exception {
+        server.rejectNext(Endpoint.TASKS, 2);
+        final String taskId = Reindex.asyncReindex(client, SOURCE_INDEX, DESTINATION_INDEX, null);
+
+        final TaskResult result = AsyncAlaElasticsearchUtils.waitForTask(client, taskId,
+                TimeValue.timeValueMillis(200), TimeValue.timeValueMillis(50))
+                .get(10, TimeUnit.SECONDS);
+
+        assertTrue(result.isSuccessful());
+        assertEquals(3L, server.getRequestCount(Endpoint.TASKS));
+    }
+
+    @Test
+    final void testWaitForTaskDeadline() throws Exception {
+        server.taskDuration(LatencyDistribution.fixed(5000));
+        final String taskId = Reindex.asyncReindex(client, SOURCE_INDEX, DESTINATION_INDEX, null);
+
+        final CompletableFuture<TaskResult> wait = AsyncAlaElasticsearchUtils.waitForTask(client,
+                taskId, TimeValue.timeValueMillis(200), TimeValue.timeValueMillis(50),
+                TimeValue.timeValueMillis(500));
+        final ExecutionException e = assertThrows(ExecutionException.class,
+                () -> wait.get(3, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException, e.toString());
+    }
+
+    @Test
+    final void testCancelWaitForTask() throws Exception {
+        server.taskDuration(LatencyDistribution.fixed(5000));
+        final String taskId = Reindex.asyncReindex(client, SOURCE_INDEX, DESTINATION_INDEX, null);
+
+        final CompletableFuture<TaskResult> wait = AsyncAlaElasticsearchUtils.waitForTask(client,
+                taskId, TimeValue.timeValueMillis(100), TimeValue.timeValueMillis(50));
+        Thread.sleep(300);
+        assertTrue(wait.cancel(false));
+
+        // No further attempts are scheduled after cancellation
+        Thread.sleep(200);
+        final long requests = server.getRequestCount(Endpoint.TASKS);
+        Thread.sleep(500);
+        assertEquals(requests, server.getRequestCount(Endpoint.TASKS));
+    }
+
+    @Test
+    final void testFanOut() throws Exception {
+        AlaElasticsearchTestUtils.addSampleDocument(client, DESTINATION_INDEX, "1");
+        AlaElasticsearchTestUtils.addSampleDocument(client, DESTINATION_INDEX, "2");
+        server.latency(Endpoint.REFRESH, LatencyDistribution.fixed(200));
+
+        final long refreshes = server.getRequestCount(Endpoint.REFRESH);
+        final long start = System.nanoTime();
+        AsyncAlaElasticsearchUtils.refreshEach(client, List.of(SOURCE_INDEX, DESTINATION_INDEX))
+                .get(10, TimeUnit.SECONDS);
+        // The refreshes run concurrently rather than one after the other
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 400);
+        assertEquals(2L, server.getRequestCount(Endpoint.REFRESH) - refreshes);
+
+        final Map<String, Long> counts = AsyncAlaElasticsearchUtils
+                .countEach(client, List.of(DESTINATION_INDEX, SOURCE_INDEX))
+                .get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(DESTINATION_INDEX, SOURCE_INDEX), List.copyOf(counts.keySet()));
+        assertEquals(Long.valueOf(2L), counts.get(DESTINATION_INDEX));
+        assertEquals(Long.valueOf(1L), counts.get(SOURCE_INDEX));
+
+        final Map<String, Map<String, Map<String, FieldCapabilities>>> fields = AsyncAlaElasticsearchUtils
+                .getUserDefinedFieldCapabilitiesEach(client, List.of(SOURCE_INDEX))
+                .get(10, TimeUnit.SECONDS);
+        assertTrue(fields.get(SOURCE_INDEX).containsKey("message"));
+    }
+
+    @Test
+    final void testFanOutFailure() throws Exception {
+        server.rejectNext(Endpoint.GET, 1);
+        final CompletableFuture<Map<String, Optional<Map<String, Object>>>> result = AsyncAlaElasticsearchUtils
+                .forEachIndex(List.of(SOURCE_INDEX, DESTINATION_INDEX),
+                        indexName -> AsyncAlaElasticsearchUtils.getDocumentByID(client, "1",
+                                indexName));
+        assertThrows(ExecutionException.class, () -> result.get(10, TimeUnit.SECONDS));
+        assertEquals(2L, server.getRequestCount(Endpoint.GET));
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link BatchingDocumentLoader}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class BatchingDocumentLoaderTest extends AbstractAlaElasticsearchUtilsTest {
+
+    @Test
+    final void testLoad() throws Exception {
+        AlaElasticsearchTestUtils.addSampleDocument(testESClient, testSourceIndex, "2");
+
+        try (BatchingDocumentLoader loader = new BatchingDocumentLoader(testESClient, 10,
+                TimeValue.timeValueMillis(50));) {
+            final CompletableFuture<Optional<Map<String, Object>>> first = loader
+                    .load(testDocumentID, testSourceIndex);
+            final CompletableFuture<Optional<Map<String, Object>>> duplicate = loader
+                    .load(testDocumentID, testSourceIndex);
+            final CompletableFuture<Optional<Map<String, Object>>> second = loader.load("2",
+                    testSourceIndex);
+            final CompletableFuture<Optional<Map<String, Object>>> missing = loader
+                    .load("does-not-exist", testSourceIndex);
+
+            assertSame(first, duplicate);
+            assertTrue(first.get().isPresent());
+            assertTrue(first.get().get().containsKey("message"));
+            assertTrue(second.get().isPresent());
+            assertTrue(missing.get().isEmpty());
+
+            assertTrue(loader.get(testDocumentID, testSourceIndex).isPresent());
+        }
+    }
+
+    @Test
+    final void testLoadFullBatch() throws Exception {
+        // A batch size of one sends each lookup immediately
+        try (BatchingDocumentLoader loader = new BatchingDocumentLoader(testESClient, 1,
+                TimeValue.timeValueHours(1));) {
+            assertTrue(loader.get(testDocumentID, testSourceIndex).isPresent());
+        }
+    }
+
+    @Test
+    final void testLoadAfterClose() throws Exception {
+        final BatchingDocumentLoader loader = new BatchingDocumentLoader(testESClient);
+        loader.close();
+        assertThrows(IllegalStateException.class,
+                () -> loader.load(testDocumentID, testSourceIndex));
+    }
+
+    /**
+     * Test method for
+     * {@link AlaElasticsearchUtils#getDocumentsByIDs(org.elasticsearch.client.RestHighLevelClient, java.util.Collection, String)}.
+     */
+    @Test
+    final void testGetDocumentsByIDs() throws Exception {
+        AlaElasticsearchTestUtils.addSampleDocument(testESClient, testSourceIndex, "2");
+
+        final Map<String, Map<String, Object>> documents = AlaElasticsearchUtils
+                .getDocumentsByIDs(testESClient, List.of("2", "does-not-exist", testDocumentID),
+                        testSourceIndex);
+
+        assertEquals(List.of("2", testDocumentID), List.copyOf(documents.keySet()));
+        assertTrue(documents.get(testDocumentID).containsKey("postDate"));
+    }
+}
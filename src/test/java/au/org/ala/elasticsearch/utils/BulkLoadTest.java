@@ -0,0 +1,144 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.Endpoint;
+
+/**
+ * Tests for {@link BulkLoad} using a {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class BulkLoadTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String INDEX = "example-filebeat-biocache-store-bulkload-test";
+    private static final int NUMBER_OF_DOCUMENTS = 500;
+
+    @TempDir
+    Path tempDir;
+
+    private static void writeDocuments(final Writer writer) throws IOException {
+        for (int i = 0; i < NUMBER_OF_DOCUMENTS; i++) {
+            writer.write("{\"@timestamp\": \"2020-12-06T00:00:00.000Z\", "
+                    + "\"biocache_store\": {\"statistics\": {\"category\": \"load\", "
+                    + "\"type\": \"records\", \"entity\": \"dr" + i + "\", \"long_value\": " + i
+                    + "}}}");
+            // Blank lines and Windows line endings are allowed
+            writer.write(i % 100 == 0 ? "\r\n\n" : "\n");
+        }
+    }
+
+    private Path writeFile(final String name, final boolean gzip) throws IOException {
+        final Path file = tempDir.resolve(name);
+        try (OutputStream output = gzip ? new GZIPOutputStream(Files.newOutputStream(file))
+                : Files.newOutputStream(file);
+                Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);) {
+            writeDocuments(writer);
+        }
+        return file;
+    }
+
+    @Test
+    final void testLoadMapped() throws Exception {
+        final Path file = writeFile("statistics.ndjson", false);
+
+        final BulkLoad.Result result = BulkLoad.load(client, file, INDEX, 4, 4096L, 3);
+
+        assertEquals(NUMBER_OF_DOCUMENTS, result.getDocuments());
+        assertEquals(0L, result.getFailed());
+        assertEquals(0L, result.getRetries());
+        assertTrue(result.getBatches() > 4L, result.toString());
+        assertEquals(result.getBatches(), server.getRequestCount(Endpoint.BULK));
+        assertEquals(NUMBER_OF_DOCUMENTS, server.getDocumentCount(INDEX));
+        assertTrue(result.toString().contains(NUMBER_OF_DOCUMENTS + " documents"),
+                result.toString());
+
+        // Every line is loaded unchanged
+        final Map<String, Object> source = AlaElasticsearchUtils.search(client, INDEX).getHits()
+                .getAt(0).getSourceAsMap();
+        assertEquals("load", ((Map<?, ?>) ((Map<?, ?>) source.get("biocache_store"))
+                .get("statistics")).get("category"));
+    }
+
+    @Test
+    final void testLoadCompressed() throws Exception {
+        final Path file = writeFile("statistics.ndjson.gz", true);
+
+        final BulkLoad.Result result = BulkLoad.load(client, file, INDEX, 2, 8192L, 3);
+
+        assertEquals(NUMBER_OF_DOCUMENTS, result.getDocuments());
+        assertEquals(0L, result.getFailed());
+        assertEquals(NUMBER_OF_DOCUMENTS, server.getDocumentCount(INDEX));
+        // The uncompressed size of the source is reported
+        assertTrue(result.getBytes() > Files.size(file), result.toString());
+    }
+
+    @Test
+    final void testRetryRejectedItems() throws Exception {
+        final Path file = writeFile("statistics.ndjson", false);
+        server.bulkItemRejectionRate(0.3);
+
+        final BulkLoad.Result result = BulkLoad.load(client, file, INDEX, 4, 16384L, 20);
+
+        assertEquals(NUMBER_OF_DOCUMENTS, result.getDocuments());
+        assertEquals(0L, result.getFailed());
+        assertTrue(result.getRetries() > 0L, result.toString());
+        assertEquals(NUMBER_OF_DOCUMENTS, server.getDocumentCount(INDEX));
+    }
+
+    @Test
+    final void testRejectedItemsFailAfterMaxRetries() throws Exception {
+        final Path file = writeFile("statistics.ndjson", false);
+        server.bulkItemRejectionRate(1.0);
+
+        final BulkLoad.Result result = BulkLoad.load(client, file, INDEX, 2, 16384L, 1);
+
+        assertEquals(0L, result.getDocuments());
+        assertEquals(NUMBER_OF_DOCUMENTS, result.getFailed());
+        assertEquals(NUMBER_OF_DOCUMENTS, result.getRetries());
+    }
+
+    @Test
+    final void testChunkBoundaries() throws Exception {
+        final Path file = tempDir.resolve("lines.ndjson");
+        Files.write(file, "{}\n{\"a\": 1}\n{}\n{\"b\": 22}".getBytes(StandardCharsets.UTF_8));
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);) {
+            final long[] boundaries = BulkLoad.chunkBoundaries(channel, 3);
+            assertEquals(0L, boundaries[0]);
+            assertEquals(Files.size(file), boundaries[boundaries.length - 1]);
+            for (int i = 1; i < boundaries.length - 1; i++) {
+                // Each chunk starts at the beginning of a line
+                assertEquals('\n', Files.readAllBytes(file)[(int) boundaries[i] - 1]);
+            }
+            // The chunk after the first line boundary extends to the end of
+            // the long line that follows it
+            assertEquals(List.of(0L, 12L, 24L),
+                    Arrays.stream(boundaries).boxed().collect(Collectors.toList()));
+
+            assertEquals(2, BulkLoad.chunkBoundaries(channel, 1).length);
+        }
+    }
+}
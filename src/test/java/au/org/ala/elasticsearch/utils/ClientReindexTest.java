@@ -0,0 +1,98 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ClientReindex}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class ClientReindexTest extends AbstractAlaElasticsearchUtilsTest {
+
+    /**
+     * Java equivalent of the Painless test reindex script.
+     */
+    public static class SplitPostDateTransform
+            implements Function<Map<String, Object>, Map<String, Object>> {
+
+        @Override
+        public Map<String, Object> apply(final Map<String, Object> source) {
+            final Map<String, Object> result = new HashMap<>(source);
+            final Object postDate = source.get("postDate");
+            if (postDate != null && !postDate.toString().isEmpty()) {
+                final ZonedDateTime zdt = ZonedDateTime.parse(postDate.toString());
+                result.put("postDate", DateTimeFormatter.ISO_LOCAL_DATE.format(zdt));
+                result.put("postTime", DateTimeFormatter.ISO_LOCAL_TIME.format(zdt));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link au.org.ala.elasticsearch.utils.ClientReindex#doReindex(org.elasticsearch.client.RestHighLevelClient, String, String, Function)}.
+     */
+    @Test
+    final void testClientReindex() throws Exception {
+        final BulkByScrollResponse response = ClientReindex.doReindex(testESClient,
+                testSourceIndex, testDestinationIndex, new SplitPostDateTransform());
+
+        assertEquals(1L, response.getTotal());
+        assertEquals(1L, response.getCreated());
+        assertTrue(response.getBulkFailures().isEmpty());
+
+        final Optional<Map<String, Object>> resultDocument = AlaElasticsearchUtils
+                .getDocumentByID(testESClient, testDocumentID, testDestinationIndex);
+
+        assertTrue(resultDocument.isPresent());
+        assertEquals(3, resultDocument.get().size());
+        assertTrue(resultDocument.get().containsKey("message"));
+        assertTrue(resultDocument.get().containsKey("postDate"));
+        assertTrue(resultDocument.get().containsKey("postTime"));
+    }
+
+    /**
+     * Test method for
+     * {@link au.org.ala.elasticsearch.utils.ClientReindex#doReindex(org.elasticsearch.client.RestHighLevelClient, String, String, Function)}
+     * with a transform that skips all documents.
+     */
+    @Test
+    final void testClientReindexSkipped() throws Exception {
+        final BulkByScrollResponse response = ClientReindex.doReindex(testESClient,
+                testSourceIndex, testDestinationIndex, source -> null);
+
+        assertEquals(1L, response.getTotal());
+        assertEquals(1L, response.getNoops());
+        assertEquals(0L, response.getCreated());
+
+        final Optional<Map<String, Object>> resultDocument = AlaElasticsearchUtils
+                .getDocumentByID(testESClient, testDocumentID, testDestinationIndex);
+
+        assertTrue(resultDocument.isEmpty());
+    }
+
+    /**
+     * Test method for
+     * {@link au.org.ala.elasticsearch.utils.Reindex#main(String...)} using a
+     * client side transform.
+     */
+    @Test
+    final void testReindexMainTransformClass() throws Exception {
+        Reindex.main("--source", testSourceIndex, "--destination", testDestinationIndex,
+                "--transform-class", SplitPostDateTransform.class.getName(), "--writers", "2");
+    }
+}
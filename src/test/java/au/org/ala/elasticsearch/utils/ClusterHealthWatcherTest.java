@@ -0,0 +1,120 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ClusterHealthWatcher} using a
+ * {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class ClusterHealthWatcherTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String INDEX = "example-index-health-watcher-test";
+    private static final String OTHER_INDEX = "example-other-index-health-watcher-test";
+
+    @BeforeEach
+    void setUp() throws Exception {
+        client.index(new IndexRequest(INDEX).id("1").source(Map.of("message", "Testing")),
+                RequestOptions.DEFAULT);
+        client.index(new IndexRequest(OTHER_INDEX).id("1").source(Map.of("message", "Testing")),
+                RequestOptions.DEFAULT);
+        setReplicas(INDEX, 1);
+        setReplicas(OTHER_INDEX, 0);
+    }
+
+    private void setReplicas(final String indexName, final int replicas) throws Exception {
+        client.indices().putSettings(new UpdateSettingsRequest(
+                Settings.builder().put("index.number_of_replicas", replicas).build(), indexName),
+                RequestOptions.DEFAULT);
+    }
+
+    @Test
+    final void testManyWaitersShareOnePoll() throws Exception {
+        try (ClusterHealthWatcher watcher = new ClusterHealthWatcher(client,
+                ClusterHealthRequest.Level.CLUSTER, TimeValue.timeValueMillis(20), INDEX)
+                        .start();) {
+            final List<CompletableFuture<ClusterHealthResponse>> waiters = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                waiters.add(watcher.awaitStatus(ClusterHealthStatus.GREEN));
+            }
+            // Yellow is already better than red, so this completes immediately
+            assertEquals(ClusterHealthStatus.YELLOW,
+                    watcher.awaitStatus(ClusterHealthStatus.RED).get(5, TimeUnit.SECONDS)
+                            .getStatus());
+            Thread.sleep(100);
+            for (final CompletableFuture<ClusterHealthResponse> waiter : waiters) {
+                assertFalse(waiter.isDone());
+            }
+
+            setReplicas(INDEX, 0);
+            for (final CompletableFuture<ClusterHealthResponse> waiter : waiters) {
+                assertEquals(ClusterHealthStatus.GREEN,
+                        waiter.get(5, TimeUnit.SECONDS).getStatus());
+            }
+        }
+        // Eleven waiters over several intervals used a few polls, not one each
+        final long polls = server.getRequestCount(FakeElasticsearchServer.Endpoint.HEALTH);
+        assertTrue(polls > 1L && polls < 100L, Long.toString(polls));
+    }
+
+    @Test
+    final void testIndexLevelChanges() throws Exception {
+        final List<ClusterHealthStatus> previousStatuses = new CopyOnWriteArrayList<>();
+        final List<ClusterHealthResponse> notified = new CopyOnWriteArrayList<>();
+        try (ClusterHealthWatcher watcher = new ClusterHealthWatcher(client,
+                ClusterHealthRequest.Level.INDICES, TimeValue.timeValueMillis(20)).start();) {
+            watcher.addListener((previous, current) -> {
+                previousStatuses.add(previous == null ? null : previous.getStatus());
+                notified.add(current);
+            });
+            waitForNotifications(notified, 1);
+
+            // The other index becomes yellow while the cluster stays yellow
+            setReplicas(OTHER_INDEX, 2);
+            waitForNotifications(notified, 2);
+        }
+        assertEquals(2, notified.size());
+        assertNull(previousStatuses.get(0));
+        assertEquals(ClusterHealthStatus.YELLOW, previousStatuses.get(1));
+        final ClusterHealthResponse changed = notified.get(1);
+        assertEquals(ClusterHealthStatus.YELLOW, changed.getStatus());
+        assertEquals(ClusterHealthStatus.YELLOW,
+                changed.getIndices().get(OTHER_INDEX).getStatus());
+        assertEquals(ClusterHealthStatus.GREEN,
+                notified.get(0).getIndices().get(OTHER_INDEX).getStatus());
+    }
+
+    private static void waitForNotifications(final List<?> notifications, final int count)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (notifications.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(notifications.size() >= count, notifications.toString());
+    }
+}
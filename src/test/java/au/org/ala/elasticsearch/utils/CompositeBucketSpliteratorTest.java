@@ -0,0 +1,140 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import au.org.ala.elasticsearch.utils.CompositeBucket.Metric;
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.Endpoint;
+
+/**
+ * Tests for {@link CompositeBucketSpliterator} using a
+ * {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class CompositeBucketSpliteratorTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String INDEX = "example-filebeat-biocache-store-aggregation-test";
+    private static final int NUMBER_OF_DOCUMENTS = 140;
+    private static final int NUMBER_OF_ENTITIES = 7;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        final BulkRequest bulkRequest = new BulkRequest();
+        for (int i = 0; i < NUMBER_OF_DOCUMENTS; i++) {
+            bulkRequest.add(new IndexRequest(INDEX).id(Integer.toString(i))
+                    .source(Map.of("@timestamp", "2020-12-06T00:00:00.000Z", "biocache_store",
+                            Map.of("statistics", Map.of("category", i % 2 == 0 ? "load" : "index",
+                                    "type", "records", "entity", "dr" + (i % NUMBER_OF_ENTITIES),
+                                    "long_value", i)))));
+        }
+        // A statistic without an entity
+        bulkRequest.add(new IndexRequest(INDEX).id("no-entity").source(Map.of("biocache_store",
+                Map.of("statistics", Map.of("category", "load", "type", "records",
+                        "long_value", 1000)))));
+        client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        AlaElasticsearchUtils.refresh(client, INDEX);
+    }
+
+    @Test
+    final void testPagesThroughAllBuckets() throws Exception {
+        final long searches = server.getRequestCount(Endpoint.SEARCH);
+        final List<CompositeBucket> buckets;
+        try (Stream<CompositeBucket> stream = AlaElasticsearchUtils.aggregateAll(client,
+                QueryBuilders.matchAllQuery(),
+                List.of("biocache_store.statistics.category", "biocache_store.statistics.entity"),
+                List.of(Metric.sum(AlaElasticsearchUtils.BIOCACHE_STORE_STATISTICS_VALUE),
+                        Metric.min(AlaElasticsearchUtils.BIOCACHE_STORE_STATISTICS_VALUE),
+                        Metric.max(AlaElasticsearchUtils.BIOCACHE_STORE_STATISTICS_VALUE)),
+                4, INDEX);) {
+            buckets = stream.collect(Collectors.toList());
+        }
+
+        // Every category and entity combination, and the one without an entity
+        assertEquals(2 * NUMBER_OF_ENTITIES + 1, buckets.size());
+        // Four pages of buckets, and the empty page that ends them
+        assertEquals(5, server.getRequestCount(Endpoint.SEARCH) - searches);
+        assertEquals(NUMBER_OF_DOCUMENTS + 1,
+                buckets.stream().mapToLong(CompositeBucket::getDocCount).sum());
+
+        // Documents without a key are in the first bucket for that key
+        final CompositeBucket missing = buckets.stream()
+                .filter(bucket -> "load".equals(bucket.getKey(0))).findFirst().get();
+        assertNull(missing.getKey(1));
+        assertEquals(1L, missing.getDocCount());
+        assertEquals(1000.0, missing.getValue(0));
+
+        // dr3 in the index category is 3, 17, 31, ..., 129
+        final CompositeBucket dr3 = buckets.stream()
+                .filter(bucket -> "index".equals(bucket.getKey(0))
+                        && "dr3".equals(bucket.getKey(1)))
+                .findFirst().get();
+        assertEquals(10L, dr3.getDocCount());
+        assertEquals(660.0, dr3.getValue(0));
+        assertEquals(3.0, dr3.getValue(1));
+        assertEquals(129.0, dr3.getValue(2));
+    }
+
+    @Test
+    final void testFailsOnPartialPages() throws Exception {
+        server.failShardNext(1);
+        try (Stream<CompositeBucket> stream = AlaElasticsearchUtils.aggregateAll(client,
+                QueryBuilders.matchAllQuery(),
+                List.of("biocache_store.statistics.category", "biocache_store.statistics.entity"),
+                List.of(Metric.sum(AlaElasticsearchUtils.BIOCACHE_STORE_STATISTICS_VALUE)), 4,
+                INDEX);) {
+            assertThrows(UncheckedIOException.class, () -> stream.count());
+        }
+
+        server.searchTimeoutNext(1);
+        try (Stream<CompositeBucket> stream = AlaElasticsearchUtils.aggregateAll(client,
+                QueryBuilders.matchAllQuery(),
+                List.of("biocache_store.statistics.category", "biocache_store.statistics.entity"),
+                List.of(Metric.sum(AlaElasticsearchUtils.BIOCACHE_STORE_STATISTICS_VALUE)), 4,
+                INDEX);) {
+            assertThrows(UncheckedIOException.class, () -> stream.count());
+        }
+    }
+
+    @Test
+    final void testBiocacheStoreStatistics() throws Exception {
+        final List<CompositeBucket> buckets;
+        try (Stream<CompositeBucket> stream = AlaElasticsearchUtils.biocacheStoreStatistics(
+                client, QueryBuilders.termQuery("biocache_store.statistics.category", "index"),
+                INDEX);) {
+            buckets = stream.collect(Collectors.toList());
+        }
+
+        assertEquals(NUMBER_OF_ENTITIES, buckets.size());
+        for (final CompositeBucket bucket : buckets) {
+            assertEquals(3, bucket.getKeyCount());
+            assertEquals("index", bucket.getKey(0));
+            assertEquals("records", bucket.getKey(1));
+            assertEquals(5, bucket.getValueCount());
+            // min <= median <= 95th percentile <= max
+            assertTrue(bucket.getValue(1) <= bucket.getValue(3), bucket.toString());
+            assertTrue(bucket.getValue(3) <= bucket.getValue(4), bucket.toString());
+            assertTrue(bucket.getValue(4) <= bucket.getValue(2), bucket.toString());
+        }
+        // dr1 in the index category is 1, 15, 29, ..., 127
+        assertEquals(64.0, buckets.get(1).getValue(3));
+    }
+}
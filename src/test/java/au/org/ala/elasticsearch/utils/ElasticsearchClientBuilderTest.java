@@ -0,0 +1,56 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.Optional;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ElasticsearchClientBuilder}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class ElasticsearchClientBuilderTest extends AbstractAlaElasticsearchUtilsTest {
+
+    @Test
+    final void testBuildMultipleHostsWithCompression() throws Exception {
+        try (RestHighLevelClient client = new ElasticsearchClientBuilder()
+                .host("localhost", 9200, "http").host("127.0.0.1", 9200, "http")
+                .maxConnectionsPerRoute(4).maxConnectionsTotal(8).ioThreadCount(2)
+                .keepAliveMillis(60000L).socketTimeoutMillis(60000).compression(true)
+                .build();) {
+            final Optional<Map<String, Object>> sourceDocument = AlaElasticsearchUtils
+                    .getDocumentByID(client, testDocumentID, testSourceIndex);
+            assertTrue(sourceDocument.isPresent());
+
+            final SearchResponse searchResponse = AlaElasticsearchUtils.search(client,
+                    testSourceIndex);
+            assertEquals(1L, searchResponse.getHits().getTotalHits().value);
+        }
+    }
+
+    @Test
+    final void testBuildNoHosts() throws Exception {
+        assertThrows(IllegalStateException.class, () -> new ElasticsearchClientBuilder().build());
+    }
+
+    /**
+     * Test the client options on the {@link PutTemplate} program.
+     */
+    @Test
+    final void testPutTemplateMainClientOptions() throws Exception {
+        PutTemplate.main("--template-name", testSourceIndexTemplateName, "--template-json",
+                sourceTemplateTempFile.toAbsolutePath().toString(), "--es-hostname",
+                "localhost,127.0.0.1", "--es-compression", "--es-max-connections-per-route", "2",
+                "--es-keep-alive-ms", "30000");
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.Operation;
+import au.org.ala.elasticsearch.utils.ElasticsearchMetrics.OperationMXBean;
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.Endpoint;
+
+/**
+ * Tests for {@link ElasticsearchMetrics} using a
+ * {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class ElasticsearchMetricsTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String TEST_INDEX = "example-metrics-index-utils-test";
+
+    @TempDir
+    Path tempDir;
+
+    private ElasticsearchMetrics metrics;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        AlaElasticsearchTestUtils.addSampleDocument(client, TEST_INDEX, "1");
+        metrics = ElasticsearchMetrics.getDefault();
+        metrics.reset();
+    }
+
+    @Test
+    final void testOperationsRecorded() throws Exception {
+        assertTrue(AlaElasticsearchUtils.getDocumentByID(client, "1", TEST_INDEX).isPresent());
+        AlaElasticsearchUtils.search(client, TEST_INDEX);
+        AlaElasticsearchUtils.search(client, TEST_INDEX);
+
+        final OperationMXBean get = metrics.getOperation(Operation.GET);
+        assertEquals(1L, get.getCalls());
+        assertEquals(0L, get.getErrors());
+        assertTrue(get.getBytesIn() > 0L);
+        assertTrue(get.getMaxMillis() >= get.getP50Millis());
+
+        final OperationMXBean search = metrics.getOperation(Operation.SEARCH);
+        assertEquals(2L, search.getCalls());
+        assertTrue(search.getBytesOut() > 0L);
+        assertTrue(search.getBytesIn() > 0L);
+
+        assertEquals(0L, metrics.getOperation(Operation.BULK).getCalls());
+    }
+
+    @Test
+    final void testListIndexesRecordedOnce() throws Exception {
+        assertTrue(AlaElasticsearchUtils.listIndexes(client).contains(TEST_INDEX));
+        assertTrue(AsyncAlaElasticsearchUtils.listIndexes(client).get().contains(TEST_INDEX));
+
+        assertEquals(2L, metrics.getOperation(Operation.LIST_INDEXES).getCalls());
+        assertEquals(0L, metrics.getOperation(Operation.HEALTH).getCalls());
+    }
+
+    @Test
+    final void testErrorsRecorded() throws Exception {
+        server.rejectNext(Endpoint.GET, 1);
+        assertThrows(Exception.class,
+                () -> AlaElasticsearchUtils.getDocumentByID(client, "1", TEST_INDEX));
+
+        final OperationMXBean get = metrics.getOperation(Operation.GET);
+        assertEquals(1L, get.getCalls());
+        assertEquals(1L, get.getErrors());
+    }
+
+    @Test
+    final void testDisabled() throws Exception {
+        metrics.setEnabled(false);
+        try {
+            AlaElasticsearchUtils.search(client, TEST_INDEX);
+        } finally {
+            metrics.setEnabled(true);
+        }
+        assertEquals(0L, metrics.getOperation(Operation.SEARCH).getCalls());
+    }
+
+    @Test
+    final void testForRequest() {
+        assertEquals(Operation.HEALTH, Operation.forRequest("GET", "/_cluster/health/test"));
+        assertEquals(Operation.SEARCH, Operation.forRequest("POST", "/test/_search"));
+        assertEquals(Operation.SEARCH, Operation.forRequest("POST", "/_search"));
+        assertEquals(Operation.GET, Operation.forRequest("GET", "/test/_doc/1"));
+        assertEquals(Operation.BULK, Operation.forRequest("POST", "/_bulk"));
+        assertEquals(Operation.GET_TEMPLATE, Operation.forRequest("GET", "/_template/t"));
+        assertEquals(Operation.PUT_TEMPLATE, Operation.forRequest("PUT", "/_template/t"));
+        assertEquals(Operation.DELETE_INDEX, Operation.forRequest("DELETE", "/test"));
+        assertEquals(Operation.TASK_WAIT, Operation.forRequest("GET", "/_tasks/node:1"));
+        assertEquals(Operation.INDEX_STATS, Operation.forRequest("GET", "/test/_stats/refresh"));
+    }
+
+    @Test
+    final void testToJson() throws Exception {
+        AlaElasticsearchUtils.search(client, TEST_INDEX);
+
+        final Map<String, Object> json = XContentHelper.convertToMap(XContentType.JSON.xContent(),
+                metrics.toJson(false), false);
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> operations = (Map<String, Object>) json.get("operations");
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> search = (Map<String, Object>) operations
+                .get(Operation.SEARCH.getMetricName());
+        assertEquals(1, ((Number) search.get("calls")).intValue());
+        assertTrue(search.containsKey("latency_millis"));
+        assertFalse(operations.containsKey(Operation.REINDEX_SUBMIT.getMetricName()));
+    }
+
+    @Test
+    final void testMBeans() throws Exception {
+        AlaElasticsearchUtils.search(client, TEST_INDEX);
+
+        final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(ElasticsearchMetrics.JMX_DOMAIN
+                + ":type=ElasticsearchMetrics,operation=" + Operation.SEARCH.getMetricName());
+        metrics.registerMBeans();
+        try {
+            assertEquals(1L, mbeanServer.getAttribute(name, "Calls"));
+        } finally {
+            metrics.unregisterMBeans();
+        }
+        assertFalse(mbeanServer.isRegistered(name));
+    }
+
+    @Test
+    final void testReporting() throws Exception {
+        final Path jsonFile = tempDir.resolve("metrics.json");
+        final Closeable reporting = metrics.startReporting(TimeValue.timeValueMillis(50),
+                jsonFile);
+        try {
+            AlaElasticsearchUtils.search(client, TEST_INDEX);
+        } finally {
+            reporting.close();
+        }
+        assertTrue(Files.exists(jsonFile));
+        final String json = new String(Files.readAllBytes(jsonFile), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"" + Operation.SEARCH.getMetricName() + "\""), json);
+    }
+}
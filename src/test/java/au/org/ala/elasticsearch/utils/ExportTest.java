@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import au.org.ala.elasticsearch.utils.Export.Result;
+import au.org.ala.elasticsearch.utils.Export.SliceResult;
+
+/**
+ * Tests for {@link Export} using a {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class ExportTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String INDEX = "example-filebeat-biocache-store-export-test";
+    private static final int NUMBER_OF_DOCUMENTS = 200;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        final BulkRequest bulkRequest = new BulkRequest();
+        for (int i = 0; i < NUMBER_OF_DOCUMENTS; i++) {
+            bulkRequest.add(new IndexRequest(INDEX).id(Integer.toString(i))
+                    .source(Map.of("@timestamp", "2020-12-06T00:00:00.000Z", "biocache_store",
+                            Map.of("statistics", Map.of("category", i % 2 == 0 ? "load" : "index",
+                                    "type", "records", "entity", "dr" + i, "long_value", i)))));
+        }
+        client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        AlaElasticsearchUtils.refresh(client, INDEX);
+    }
+
+    private static List<String> readLines(final Path partFile) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(partFile)), StandardCharsets.UTF_8));) {
+            final List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        }
+    }
+
+    @Test
+    final void testSlicedExport() throws Exception {
+        final Result result = Export.export(client, INDEX, tempDir.resolve("export"), 4,
+                QueryBuilders.matchAllQuery(), new String[0], new String[0], 7);
+
+        assertEquals(NUMBER_OF_DOCUMENTS, result.getDocuments());
+        assertEquals(4, result.getSlices().size());
+        final Set<String> ids = new HashSet<>();
+        for (final SliceResult slice : result.getSlices()) {
+            assertTrue(slice.getDocuments() > 0L, result.toString());
+            assertTrue(slice.getCompressedBytes() > 0L);
+            assertTrue(slice.getCompressedBytes() < slice.getBytes(), result.toString());
+            final List<String> sliceLines = readLines(slice.getFile());
+            // An action line with the id before each source line
+            assertEquals(slice.getDocuments() * 2, sliceLines.size());
+            for (int i = 0; i < sliceLines.size(); i += 2) {
+                assertTrue(sliceLines.get(i).startsWith("{\"index\":{\"_id\":"),
+                        sliceLines.get(i));
+                assertTrue(sliceLines.get(i + 1).contains("biocache_store"),
+                        sliceLines.get(i + 1));
+                ids.add(sliceLines.get(i));
+            }
+        }
+        // Every document is in exactly one part
+        assertEquals(NUMBER_OF_DOCUMENTS, ids.size());
+        assertTrue(ids.contains("{\"index\":{\"_id\":\"17\"}}"), ids.toString());
+        assertTrue(result.toString().contains(NUMBER_OF_DOCUMENTS + " documents"),
+                result.toString());
+        // The shared point in time is closed
+        assertEquals(0, server.getOpenPointInTimeCount());
+    }
+
+    @Test
+    final void testExportSortedOnField() throws Exception {
+        final Result result = Export.export(client, INDEX, tempDir, 2,
+                QueryBuilders.matchAllQuery(), new String[0], new String[0], 7,
+                "biocache_store.statistics.entity");
+
+        assertEquals(NUMBER_OF_DOCUMENTS, result.getDocuments());
+        final Set<String> entities = new HashSet<>();
+        for (final SliceResult slice : result.getSlices()) {
+            String previous = "";
+            final List<String> sliceLines = readLines(slice.getFile());
+            for (int i = 1; i < sliceLines.size(); i += 2) {
+                final String line = sliceLines.get(i);
+                final int start = line.indexOf("\"entity\":\"") + "\"entity\":\"".length();
+                final String entity = line.substring(start, line.indexOf('"', start));
+                // Each part is in the order of the sort field
+                assertTrue(previous.compareTo(entity) < 0, previous + " " + entity);
+                entities.add(entity);
+                previous = entity;
+            }
+        }
+        assertEquals(NUMBER_OF_DOCUMENTS, entities.size());
+        assertEquals(0, server.getOpenPointInTimeCount());
+    }
+
+    @Test
+    final void testQueryAndSourceFiltering() throws Exception {
+        final Result result = Export.export(client, INDEX, tempDir, 1,
+                QueryBuilders.termQuery("biocache_store.statistics.category", "load"),
+                new String[] { "biocache_store.*" },
+                new String[] { "biocache_store.statistics.long_value" }, 1000);
+
+        assertEquals(NUMBER_OF_DOCUMENTS / 2, result.getDocuments());
+        final List<String> lines = readLines(result.getSlices().get(0).getFile());
+        assertEquals(NUMBER_OF_DOCUMENTS, lines.size());
+        for (int i = 1; i < lines.size(); i += 2) {
+            final String line = lines.get(i);
+            assertTrue(line.contains("\"category\":\"load\""), line);
+            assertFalse(line.contains("long_value"), line);
+            assertFalse(line.contains("@timestamp"), line);
+        }
+    }
+
+    @Test
+    final void testExportAndBulkLoad() throws Exception {
+        final String copyIndex = INDEX + "-copy";
+        final Result result = Export.export(client, INDEX, tempDir, 3,
+                QueryBuilders.matchAllQuery(), new String[0], new String[0], 50);
+
+        for (final SliceResult slice : result.getSlices()) {
+            BulkLoad.load(client, slice.getFile(), copyIndex, 2, 4096L, 3, true);
+        }
+
+        assertEquals(NUMBER_OF_DOCUMENTS, server.getDocumentCount(copyIndex));
+        // The ids are kept
+        final GetResponse copy = client.get(new GetRequest(copyIndex, "17"),
+                RequestOptions.DEFAULT);
+        assertTrue(copy.isExists());
+        assertEquals("dr17", ((Map<?, ?>) ((Map<?, ?>) copy.getSourceAsMap()
+                .get("biocache_store")).get("statistics")).get("entity"));
+
+        // Loading the same parts again replaces the documents
+        for (final SliceResult slice : result.getSlices()) {
+            BulkLoad.load(client, slice.getFile(), copyIndex, 2, 4096L, 3, true);
+        }
+        assertEquals(NUMBER_OF_DOCUMENTS, server.getDocumentCount(copyIndex));
+    }
+}
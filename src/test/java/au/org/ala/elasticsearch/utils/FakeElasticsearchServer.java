@@ -0,0 +1,2722 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.client.RestHighLevelClient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for a single node elasticsearch 7.10 cluster, which
+ * speaks the subset of the REST API used by this library, so that retry,
+ * backpressure and waiting logic can be tested deterministically without a
+ * live cluster.
+ * <p>
+ * The supported APIs are: root info, cluster health, cluster state metadata,
+ * node statistics, index refresh statistics,
+ * index create/exists/delete/settings/forcemerge, aliases,
+ * legacy templates, field capabilities, document get/index/create/delete,
+ * multi-get, bulk, refresh, search (including point in time, search_after,
+ * sorting, simple queries and composite aggregations), reindex submission,
+ * rethrottle, tasks and task cancellation.
+ * <p>
+ * Simplifications compared to a real cluster:
+ * <ul>
+ * <li>Documents are visible to search only after a refresh, but indexes are
+ * never refreshed periodically.</li>
+ * <li>Only match_all, ids, term, terms, match, exists, range, bool and
+ * function_score queries are supported, using exact matching. The only
+ * function_score function is random_score, with a stable score for each
+ * document and seed that is compared to min_score. Unsorted searches are
+ * ordered by that score, and all other queries score 1.</li>
+ * <li>Scroll is not supported, so sliced searches are rejected as they are
+ * by elasticsearch 7.10 outside of a scroll, including with a point in
+ * time.</li>
+ * <li>Reindex scripts are not run. Instead the transform given to
+ * {@link #reindexTransform(Function)} is applied to each source. Reindexes are
+ * applied when submitted, and the task reports completion after a duration
+ * drawn from {@link #taskDuration(LatencyDistribution)}.</li>
+ * <li>Only composite aggregations with terms sources and sum, min, max and
+ * percentiles sub-aggregations are supported.</li>
+ * </ul>
+ * <p>
+ * Each {@link Endpoint} can be given a latency distribution, rejection (429)
+ * rates and timeouts, either randomly using a seeded {@link Random} or for a
+ * fixed number of upcoming requests. A timed out request is held for the
+ * timeout delay and then the connection is closed without a response.
+ * Searches can also report a failed shard or a timeout and return partial
+ * results. Request bodies may be gzip compressed.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class FakeElasticsearchServer implements AutoCloseable {
+
+    /**
+     * The groups of REST endpoints that latency and failures can be injected
+     * into.
+     */
+    enum Endpoint {
+        ROOT, HEALTH, CLUSTER_STATE, NODES_STATS, INDICES, ALIASES, TEMPLATES, FIELD_CAPS, GET,
+        MGET, INDEX, BULK, SEARCH, PIT, REFRESH, REINDEX, TASKS, STATS
+    }
+
+    /**
+     * A distribution of latencies in milliseconds.
+     */
+    @FunctionalInterface
+    interface LatencyDistribution {
+
+        LatencyDistribution NONE = random -> 0L;
+
+        long nextMillis(Random random);
+
+        static LatencyDistribution fixed(final long millis) {
+            return random -> millis;
+        }
+
+        static LatencyDistribution uniform(final long minMillis, final long maxMillis) {
+            return random -> minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+        }
+
+        static LatencyDistribution exponential(final double meanMillis) {
+            return random -> (long) (-meanMillis * Math.log(1.0 - random.nextDouble()));
+        }
+    }
+
+    static final String NODE_ID = "fakenode";
+    static final String CLUSTER_NAME = "fake-elasticsearch";
+
+    private static final String DOC_TYPE = "_doc";
+    private static final List<String> HEALTH_ORDER = List.of("green", "yellow", "red");
+    private static final List<String> META_FIELDS = List.of("_id", "_index", "_type", "_source",
+            "_seq_no", "_version", "_routing", "_ignored", "_field_names", "_feature",
+            "_data_stream_timestamp");
+    private static final Set<String> SEARCHABLE_META_FIELDS = Set.of("_id", "_index", "_type",
+            "_seq_no", "_routing", "_ignored", "_field_names");
+    private static final Set<String> AGGREGATABLE_META_FIELDS = Set.of("_id", "_index", "_type",
+            "_seq_no", "_routing");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Random random;
+
+    private final Map<Endpoint, EndpointBehaviour> behaviours = new EnumMap<>(Endpoint.class);
+    private volatile TimeValue timeoutDelay = TimeValue.timeValueSeconds(60);
+    private volatile double bulkItemRejectionRate = 0.0;
+    private volatile Set<String> failingDocumentIds = Set.of();
+    private final AtomicLong compressedRequests = new AtomicLong();
+    private final AtomicInteger failShardNext = new AtomicInteger();
+    private final AtomicInteger searchTimeoutNext = new AtomicInteger();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private volatile LatencyDistribution taskDuration = LatencyDistribution.NONE;
+    private volatile Function<Map<String, Object>, Map<String, Object>> reindexTransform = Function
+            .identity();
+
+    private final AtomicLong writeRejected = new AtomicLong();
+    private final AtomicLong writeQueue = new AtomicLong();
+    private final AtomicLong searchRejected = new AtomicLong();
+    private final AtomicLong queryTotal = new AtomicLong();
+    private final AtomicLong queryTimeMillis = new AtomicLong();
+    private final AtomicLong forceMerges = new AtomicLong();
+
+    // All of the cluster state is guarded by this
+    private final NavigableMap<String, FakeIndex> indices = new TreeMap<>();
+    private final Map<String, FakeTemplate> templates = new TreeMap<>();
+    private final Map<String, FakePointInTime> pointsInTime = new HashMap<>();
+    private final Map<Long, FakeTask> tasks = new HashMap<>();
+    private long nextTaskId = 1L;
+    private int maxRunningSlices;
+    private long nextAutoId = 1L;
+    private long nextPointInTimeId = 1L;
+    private int cancelledTasks;
+    private Map<String, Object> lastReindexBody;
+
+    /**
+     * Start a new server on an ephemeral port using a fixed random seed.
+     *
+     * @throws IOException
+     *             If the server could not be started.
+     */
+    FakeElasticsearchServer() throws IOException {
+        this(0L);
+    }
+
+    /**
+     * Start a new server on an ephemeral port.
+     *
+     * @param seed
+     *            The seed for the random latencies and failures.
+     * @throws IOException
+     *             If the server could not be started.
+     */
+    FakeElasticsearchServer(final long seed) throws IOException {
+        random = new Random(seed);
+        for (final Endpoint endpoint : Endpoint.values()) {
+            behaviours.put(endpoint, new EndpointBehaviour());
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "fake-elasticsearch-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return The port that the server is listening on.
+     */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return A new {@link ElasticsearchClientBuilder} with this server added
+     *         as the only host, so that timeouts and pools can be customised.
+     */
+    ElasticsearchClientBuilder newClientBuilder() {
+        return new ElasticsearchClientBuilder().host(server.getAddress().getHostString(),
+                getPort(), "http");
+    }
+
+    /**
+     * @return A new {@link RestHighLevelClient} for this server, which must be
+     *         closed after use.
+     */
+    RestHighLevelClient newClient() {
+        return newClientBuilder().build();
+    }
+
+    FakeElasticsearchServer latency(final Endpoint endpoint,
+            final LatencyDistribution latency) {
+        behaviours.get(endpoint).latency = Objects.requireNonNull(latency);
+        return this;
+    }
+
+    /**
+     * @param endpoint
+     *            The endpoint to reject requests for.
+     * @param rate
+     *            The probability between 0 and 1 that a request is rejected
+     *            with a 429 response.
+     * @return This server, for chaining.
+     */
+    FakeElasticsearchServer rejectionRate(final Endpoint endpoint, final double rate) {
+        behaviours.get(endpoint).rejectionRate = rate;
+        return this;
+    }
+
+    /**
+     * @param endpoint
+     *            The endpoint to reject requests for.
+     * @param count
+     *            The number of upcoming requests to reject with a 429
+     *            response.
+     * @return This server, for chaining.
+     */
+    FakeElasticsearchServer rejectNext(final Endpoint endpoint, final int count) {
+        behaviours.get(endpoint).rejectNext.set(count);
+        return this;
+    }
+
+    /**
+     * @param endpoint
+     *            The endpoint to time out requests for.
+     * @param rate
+     *            The probability between 0 and 1 that a request times out.
+     * @return This server, for chaining.
+     */
+    FakeElasticsearchServer timeoutRate(final Endpoint endpoint, final double rate) {
+        behaviours.get(endpoint).timeoutRate = rate;
+        return this;
+    }
+
+    /**
+     * @param endpoint
+     *            The endpoint to time out requests for.
+     * @param count
+     *            The number of upcoming requests that time out.
+     * @return This server, for chaining.
+     */
+    FakeElasticsearchServer timeoutNext(final Endpoint endpoint, final int count) {
+        behaviours.get(endpoint).timeoutNext.set(count);
+        return this;
+    }
+
+    /**
+     * @param delay
+     *            The time a timed out request is held before its connection is
+     *            closed. Should be longer than the client socket timeout.
+     * @return This server, for chaining.
+     */
+    FakeElasticsearchServer timeoutDelay(final TimeValue delay) {
+        this.timeoutDelay = delay;
+        return this;
+    }
+
+    /**
+     * @param count
+     *            The number of upcoming searches that report a failed shard,
+     *            and only return the first half of their hits.
+     * @return This server, for chaining.
+     */
+    FakeElasticsearchServer failShardNext(final int count) {
+        failShardNext.set(count);
+        return this;
+    }
+
+    /**
+     * @param count
+     *            The number of upcoming searches that report that they timed
+     *            out, and only return the first half of their hits.
+     * @return This server, for chaining.
+     */
+    FakeElasticsearchServer searchTimeoutNext(final int count) {
+        searchTimeoutNext.set(count);
+        return this;
+    }
+
+    /**
+     * @param rate
+     *            The probability between 0 and 1 that each item in a bulk
+     *            request is rejected with a 429 status.
+     * @return This server, for chaining.
+     */
+    FakeElasticsearchServer bulkItemRejectionRate(final double rate) {
+        this.bulkItemRejectionRate = rate;
+        return this;
+    }
+
+    /**
+     * @param ids
+     *            The ids of documents that always fail to be written by bulk
+     *            requests and reindexes with a 400 status, as if they could
+     *            not be parsed.
+     * @return This server, for chaining.
+     */
+    FakeElasticsearchServer failDocuments(final String... ids) {
+        this.failingDocumentIds = Set.of(ids);
+        return this;
+    }
+
+    /**
+     * @param duration
+     *            The distribution of the time between submitting a reindex
+     *            task and the task reporting that it has completed.
+     * @return This server, for chaining.
+     */
+    FakeElasticsearchServer taskDuration(final LatencyDistribution duration) {
+        this.taskDuration = Objects.requireNonNull(duration);
+        return this;
+    }
+
+    /**
+     * @param queued
+     *            The number of tasks reported as waiting in the write thread
+     *            pool queue by the node statistics.
+     * @return This server, for chaining.
+     */
+    FakeElasticsearchServer writeQueue(final long queued) {
+        writeQueue.set(queued);
+        return this;
+    }
+
+    /**
+     * @param transform
+     *            The transform applied to each source document instead of the
+     *            script in reindex requests. May return null to skip the
+     *            document.
+     * @return This server, for chaining.
+     */
+    FakeElasticsearchServer reindexTransform(
+            final Function<Map<String, Object>, Map<String, Object>> transform) {
+        this.reindexTransform = Objects.requireNonNull(transform);
+        return this;
+    }
+
+    /**
+     * @param endpoint
+     *            The endpoint.
+     * @return The number of requests received for the endpoint, including
+     *         rejected and timed out requests.
+     */
+    long getRequestCount(final Endpoint endpoint) {
+        return behaviours.get(endpoint).requests.get();
+    }
+
+    /**
+     * @return The largest number of slices of asynchronous reindex tasks that
+     *         were running at the same time.
+     */
+    synchronized int getMaxRunningSlices() {
+        return maxRunningSlices;
+    }
+
+    /**
+     * @return The number of tasks that were cancelled while they were still
+     *         running.
+     */
+    synchronized int getCancelledTaskCount() {
+        return cancelledTasks;
+    }
+
+    /**
+     * @return The source of the last reindex request, including its index
+     *         and query, or null if there has not been a reindex request.
+     */
+    synchronized Map<String, Object> getLastReindexSource() {
+        return lastReindexBody == null ? null : asMap(lastReindexBody.get("source"));
+    }
+
+    /**
+     * @return The number of write requests and bulk items that were rejected.
+     */
+    long getWriteRejectedCount() {
+        return writeRejected.get();
+    }
+
+    /**
+     * @return The number of force merge requests.
+     */
+    long getForceMergeCount() {
+        return forceMerges.get();
+    }
+
+    /**
+     * @param indexName
+     *            The name of an index.
+     * @return The number of documents in the index, including those that
+     *         have not been refreshed, or -1 if the index does not exist.
+     */
+    synchronized long getDocumentCount(final String indexName) {
+        final FakeIndex index = indices.get(indexName);
+        return index == null ? -1L : index.live.size();
+    }
+
+    /**
+     * @return The number of request bodies that were received compressed.
+     */
+    long getCompressedRequestCount() {
+        return compressedRequests.get();
+    }
+
+    /**
+     * @return The number of request body bytes received, before any
+     *         decompression.
+     */
+    long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * @return The number of open points in time.
+     */
+    synchronized int getOpenPointInTimeCount() {
+        return pointsInTime.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        final byte[] receivedBody;
+        try (InputStream input = exchange.getRequestBody();) {
+            receivedBody = input.readAllBytes();
+        }
+        receivedBytes.addAndGet(receivedBody.length);
+        final byte[] requestBody;
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            compressedRequests.incrementAndGet();
+            try (InputStream input = new GZIPInputStream(
+                    new ByteArrayInputStream(receivedBody));) {
+                requestBody = input.readAllBytes();
+            }
+        } else {
+            requestBody = receivedBody;
+        }
+        final String method = exchange.getRequestMethod();
+        final List<String> path = new ArrayList<>();
+        for (final String part : exchange.getRequestURI().getPath().split("/")) {
+            if (!part.isEmpty()) {
+                path.add(part);
+            }
+        }
+        final Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        final Endpoint endpoint = endpointFor(method, path);
+        final EndpointBehaviour behaviour = behaviours.get(endpoint);
+        behaviour.requests.incrementAndGet();
+
+        try {
+            final long latencyMillis = behaviour.latency.nextMillis(random);
+            if (latencyMillis > 0L) {
+                Thread.sleep(latencyMillis);
+            }
+            if (endpoint == Endpoint.SEARCH) {
+                queryTimeMillis.addAndGet(latencyMillis);
+            }
+            if (behaviour.shouldTimeOut(random)) {
+                Thread.sleep(timeoutDelay.millis());
+                exchange.close();
+                return;
+            }
+            if (behaviour.shouldReject(random)) {
+                if (endpoint == Endpoint.SEARCH || endpoint == Endpoint.MGET
+                        || endpoint == Endpoint.GET) {
+                    searchRejected.incrementAndGet();
+                } else {
+                    writeRejected.incrementAndGet();
+                }
+                throw rejected(endpoint.name().toLowerCase());
+            }
+            final FakeResponse response;
+            if (endpoint == Endpoint.TASKS && path.size() > 2 && "_cancel".equals(path.get(2))) {
+                synchronized (this) {
+                    response = ok(cancelTask(path.get(1)));
+                }
+            } else if (endpoint == Endpoint.TASKS) {
+                // Waiting for tasks must not hold the lock
+                response = getTask(path.get(1), params);
+            } else {
+                synchronized (this) {
+                    response = dispatch(endpoint, method, path, params, requestBody);
+                }
+            }
+            send(exchange, method, response.status, response.body);
+        } catch (final FakeException e) {
+            send(exchange, method, e.status, errorBody(e));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+        } catch (final RuntimeException e) {
+            send(exchange, method, 500,
+                    errorBody(new FakeException(500, "exception", e.toString())));
+        }
+    }
+
+    private static Endpoint endpointFor(final String method, final List<String> path) {
+        if (path.isEmpty()) {
+            return Endpoint.ROOT;
+        }
+        final String first = path.get(0);
+        final String last = path.get(path.size() - 1);
+        switch (first) {
+        case "_cluster":
+            return path.size() > 1 && "state".equals(path.get(1)) ? Endpoint.CLUSTER_STATE
+                    : Endpoint.HEALTH;
+        case "_nodes":
+            return Endpoint.NODES_STATS;
+        case "_template":
+            return Endpoint.TEMPLATES;
+        case "_tasks":
+            return Endpoint.TASKS;
+        case "_reindex":
+            return Endpoint.REINDEX;
+        case "_aliases":
+        case "_alias":
+            return Endpoint.ALIASES;
+        case "_pit":
+            return Endpoint.PIT;
+        default:
+            break;
+        }
+        if (path.contains("_stats")) {
+            return Endpoint.STATS;
+        }
+        switch (last) {
+        case "_mget":
+            return Endpoint.MGET;
+        case "_bulk":
+            return Endpoint.BULK;
+        case "_refresh":
+            return Endpoint.REFRESH;
+        case "_search":
+            return Endpoint.SEARCH;
+        case "_pit":
+            return Endpoint.PIT;
+        case "_field_caps":
+            return Endpoint.FIELD_CAPS;
+        default:
+            break;
+        }
+        if (path.size() >= 2 && ("_doc".equals(path.get(1)) || "_create".equals(path.get(1)))) {
+            return "GET".equals(method) || "HEAD".equals(method) ? Endpoint.GET : Endpoint.INDEX;
+        }
+        return Endpoint.INDICES;
+    }
+
+    private FakeResponse dispatch(final Endpoint endpoint, final String method,
+            final List<String> path, final Map<String, String> params, final byte[] requestBody) {
+        switch (endpoint) {
+        case ROOT:
+            return ok(rootInfo());
+        case HEALTH:
+            return health(path.size() > 2 ? path.get(2) : null, params);
+        case CLUSTER_STATE:
+            return ok(clusterState(path.size() > 3 ? path.get(3) : null));
+        case NODES_STATS:
+            return ok(nodesStats());
+        case STATS:
+            return ok(indexStats("_stats".equals(path.get(0)) ? null : path.get(0), params));
+        case TEMPLATES:
+            return templates(method, path.size() > 1 ? path.get(1) : null, requestBody);
+        case ALIASES:
+            return aliases(method, path, parseBody(requestBody));
+        case FIELD_CAPS:
+            return ok(fieldCaps(path.size() > 1 ? path.get(0) : null, params));
+        case GET:
+            return getDocument(method, path.get(0), path.get(2), params);
+        case INDEX:
+            return indexDocument(method, path, params, parseBody(requestBody));
+        case MGET:
+            return ok(multiGet(path.size() > 1 ? path.get(0) : null, parseBody(requestBody)));
+        case BULK:
+            return ok(bulk(path.size() > 1 ? path.get(0) : null, params, requestBody));
+        case REFRESH:
+            for (final FakeIndex index : resolve(path.size() > 1 ? path.get(0) : null,
+                    params)) {
+                index.refresh();
+            }
+            return ok(shards(1));
+        case SEARCH:
+            queryTotal.incrementAndGet();
+            return ok(search(path.size() > 1 ? path.get(0) : null, params,
+                    parseBody(requestBody)));
+        case PIT:
+            return pointInTime(method, path, params, parseBody(requestBody));
+        case REINDEX:
+            if (path.size() > 2 && "_rethrottle".equals(path.get(2))) {
+                return ok(rethrottle(path.get(1), params));
+            }
+            return reindex(params, parseBody(requestBody));
+        case INDICES:
+            return indices(method, path, params, parseBody(requestBody));
+        default:
+            throw new FakeException(400, "illegal_argument_exception",
+                    "Unsupported request: " + method + " " + path);
+        }
+    }
+
+    private static Map<String, Object> rootInfo() {
+        final Map<String, Object> version = new LinkedHashMap<>();
+        version.put("number", "7.10.0");
+        version.put("build_flavor", "default");
+        version.put("build_type", "docker");
+        version.put("build_hash", "51e9d6f22758d0374a0f3f5c6e8f3a7997850f96");
+        version.put("build_date", "2020-11-09T21:30:33.964949Z");
+        version.put("build_snapshot", false);
+        version.put("lucene_version", "8.7.0");
+        version.put("minimum_wire_compatibility_version", "6.8.0");
+        version.put("minimum_index_compatibility_version", "6.0.0-beta1");
+        final Map<String, Object> body = new LinkedHashMap<>();
+        body.put("name", NODE_ID);
+        body.put("cluster_name", CLUSTER_NAME);
+        body.put("cluster_uuid", "fake-cluster-uuid");
+        body.put("version", version);
+        body.put("tagline", "You Know, for Search");
+        return body;
+    }
+
+    private FakeResponse health(final String indexExpression, final Map<String, String> params) {
+        final Collection<FakeIndex> matched = resolveLenient(indexExpression);
+        final boolean missing = indexExpression != null
+                && Arrays.stream(indexExpression.split(",")).anyMatch(
+                        name -> !name.contains("*") && !"_all".equals(name) && !isIndexOrAlias(name));
+
+        final Map<String, Object> indicesHealth = new TreeMap<>();
+        int activePrimaries = 0;
+        int unassigned = 0;
+        for (final FakeIndex index : matched) {
+            final int shards = index.getNumberOfShards();
+            final int replicas = index.getNumberOfReplicas();
+            // A single node cannot allocate replicas
+            final Map<String, Object> indexHealth = new LinkedHashMap<>();
+            indexHealth.put("status", replicas > 0 ? "yellow" : "green");
+            indexHealth.put("number_of_shards", shards);
+            indexHealth.put("number_of_replicas", replicas);
+            indexHealth.put("active_primary_shards", shards);
+            indexHealth.put("active_shards", shards);
+            indexHealth.put("relocating_shards", 0);
+            indexHealth.put("initializing_shards", 0);
+            indexHealth.put("unassigned_shards", shards * replicas);
+            indicesHealth.put(index.name, indexHealth);
+            activePrimaries += shards;
+            unassigned += shards * replicas;
+        }
+
+        final String status = missing ? "red" : unassigned > 0 ? "yellow" : "green";
+        // Nothing changes while waiting, so a status that has not been reached
+        // times out immediately
+        final boolean timedOut = missing || params.containsKey("wait_for_status") && HEALTH_ORDER
+                .indexOf(status) > HEALTH_ORDER.indexOf(params.get("wait_for_status"));
+
+        final Map<String, Object> body = new LinkedHashMap<>();
+        body.put("cluster_name", CLUSTER_NAME);
+        body.put("status", status);
+        body.put("timed_out", timedOut);
+        body.put("number_of_nodes", 1);
+        body.put("number_of_data_nodes", 1);
+        body.put("active_primary_shards", activePrimaries);
+        body.put("active_shards", activePrimaries);
+        body.put("relocating_shards", 0);
+        body.put("initializing_shards", 0);
+        body.put("unassigned_shards", unassigned);
+        body.put("delayed_unassigned_shards", 0);
+        body.put("number_of_pending_tasks", 0);
+        body.put("number_of_in_flight_fetch", 0);
+        body.put("task_max_waiting_in_queue_millis", 0);
+        body.put("active_shards_percent_as_number", activePrimaries + unassigned == 0 ? 100.0
+                : 100.0 * activePrimaries / (activePrimaries + unassigned));
+        final String level = params.getOrDefault("level", "cluster");
+        if ("indices".equals(level) || "shards".equals(level)) {
+            body.put("indices", indicesHealth);
+        }
+        // Waiting for a missing index or a status that was not reached times
+        // out
+        return new FakeResponse(timedOut ? 408 : 200, body);
+    }
+
+    private Map<String, Object> clusterState(final String indexExpression) {
+        final Map<String, Object> indicesMetadata = new TreeMap<>();
+        for (final FakeIndex index : resolveLenient(indexExpression)) {
+            final Map<String, Object> indexMetadata = new LinkedHashMap<>();
+            indexMetadata.put("version", index.mappingVersion + index.settingsVersion);
+            indexMetadata.put("mapping_version", index.mappingVersion);
+            indexMetadata.put("settings_version", index.settingsVersion);
+            indexMetadata.put("state", "open");
+            indicesMetadata.put(index.name, indexMetadata);
+        }
+        final Map<String, Object> body = new LinkedHashMap<>();
+        body.put("cluster_name", CLUSTER_NAME);
+        body.put("metadata", Map.of("indices", indicesMetadata));
+        return body;
+    }
+
+    private Map<String, Object> indexStats(final String indexExpression,
+            final Map<String, String> params) {
+        final Map<String, Object> indicesStats = new TreeMap<>();
+        for (final FakeIndex index : resolveLenient(indexExpression)) {
+            final Map<String, Object> refresh = new LinkedHashMap<>();
+            refresh.put("total", index.refreshes);
+            refresh.put("external_total", index.refreshes);
+            // The store size is approximated by the length of the sources
+            long storeBytes = 0L;
+            for (final FakeDocument document : index.live.values()) {
+                storeBytes += document.source.toString().length();
+            }
+            final Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("docs", Map.of("count", index.live.size(), "deleted", 0));
+            stats.put("store", Map.of("size_in_bytes", storeBytes));
+            stats.put("refresh", refresh);
+            final Map<String, Object> indexStats = new LinkedHashMap<>();
+            indexStats.put("primaries", stats);
+            indexStats.put("total", stats);
+            if ("shards".equals(params.get("level"))) {
+                // Sequence numbers are assigned by the index rather than by
+                // each shard, so every shard reports the same maximum
+                final Map<String, Object> shardsStats = new TreeMap<>();
+                for (int shard = 0; shard < index.getNumberOfShards(); shard++) {
+                    shardsStats.put(Integer.toString(shard), List.of(Map.of("routing",
+                            Map.of("state", "STARTED", "primary", true, "node", NODE_ID),
+                            "seq_no", Map.of("max_seq_no", index.nextSeqNo - 1,
+                                    "local_checkpoint", index.nextSeqNo - 1,
+                                    "global_checkpoint", index.nextSeqNo - 1))));
+                }
+                indexStats.put("shards", shardsStats);
+            }
+            indicesStats.put(index.name, indexStats);
+        }
+        final Map<String, Object> body = new LinkedHashMap<>();
+        body.put("_shards", shards(indicesStats.size()).get("_shards"));
+        body.put("indices", indicesStats);
+        return body;
+    }
+
+    private Map<String, Object> nodesStats() {
+        final Map<String, Object> node = new LinkedHashMap<>();
+        node.put("name", NODE_ID);
+        node.put("thread_pool", Map.of("write",
+                Map.of("rejected", writeRejected.get(), "queue", writeQueue.get()),
+                "search", Map.of("rejected", searchRejected.get())));
+        node.put("indices", Map.of("search", Map.of("query_total", queryTotal.get(),
+                "query_time_in_millis", queryTimeMillis.get())));
+        final Map<String, Object> body = new LinkedHashMap<>();
+        body.put("_nodes", Map.of("total", 1, "successful", 1, "failed", 0));
+        body.put("cluster_name", CLUSTER_NAME);
+        body.put("nodes", Map.of(NODE_ID, node));
+        return body;
+    }
+
+    private FakeResponse templates(final String method, final String name,
+            final byte[] requestBody) {
+        if ("PUT".equals(method) || "POST".equals(method)) {
+            final Map<String, Object> body = parseBody(requestBody);
+            templates.put(name, new FakeTemplate(name, body));
+            return ok(Map.of("acknowledged", true));
+        }
+        final List<FakeTemplate> matched = new ArrayList<>();
+        for (final FakeTemplate template : templates.values()) {
+            if (name == null || Arrays.stream(name.split(","))
+                    .anyMatch(pattern -> globMatches(pattern, template.name))) {
+                matched.add(template);
+            }
+        }
+        if ("DELETE".equals(method)) {
+            if (matched.isEmpty()) {
+                throw new FakeException(404, "index_template_missing_exception",
+                        "index_template [" + name + "] missing");
+            }
+            for (final FakeTemplate template : matched) {
+                templates.remove(template.name);
+            }
+            return ok(Map.of("acknowledged", true));
+        }
+        final Map<String, Object> body = new LinkedHashMap<>();
+        for (final FakeTemplate template : matched) {
+            body.put(template.name, template.toMap());
+        }
+        // Only a missing concrete template name is not found
+        return new FakeResponse(matched.isEmpty() && name != null && !name.contains("*") ? 404
+                : 200, body);
+    }
+
+    private FakeResponse aliases(final String method, final List<String> path,
+            final Map<String, Object> body) {
+        if ("POST".equals(method) && "_aliases".equals(path.get(0))) {
+            // Validate all of the actions before applying any, so the
+            // actions are atomic
+            final List<Runnable> changes = new ArrayList<>();
+            for (final Object action : getList(body, "actions")) {
+                for (final Entry<String, Object> entry : asMap(action).entrySet()) {
+                    final Map<String, Object> details = asMap(entry.getValue());
+                    // The clients send lists of indices and aliases
+                    final List<FakeIndex> targets = resolve(details.containsKey("indices")
+                            ? String.join(",", toStringArray(details.get("indices")))
+                            : getString(details, "index"), Map.of());
+                    final String[] aliases = details.containsKey("aliases")
+                            ? toStringArray(details.get("aliases"))
+                            : details.containsKey("alias")
+                                    ? new String[] { getString(details, "alias") }
+                                    : new String[0];
+                    for (final FakeIndex index : targets) {
+                        if ("remove_index".equals(entry.getKey())) {
+                            changes.add(() -> indices.remove(index.name));
+                            continue;
+                        }
+                        for (final String alias : aliases) {
+                            switch (entry.getKey()) {
+                            case "add":
+                                changes.add(() -> index.aliases.add(alias));
+                                break;
+                            case "remove":
+                                if (!index.aliases.contains(alias)) {
+                                    throw new FakeException(404, "aliases_not_found_exception",
+                                            "aliases [" + alias + "] missing");
+                                }
+                                changes.add(() -> index.aliases.remove(alias));
+                                break;
+                            default:
+                                throw new FakeException(400, "illegal_argument_exception",
+                                        "Unsupported alias action: " + entry.getKey());
+                            }
+                        }
+                    }
+                }
+            }
+            changes.forEach(Runnable::run);
+            return ok(Map.of("acknowledged", true));
+        }
+        // GET or HEAD /_alias/{name}
+        final String aliasExpression = path.size() > 1 ? path.get(1) : "*";
+        final Map<String, Object> result = new TreeMap<>();
+        for (final FakeIndex index : indices.values()) {
+            final Map<String, Object> matchedAliases = new TreeMap<>();
+            for (final String alias : index.aliases) {
+                if (Arrays.stream(aliasExpression.split(","))
+                        .anyMatch(pattern -> globMatches(pattern, alias))) {
+                    matchedAliases.put(alias, Map.of());
+                }
+            }
+            if (!matchedAliases.isEmpty()) {
+                result.put(index.name, Map.of("aliases", matchedAliases));
+            }
+        }
+        return new FakeResponse(result.isEmpty() ? 404 : 200, result);
+    }
+
+    private Map<String, Object> fieldCaps(final String indexExpression,
+            final Map<String, String> params) {
+        final List<FakeIndex> matched = resolve(indexExpression, params);
+        final Map<String, Map<String, List<String>>> fieldTypeIndices = new TreeMap<>();
+        for (final FakeIndex index : matched) {
+            for (final String metaField : META_FIELDS) {
+                fieldTypeIndices.computeIfAbsent(metaField, k -> new TreeMap<>())
+                        .computeIfAbsent(metaField, k -> new ArrayList<>()).add(index.name);
+            }
+            final Map<String, String> fieldTypes = new TreeMap<>();
+            collectFieldTypes("", index.properties, fieldTypes);
+            for (final Entry<String, String> field : fieldTypes.entrySet()) {
+                fieldTypeIndices.computeIfAbsent(field.getKey(), k -> new TreeMap<>())
+                        .computeIfAbsent(field.getValue(), k -> new ArrayList<>())
+                        .add(index.name);
+            }
+        }
+
+        final Map<String, Object> fields = new LinkedHashMap<>();
+        for (final Entry<String, Map<String, List<String>>> field : fieldTypeIndices.entrySet()) {
+            final Map<String, Object> types = new LinkedHashMap<>();
+            for (final Entry<String, List<String>> type : field.getValue().entrySet()) {
+                final String typeName = type.getKey();
+                final boolean isMeta = field.getKey().startsWith("_");
+                final Map<String, Object> capabilities = new LinkedHashMap<>();
+                capabilities.put("type", typeName);
+                capabilities.put("searchable",
+                        isMeta ? SEARCHABLE_META_FIELDS.contains(typeName)
+                                : !"object".equals(typeName) && !"nested".equals(typeName));
+                capabilities.put("aggregatable",
+                        isMeta ? AGGREGATABLE_META_FIELDS.contains(typeName)
+                                : !"object".equals(typeName) && !"nested".equals(typeName)
+                                        && !"text".equals(typeName));
+                if (field.getValue().size() > 1) {
+                    capabilities.put("indices", type.getValue());
+                }
+                types.put(typeName, capabilities);
+            }
+            fields.put(field.getKey(), types);
+        }
+
+        final Map<String, Object> body = new LinkedHashMap<>();
+        final List<String> indexNames = new ArrayList<>();
+        for (final FakeIndex index : matched) {
+            indexNames.add(index.name);
+        }
+        body.put("indices", indexNames);
+        body.put("fields", fields);
+        return body;
+    }
+
+    private FakeResponse getDocument(final String method, final String indexName,
+            final String id, final Map<String, String> params) {
+        final FakeIndex index = getIndex(indexName);
+        final FakeDocument document = index.live.get(id);
+        if ("HEAD".equals(method)) {
+            return new FakeResponse(document == null ? 404 : 200, Map.of());
+        }
+        final Map<String, Object> body = documentBody(index.name, id, document,
+                !"false".equals(params.get("_source")));
+        return new FakeResponse(document == null ? 404 : 200, body);
+    }
+
+    private static Map<String, Object> documentBody(final String indexName, final String id,
+            final FakeDocument document, final boolean includeSource) {
+        final Map<String, Object> body = new LinkedHashMap<>();
+        body.put("_index", indexName);
+        body.put("_type", DOC_TYPE);
+        body.put("_id", id);
+        if (document == null) {
+            body.put("found", false);
+            return body;
+        }
+        body.put("_version", document.version);
+        body.put("_seq_no", document.seqNo);
+        body.put("_primary_term", 1);
+        body.put("found", true);
+        if (includeSource) {
+            body.put("_source", document.source);
+        }
+        return body;
+    }
+
+    private FakeResponse indexDocument(final String method, final List<String> path,
+            final Map<String, String> params, final Map<String, Object> source) {
+        final FakeIndex index = getOrCreateIndex(path.get(0));
+        if ("DELETE".equals(method)) {
+            final FakeDocument existing = index.live.remove(path.get(2));
+            final Map<String, Object> body = writeResponseBody(index.name, path.get(2),
+                    existing == null ? 1L : existing.version + 1, index.nextSeqNo++,
+                    existing == null ? "not_found" : "deleted");
+            maybeRefresh(index, params);
+            return new FakeResponse(existing == null ? 404 : 200, body);
+        }
+        final String id = path.size() > 2 ? path.get(2) : "fake-" + nextAutoId++;
+        final String opType = "_create".equals(path.get(1)) ? "create"
+                : params.getOrDefault("op_type", "index");
+        final FakeDocument written = write(index, id, source, opType,
+                params.getOrDefault("version_type", "internal"), getLong(params, "version"),
+                getLong(params, "if_seq_no"));
+        maybeRefresh(index, params);
+        final boolean created = written.version == 1L || written.createdByLastWrite;
+        return new FakeResponse(created ? 201 : 200, writeResponseBody(index.name, id,
+                written.version, written.seqNo, created ? "created" : "updated"));
+    }
+
+    private static Map<String, Object> writeResponseBody(final String indexName, final String id,
+            final long version, final long seqNo, final String result) {
+        final Map<String, Object> body = new LinkedHashMap<>();
+        body.put("_index", indexName);
+        body.put("_type", DOC_TYPE);
+        body.put("_id", id);
+        body.put("_version", version);
+        body.put("result", result);
+        body.put("_shards", Map.of("total", 1, "successful", 1, "failed", 0));
+        body.put("_seq_no", seqNo);
+        body.put("_primary_term", 1);
+        return body;
+    }
+
+    /**
+     * Write a document, checking the version and sequence number conditions
+     * and adding any new fields to the mapping.
+     */
+    private FakeDocument write(final FakeIndex index, final String id,
+            final Map<String, Object> source, final String opType, final String versionType,
+            final Long version, final Long ifSeqNo) {
+        final FakeDocument existing = index.live.get(id);
+        if ("create".equals(opType) && existing != null) {
+            throw versionConflict(index.name, id, "[" + id
+                    + "]: version conflict, document already exists (current version ["
+                    + existing.version + "])");
+        }
+        if (ifSeqNo != null && (existing == null || existing.seqNo != ifSeqNo)) {
+            throw versionConflict(index.name, id,
+                    "[" + id + "]: version conflict, required seqNo [" + ifSeqNo + "]");
+        }
+        final long newVersion;
+        if ("external".equals(versionType) || "external_gt".equals(versionType)
+                || "external_gte".equals(versionType)) {
+            if (version == null) {
+                throw new FakeException(400, "action_request_validation_exception",
+                        "Validation Failed: 1: an external version is required;");
+            }
+            if (existing != null && (version < existing.version
+                    || version == existing.version && !"external_gte".equals(versionType))) {
+                throw versionConflict(index.name, id, "[" + id
+                        + "]: version conflict, current version [" + existing.version
+                        + "] is higher or equal to the one provided [" + version + "]");
+            }
+            newVersion = version;
+        } else {
+            newVersion = existing == null ? 1L : existing.version + 1L;
+        }
+        if (index.addDynamicMappings(source)) {
+            index.mappingVersion++;
+        }
+        final FakeDocument document = new FakeDocument(source, newVersion, index.nextSeqNo++,
+                existing == null);
+        index.live.put(id, document);
+        return document;
+    }
+
+    private Map<String, Object> multiGet(final String defaultIndex,
+            final Map<String, Object> body) {
+        final List<Object> docs = new ArrayList<>();
+        final List<Object> requested = new ArrayList<>(getList(body, "docs"));
+        for (final Object id : getList(body, "ids")) {
+            requested.add(Map.of("_id", id));
+        }
+        for (final Object next : requested) {
+            final Map<String, Object> item = asMap(next);
+            final String indexName = item.containsKey("_index") ? getString(item, "_index")
+                    : defaultIndex;
+            final String id = getString(item, "_id");
+            final FakeIndex index = indices.get(indexName);
+            if (index == null) {
+                final Map<String, Object> missing = new LinkedHashMap<>();
+                missing.put("_index", indexName);
+                missing.put("_type", DOC_TYPE);
+                missing.put("_id", id);
+                missing.put("error", errorObject(indexNotFound(indexName)));
+                docs.add(missing);
+            } else {
+                docs.add(documentBody(index.name, id, index.live.get(id),
+                        !Boolean.FALSE.equals(item.get("_source"))));
+            }
+        }
+        return Map.of("docs", docs);
+    }
+
+    private Map<String, Object> bulk(final String defaultIndex, final Map<String, String> params,
+            final byte[] requestBody) {
+        final long start = System.nanoTime();
+        final List<Object> items = new ArrayList<>();
+        final Set<FakeIndex> touched = new LinkedHashSet<>();
+        boolean errors = false;
+        final Iterator<String> lines = Arrays
+                .stream(new String(requestBody, StandardCharsets.UTF_8).split("\n"))
+                .filter(line -> !line.isBlank()).iterator();
+        while (lines.hasNext()) {
+            final Map<String, Object> actionLine = parseBody(
+                    lines.next().getBytes(StandardCharsets.UTF_8));
+            final String action = actionLine.keySet().iterator().next();
+            final Map<String, Object> metadata = asMap(actionLine.get(action));
+            final Map<String, Object> source = "delete".equals(action) ? null
+                    : parseBody(lines.next().getBytes(StandardCharsets.UTF_8));
+            final String indexName = metadata.containsKey("_index")
+                    ? getString(metadata, "_index")
+                    : defaultIndex;
+            final String id = metadata.containsKey("_id") ? getString(metadata, "_id")
+                    : "fake-" + nextAutoId++;
+
+            final Map<String, Object> item;
+            if (bulkItemRejectionRate > 0.0 && random.nextDouble() < bulkItemRejectionRate) {
+                writeRejected.incrementAndGet();
+                item = bulkFailure(indexName, id, rejected("bulk item"));
+            } else if (failingDocumentIds.contains(id)) {
+                item = bulkFailure(indexName, id, new FakeException(400,
+                        "mapper_parsing_exception", "failed to parse document [" + id + "]"));
+            } else {
+                item = bulkItem(action, indexName, id, metadata, source, touched);
+            }
+            errors |= item.containsKey("error");
+            items.add(Map.of(action, item));
+        }
+        for (final FakeIndex index : touched) {
+            maybeRefresh(index, params);
+        }
+        final Map<String, Object> body = new LinkedHashMap<>();
+        body.put("took", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        body.put("errors", errors);
+        body.put("items", items);
+        return body;
+    }
+
+    private Map<String, Object> bulkItem(final String action, final String indexName,
+            final String id, final Map<String, Object> metadata,
+            final Map<String, Object> source, final Set<FakeIndex> touched) {
+        try {
+            final FakeIndex index = getOrCreateIndex(indexName);
+            touched.add(index);
+            final Map<String, Object> item;
+            if ("delete".equals(action)) {
+                final FakeDocument existing = index.live.remove(id);
+                item = writeResponseBody(index.name, id,
+                        existing == null ? 1L : existing.version + 1, index.nextSeqNo++,
+                        existing == null ? "not_found" : "deleted");
+                item.put("status", existing == null ? 404 : 200);
+            } else if ("index".equals(action) || "create".equals(action)) {
+                final String versionType = metadata.containsKey("version_type")
+                        ? getString(metadata, "version_type")
+                        : "internal";
+                final FakeDocument written = write(index, id, source, action, versionType,
+                        metadata.containsKey("version")
+                                ? ((Number) metadata.get("version")).longValue()
+                                : null,
+                        metadata.containsKey("if_seq_no")
+                                ? ((Number) metadata.get("if_seq_no")).longValue()
+                                : null);
+                final boolean created = written.createdByLastWrite;
+                item = writeResponseBody(index.name, id, written.version, written.seqNo,
+                        created ? "created" : "updated");
+                item.put("status", created ? 201 : 200);
+            } else {
+                throw new FakeException(400, "illegal_argument_exception",
+                        "Unsupported bulk action: " + action);
+            }
+            return item;
+        } catch (final FakeException e) {
+            return bulkFailure(indexName, id, e);
+        }
+    }
+
+    private static Map<String, Object> bulkFailure(final String indexName, final String id,
+            final FakeException e) {
+        final Map<String, Object> item = new LinkedHashMap<>();
+        item.put("_index", indexName);
+        item.put("_type", DOC_TYPE);
+        item.put("_id", id);
+        item.put("status", e.status);
+        item.put("error", errorObject(e));
+        return item;
+    }
+
+    private Map<String, Object> search(final String indexExpression,
+            final Map<String, String> params, final Map<String, Object> body) {
+        final long start = System.nanoTime();
+        final Map<String, NavigableMap<String, FakeDocument>> snapshots = new LinkedHashMap<>();
+        String pitId = null;
+        if (body.containsKey("pit")) {
+            final Map<String, Object> pit = asMap(body.get("pit"));
+            pitId = getString(pit, "id");
+            final FakePointInTime pointInTime = pointsInTime.get(pitId);
+            if (pointInTime == null || pointInTime.isExpired()) {
+                pointsInTime.remove(pitId);
+                throw new FakeException(404, "search_context_missing_exception",
+                        "No search context found for id [" + pitId + "]");
+            }
+            if (pit.containsKey("keep_alive")) {
+                pointInTime.keepAlive(getString(pit, "keep_alive"));
+            }
+            snapshots.putAll(pointInTime.snapshots);
+        } else {
+            for (final FakeIndex index : resolve(indexExpression, params)) {
+                snapshots.put(index.name, index.searchable);
+            }
+        }
+
+        if (body.containsKey("slice")) {
+            throw new FakeException(400, "search_phase_execution_exception",
+                    "`slice` cannot be used outside of a scroll context");
+        }
+        final Map<String, Object> query = body.containsKey("query") ? asMap(body.get("query"))
+                : null;
+        final List<SearchCandidate> matched = new ArrayList<>();
+        long shardDoc = 0L;
+        for (final Entry<String, NavigableMap<String, FakeDocument>> snapshot : snapshots
+                .entrySet()) {
+            for (final Entry<String, FakeDocument> document : snapshot.getValue().entrySet()) {
+                shardDoc++;
+                if (matches(query, document.getKey(), document.getValue())) {
+                    matched.add(new SearchCandidate(snapshot.getKey(), document.getKey(),
+                            document.getValue(), shardDoc));
+                }
+            }
+        }
+
+        final List<SortField> sortFields = parseSort(body.get("sort"));
+        final boolean sorted = !sortFields.isEmpty();
+        if (sorted) {
+            for (final SearchCandidate candidate : matched) {
+                candidate.sortValues = new ArrayList<>();
+                for (final SortField sortField : sortFields) {
+                    candidate.sortValues.add(sortField.valueOf(candidate));
+                }
+            }
+            matched.sort((a, b) -> compareSortValues(sortFields, a.sortValues, b.sortValues));
+        } else if (query != null && query.containsKey("function_score")) {
+            for (final SearchCandidate candidate : matched) {
+                candidate.score = randomScore(asMap(query.get("function_score")), candidate.id);
+            }
+            matched.sort((a, b) -> Double.compare(b.score, a.score));
+        }
+        final long total = matched.size();
+        List<SearchCandidate> page = matched;
+        if (sorted && body.containsKey("search_after")) {
+            final List<Object> searchAfter = getList(body, "search_after");
+            page = new ArrayList<>();
+            for (final SearchCandidate candidate : matched) {
+                if (compareSortValues(sortFields, candidate.sortValues, searchAfter) > 0) {
+                    page.add(candidate);
+                }
+            }
+        }
+        final int from = body.containsKey("from") ? ((Number) body.get("from")).intValue() : 0;
+        final int size = body.containsKey("size") ? ((Number) body.get("size")).intValue() : 10;
+        page = page.subList(Math.min(from, page.size()), Math.min(from + size, page.size()));
+        final boolean failShard = failShardNext.getAndUpdate(count -> Math.max(0, count - 1)) > 0;
+        final boolean timedOut = searchTimeoutNext
+                .getAndUpdate(count -> Math.max(0, count - 1)) > 0;
+        if (failShard || timedOut) {
+            // The hits from the missing shard are not returned
+            page = page.subList(0, page.size() / 2);
+        }
+
+        final List<Object> hits = new ArrayList<>();
+        for (final SearchCandidate candidate : page) {
+            final Map<String, Object> hit = new LinkedHashMap<>();
+            hit.put("_index", candidate.indexName);
+            hit.put("_type", DOC_TYPE);
+            hit.put("_id", candidate.id);
+            if (Boolean.TRUE.equals(body.get("version"))) {
+                hit.put("_version", candidate.document.version);
+            }
+            if (Boolean.TRUE.equals(body.get("seq_no_primary_term"))) {
+                hit.put("_seq_no", candidate.document.seqNo);
+                hit.put("_primary_term", 1);
+            }
+            hit.put("_score", sorted ? null : candidate.score);
+            final Map<String, Object> source = filterSource(candidate.document.source,
+                    body.get("_source"));
+            if (source != null) {
+                hit.put("_source", source);
+            }
+            if (sorted) {
+                hit.put("sort", candidate.sortValues);
+            }
+            hits.add(hit);
+        }
+
+        final Map<String, Object> hitsBody = new LinkedHashMap<>();
+        if (!Boolean.FALSE.equals(body.get("track_total_hits"))) {
+            hitsBody.put("total", Map.of("value", total, "relation", "eq"));
+        }
+        hitsBody.put("max_score", sorted || page.isEmpty() ? null : page.get(0).score);
+        hitsBody.put("hits", hits);
+
+        final Map<String, Object> response = new LinkedHashMap<>();
+        if (pitId != null) {
+            response.put("pit_id", pitId);
+        }
+        response.put("took", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        response.put("timed_out", timedOut);
+        if (failShard) {
+            response.put("_shards", Map.of("total", snapshots.size() + 1, "successful",
+                    snapshots.size(), "skipped", 0, "failed", 1, "failures",
+                    List.of(Map.of("shard", 0, "index", snapshots.isEmpty() ? "unknown"
+                            : snapshots.keySet().iterator().next(), "node", NODE_ID, "reason",
+                            Map.of("type", "exception", "reason", "Injected shard failure")))));
+        } else {
+            response.put("_shards", Map.of("total", snapshots.size(), "successful",
+                    snapshots.size(), "skipped", 0, "failed", 0));
+        }
+        response.put("hits", hitsBody);
+        final Object aggregations = body.containsKey("aggs") ? body.get("aggs")
+                : body.get("aggregations");
+        if (aggregations != null) {
+            response.put("aggregations", aggregations(asMap(aggregations), matched));
+        }
+        return response;
+    }
+
+    /**
+     * Runs composite aggregations with terms sources, and sum, min, max and
+     * percentiles sub-aggregations, using the typed keys that the high level
+     * client asks for.
+     */
+    private static Map<String, Object> aggregations(final Map<String, Object> aggregations,
+            final List<SearchCandidate> matched) {
+        final Map<String, Object> result = new LinkedHashMap<>();
+        for (final Entry<String, Object> aggregation : aggregations.entrySet()) {
+            final Map<String, Object> definition = asMap(aggregation.getValue());
+            if (!definition.containsKey("composite")) {
+                throw new FakeException(400, "illegal_argument_exception",
+                        "Only composite aggregations are supported by the fake server");
+            }
+            result.put("composite#" + aggregation.getKey(), composite(
+                    asMap(definition.get("composite")),
+                    definition.containsKey("aggs") ? asMap(definition.get("aggs"))
+                            : definition.containsKey("aggregations")
+                                    ? asMap(definition.get("aggregations"))
+                                    : Map.of(),
+                    matched));
+        }
+        return result;
+    }
+
+    private static Map<String, Object> composite(final Map<String, Object> composite,
+            final Map<String, Object> subAggregations, final List<SearchCandidate> matched) {
+        final List<String> names = new ArrayList<>();
+        final List<String> fields = new ArrayList<>();
+        final List<Boolean> missingBuckets = new ArrayList<>();
+        for (final Object source : getList(composite, "sources")) {
+            final Entry<String, Object> named = asMap(source).entrySet().iterator().next();
+            final Map<String, Object> terms = asMap(asMap(named.getValue()).get("terms"));
+            if (terms == null) {
+                throw new FakeException(400, "illegal_argument_exception",
+                        "Only terms sources are supported by the fake server");
+            }
+            names.add(named.getKey());
+            fields.add(getString(terms, "field"));
+            missingBuckets.add(Boolean.TRUE.equals(terms.get("missing_bucket")));
+        }
+
+        // Missing values sort first in ascending composite buckets
+        final Comparator<List<Object>> keyOrder = (first, second) -> {
+            for (int i = 0; i < first.size(); i++) {
+                final Object a = first.get(i);
+                final Object b = second.get(i);
+                final int comparison = a == null || b == null
+                        ? (a == null ? (b == null ? 0 : -1) : 1)
+                        : compareValues(a, b);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            return 0;
+        };
+        final TreeMap<List<Object>, List<Map<String, Object>>> buckets = new TreeMap<>(keyOrder);
+        candidates: for (final SearchCandidate candidate : matched) {
+            final List<Object> key = new ArrayList<>();
+            for (int i = 0; i < fields.size(); i++) {
+                // Only the first value of multi-valued fields is used
+                final List<Object> values = fieldValues(candidate.document.source, fields.get(i));
+                if (values.isEmpty() && !missingBuckets.get(i)) {
+                    continue candidates;
+                }
+                key.add(values.isEmpty() ? null : values.get(0));
+            }
+            buckets.computeIfAbsent(key, k -> new ArrayList<>()).add(candidate.document.source);
+        }
+
+        final int size = composite.containsKey("size")
+                ? ((Number) composite.get("size")).intValue()
+                : 10;
+        final Map<String, Object> after = composite.containsKey("after")
+                ? asMap(composite.get("after"))
+                : null;
+        final List<Object> bucketBodies = new ArrayList<>();
+        Map<String, Object> afterKey = null;
+        for (final Entry<List<Object>, List<Map<String, Object>>> bucket : buckets.entrySet()) {
+            if (bucketBodies.size() >= size) {
+                break;
+            }
+            if (after != null) {
+                final List<Object> afterValues = new ArrayList<>();
+                for (final String name : names) {
+                    afterValues.add(after.get(name));
+                }
+                if (keyOrder.compare(bucket.getKey(), afterValues) <= 0) {
+                    continue;
+                }
+            }
+            final Map<String, Object> key = new LinkedHashMap<>();
+            for (int i = 0; i < names.size(); i++) {
+                key.put(names.get(i), bucket.getKey().get(i));
+            }
+            final Map<String, Object> bucketBody = new LinkedHashMap<>();
+            bucketBody.put("key", key);
+            bucketBody.put("doc_count", bucket.getValue().size());
+            for (final Entry<String, Object> subAggregation : subAggregations.entrySet()) {
+                metric(subAggregation.getKey(), asMap(subAggregation.getValue()),
+                        bucket.getValue(), bucketBody);
+            }
+            bucketBodies.add(bucketBody);
+            afterKey = key;
+        }
+
+        final Map<String, Object> result = new LinkedHashMap<>();
+        if (afterKey != null) {
+            result.put("after_key", afterKey);
+        }
+        result.put("buckets", bucketBodies);
+        return result;
+    }
+
+    private static void metric(final String name, final Map<String, Object> definition,
+            final List<Map<String, Object>> sources, final Map<String, Object> bucketBody) {
+        final Entry<String, Object> typed = definition.entrySet().iterator().next();
+        final Map<String, Object> details = asMap(typed.getValue());
+        final List<Double> values = new ArrayList<>();
+        for (final Map<String, Object> source : sources) {
+            for (final Object value : fieldValues(source, getString(details, "field"))) {
+                values.add(((Number) value).doubleValue());
+            }
+        }
+        Collections.sort(values);
+        final Map<String, Object> value = new LinkedHashMap<>();
+        switch (typed.getKey()) {
+        case "sum":
+            value.put("value", values.stream().mapToDouble(Double::doubleValue).sum());
+            bucketBody.put("sum#" + name, value);
+            break;
+        case "min":
+            value.put("value", values.isEmpty() ? null : values.get(0));
+            bucketBody.put("min#" + name, value);
+            break;
+        case "max":
+            value.put("value", values.isEmpty() ? null : values.get(values.size() - 1));
+            bucketBody.put("max#" + name, value);
+            break;
+        case "percentiles":
+            final Map<String, Object> percentiles = new LinkedHashMap<>();
+            for (final Object percent : getList(details, "percents")) {
+                final double p = ((Number) percent).doubleValue();
+                percentiles.put(Double.toString(p), percentile(values, p));
+            }
+            value.put("values", percentiles);
+            bucketBody.put("tdigest_percentiles#" + name, value);
+            break;
+        default:
+            throw new FakeException(400, "illegal_argument_exception",
+                    "Unsupported sub-aggregation: " + typed.getKey());
+        }
+    }
+
+    /**
+     * Linearly interpolated percentile, which matches the t-digest used by
+     * elasticsearch exactly for small numbers of values.
+     */
+    private static Double percentile(final List<Double> sortedValues, final double percent) {
+        if (sortedValues.isEmpty()) {
+            return null;
+        }
+        final double rank = percent / 100.0 * (sortedValues.size() - 1);
+        final int lower = (int) Math.floor(rank);
+        final int upper = (int) Math.ceil(rank);
+        return sortedValues.get(lower)
+                + (rank - lower) * (sortedValues.get(upper) - sortedValues.get(lower));
+    }
+
+    private static Map<String, Object> filterSource(final Map<String, Object> source,
+            final Object sourceFilter) {
+        if (sourceFilter == null || Boolean.TRUE.equals(sourceFilter)) {
+            return source;
+        }
+        if (Boolean.FALSE.equals(sourceFilter)) {
+            return null;
+        }
+        final String[] includes;
+        final String[] excludes;
+        if (sourceFilter instanceof Map) {
+            final Map<String, Object> filter = asMap(sourceFilter);
+            includes = toStringArray(filter.get("includes"));
+            excludes = toStringArray(filter.get("excludes"));
+        } else {
+            includes = toStringArray(sourceFilter);
+            excludes = new String[0];
+        }
+        return XContentMapValues.filter(source, includes, excludes);
+    }
+
+    private static String[] toStringArray(final Object value) {
+        if (value == null) {
+            return new String[0];
+        }
+        if (value instanceof List) {
+            return ((List<?>) value).stream().map(Object::toString).toArray(String[]::new);
+        }
+        return new String[] { value.toString() };
+    }
+
+    private static List<SortField> parseSort(final Object sort) {
+        final List<SortField> result = new ArrayList<>();
+        if (sort == null) {
+            return result;
+        }
+        for (final Object next : sort instanceof List ? (List<?>) sort : List.of(sort)) {
+            if (next instanceof String) {
+                result.add(new SortField((String) next, true));
+                continue;
+            }
+            for (final Entry<String, Object> entry : asMap(next).entrySet()) {
+                final Object order = entry.getValue() instanceof Map
+                        ? asMap(entry.getValue()).get("order")
+                        : entry.getValue();
+                result.add(new SortField(entry.getKey(), !"desc".equals(order)));
+            }
+        }
+        return result;
+    }
+
+    private static int compareSortValues(final List<SortField> sortFields,
+            final List<Object> first, final List<?> second) {
+        for (int i = 0; i < sortFields.size() && i < second.size(); i++) {
+            final int comparison = compareValues(first.get(i), second.get(i));
+            if (comparison != 0) {
+                return sortFields.get(i).ascending ? comparison : -comparison;
+            }
+        }
+        return 0;
+    }
+
+    private static int compareValues(final Object first, final Object second) {
+        if (first == null || second == null) {
+            // Missing values sort last
+            return first == null ? (second == null ? 0 : 1) : -1;
+        }
+        if (first instanceof Number && second instanceof Number) {
+            return Double.compare(((Number) first).doubleValue(),
+                    ((Number) second).doubleValue());
+        }
+        return first.toString().compareTo(second.toString());
+    }
+
+    private static boolean matches(final Map<String, Object> query, final String id,
+            final FakeDocument document) {
+        if (query == null || query.isEmpty()) {
+            return true;
+        }
+        final Map<String, Object> source = document.source;
+        final Entry<String, Object> clause = query.entrySet().iterator().next();
+        final Map<String, Object> details = asMap(clause.getValue());
+        switch (clause.getKey()) {
+        case "match_all":
+            return true;
+        case "ids":
+            return getList(details, "values").contains(id);
+        case "term":
+        case "match":
+        case "match_phrase": {
+            final Entry<String, Object> field = firstField(details);
+            final Object expected = termValue(field.getValue());
+            return fieldValues(source, field.getKey()).stream()
+                    .anyMatch(value -> termEquals(value, expected));
+        }
+        case "terms": {
+            final Entry<String, Object> field = firstField(details);
+            final List<?> expected = (List<?>) field.getValue();
+            return fieldValues(source, field.getKey()).stream()
+                    .anyMatch(value -> expected.stream().anyMatch(e -> termEquals(value, e)));
+        }
+        case "exists":
+            return !fieldValues(source, getString(details, "field")).isEmpty();
+        case "range": {
+            final Entry<String, Object> field = firstField(details);
+            final Map<String, Object> range = asMap(field.getValue());
+            if ("_seq_no".equals(field.getKey())) {
+                return inRange(document.seqNo, range);
+            }
+            return fieldValues(source, field.getKey()).stream()
+                    .anyMatch(value -> inRange(value, range));
+        }
+        case "bool": {
+            for (final Object must : clauses(details.get("must"))) {
+                if (!matches(asMap(must), id, document)) {
+                    return false;
+                }
+            }
+            for (final Object filter : clauses(details.get("filter"))) {
+                if (!matches(asMap(filter), id, document)) {
+                    return false;
+                }
+            }
+            for (final Object mustNot : clauses(details.get("must_not"))) {
+                if (matches(asMap(mustNot), id, document)) {
+                    return false;
+                }
+            }
+            final List<?> should = clauses(details.get("should"));
+            if (!should.isEmpty() && details.get("must") == null
+                    && details.get("filter") == null) {
+                return should.stream().anyMatch(next -> matches(asMap(next), id, document));
+            }
+            return true;
+        }
+        case "function_score":
+            if (details.containsKey("min_score")
+                    && randomScore(details, id) < ((Number) details.get("min_score"))
+                            .doubleValue()) {
+                return false;
+            }
+            return details.get("query") == null || matches(asMap(details.get("query")), id,
+                    document);
+        case "constant_score": {
+            final Object inner = details.containsKey("query") ? details.get("query")
+                    : details.get("filter");
+            return inner == null || matches(asMap(inner), id, document);
+        }
+        default:
+            throw new FakeException(400, "parsing_exception",
+                    "[" + clause.getKey() + "] query is not supported by the fake server");
+        }
+    }
+
+    /**
+     * A stable score between 0 and 1 for a document from the random_score
+     * function of a function_score query, or 1 if it has no random_score
+     * function.
+     */
+    private static double randomScore(final Map<String, Object> functionScore, final String id) {
+        final List<?> functions = functionScore.containsKey("functions")
+                ? (List<?>) functionScore.get("functions")
+                : List.of(functionScore);
+        for (final Object function : functions) {
+            if (asMap(function).containsKey("random_score")) {
+                final Map<String, Object> randomScore = asMap(
+                        asMap(function).get("random_score"));
+                // Mix the bits, as the hashes of short IDs are close together
+                long hash = Objects.hash(id, randomScore.get("seed")) * 0x9E3779B97F4A7C15L;
+                hash ^= hash >>> 29;
+                hash *= 0xBF58476D1CE4E5B9L;
+                hash ^= hash >>> 32;
+                return (hash >>> 11) * 0x1.0p-53;
+            }
+        }
+        return 1.0;
+    }
+
+    private static Object termValue(final Object value) {
+        if (value instanceof Map) {
+            final Map<String, Object> options = asMap(value);
+            return options.containsKey("value") ? options.get("value") : options.get("query");
+        }
+        return value;
+    }
+
+    private static boolean termEquals(final Object value, final Object expected) {
+        if (value instanceof Number && expected instanceof Number) {
+            return compareValues(value, expected) == 0;
+        }
+        return Objects.toString(value).equals(Objects.toString(expected));
+    }
+
+    private static boolean inRange(final Object value, final Map<String, Object> range) {
+        // Query builders send from/to/include_lower/include_upper
+        final Object lower = range.containsKey("gte") ? range.get("gte")
+                : range.containsKey("gt") ? range.get("gt") : range.get("from");
+        final Object upper = range.containsKey("lte") ? range.get("lte")
+                : range.containsKey("lt") ? range.get("lt") : range.get("to");
+        final boolean includeLower = range.containsKey("gte")
+                || !range.containsKey("gt") && !Boolean.FALSE.equals(range.get("include_lower"));
+        final boolean includeUpper = range.containsKey("lte")
+                || !range.containsKey("lt") && !Boolean.FALSE.equals(range.get("include_upper"));
+        if (lower != null) {
+            final int comparison = compareValues(value, lower);
+            if (comparison < 0 || comparison == 0 && !includeLower) {
+                return false;
+            }
+        }
+        if (upper != null) {
+            final int comparison = compareValues(value, upper);
+            if (comparison > 0 || comparison == 0 && !includeUpper) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<?> clauses(final Object value) {
+        if (value == null) {
+            return List.of();
+        }
+        return value instanceof List ? (List<?>) value : List.of(value);
+    }
+
+    private static Entry<String, Object> firstField(final Map<String, Object> details) {
+        for (final Entry<String, Object> entry : details.entrySet()) {
+            if (!"boost".equals(entry.getKey()) && !"_name".equals(entry.getKey())) {
+                return entry;
+            }
+        }
+        throw new FakeException(400, "parsing_exception", "Query does not contain a field");
+    }
+
+    private static List<Object> fieldValues(final Map<String, Object> source, final String path) {
+        final Object value = XContentMapValues.extractValue(path, source);
+        if (value == null) {
+            return List.of();
+        }
+        if (value instanceof List) {
+            final List<Object> values = new ArrayList<>((List<?>) value);
+            values.removeIf(Objects::isNull);
+            return values;
+        }
+        return List.of(value);
+    }
+
+    private FakeResponse pointInTime(final String method, final List<String> path,
+            final Map<String, String> params, final Map<String, Object> body) {
+        if ("DELETE".equals(method)) {
+            final FakePointInTime removed = pointsInTime.remove(getString(body, "id"));
+            return new FakeResponse(removed == null ? 404 : 200,
+                    Map.of("succeeded", true, "num_freed", removed == null ? 0 : 1));
+        }
+        final String keepAlive = params.get("keep_alive");
+        if (keepAlive == null) {
+            throw new FakeException(400, "action_request_validation_exception",
+                    "Validation Failed: 1: [keep_alive] is not specified;");
+        }
+        final Map<String, NavigableMap<String, FakeDocument>> snapshots = new LinkedHashMap<>();
+        for (final FakeIndex index : resolve(path.get(0), params)) {
+            snapshots.put(index.name, index.searchable);
+        }
+        final String id = "fake-pit-" + nextPointInTimeId++;
+        final FakePointInTime pointInTime = new FakePointInTime(snapshots);
+        pointInTime.keepAlive(keepAlive);
+        pointsInTime.put(id, pointInTime);
+        return ok(Map.of("id", id));
+    }
+
+    private FakeResponse reindex(final Map<String, String> params,
+            final Map<String, Object> body) {
+        final long start = System.nanoTime();
+        lastReindexBody = body;
+        final Map<String, Object> sourceSpec = asMap(body.get("source"));
+        final Map<String, Object> destSpec = asMap(body.get("dest"));
+        final Object sourceIndexes = sourceSpec.get("index");
+        final String sourceExpression = sourceIndexes instanceof List
+                ? String.join(",", toStringArray(sourceIndexes))
+                : Objects.toString(sourceIndexes);
+        final List<FakeIndex> sources = resolve(sourceExpression, Map.of());
+        final Map<String, Object> query = sourceSpec.containsKey("query")
+                ? asMap(sourceSpec.get("query"))
+                : null;
+        final long maxDocs = body.containsKey("max_docs")
+                ? ((Number) body.get("max_docs")).longValue()
+                : Long.MAX_VALUE;
+        final int batchSize = sourceSpec.containsKey("size")
+                ? ((Number) sourceSpec.get("size")).intValue()
+                : 1000;
+        final boolean proceedOnConflicts = "proceed".equals(body.get("conflicts"));
+        final String versionType = destSpec.containsKey("version_type")
+                ? getString(destSpec, "version_type")
+                : "internal";
+        final String opType = destSpec.containsKey("op_type") ? getString(destSpec, "op_type")
+                : "index";
+        final FakeIndex dest = getOrCreateIndex(getString(destSpec, "index"));
+        final Function<Map<String, Object>, Map<String, Object>> transform = body
+                .containsKey("script") ? reindexTransform : Function.identity();
+
+        long total = 0L;
+        long created = 0L;
+        long updated = 0L;
+        long noops = 0L;
+        long versionConflicts = 0L;
+        final List<Object> failures = new ArrayList<>();
+        copy: for (final FakeIndex source : sources) {
+            for (final Entry<String, FakeDocument> document : new ArrayList<>(
+                    source.searchable.entrySet())) {
+                if (total >= maxDocs) {
+                    break copy;
+                }
+                if (!matches(query, document.getKey(), document.getValue())) {
+                    continue;
+                }
+                total++;
+                final Map<String, Object> transformed = transform
+                        .apply(new LinkedHashMap<>(document.getValue().source));
+                if (transformed == null) {
+                    noops++;
+                    continue;
+                }
+                if (failingDocumentIds.contains(document.getKey())) {
+                    // The reindex stops at the first failed bulk item
+                    final Map<String, Object> failure = new LinkedHashMap<>();
+                    failure.put("index", dest.name);
+                    failure.put("type", DOC_TYPE);
+                    failure.put("id", document.getKey());
+                    failure.put("cause", errorObject(new FakeException(400,
+                            "mapper_parsing_exception",
+                            "failed to parse document [" + document.getKey() + "]")));
+                    failure.put("status", 400);
+                    failures.add(failure);
+                    break copy;
+                }
+                try {
+                    final FakeDocument written = write(dest, document.getKey(), transformed,
+                            opType, versionType,
+                            "internal".equals(versionType) ? null
+                                    : document.getValue().version,
+                            null);
+                    if (written.createdByLastWrite) {
+                        created++;
+                    } else {
+                        updated++;
+                    }
+                } catch (final FakeException e) {
+                    versionConflicts++;
+                    if (!proceedOnConflicts) {
+                        final Map<String, Object> failure = new LinkedHashMap<>();
+                        failure.put("index", dest.name);
+                        failure.put("type", DOC_TYPE);
+                        failure.put("id", document.getKey());
+                        failure.put("cause", errorObject(e));
+                        failure.put("status", e.status);
+                        failures.add(failure);
+                        break copy;
+                    }
+                }
+            }
+        }
+        maybeRefresh(dest, params);
+
+        final float requestsPerSecond = parseRequestsPerSecond(params);
+        final Map<String, Object> counts = new LinkedHashMap<>();
+        counts.put("total", total);
+        counts.put("updated", updated);
+        counts.put("created", created);
+        counts.put("deleted", 0);
+        counts.put("batches", (total + batchSize - 1) / batchSize);
+        counts.put("version_conflicts", versionConflicts);
+        counts.put("noops", noops);
+        counts.put("retries", Map.of("bulk", 0, "search", 0));
+        counts.put("throttled_millis", 0);
+        counts.put("requests_per_second", requestsPerSecond);
+        counts.put("throttled_until_millis", 0);
+
+        final Map<String, Object> response = new LinkedHashMap<>();
+        response.put("took", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        response.put("timed_out", false);
+        response.putAll(counts);
+        response.put("failures", failures);
+
+        if (!"false".equals(params.get("wait_for_completion"))) {
+            return ok(response);
+        }
+        final FakeTask task = new FakeTask(nextTaskId++,
+                "reindex from [" + sourceExpression + "] to [" + dest.name + "]", counts,
+                response, taskDuration.nextMillis(random));
+        task.requestsPerSecond = requestsPerSecond;
+        task.slices = params.containsKey("slices") ? Integer.parseInt(params.get("slices")) : 1;
+        tasks.put(task.id, task);
+        int runningSlices = 0;
+        for (final FakeTask nextTask : tasks.values()) {
+            if (!nextTask.isCompleted()) {
+                runningSlices += nextTask.slices;
+            }
+        }
+        maxRunningSlices = Math.max(maxRunningSlices, runningSlices);
+        return ok(Map.of("task", NODE_ID + ":" + task.id));
+    }
+
+    private static float parseRequestsPerSecond(final Map<String, String> params) {
+        final String value = params.get("requests_per_second");
+        if (value == null || "-1".equals(value) || "-1.0".equals(value)) {
+            return -1.0f;
+        }
+        final float requestsPerSecond = Float.parseFloat(value);
+        return Float.isInfinite(requestsPerSecond) ? -1.0f : requestsPerSecond;
+    }
+
+    private Map<String, Object> rethrottle(final String taskId, final Map<String, String> params) {
+        final FakeTask task = tasks.get(parseTaskId(taskId));
+        if (task != null && !task.isCompleted()) {
+            task.requestsPerSecond = parseRequestsPerSecond(params);
+        }
+        return taskNodes(task);
+    }
+
+    private Map<String, Object> cancelTask(final String taskId) {
+        final FakeTask task = tasks.get(parseTaskId(taskId));
+        if (task == null) {
+            throw new FakeException(404, "resource_not_found_exception",
+                    "task [" + taskId + "] is not found");
+        }
+        final Map<String, Object> nodes = taskNodes(task);
+        if (!task.isCompleted()) {
+            // The changes have already been applied, so only the completion
+            // is brought forward
+            task.cancel();
+            cancelledTasks++;
+        }
+        return nodes;
+    }
+
+    private static Map<String, Object> taskNodes(final FakeTask task) {
+        final Map<String, Object> nodes = new LinkedHashMap<>();
+        if (task != null && !task.isCompleted()) {
+            final Map<String, Object> node = new LinkedHashMap<>();
+            node.put("name", NODE_ID);
+            node.put("transport_address", "127.0.0.1:9300");
+            node.put("host", "127.0.0.1");
+            node.put("ip", "127.0.0.1:9300");
+            node.put("roles", List.of("data", "ingest", "master"));
+            node.put("tasks", Map.of(NODE_ID + ":" + task.id, task.toTaskInfo()));
+            nodes.put(NODE_ID, node);
+        }
+        return Map.of("nodes", nodes);
+    }
+
+    private FakeResponse getTask(final String taskId, final Map<String, String> params)
+            throws InterruptedException {
+        final FakeTask task;
+        synchronized (this) {
+            task = tasks.get(parseTaskId(taskId));
+        }
+        if (task == null) {
+            throw new FakeException(404, "resource_not_found_exception",
+                    "task [" + taskId + "] isn't running and hasn't stored its results");
+        }
+        if ("true".equals(params.get("wait_for_completion"))) {
+            final long timeoutNanos = params.containsKey("timeout")
+                    ? TimeValue.parseTimeValue(params.get("timeout"), "timeout").nanos()
+                    : TimeUnit.SECONDS.toNanos(30);
+            final long waitNanos = Math.min(timeoutNanos,
+                    task.completeAtNanos - System.nanoTime());
+            if (waitNanos > 0L) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            if (!task.isCompleted()) {
+                // 7.10 reports timeouts waiting for tasks as a server error
+                throw new FakeException(500, "timeout_exception",
+                        "Timed out waiting for completion of [" + task.description + "]");
+            }
+        }
+        synchronized (this) {
+            final Map<String, Object> body = new LinkedHashMap<>();
+            body.put("completed", task.isCompleted());
+            body.put("task", task.toTaskInfo());
+            if (task.isCompleted()) {
+                final Map<String, Object> response = new LinkedHashMap<>(task.response);
+                response.put("requests_per_second", task.requestsPerSecond);
+                if (task.cancelled) {
+                    response.put("canceled", "by user request");
+                }
+                body.put("response", response);
+            }
+            return ok(body);
+        }
+    }
+
+    private static long parseTaskId(final String taskId) {
+        final int separator = taskId.lastIndexOf(':');
+        try {
+            return Long.parseLong(taskId.substring(separator + 1));
+        } catch (final NumberFormatException e) {
+            throw new FakeException(400, "illegal_argument_exception",
+                    "malformed task id " + taskId);
+        }
+    }
+
+    private FakeResponse indices(final String method, final List<String> path,
+            final Map<String, String> params, final Map<String, Object> body) {
+        final String indexExpression = path.get(0);
+        final String operation = path.size() > 1 ? path.get(1) : null;
+        if ("_settings".equals(operation)) {
+            if ("PUT".equals(method)) {
+                final Map<String, Object> settings = body.containsKey("settings")
+                        ? asMap(body.get("settings"))
+                        : body;
+                for (final FakeIndex index : resolve(indexExpression, params)) {
+                    // A null value resets the setting to its default
+                    for (final Entry<String, Object> setting : flattenSettings(settings)
+                            .entrySet()) {
+                        if (setting.getValue() == null) {
+                            index.settings.remove(setting.getKey());
+                        } else {
+                            index.settings.put(setting.getKey(), setting.getValue());
+                        }
+                    }
+                    index.settingsVersion++;
+                }
+                return ok(Map.of("acknowledged", true));
+            }
+            final Map<String, Object> result = new TreeMap<>();
+            for (final FakeIndex index : resolve(indexExpression, params)) {
+                result.put(index.name, Map.of("settings", nestSettings(index.settings)));
+            }
+            return ok(result);
+        }
+        if ("_forcemerge".equals(operation) || "_flush".equals(operation)) {
+            if ("_forcemerge".equals(operation)) {
+                forceMerges.incrementAndGet();
+            }
+            return ok(shards(resolve(indexExpression, params).size()));
+        }
+        if (operation != null) {
+            throw new FakeException(400, "illegal_argument_exception",
+                    "Unsupported request: " + method + " " + path);
+        }
+        switch (method) {
+        case "HEAD":
+            return new FakeResponse(resolveLenient(indexExpression).isEmpty() ? 404 : 200,
+                    Map.of());
+        case "PUT":
+            if (indices.containsKey(indexExpression)) {
+                throw new FakeException(400, "resource_already_exists_exception",
+                        "index [" + indexExpression + "/fake-uuid] already exists");
+            }
+            createIndex(indexExpression, body);
+            return ok(Map.of("acknowledged", true, "shards_acknowledged", true, "index",
+                    indexExpression));
+        case "DELETE":
+            for (final FakeIndex index : resolve(indexExpression, params)) {
+                indices.remove(index.name);
+            }
+            return ok(Map.of("acknowledged", true));
+        case "GET": {
+            final Map<String, Object> result = new TreeMap<>();
+            for (final FakeIndex index : resolve(indexExpression, params)) {
+                final Map<String, Object> aliases = new TreeMap<>();
+                for (final String alias : index.aliases) {
+                    aliases.put(alias, Map.of());
+                }
+                result.put(index.name, Map.of("aliases", aliases, "mappings",
+                        Map.of("properties", index.properties), "settings",
+                        nestSettings(index.settings)));
+            }
+            return ok(result);
+        }
+        default:
+            throw new FakeException(405, "illegal_argument_exception",
+                    "Unsupported method: " + method);
+        }
+    }
+
+    private FakeIndex createIndex(final String name, final Map<String, Object> body) {
+        final FakeIndex index = new FakeIndex(name);
+        final List<FakeTemplate> matching = new ArrayList<>();
+        for (final FakeTemplate template : templates.values()) {
+            if (template.indexPatterns.stream().anyMatch(pattern -> globMatches(pattern, name))) {
+                matching.add(template);
+            }
+        }
+        // Higher order templates override lower order templates
+        matching.sort(Comparator.comparingInt(template -> template.order));
+        for (final FakeTemplate template : matching) {
+            index.settings.putAll(template.settings);
+            mergeProperties(index.properties, template.properties);
+        }
+        if (body.containsKey("settings")) {
+            index.settings.putAll(flattenSettings(asMap(body.get("settings"))));
+        }
+        if (body.containsKey("mappings")) {
+            final Map<String, Object> mappings = asMap(body.get("mappings"));
+            if (mappings.containsKey("properties")) {
+                mergeProperties(index.properties, asMap(mappings.get("properties")));
+            }
+        }
+        if (body.containsKey("aliases")) {
+            index.aliases.addAll(asMap(body.get("aliases")).keySet());
+        }
+        indices.put(name, index);
+        return index;
+    }
+
+    private FakeIndex getOrCreateIndex(final String name) {
+        final FakeIndex existing = indices.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        for (final FakeIndex index : indices.values()) {
+            if (index.aliases.contains(name)) {
+                return index;
+            }
+        }
+        return createIndex(name, Map.of());
+    }
+
+    private FakeIndex getIndex(final String name) {
+        final List<FakeIndex> resolved = resolve(name, Map.of());
+        if (resolved.size() != 1) {
+            throw new FakeException(400, "illegal_argument_exception",
+                    "[" + name + "] does not resolve to a single index");
+        }
+        return resolved.get(0);
+    }
+
+    private boolean isIndexOrAlias(final String name) {
+        return indices.containsKey(name)
+                || indices.values().stream().anyMatch(index -> index.aliases.contains(name));
+    }
+
+    private List<FakeIndex> resolveLenient(final String expression) {
+        return resolve(expression, Map.of("ignore_unavailable", "true"));
+    }
+
+    /**
+     * Resolve comma separated index names, aliases and wildcard patterns to
+     * indexes.
+     */
+    private List<FakeIndex> resolve(final String expression, final Map<String, String> params) {
+        final Set<FakeIndex> result = new LinkedHashSet<>();
+        if (expression == null || expression.isEmpty() || "_all".equals(expression)) {
+            result.addAll(indices.values());
+            return new ArrayList<>(result);
+        }
+        final boolean ignoreUnavailable = "true".equals(params.get("ignore_unavailable"));
+        for (final String name : expression.split(",")) {
+            if (name.contains("*")) {
+                for (final FakeIndex index : indices.values()) {
+                    if (globMatches(name, index.name) || index.aliases.stream()
+                            .anyMatch(alias -> globMatches(name, alias))) {
+                        result.add(index);
+                    }
+                }
+                continue;
+            }
+            boolean found = false;
+            for (final FakeIndex index : indices.values()) {
+                if (index.name.equals(name) || index.aliases.contains(name)) {
+                    result.add(index);
+                    found = true;
+                }
+            }
+            if (!found && !ignoreUnavailable) {
+                throw indexNotFound(name);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    private static void maybeRefresh(final FakeIndex index, final Map<String, String> params) {
+        final String refresh = params.get("refresh");
+        if (refresh != null && !"false".equals(refresh)) {
+            index.refresh();
+        }
+    }
+
+    private static boolean globMatches(final String pattern, final String value) {
+        if (!pattern.contains("*")) {
+            return pattern.equals(value);
+        }
+        final StringBuilder regex = new StringBuilder();
+        for (final String part : pattern.split("\\*", -1)) {
+            if (regex.length() > 0) {
+                regex.append(".*");
+            }
+            regex.append(Pattern.quote(part));
+        }
+        return value.matches(regex.toString());
+    }
+
+    private static void collectFieldTypes(final String prefix,
+            final Map<String, Object> properties, final Map<String, String> fieldTypes) {
+        for (final Entry<String, Object> entry : properties.entrySet()) {
+            final String name = prefix + entry.getKey();
+            final Map<String, Object> mapping = asMap(entry.getValue());
+            final String type = mapping.containsKey("type") ? getString(mapping, "type")
+                    : "object";
+            fieldTypes.put(name, type);
+            if (mapping.containsKey("properties")) {
+                collectFieldTypes(name + ".", asMap(mapping.get("properties")), fieldTypes);
+            }
+            if (mapping.containsKey("fields")) {
+                for (final Entry<String, Object> subField : asMap(mapping.get("fields"))
+                        .entrySet()) {
+                    fieldTypes.put(name + "." + subField.getKey(),
+                            getString(asMap(subField.getValue()), "type"));
+                }
+            }
+        }
+    }
+
+    private static void mergeProperties(final Map<String, Object> target,
+            final Map<String, Object> source) {
+        for (final Entry<String, Object> entry : source.entrySet()) {
+            final Map<String, Object> mapping = asMap(entry.getValue());
+            final Object existing = target.get(entry.getKey());
+            if (existing != null && mapping.containsKey("properties")
+                    && asMap(existing).containsKey("properties")) {
+                mergeProperties(asMap(asMap(existing).get("properties")),
+                        asMap(mapping.get("properties")));
+            } else {
+                target.put(entry.getKey(), deepCopy(mapping));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> deepCopy(final Map<String, Object> map) {
+        final Map<String, Object> copy = new LinkedHashMap<>();
+        for (final Entry<String, Object> entry : map.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue() instanceof Map
+                    ? deepCopy((Map<String, Object>) entry.getValue())
+                    : entry.getValue());
+        }
+        return copy;
+    }
+
+    private static Map<String, Object> flattenSettings(final Map<String, Object> settings) {
+        final Map<String, Object> flat = new TreeMap<>();
+        flattenSettings("", settings, flat);
+        final Map<String, Object> normalised = new TreeMap<>();
+        for (final Entry<String, Object> entry : flat.entrySet()) {
+            normalised.put(entry.getKey().startsWith("index.") ? entry.getKey()
+                    : "index." + entry.getKey(), entry.getValue());
+        }
+        return normalised;
+    }
+
+    private static void flattenSettings(final String prefix, final Map<String, Object> settings,
+            final Map<String, Object> flat) {
+        for (final Entry<String, Object> entry : settings.entrySet()) {
+            if (entry.getValue() instanceof Map) {
+                flattenSettings(prefix + entry.getKey() + ".", asMap(entry.getValue()), flat);
+            } else if (entry.getValue() instanceof List) {
+                flat.put(prefix + entry.getKey(), entry.getValue());
+            } else if (entry.getValue() == null) {
+                flat.put(prefix + entry.getKey(), null);
+            } else {
+                flat.put(prefix + entry.getKey(), Objects.toString(entry.getValue()));
+            }
+        }
+    }
+
+    private static Map<String, Object> nestSettings(final Map<String, Object> flat) {
+        final Map<String, Object> nested = new TreeMap<>();
+        for (final Entry<String, Object> entry : flat.entrySet()) {
+            final String[] parts = entry.getKey().split("\\.");
+            Map<String, Object> current = nested;
+            for (int i = 0; i < parts.length - 1; i++) {
+                final Object next = current.computeIfAbsent(parts[i], k -> new TreeMap<>());
+                if (!(next instanceof Map)) {
+                    break;
+                }
+                current = asMap(next);
+            }
+            current.put(parts[parts.length - 1], entry.getValue());
+        }
+        return nested;
+    }
+
+    private static Map<String, String> parseQuery(final String rawQuery) {
+        final Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (final String pair : rawQuery.split("&")) {
+            final int separator = pair.indexOf('=');
+            final String key = URLDecoder.decode(separator < 0 ? pair : pair.substring(0, separator),
+                    StandardCharsets.UTF_8);
+            final String value = separator < 0 ? ""
+                    : URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8);
+            params.put(key, value);
+        }
+        return params;
+    }
+
+    private static Map<String, Object> parseBody(final byte[] body) {
+        if (body.length == 0) {
+            return new LinkedHashMap<>();
+        }
+        return XContentHelper.convertToMap(new BytesArray(body), true, XContentType.JSON).v2();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(final Object value) {
+        if (value == null) {
+            return new LinkedHashMap<>();
+        }
+        if (!(value instanceof Map)) {
+            throw new FakeException(400, "parsing_exception", "Expected an object: " + value);
+        }
+        return (Map<String, Object>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> getList(final Map<String, Object> map, final String key) {
+        final Object value = map.get(key);
+        if (value == null) {
+            return List.of();
+        }
+        return value instanceof List ? (List<Object>) value : List.of(value);
+    }
+
+    private static String getString(final Map<String, Object> map, final String key) {
+        final Object value = map.get(key);
+        if (value == null) {
+            throw new FakeException(400, "parsing_exception", "[" + key + "] is required");
+        }
+        return value.toString();
+    }
+
+    private static Long getLong(final Map<String, String> params, final String key) {
+        final String value = params.get(key);
+        return value == null ? null : Long.valueOf(value);
+    }
+
+    private static Map<String, Object> shards(final int count) {
+        return Map.of("_shards", Map.of("total", count, "successful", count, "failed", 0));
+    }
+
+    private static FakeResponse ok(final Map<String, Object> body) {
+        return new FakeResponse(200, body);
+    }
+
+    private static FakeException rejected(final String operation) {
+        return new FakeException(429, "es_rejected_execution_exception", "rejected execution of "
+                + operation + " on EsThreadPoolExecutor[name = " + NODE_ID
+                + "/write, queue capacity = 200]");
+    }
+
+    private static FakeException indexNotFound(final String indexName) {
+        final FakeException e = new FakeException(404, "index_not_found_exception",
+                "no such index [" + indexName + "]");
+        e.metadata.put("resource.type", "index_or_alias");
+        e.metadata.put("resource.id", indexName);
+        e.metadata.put("index_uuid", "_na_");
+        e.metadata.put("index", indexName);
+        return e;
+    }
+
+    private static FakeException versionConflict(final String indexName, final String id,
+            final String reason) {
+        final FakeException e = new FakeException(409, "version_conflict_engine_exception",
+                reason);
+        e.metadata.put("index_uuid", "fake-uuid");
+        e.metadata.put("shard", "0");
+        e.metadata.put("index", indexName);
+        return e;
+    }
+
+    private static Map<String, Object> errorObject(final FakeException e) {
+        final Map<String, Object> cause = new LinkedHashMap<>();
+        cause.put("type", e.type);
+        cause.put("reason", e.getMessage());
+        cause.putAll(e.metadata);
+        final Map<String, Object> error = new LinkedHashMap<>();
+        error.put("root_cause", List.of(cause));
+        error.putAll(cause);
+        return error;
+    }
+
+    private static Map<String, Object> errorBody(final FakeException e) {
+        final Map<String, Object> body = new LinkedHashMap<>();
+        body.put("error", errorObject(e));
+        body.put("status", e.status);
+        return body;
+    }
+
+    private static void send(final HttpExchange exchange, final String method, final int status,
+            final Map<String, Object> body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        if ("HEAD".equals(method)) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        final byte[] bytes;
+        try (XContentBuilder builder = XContentFactory.jsonBuilder();) {
+            builder.map(body);
+            bytes = BytesReference.toBytes(BytesReference.bytes(builder));
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody();) {
+            output.write(bytes);
+        }
+    }
+
+    private static final class FakeResponse {
+        private final int status;
+        private final Map<String, Object> body;
+
+        private FakeResponse(final int status, final Map<String, Object> body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static final class FakeException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+        private final String type;
+        private final Map<String, Object> metadata = new LinkedHashMap<>();
+
+        private FakeException(final int status, final String type, final String reason) {
+            super(reason);
+            this.status = status;
+            this.type = type;
+        }
+    }
+
+    private static final class EndpointBehaviour {
+        private volatile LatencyDistribution latency = LatencyDistribution.NONE;
+        private volatile double rejectionRate = 0.0;
+        private volatile double timeoutRate = 0.0;
+        private final AtomicInteger rejectNext = new AtomicInteger();
+        private final AtomicInteger timeoutNext = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+
+        private boolean shouldReject(final Random random) {
+            return rejectNext.getAndUpdate(count -> Math.max(0, count - 1)) > 0
+                    || rejectionRate > 0.0 && random.nextDouble() < rejectionRate;
+        }
+
+        private boolean shouldTimeOut(final Random random) {
+            return timeoutNext.getAndUpdate(count -> Math.max(0, count - 1)) > 0
+                    || timeoutRate > 0.0 && random.nextDouble() < timeoutRate;
+        }
+    }
+
+    private static final class FakeIndex {
+        private final String name;
+        private final Map<String, Object> settings = new TreeMap<>();
+        private final Map<String, Object> properties = new LinkedHashMap<>();
+        private final Set<String> aliases = new LinkedHashSet<>();
+        private NavigableMap<String, FakeDocument> live = new TreeMap<>();
+        private NavigableMap<String, FakeDocument> searchable = Collections
+                .unmodifiableNavigableMap(new TreeMap<>());
+        private long nextSeqNo = 0L;
+        private long mappingVersion = 1L;
+        private long settingsVersion = 1L;
+        private long refreshes = 0L;
+
+        private FakeIndex(final String name) {
+            this.name = name;
+        }
+
+        private void refresh() {
+            refreshes++;
+            searchable = Collections.unmodifiableNavigableMap(new TreeMap<>(live));
+        }
+
+        private int getNumberOfShards() {
+            return Integer.parseInt(
+                    Objects.toString(settings.getOrDefault("index.number_of_shards", "1")));
+        }
+
+        private int getNumberOfReplicas() {
+            return Integer.parseInt(
+                    Objects.toString(settings.getOrDefault("index.number_of_replicas", "1")));
+        }
+
+        /**
+         * Add mappings for fields that are not mapped yet, in the same way as
+         * elasticsearch dynamic mapping.
+         *
+         * @return True if the mapping changed.
+         */
+        private boolean addDynamicMappings(final Map<String, Object> source) {
+            return addDynamicMappings(properties, source);
+        }
+
+        private static boolean addDynamicMappings(final Map<String, Object> properties,
+                final Map<String, Object> source) {
+            boolean changed = false;
+            for (final Entry<String, Object> entry : source.entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof List) {
+                    value = ((List<?>) value).stream().filter(Objects::nonNull).findFirst()
+                            .orElse(null);
+                }
+                if (value == null) {
+                    continue;
+                }
+                final Object existing = properties.get(entry.getKey());
+                if (value instanceof Map) {
+                    Map<String, Object> mapping = existing == null ? null : asMap(existing);
+                    if (mapping == null) {
+                        mapping = new LinkedHashMap<>();
+                        mapping.put("properties", new LinkedHashMap<String, Object>());
+                        properties.put(entry.getKey(), mapping);
+                        changed = true;
+                    }
+                    if (mapping.containsKey("properties")) {
+                        changed |= addDynamicMappings(asMap(mapping.get("properties")),
+                                asMap(value));
+                    }
+                } else if (existing == null) {
+                    properties.put(entry.getKey(), dynamicMapping(value));
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        private static Map<String, Object> dynamicMapping(final Object value) {
+            final Map<String, Object> mapping = new LinkedHashMap<>();
+            if (value instanceof Boolean) {
+                mapping.put("type", "boolean");
+            } else if (value instanceof Double || value instanceof Float) {
+                mapping.put("type", "float");
+            } else if (value instanceof Number) {
+                mapping.put("type", "long");
+            } else if (isDate(value.toString())) {
+                mapping.put("type", "date");
+            } else {
+                mapping.put("type", "text");
+                mapping.put("fields",
+                        Map.of("keyword", Map.of("type", "keyword", "ignore_above", 256)));
+            }
+            return mapping;
+        }
+
+        private static boolean isDate(final String value) {
+            try {
+                ZonedDateTime.parse(value);
+                return true;
+            } catch (final DateTimeParseException e) {
+                try {
+                    LocalDate.parse(value);
+                    return true;
+                } catch (final DateTimeParseException e2) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private static final class FakeDocument {
+        private final Map<String, Object> source;
+        private final long version;
+        private final long seqNo;
+        private final boolean createdByLastWrite;
+
+        private FakeDocument(final Map<String, Object> source, final long version,
+                final long seqNo, final boolean createdByLastWrite) {
+            this.source = source;
+            this.version = version;
+            this.seqNo = seqNo;
+            this.createdByLastWrite = createdByLastWrite;
+        }
+    }
+
+    private static final class FakeTemplate {
+        private final String name;
+        private final int order;
+        private final Integer version;
+        private final List<String> indexPatterns;
+        private final Map<String, Object> settings;
+        private final Map<String, Object> mappings;
+        private final Map<String, Object> properties;
+        private final Map<String, Object> aliases;
+
+        private FakeTemplate(final String name, final Map<String, Object> body) {
+            this.name = name;
+            this.order = body.containsKey("order") ? ((Number) body.get("order")).intValue() : 0;
+            this.version = body.containsKey("version") ? ((Number) body.get("version")).intValue()
+                    : null;
+            this.indexPatterns = new ArrayList<>();
+            for (final Object pattern : getList(body, "index_patterns")) {
+                indexPatterns.add(pattern.toString());
+            }
+            this.settings = body.containsKey("settings")
+                    ? flattenSettings(asMap(body.get("settings")))
+                    : new TreeMap<>();
+            this.mappings = body.containsKey("mappings") ? asMap(body.get("mappings"))
+                    : new LinkedHashMap<>();
+            this.properties = mappings.containsKey("properties")
+                    ? asMap(mappings.get("properties"))
+                    : new LinkedHashMap<>();
+            this.aliases = body.containsKey("aliases") ? asMap(body.get("aliases"))
+                    : new LinkedHashMap<>();
+        }
+
+        private Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("order", order);
+            if (version != null) {
+                map.put("version", version);
+            }
+            map.put("index_patterns", indexPatterns);
+            map.put("settings", nestSettings(settings));
+            map.put("mappings", mappings);
+            map.put("aliases", aliases);
+            return map;
+        }
+    }
+
+    private static final class FakePointInTime {
+        private final Map<String, NavigableMap<String, FakeDocument>> snapshots;
+        private long expiresAtNanos;
+
+        private FakePointInTime(final Map<String, NavigableMap<String, FakeDocument>> snapshots) {
+            this.snapshots = snapshots;
+        }
+
+        private void keepAlive(final String keepAlive) {
+            expiresAtNanos = System.nanoTime()
+                    + TimeValue.parseTimeValue(keepAlive, "keep_alive").nanos();
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - expiresAtNanos > 0L;
+        }
+    }
+
+    private static final class FakeTask {
+        private final long id;
+        private final String description;
+        private final Map<String, Object> status;
+        private final Map<String, Object> response;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private volatile long completeAtNanos;
+        private volatile boolean cancelled;
+        private volatile float requestsPerSecond;
+        private int slices = 1;
+
+        private FakeTask(final long id, final String description,
+                final Map<String, Object> status, final Map<String, Object> response,
+                final long durationMillis) {
+            this.id = id;
+            this.description = description;
+            this.status = status;
+            this.response = response;
+            this.completeAtNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        }
+
+        private boolean isCompleted() {
+            return System.nanoTime() - completeAtNanos >= 0L;
+        }
+
+        private void cancel() {
+            cancelled = true;
+            completeAtNanos = System.nanoTime();
+        }
+
+        private Map<String, Object> toTaskInfo() {
+            final Map<String, Object> taskStatus = new LinkedHashMap<>(status);
+            taskStatus.put("requests_per_second", requestsPerSecond);
+            final Map<String, Object> taskInfo = new LinkedHashMap<>();
+            taskInfo.put("node", NODE_ID);
+            taskInfo.put("id", id);
+            taskInfo.put("type", "transport");
+            taskInfo.put("action", "indices:data/write/reindex");
+            taskInfo.put("status", taskStatus);
+            taskInfo.put("description", description);
+            taskInfo.put("start_time_in_millis", startMillis);
+            taskInfo.put("running_time_in_nanos", System.nanoTime() - startNanos);
+            taskInfo.put("cancellable", true);
+            taskInfo.put("headers", Map.of());
+            return taskInfo;
+        }
+    }
+
+    private static final class SearchCandidate {
+        private final String indexName;
+        private final String id;
+        private final FakeDocument document;
+        private final long shardDoc;
+        private List<Object> sortValues;
+        private double score = 1.0;
+
+        private SearchCandidate(final String indexName, final String id,
+                final FakeDocument document, final long shardDoc) {
+            this.indexName = indexName;
+            this.id = id;
+            this.document = document;
+            this.shardDoc = shardDoc;
+        }
+    }
+
+    private static final class SortField {
+        private final String field;
+        private final boolean ascending;
+
+        private SortField(final String field, final boolean ascending) {
+            this.field = field;
+            this.ascending = ascending;
+        }
+
+        private Object valueOf(final SearchCandidate candidate) {
+            switch (field) {
+            case "_id":
+                return candidate.id;
+            case "_index":
+                return candidate.indexName;
+            case "_doc":
+            case "_shard_doc":
+                return candidate.shardDoc;
+            case "_seq_no":
+                return candidate.document.seqNo;
+            default:
+                final List<Object> values = fieldValues(candidate.document.source, field);
+                return values.isEmpty() ? null : values.get(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.fieldcaps.FieldCapabilities;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.IndexTemplateMetadata;
+import org.elasticsearch.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.cluster.health.ClusterIndexHealth;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.Endpoint;
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.LatencyDistribution;
+
+/**
+ * Tests for the retry, backpressure and waiting behaviour of the utilities
+ * using a {@link FakeElasticsearchServer}, so that they do not need a running
+ * elasticsearch instance.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class FakeElasticsearchServerTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String SOURCE_INDEX = "example-source-index-utils-test";
+    private static final String DESTINATION_INDEX = "example-destination-index-utils-test";
+    private static final String TEST_RESOURCES = "/au/org/ala/elasticsearch/utils/test/";
+
+    @BeforeEach
+    void setUp() throws Exception {
+        AlaElasticsearchUtils.putTemplate(client, "index-template-source-test-1",
+                readResource(TEST_RESOURCES + "index-template-source-1.json"));
+        AlaElasticsearchUtils.putTemplate(client, "index-template-destination-test-1",
+                readResource(TEST_RESOURCES + "index-template-destination-1.json"));
+        AlaElasticsearchTestUtils.deleteAndRecreateIndexes(client, SOURCE_INDEX,
+                DESTINATION_INDEX);
+        AlaElasticsearchTestUtils.addSampleDocument(client, SOURCE_INDEX, "1");
+    }
+
+    @Test
+    final void testTemplatesAndHealth() throws Exception {
+        final List<IndexTemplateMetadata> templates = AlaElasticsearchUtils.getTemplate(client,
+                "index-template-source-test-1");
+        assertEquals(1, templates.size());
+        assertEquals(List.of("*example-source-index-utils-test*"),
+                templates.get(0).patterns());
+
+        final Map<String, ClusterIndexHealth> indexInfo = AlaElasticsearchUtils.indexInfo(client,
+                SOURCE_INDEX);
+        assertEquals(List.of(SOURCE_INDEX), List.copyOf(indexInfo.keySet()));
+        assertEquals(1, indexInfo.get(SOURCE_INDEX).getNumberOfShards());
+
+        assertTrue(AlaElasticsearchUtils.listIndexes(client).contains(DESTINATION_INDEX));
+        assertThrows(IOException.class,
+                () -> AlaElasticsearchUtils.getClusterStatus(client, 1, "does-not-exist"));
+    }
+
+    @Test
+    final void testHealthLevelsAndServerSideWait() throws Exception {
+        final ClusterHealthResponse cluster = AlaElasticsearchUtils.getClusterStatus(client, 0,
+                ClusterHealthRequest.Level.CLUSTER, ClusterHealthStatus.GREEN,
+                TimeValue.timeValueSeconds(1), SOURCE_INDEX);
+        assertEquals(ClusterHealthStatus.GREEN, cluster.getStatus());
+        // Only the overall status is returned at the cluster level
+        assertTrue(cluster.getIndices().isEmpty());
+
+        client.indices().putSettings(new UpdateSettingsRequest(
+                Settings.builder().put("index.number_of_replicas", 1).build(), SOURCE_INDEX),
+                RequestOptions.DEFAULT);
+        final long healthRequests = server.getRequestCount(Endpoint.HEALTH);
+        assertThrows(IOException.class, () -> AlaElasticsearchUtils.getClusterStatus(client, 2,
+                ClusterHealthRequest.Level.CLUSTER, ClusterHealthStatus.GREEN,
+                TimeValue.timeValueMillis(10), SOURCE_INDEX));
+        assertEquals(healthRequests + 3, server.getRequestCount(Endpoint.HEALTH));
+        assertThrows(IOException.class, () -> AlaElasticsearchUtils.waitForStatus(client,
+                ClusterHealthStatus.GREEN, TimeValue.timeValueMillis(300), SOURCE_INDEX));
+        assertEquals(ClusterHealthStatus.YELLOW, AlaElasticsearchUtils.waitForStatus(client,
+                ClusterHealthStatus.YELLOW, TimeValue.timeValueMillis(300), SOURCE_INDEX)
+                .getStatus());
+    }
+
+    @Test
+    final void testFieldCapabilitiesFromTemplates() throws Exception {
+        final Map<String, Map<String, FieldCapabilities>> source = AlaElasticsearchUtils
+                .getUserDefinedFieldCapabilities(client, SOURCE_INDEX);
+        assertEquals("text", source.get("postDate").keySet().iterator().next());
+
+        final Map<String, Map<String, FieldCapabilities>> destination = AlaElasticsearchUtils
+                .getUserDefinedFieldCapabilities(client, DESTINATION_INDEX);
+        assertEquals("date", destination.get("postDate").keySet().iterator().next());
+        assertTrue(destination.containsKey("postTime"));
+    }
+
+    @Test
+    final void testFieldCapabilitiesCacheRevalidation() throws Exception {
+        final FieldCapabilitiesCache cache = new FieldCapabilitiesCache(client,
+                TimeValue.timeValueMillis(1), 10);
+        assertFalse(cache.getUserDefinedFieldCapabilities(SOURCE_INDEX).containsKey("newField"));
+
+        // Dynamic mapping of a new field changes the mapping version
+        final IndexRequest indexRequest = new IndexRequest(SOURCE_INDEX).id("2")
+                .source(Map.of("newField", "value"));
+        client.index(indexRequest, RequestOptions.DEFAULT);
+        Thread.sleep(10);
+
+        assertTrue(cache.getUserDefinedFieldCapabilities(SOURCE_INDEX).containsKey("newField"));
+        assertEquals(2L, cache.getMissCount());
+        Thread.sleep(10);
+
+        // Unchanged mappings are revalidated without fetching them again
+        assertTrue(cache.getUserDefinedFieldCapabilities(SOURCE_INDEX).containsKey("newField"));
+        assertEquals(2L, cache.getMissCount());
+        assertEquals(1L, cache.getRevalidationCount());
+    }
+
+    @Test
+    final void testWaitForSlowTask() throws Exception {
+        server.taskDuration(LatencyDistribution.fixed(1000));
+        final String taskId = Reindex.asyncReindex(client, SOURCE_INDEX, DESTINATION_INDEX, null);
+
+        assertFalse(AlaElasticsearchUtils.getTaskResult(client, taskId).isCompleted());
+
+        // Each wait times out on the server before the task completes
+        final TaskResult result = AlaElasticsearchUtils.waitForTask(client, taskId,
+                TimeValue.timeValueMillis(200), TimeValue.timeValueMillis(50));
+
+        assertTrue(result.isSuccessful());
+        assertEquals(1L, result.getResponse().get().getCreated());
+        assertTrue(server.getRequestCount(Endpoint.TASKS) > 2);
+        assertTrue(AlaElasticsearchUtils.getDocumentByID(client, "1", DESTINATION_INDEX)
+                .isPresent());
+    }
+
+    @Test
+    final void testWaitForTaskDeadline() throws Exception {
+        server.taskDuration(LatencyDistribution.fixed(5000));
+        final String taskId = Reindex.asyncReindex(client, SOURCE_INDEX, DESTINATION_INDEX, null);
+
+        final long startNanos = System.nanoTime();
+        assertThrows(IOException.class,
+                () -> AlaElasticsearchUtils.waitForTask(client, taskId,
+                        TimeValue.timeValueMillis(200), TimeValue.timeValueMillis(50),
+                        TimeValue.timeValueMillis(500)));
+        assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(3));
+    }
+
+    @Test
+    final void testWaitForTaskRejected() throws Exception {
+        server.rejectNext(Endpoint.TASKS, 2);
+        final String taskId = Reindex.asyncReindex(client, SOURCE_INDEX, DESTINATION_INDEX, null);
+
+        final TaskResult result = AlaElasticsearchUtils.waitForTask(client, taskId,
+                TimeValue.timeValueMillis(200), TimeValue.timeValueMillis(50));
+
+        assertTrue(result.isSuccessful());
+        assertEquals(3L, server.getRequestCount(Endpoint.TASKS));
+    }
+
+    @Test
+    final void testReindexTransform() throws Exception {
+        // The fake server applies the transform in place of the script
+        server.reindexTransform(new ClientReindexTest.SplitPostDateTransform());
+
+        final TaskResult result = Reindex.doReindex(client, SOURCE_INDEX, DESTINATION_INDEX,
+                new Script("ctx._source.postTime = ''"), 1, null);
+
+        assertTrue(result.isSuccessful());
+        final Optional<Map<String, Object>> document = AlaElasticsearchUtils
+                .getDocumentByID(client, "1", DESTINATION_INDEX);
+        assertTrue(document.isPresent());
+        assertTrue(document.get().containsKey("postTime"));
+    }
+
+    @Test
+    final void testRejectedSearch() throws Exception {
+        server.rejectNext(Endpoint.SEARCH, 1);
+
+        final ElasticsearchStatusException e = assertThrows(ElasticsearchStatusException.class,
+                () -> AlaElasticsearchUtils.search(client, SOURCE_INDEX));
+        assertEquals(RestStatus.TOO_MANY_REQUESTS, e.status());
+
+        assertEquals(1L,
+                AlaElasticsearchUtils.search(client, SOURCE_INDEX).getHits().getTotalHits().value);
+    }
+
+    @Test
+    final void testSocketTimeout() throws Exception {
+        server.timeoutDelay(TimeValue.timeValueSeconds(2)).timeoutNext(Endpoint.GET, 1);
+
+        try (RestHighLevelClient timeoutClient = server.newClientBuilder()
+                .socketTimeoutMillis(200).build();) {
+            assertThrows(IOException.class,
+                    () -> AlaElasticsearchUtils.getDocumentByID(timeoutClient, "1", SOURCE_INDEX));
+            assertTrue(AlaElasticsearchUtils.getDocumentByID(timeoutClient, "1", SOURCE_INDEX)
+                    .isPresent());
+        }
+    }
+
+    @Test
+    final void testBatchingDocumentLoaderWithLatency() throws Exception {
+        indexDocuments(SOURCE_INDEX, 50);
+        server.latency(Endpoint.MGET, LatencyDistribution.uniform(20, 40));
+
+        try (BatchingDocumentLoader loader = new BatchingDocumentLoader(client, 100,
+                TimeValue.timeValueMillis(20));) {
+            final List<CompletableFuture<Optional<Map<String, Object>>>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(loader.load("doc-" + i, SOURCE_INDEX));
+            }
+            for (final CompletableFuture<Optional<Map<String, Object>>> future : futures) {
+                assertTrue(future.get().isPresent());
+            }
+        }
+        assertTrue(server.getRequestCount(Endpoint.MGET) < 50);
+    }
+
+    @Test
+    final void testSearchAllWithPointInTime() throws Exception {
+        indexDocuments(SOURCE_INDEX, 25);
+        server.latency(Endpoint.SEARCH, LatencyDistribution.exponential(5));
+
+        final List<String> ids;
+        try (Stream<SearchHit> hits = AlaElasticsearchUtils.searchAll(client,
+                new SearchSourceBuilder().query(QueryBuilders.matchAllQuery()), 10, 2,
+                SOURCE_INDEX);) {
+            ids = hits.map(SearchHit::getId).collect(Collectors.toList());
+        }
+
+        final List<String> expected = IntStream.range(0, 25).mapToObj(i -> "doc-" + i).sorted()
+                .collect(Collectors.toList());
+        expected.add(0, "1");
+        assertEquals(expected, ids);
+        assertEquals(0, server.getOpenPointInTimeCount());
+    }
+
+    @Test
+    final void testPointInTimeSlices() throws Exception {
+        indexDocuments(SOURCE_INDEX, 25);
+        final String pitId = AlaElasticsearchUtils.openPointInTime(client,
+                SearchHitSpliterator.DEFAULT_KEEP_ALIVE, SOURCE_INDEX);
+        try {
+            // Elasticsearch 7.10 only supports sliced searches with a scroll
+            final SearchRequest sliced = new SearchRequest().source(new SearchSourceBuilder()
+                    .pointInTimeBuilder(new PointInTimeBuilder(pitId))
+                    .slice(new SliceBuilder(0, 2)));
+            assertThrows(ElasticsearchStatusException.class,
+                    () -> client.search(sliced, RequestOptions.DEFAULT));
+
+            final long maxSeqNo = AlaElasticsearchUtils.getMaxSeqNo(client, pitId);
+            final Set<String> ids = new HashSet<>();
+            long total = 0L;
+            for (int slice = 0; slice < 3; slice++) {
+                final SearchHitSpliterator spliterator = new SearchHitSpliterator(client,
+                        new SearchSourceBuilder().query(AlaElasticsearchUtils.sliceQuery(
+                                QueryBuilders.matchAllQuery(), slice, 3, maxSeqNo)),
+                        10, 1, SearchHitSpliterator.DEFAULT_KEEP_ALIVE, pitId, false, null);
+                try (Stream<SearchHit> hits = StreamSupport.stream(spliterator, false)
+                        .onClose(spliterator::close);) {
+                    final List<String> sliceIds = hits.map(SearchHit::getId)
+                            .collect(Collectors.toList());
+                    assertFalse(sliceIds.isEmpty());
+                    total += sliceIds.size();
+                    ids.addAll(sliceIds);
+                }
+            }
+            // Every document is in exactly one slice
+            assertEquals(26L, total);
+            assertEquals(26, ids.size());
+        } finally {
+            AlaElasticsearchUtils.closePointInTime(client, pitId);
+        }
+    }
+
+    @Test
+    final void testSearchAllFailsOnPartialPages() throws Exception {
+        indexDocuments(SOURCE_INDEX, 25);
+
+        // A short page from a failed shard must not look like the last page
+        server.failShardNext(1);
+        try (Stream<SearchHit> hits = AlaElasticsearchUtils.searchAll(client,
+                new SearchSourceBuilder().query(QueryBuilders.matchAllQuery()), 10, 2,
+                SOURCE_INDEX);) {
+            final UncheckedIOException e = assertThrows(UncheckedIOException.class,
+                    () -> hits.count());
+            assertTrue(e.getMessage().contains("Injected shard failure"), e.getMessage());
+        }
+
+        server.searchTimeoutNext(1);
+        try (Stream<SearchHit> hits = AlaElasticsearchUtils.searchAll(client,
+                new SearchSourceBuilder().query(QueryBuilders.matchAllQuery()), 10, 2,
+                SOURCE_INDEX);) {
+            assertThrows(UncheckedIOException.class, () -> hits.count());
+        }
+        assertEquals(0, server.getOpenPointInTimeCount());
+
+        // Pages shorter than the page size are not the last page
+        try (Stream<SearchHit> hits = AlaElasticsearchUtils.searchAll(client,
+                new SearchSourceBuilder().query(QueryBuilders.matchAllQuery()), 13, 2,
+                SOURCE_INDEX);) {
+            assertEquals(26L, hits.count());
+        }
+    }
+
+    @Test
+    final void testClientReindexVersionConflicts() throws Exception {
+        indexDocuments(SOURCE_INDEX, 10);
+        // A newer version of one document is already in the destination
+        client.index(new IndexRequest(DESTINATION_INDEX).id("doc-3").source(Map.of("a", "b"))
+                .versionType(VersionType.EXTERNAL).version(100L), RequestOptions.DEFAULT);
+
+        final BulkByScrollResponse response = ClientReindex.doReindex(client, SOURCE_INDEX,
+                DESTINATION_INDEX, new ClientReindexTest.SplitPostDateTransform(), 4, 2, 4);
+
+        assertEquals(11L, response.getTotal());
+        assertEquals(10L, response.getCreated());
+        assertEquals(1L, response.getVersionConflicts());
+        // Version conflicts are not failures
+        assertTrue(response.getBulkFailures().isEmpty(), response.toString());
+        assertEquals(11L, server.getDocumentCount(DESTINATION_INDEX));
+    }
+
+    @Test
+    final void testClientReindexRetriesRejections() throws Exception {
+        indexDocuments(SOURCE_INDEX, 20);
+        server.rejectNext(Endpoint.BULK, 1);
+        server.bulkItemRejectionRate(0.3);
+
+        final BulkByScrollResponse response = ClientReindex.doReindex(client, SOURCE_INDEX,
+                DESTINATION_INDEX, new ClientReindexTest.SplitPostDateTransform(), 4, 2, 4);
+
+        assertTrue(response.getBulkFailures().isEmpty(), response.toString());
+        assertEquals(21L, response.getCreated());
+        assertTrue(response.getBulkRetries() > 4L, response.toString());
+        assertEquals(21L, server.getDocumentCount(DESTINATION_INDEX));
+    }
+
+    @Test
+    final void testCompressedRequestBodies() throws Exception {
+        final String message = "A compressible message ".repeat(100);
+        final long plainStart = server.getReceivedBytes();
+        client.index(new IndexRequest(SOURCE_INDEX).id("plain").source(Map.of("message", message)),
+                RequestOptions.DEFAULT);
+        final long plainBytes = server.getReceivedBytes() - plainStart;
+        assertEquals(0L, server.getCompressedRequestCount());
+
+        try (RestHighLevelClient compressingClient = server.newClientBuilder().compression(true)
+                .build();) {
+            final long compressedStart = server.getReceivedBytes();
+            compressingClient.index(new IndexRequest(SOURCE_INDEX).id("compressed")
+                    .source(Map.of("message", message)), RequestOptions.DEFAULT);
+            final long compressedBytes = server.getReceivedBytes() - compressedStart;
+
+            // The server received a gzip body, and decompressed it to the same source
+            assertEquals(1L, server.getCompressedRequestCount());
+            assertTrue(compressedBytes < plainBytes / 4,
+                    compressedBytes + " compressed and " + plainBytes + " plain");
+            assertEquals(message, AlaElasticsearchUtils
+                    .getDocumentByID(compressingClient, "compressed", SOURCE_INDEX).get()
+                    .get("message"));
+            // Requests without a body are not compressed
+            assertEquals(1L, server.getCompressedRequestCount());
+        }
+    }
+
+    @Test
+    final void testBulkItemRejections() throws Exception {
+        server.bulkItemRejectionRate(0.5);
+        final BulkRequest bulkRequest = new BulkRequest().setRefreshPolicy(RefreshPolicy.IMMEDIATE);
+        for (int i = 0; i < 100; i++) {
+            bulkRequest.add(new IndexRequest(SOURCE_INDEX).id("doc-" + i)
+                    .source(Map.of("message", "Document " + i)));
+        }
+
+        final BulkResponse response = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+
+        assertTrue(response.hasFailures());
+        final long rejected = Stream.of(response.getItems())
+                .filter(item -> item.isFailed()
+                        && item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS)
+                .count();
+        assertTrue(rejected > 0 && rejected < 100, "Unexpected rejections: " + rejected);
+        assertEquals(rejected, server.getWriteRejectedCount());
+        assertEquals(101L - rejected, server.getDocumentCount(SOURCE_INDEX));
+    }
+
+    private void indexDocuments(final String indexName, final int count) throws IOException {
+        final BulkRequest bulkRequest = new BulkRequest().setRefreshPolicy(RefreshPolicy.IMMEDIATE);
+        for (int i = 0; i < count; i++) {
+            bulkRequest.add(new IndexRequest(indexName).id("doc-" + i).source(Map.of("postDate",
+                    "2020-12-03T13:19:00.002Z", "message", "Document " + i)));
+        }
+        assertFalse(client.bulk(bulkRequest, RequestOptions.DEFAULT).hasFailures());
+    }
+
+    private static String readResource(final String resource) throws IOException {
+        try (InputStream input = FakeElasticsearchServerTest.class
+                .getResourceAsStream(resource);) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
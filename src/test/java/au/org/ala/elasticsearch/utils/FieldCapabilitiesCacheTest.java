@@ -0,0 +1,120 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.elasticsearch.action.fieldcaps.FieldCapabilities;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link FieldCapabilitiesCache}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class FieldCapabilitiesCacheTest extends AbstractAlaElasticsearchUtilsTest {
+
+    @Test
+    final void testGetFieldCapabilities() throws Exception {
+        final FieldCapabilitiesCache cache = new FieldCapabilitiesCache(testESClient);
+
+        final Map<String, Map<String, FieldCapabilities>> first = cache
+                .getFieldCapabilities(testSourceIndex);
+        assertEquals(13, first.size());
+        assertEquals(0L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+
+        assertSame(first, cache.getFieldCapabilities(testSourceIndex));
+        assertEquals(2, cache.getUserDefinedFieldCapabilities(testSourceIndex).size());
+        assertEquals(2L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+
+        cache.invalidate(testSourceIndex);
+        cache.getFieldCapabilities(testSourceIndex);
+        assertEquals(2L, cache.getMissCount());
+    }
+
+    @Test
+    final void testConcurrentMissesShareOneFetch() throws Exception {
+        final FieldCapabilitiesCache cache = new FieldCapabilitiesCache(testESClient);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Map<String, Map<String, FieldCapabilities>>>> results =
+                    new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(() -> cache.getFieldCapabilities(testSourceIndex)));
+            }
+            final Map<String, Map<String, FieldCapabilities>> first = results.get(0).get();
+            for (final Future<Map<String, Map<String, FieldCapabilities>>> result : results) {
+                assertSame(first, result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1L, cache.getMissCount());
+        assertEquals(3L, cache.getHitCount());
+    }
+
+    @Test
+    final void testPutTemplateInvalidates() throws Exception {
+        final FieldCapabilitiesCache cache = new FieldCapabilitiesCache(testESClient);
+        cache.getFieldCapabilities(testSourceIndex);
+        assertEquals(1L, cache.getMissCount());
+
+        AlaElasticsearchUtils.putTemplate(testESClient, testSourceIndexTemplateName,
+                testSourceIndexTemplateJSON);
+
+        cache.getFieldCapabilities(testSourceIndex);
+        assertEquals(2L, cache.getMissCount());
+    }
+
+    @Test
+    final void testRevalidateAfterTimeToLive() throws Exception {
+        final FieldCapabilitiesCache cache = new FieldCapabilitiesCache(testESClient,
+                TimeValue.timeValueMillis(1), 10);
+        cache.getUserDefinedFieldCapabilities(testSourceIndex);
+        Thread.sleep(10);
+
+        // The mapping has not changed, so the entry is still used
+        cache.getUserDefinedFieldCapabilities(testSourceIndex);
+        assertEquals(1L, cache.getMissCount());
+        assertEquals(1L, cache.getRevalidationCount());
+
+        // Dynamically adding a field changes the mapping version
+        testESClient.index(new IndexRequest(testSourceIndex).id("2")
+                .source(Map.of("message", "test", "postDate", "", "newField", "test"))
+                .setRefreshPolicy(RefreshPolicy.IMMEDIATE), RequestOptions.DEFAULT);
+        Thread.sleep(10);
+
+        final Map<String, Map<String, FieldCapabilities>> changed = cache
+                .getUserDefinedFieldCapabilities(testSourceIndex);
+        assertTrue(changed.containsKey("newField"));
+        assertEquals(2L, cache.getMissCount());
+        assertEquals(1L, cache.getRevalidationCount());
+    }
+
+    @Test
+    final void testGetMappingVersions() throws Exception {
+        final Map<String, Long> mappingVersions = AlaElasticsearchUtils
+                .getMappingVersions(testESClient, testSourceIndex, testDestinationIndex);
+        assertEquals(2, mappingVersions.size());
+        assertTrue(mappingVersions.containsKey(testSourceIndex));
+        assertFalse(AlaElasticsearchUtils.getMappingVersions(testESClient, "does-not-exist-*")
+                .containsKey(testSourceIndex));
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.Endpoint;
+import au.org.ala.elasticsearch.utils.PutTemplate.SyncResult;
+
+/**
+ * Tests for {@link PutTemplate#syncTemplates} using a
+ * {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class PutTemplateSyncTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String TEST_RESOURCES = "/au/org/ala/elasticsearch/utils/test/";
+
+    private static final String ALIAS_TEMPLATE = "{\"index_patterns\": [\"example-alias-*\"], "
+            + "\"version\": 3, \"settings\": {\"number_of_shards\": 2}, "
+            + "\"aliases\": {\"example-alias\": {}, \"example-filtered\": "
+            + "{\"filter\": {\"term\": {\"type\": \"records\"}}, \"routing\": \"1\"}}}";
+
+    @TempDir
+    Path templateDirectory;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        writeTemplate("index-template-source-test-1",
+                readResource(TEST_RESOURCES + "index-template-source-1.json"));
+        writeTemplate("index-template-destination-test-1",
+                readResource(TEST_RESOURCES + "index-template-destination-1.json"));
+        writeTemplate("index-template-alias-test-1", ALIAS_TEMPLATE);
+    }
+
+    private static String readResource(final String resource) throws IOException {
+        try (InputStream input = PutTemplateSyncTest.class.getResourceAsStream(resource);) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private void writeTemplate(final String templateName, final String templateContentJson)
+            throws IOException {
+        Files.writeString(templateDirectory.resolve(templateName + ".json"), templateContentJson,
+                StandardCharsets.UTF_8);
+    }
+
+    @Test
+    final void testSyncOnlyPutsChangedTemplates() throws Exception {
+        final SyncResult created = PutTemplate.syncTemplates(client, templateDirectory, 2);
+        assertEquals(3, created.getCreated().size(), created.toString());
+        assertTrue(created.getFailed().isEmpty(), created.toString());
+
+        // An unchanged deploy only fetches the existing templates
+        final long templateRequests = server.getRequestCount(Endpoint.TEMPLATES);
+        final SyncResult unchanged = PutTemplate.syncTemplates(client, templateDirectory, 2);
+        assertEquals(3, unchanged.getSkipped().size(), unchanged.toString());
+        assertEquals(templateRequests + 1, server.getRequestCount(Endpoint.TEMPLATES));
+
+        writeTemplate("index-template-alias-test-1", ALIAS_TEMPLATE.replace("\"version\": 3",
+                "\"version\": 4"));
+        final SyncResult updated = PutTemplate.syncTemplates(client, templateDirectory, 2);
+        assertEquals(List.of("index-template-alias-test-1"), updated.getUpdated());
+        assertEquals(2, updated.getSkipped().size(), updated.toString());
+        assertTrue(updated.toString().contains("3 templates in"), updated.toString());
+    }
+
+    @Test
+    final void testInvalidTemplateFails() throws Exception {
+        writeTemplate("index-template-invalid", "{\"index_patterns\": [");
+
+        final SyncResult result = PutTemplate.syncTemplates(client, templateDirectory, 1);
+        assertEquals(List.of("index-template-invalid"), result.getFailed());
+        assertTrue(result.getFailures().containsKey("index-template-invalid"));
+        assertEquals(3, result.getCreated().size(), result.toString());
+    }
+
+    @Test
+    final void testTemplateHashNormalisesSettings() throws Exception {
+        final String nested = "{\"index_patterns\": [\"example-*\"], "
+                + "\"settings\": {\"index\": {\"number_of_shards\": 1, "
+                + "\"refresh_interval\": \"5s\"}}, "
+                + "\"mappings\": {\"properties\": {\"a\": {\"type\": \"keyword\"}, "
+                + "\"b\": {\"type\": \"long\"}}}}";
+        final String flat = "{\"mappings\": {\"properties\": {\"b\": {\"type\": \"long\"}, "
+                + "\"a\": {\"type\": \"keyword\"}}}, "
+                + "\"settings\": {\"index.refresh_interval\": \"5s\", \"number_of_shards\": \"1\"}, "
+                + "\"index_patterns\": [\"example-*\"]}";
+        assertEquals(PutTemplate.templateHash("example", nested),
+                PutTemplate.templateHash("example", flat));
+        assertNotEquals(PutTemplate.templateHash("example", nested),
+                PutTemplate.templateHash("example", flat.replace("\"5s\"", "\"10s\"")));
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.cluster.metadata.AliasMetadata;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link Rebuild} using a {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class RebuildTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String ALIAS = "example-rebuild-test";
+    private static final String OLD_INDEX = ALIAS + "-v1";
+    private static final String NEW_INDEX = ALIAS + "-v2";
+    private static final int NUMBER_OF_DOCUMENTS = 20;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        final BulkRequest bulkRequest = new BulkRequest();
+        for (int i = 0; i < NUMBER_OF_DOCUMENTS; i++) {
+            bulkRequest.add(new IndexRequest(OLD_INDEX).id(Integer.toString(i))
+                    .source(Map.of("message", "Testing reindex process", "count", i)));
+        }
+        client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        AlaElasticsearchUtils.refresh(client, OLD_INDEX);
+        client.indices().updateAliases(new IndicesAliasesRequest()
+                .addAliasAction(AliasActions.add().index(OLD_INDEX).alias(ALIAS)),
+                RequestOptions.DEFAULT);
+    }
+
+    private void putTemplate(final int replicas) throws Exception {
+        AlaElasticsearchUtils.putTemplate(client, "rebuild-test-template",
+                "{\"index_patterns\": [\"" + ALIAS + "-*\"], \"settings\": {"
+                        + "\"number_of_replicas\": " + replicas
+                        + ", \"refresh_interval\": \"5s\"}}");
+    }
+
+    private Set<String> aliasedIndexes() throws IOException {
+        final Map<String, Set<AliasMetadata>> aliases = client.indices()
+                .getAlias(new GetAliasesRequest(ALIAS), RequestOptions.DEFAULT).getAliases();
+        return aliases.keySet();
+    }
+
+    @Test
+    final void testRebuildAndSwapAlias() throws Exception {
+        putTemplate(0);
+
+        final TaskResult result = Rebuild.rebuild(client, ALIAS, NEW_INDEX, ALIAS, null, 2, 1,
+                TimeValue.timeValueSeconds(10));
+
+        assertTrue(result.isSuccessful());
+        assertEquals(NUMBER_OF_DOCUMENTS, result.getTotal());
+        assertEquals(NUMBER_OF_DOCUMENTS, server.getDocumentCount(NEW_INDEX));
+        assertEquals(Set.of(NEW_INDEX), aliasedIndexes());
+        assertEquals(1L, server.getForceMergeCount());
+
+        // The settings from the template are restored after the reindex
+        final GetSettingsResponse settings = client.indices()
+                .getSettings(new GetSettingsRequest().indices(NEW_INDEX), RequestOptions.DEFAULT);
+        assertEquals("0", settings.getSetting(NEW_INDEX, Rebuild.REPLICAS_SETTING));
+        assertEquals("5s", settings.getSetting(NEW_INDEX, Rebuild.REFRESH_INTERVAL_SETTING));
+    }
+
+    @Test
+    final void testAliasUnchangedIfNotGreen() throws Exception {
+        // A single node cannot allocate replicas, so the index stays yellow
+        putTemplate(1);
+
+        assertThrows(IOException.class, () -> Rebuild.rebuild(client, ALIAS, NEW_INDEX, ALIAS,
+                null, 1, 0, TimeValue.timeValueMillis(500)));
+
+        assertEquals(Set.of(OLD_INDEX), aliasedIndexes());
+        assertEquals(0L, server.getForceMergeCount());
+        final GetSettingsResponse settings = client.indices()
+                .getSettings(new GetSettingsRequest().indices(NEW_INDEX), RequestOptions.DEFAULT);
+        assertEquals("1", settings.getSetting(NEW_INDEX, Rebuild.REPLICAS_SETTING));
+    }
+
+    @Test
+    final void testAliasUnchangedIfReindexFails() throws Exception {
+        putTemplate(0);
+
+        assertThrows(ElasticsearchException.class, () -> Rebuild.rebuild(client,
+                "does-not-exist", NEW_INDEX, ALIAS, null, 1, 1, TimeValue.timeValueSeconds(10)));
+
+        assertEquals(Set.of(OLD_INDEX), aliasedIndexes());
+        assertEquals(0L, server.getForceMergeCount());
+        // The settings from the template are restored even though the
+        // reindex failed
+        final GetSettingsResponse settings = client.indices()
+                .getSettings(new GetSettingsRequest().indices(NEW_INDEX), RequestOptions.DEFAULT);
+        assertEquals("0", settings.getSetting(NEW_INDEX, Rebuild.REPLICAS_SETTING));
+        assertEquals("5s", settings.getSetting(NEW_INDEX, Rebuild.REFRESH_INTERVAL_SETTING));
+    }
+
+    @Test
+    final void testTemplateSettings() throws Exception {
+        putTemplate(1);
+        AlaElasticsearchUtils.putTemplate(client, "rebuild-test-override",
+                "{\"index_patterns\": [\"" + NEW_INDEX + "\"], \"order\": 1, "
+                        + "\"settings\": {\"index\": {\"number_of_replicas\": 2}}}");
+        AlaElasticsearchUtils.putTemplate(client, "rebuild-test-other",
+                "{\"index_patterns\": [\"another-*\"], \"order\": 2, "
+                        + "\"settings\": {\"refresh_interval\": \"1s\"}}");
+
+        final Settings settings = Rebuild.getTemplateSettings(client, NEW_INDEX);
+
+        // The higher order template overrides the lower order template, and
+        // templates that do not match are ignored
+        assertEquals("2", settings.get(Rebuild.REPLICAS_SETTING));
+        assertEquals("5s", settings.get(Rebuild.REFRESH_INTERVAL_SETTING));
+    }
+}
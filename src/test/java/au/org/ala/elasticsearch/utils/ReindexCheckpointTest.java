@@ -0,0 +1,221 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link ReindexCheckpoint} and
+ * {@link ClientReindex#doResumableReindex} using a
+ * {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class ReindexCheckpointTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String SOURCE_INDEX = "example-source-index-checkpoint-test";
+    private static final String DESTINATION_INDEX = "example-destination-index-checkpoint-test";
+    private static final int NUMBER_OF_DOCUMENTS = 100;
+
+    @TempDir
+    Path tempDir;
+
+    private Path checkpointFile;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        checkpointFile = tempDir.resolve("reindex-checkpoint.json");
+        final BulkRequest bulkRequest = new BulkRequest();
+        for (int i = 0; i < NUMBER_OF_DOCUMENTS; i++) {
+            bulkRequest.add(new IndexRequest(SOURCE_INDEX).id(String.format("%03d", i))
+                    .source(Map.of("message", "Testing reindex process", "count", i)));
+        }
+        client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        AlaElasticsearchUtils.refresh(client, SOURCE_INDEX);
+    }
+
+    @Test
+    final void testWriteAndRead() throws Exception {
+        final ReindexCheckpoint checkpoint = new ReindexCheckpoint(SOURCE_INDEX,
+                DESTINATION_INDEX, 2);
+        checkpoint.setMaxSeqNo(99L);
+        checkpoint.setChangedAfterSeqNo(49L);
+        checkpoint.update(1, new Object[] { "042" }, 10L);
+        checkpoint.update(1, new Object[] { "057" }, 5L);
+        checkpoint.complete(0);
+        checkpoint.write(checkpointFile);
+
+        final ReindexCheckpoint read = ReindexCheckpoint.readOrCreate(checkpointFile,
+                SOURCE_INDEX, DESTINATION_INDEX, 2);
+        assertEquals(99L, read.getMaxSeqNo());
+        assertEquals(49L, read.getChangedAfterSeqNo());
+        assertTrue(read.isCompleted(0));
+        assertNull(read.getSearchAfter(0));
+        assertFalse(read.isCompleted(1));
+        assertArrayEquals(new Object[] { "057" }, read.getSearchAfter(1));
+        assertEquals(15L, read.getDocuments());
+        assertFalse(read.isCompleted());
+
+        // A checkpoint for a different reindex is not used
+        assertThrows(IOException.class, () -> ReindexCheckpoint.readOrCreate(checkpointFile,
+                SOURCE_INDEX, DESTINATION_INDEX, 3));
+        assertThrows(IOException.class, () -> ReindexCheckpoint.readOrCreate(checkpointFile,
+                SOURCE_INDEX, "another-destination", 2));
+        // The search_after values are only valid for the same sort
+        assertThrows(IOException.class, () -> ReindexCheckpoint.readOrCreate(checkpointFile,
+                SOURCE_INDEX, DESTINATION_INDEX, 2, "id"));
+    }
+
+    @Test
+    final void testResumeAfterFailure() throws Exception {
+        // Fail part way through the fourth batch
+        final AtomicInteger transformed = new AtomicInteger();
+        assertThrows(IOException.class, () -> ClientReindex.doResumableReindex(client,
+                SOURCE_INDEX, DESTINATION_INDEX, source -> {
+                    if (transformed.incrementAndGet() > 35) {
+                        throw new IllegalStateException("Simulated crash");
+                    }
+                    return source;
+                }, 10, 1, checkpointFile, TimeValue.timeValueMinutes(1)));
+
+        assertTrue(Files.exists(checkpointFile));
+        final ReindexCheckpoint checkpoint = ReindexCheckpoint.readOrCreate(checkpointFile,
+                SOURCE_INDEX, DESTINATION_INDEX, 1);
+        assertEquals(30L, checkpoint.getDocuments());
+        assertArrayEquals(new Object[] { "029" }, checkpoint.getSearchAfter(0));
+        assertEquals(30L, server.getDocumentCount(DESTINATION_INDEX));
+
+        final BulkByScrollResponse response = ClientReindex.doResumableReindex(client,
+                SOURCE_INDEX, DESTINATION_INDEX, source -> source, 10, 1, checkpointFile,
+                TimeValue.timeValueMinutes(1));
+
+        // Only the documents after the checkpoint are copied again
+        assertEquals(70L, response.getTotal());
+        assertEquals(70L, response.getCreated());
+        assertEquals(0L, response.getVersionConflicts());
+        assertEquals(NUMBER_OF_DOCUMENTS, server.getDocumentCount(DESTINATION_INDEX));
+        assertFalse(Files.exists(checkpointFile));
+    }
+
+    @Test
+    final void testResumeCopiesDocumentsChangedBetweenRuns() throws Exception {
+        final AtomicInteger transformed = new AtomicInteger();
+        assertThrows(IOException.class, () -> ClientReindex.doResumableReindex(client,
+                SOURCE_INDEX, DESTINATION_INDEX, source -> {
+                    if (transformed.incrementAndGet() > 35) {
+                        throw new IllegalStateException("Simulated crash");
+                    }
+                    return source;
+                }, 10, 2, checkpointFile, TimeValue.timeValueMinutes(1)));
+        final ReindexCheckpoint checkpoint = ReindexCheckpoint.readOrCreate(checkpointFile,
+                SOURCE_INDEX, DESTINATION_INDEX, 2);
+        assertEquals(NUMBER_OF_DOCUMENTS - 1, checkpoint.getChangedAfterSeqNo());
+        assertTrue(checkpoint.getDocuments() > 0L);
+
+        // Updates give the documents new sequence numbers above the slices,
+        // including a document that is behind the checkpoint of its slice
+        final BulkRequest bulkRequest = new BulkRequest();
+        for (final String id : new String[] { "000", "049", "050", "099" }) {
+            bulkRequest.add(new IndexRequest(SOURCE_INDEX).id(id)
+                    .source(Map.of("message", "Updated between runs")));
+        }
+        client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        AlaElasticsearchUtils.refresh(client, SOURCE_INDEX);
+
+        final BulkByScrollResponse response = ClientReindex.doResumableReindex(client,
+                SOURCE_INDEX, DESTINATION_INDEX, source -> source, 10, 2, checkpointFile,
+                TimeValue.timeValueMinutes(1));
+
+        assertTrue(response.getBulkFailures().isEmpty(), response.toString());
+        assertEquals(NUMBER_OF_DOCUMENTS, server.getDocumentCount(DESTINATION_INDEX));
+        for (final String id : new String[] { "000", "049", "050", "099" }) {
+            final GetResponse copy = client.get(new GetRequest(DESTINATION_INDEX, id),
+                    RequestOptions.DEFAULT);
+            assertEquals("Updated between runs", copy.getSourceAsMap().get("message"), id);
+            assertEquals(2L, copy.getVersion(), id);
+        }
+        assertFalse(Files.exists(checkpointFile));
+    }
+
+    @Test
+    final void testResumeWithOverlapUsesExternalVersions() throws Exception {
+        ClientReindex.doResumableReindex(client, SOURCE_INDEX, DESTINATION_INDEX,
+                source -> source, 10, 2, checkpointFile, TimeValue.timeValueMillis(50));
+        assertEquals(NUMBER_OF_DOCUMENTS, server.getDocumentCount(DESTINATION_INDEX));
+        assertFalse(Files.exists(checkpointFile));
+
+        // A checkpoint that is behind what was written, as after a crash
+        // between checkpoint writes, copies some documents again
+        final ReindexCheckpoint stale = new ReindexCheckpoint(SOURCE_INDEX, DESTINATION_INDEX,
+                2);
+        stale.setChangedAfterSeqNo(NUMBER_OF_DOCUMENTS - 1);
+        stale.complete(0);
+        stale.write(checkpointFile);
+
+        final BulkByScrollResponse response = ClientReindex.doResumableReindex(client,
+                SOURCE_INDEX, DESTINATION_INDEX, source -> source, 10, 2, checkpointFile,
+                TimeValue.timeValueMillis(50));
+
+        assertTrue(response.getTotal() > 0L);
+        assertTrue(response.getTotal() < NUMBER_OF_DOCUMENTS);
+        // The documents already have the same external version, so they are
+        // not overwritten
+        assertEquals(response.getTotal(), response.getVersionConflicts());
+        assertTrue(response.getBulkFailures().isEmpty(), response.toString());
+        assertEquals(0L, response.getCreated());
+        assertEquals(NUMBER_OF_DOCUMENTS, server.getDocumentCount(DESTINATION_INDEX));
+        assertFalse(Files.exists(checkpointFile));
+    }
+
+    @Test
+    final void testFailedDocumentsKeepCheckpoint() throws Exception {
+        server.failDocuments("042");
+        final BulkByScrollResponse response = ClientReindex.doResumableReindex(client,
+                SOURCE_INDEX, DESTINATION_INDEX, source -> source, 10, 2, checkpointFile,
+                TimeValue.timeValueMinutes(1));
+
+        assertEquals(1, response.getBulkFailures().size(), response.toString());
+        assertEquals(NUMBER_OF_DOCUMENTS - 1, server.getDocumentCount(DESTINATION_INDEX));
+        // The slice with the failed document stops advancing before it
+        assertTrue(Files.exists(checkpointFile));
+        final ReindexCheckpoint checkpoint = ReindexCheckpoint.readOrCreate(checkpointFile,
+                SOURCE_INDEX, DESTINATION_INDEX, 2);
+        assertFalse(checkpoint.isCompleted());
+        assertEquals(NUMBER_OF_DOCUMENTS - 1, checkpoint.getMaxSeqNo());
+
+        // Resuming retries the failed document
+        server.failDocuments();
+        final BulkByScrollResponse resumed = ClientReindex.doResumableReindex(client,
+                SOURCE_INDEX, DESTINATION_INDEX, source -> source, 10, 2, checkpointFile,
+                TimeValue.timeValueMinutes(1));
+
+        assertTrue(resumed.getBulkFailures().isEmpty(), resumed.toString());
+        assertEquals(1L, resumed.getCreated());
+        assertEquals(resumed.getTotal() - 1L, resumed.getVersionConflicts());
+        assertEquals(NUMBER_OF_DOCUMENTS, server.getDocumentCount(DESTINATION_INDEX));
+        assertFalse(Files.exists(checkpointFile));
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.Endpoint;
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.LatencyDistribution;
+import au.org.ala.elasticsearch.utils.ReindexDryRun.Estimate;
+
+/**
+ * Tests for {@link ReindexDryRun} using a {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class ReindexDryRunTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String SOURCE = "example-reindex-dry-run-test";
+    private static final String DESTINATION = SOURCE + "-v2";
+    private static final int NUMBER_OF_DOCUMENTS = 1000;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        final BulkRequest bulkRequest = new BulkRequest();
+        for (int i = 0; i < NUMBER_OF_DOCUMENTS; i++) {
+            bulkRequest.add(new IndexRequest(SOURCE).id(Integer.toString(i))
+                    .source(Map.of("message", "Testing reindex process", "count", i)));
+        }
+        client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        AlaElasticsearchUtils.refresh(client, SOURCE);
+    }
+
+    @Test
+    final void testEstimateFromSample() throws Exception {
+        final long reindexes = server.getRequestCount(Endpoint.REINDEX);
+        final Estimate estimate = ReindexDryRun.estimate(client, SOURCE, DESTINATION, null, 1,
+                100);
+
+        assertEquals(reindexes + 1, server.getRequestCount(Endpoint.REINDEX));
+        assertEquals(100L, estimate.getSampleDocuments());
+        assertEquals(NUMBER_OF_DOCUMENTS, estimate.getSourceDocuments());
+        assertEquals(NUMBER_OF_DOCUMENTS, estimate.getEstimatedDestinationDocuments());
+        assertTrue(estimate.getDocumentsPerSecond() > 0.0, estimate.toString());
+        assertTrue(estimate.getBytesPerDocument() > 0L, estimate.toString());
+        assertTrue(estimate.getEstimatedDuration().millis() > 0L, estimate.toString());
+        assertEquals(estimate.getBytesPerDocument() * NUMBER_OF_DOCUMENTS,
+                estimate.getEstimatedDestinationSize().getBytes());
+
+        // Neither the destination nor the temporary index are left behind
+        assertEquals(-1L, server.getDocumentCount(DESTINATION));
+        assertTrue(AlaElasticsearchUtils.getRefreshCounts(client,
+                DESTINATION + ReindexDryRun.DRY_RUN_SUFFIX + "*").isEmpty());
+    }
+
+    @Test
+    final void testSampleIsSpreadAcrossSource() throws Exception {
+        ReindexDryRun.estimate(client, SOURCE, DESTINATION, null, 1, 100);
+
+        // Only the sampled IDs are reindexed, and they come from the whole
+        // source rather than only the first documents
+        final Map<String, Object> query = asMap(server.getLastReindexSource().get("query"));
+        final List<?> ids = (List<?>) asMap(query.get("ids")).get("values");
+        assertEquals(100, ids.size());
+        assertEquals(100, new HashSet<>(ids).size());
+        assertTrue(ids.stream().anyMatch(id -> Integer.parseInt((String) id) < 200),
+                ids.toString());
+        assertTrue(ids.stream().anyMatch(id -> Integer.parseInt((String) id) >= 800),
+                ids.toString());
+    }
+
+    @Test
+    final void testInterruptedSampleIsCancelled() throws Exception {
+        server.taskDuration(LatencyDistribution.fixed(60000));
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final Thread estimating = new Thread(() -> {
+            try {
+                ReindexDryRun.estimate(client, SOURCE, DESTINATION, null, 1, 100);
+            } catch (final Exception e) {
+                failure.set(e);
+            }
+        });
+        estimating.start();
+        while (server.getRequestCount(Endpoint.TASKS) == 0L) {
+            Thread.sleep(10);
+        }
+        estimating.interrupt();
+        estimating.join(30000);
+
+        assertFalse(estimating.isAlive());
+        assertNotNull(failure.get());
+        // The running task is cancelled so that it cannot recreate the
+        // temporary index after it is deleted
+        assertEquals(1, server.getCancelledTaskCount());
+        assertTrue(AlaElasticsearchUtils.getRefreshCounts(client,
+                DESTINATION + ReindexDryRun.DRY_RUN_SUFFIX + "*").isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(final Object value) {
+        return (Map<String, Object>) value;
+    }
+
+    @Test
+    final void testEmptySource() throws Exception {
+        client.indices().create(new CreateIndexRequest(SOURCE + "-empty"),
+                RequestOptions.DEFAULT);
+        final Estimate estimate = ReindexDryRun.estimate(client, SOURCE + "-empty", DESTINATION,
+                null, 1, 100);
+        assertEquals(0L, estimate.getSampleDocuments());
+        assertEquals(TimeValue.ZERO, estimate.getEstimatedDuration());
+        assertThrows(IllegalArgumentException.class,
+                () -> ReindexDryRun.estimate(client, SOURCE, DESTINATION, null, 1, 0));
+    }
+}
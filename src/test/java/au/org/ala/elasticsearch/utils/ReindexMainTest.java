@@ -0,0 +1,98 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that {@link Reindex#main(String...)} fails when a reindex does not
+ * succeed, using a {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class ReindexMainTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String SOURCE = "example-reindex-main-test";
+    private static final String DESTINATION = SOURCE + "-v2";
+    private static final int NUMBER_OF_DOCUMENTS = 100;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        final BulkRequest bulkRequest = new BulkRequest();
+        for (int i = 0; i < NUMBER_OF_DOCUMENTS; i++) {
+            bulkRequest.add(new IndexRequest(SOURCE).id(Integer.toString(i))
+                    .source(Map.of("message", "Testing reindex process", "count", i)));
+        }
+        client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        AlaElasticsearchUtils.refresh(client, SOURCE);
+    }
+
+    private String[] args(final String... extraArgs) {
+        final String[] common = { "--es-hostname", "localhost", "--es-port",
+                Integer.toString(server.getPort()), "--source", SOURCE, "--destination",
+                DESTINATION };
+        final String[] result = new String[common.length + extraArgs.length];
+        System.arraycopy(common, 0, result, 0, common.length);
+        System.arraycopy(extraArgs, 0, result, common.length, extraArgs.length);
+        return result;
+    }
+
+    @Test
+    final void testReindex() throws Exception {
+        Reindex.main(args());
+
+        assertEquals(NUMBER_OF_DOCUMENTS, server.getDocumentCount(DESTINATION));
+    }
+
+    @Test
+    final void testFailedReindex() throws Exception {
+        server.failDocuments("42");
+
+        final IOException e = assertThrows(IOException.class, () -> Reindex.main(args()));
+        assertTrue(e.getMessage().contains("did not succeed"), e.getMessage());
+        assertTrue(e.getMessage().contains("failed to parse document [42]"), e.getMessage());
+    }
+
+    @Test
+    final void testFailedRebuild() throws Exception {
+        server.failDocuments("42");
+
+        final IOException e = assertThrows(IOException.class,
+                () -> Reindex.main(args("--alias", SOURCE + "-alias")));
+        assertTrue(e.getMessage().contains("was not changed"), e.getMessage());
+    }
+
+    @Test
+    final void testFailedJobs() throws Exception {
+        final Path jobsFile = tempDir.resolve("jobs.json");
+        Files.write(jobsFile, ("[{\"source\": \"" + SOURCE + "\", \"destination\": \""
+                + DESTINATION + "\"}, {\"source\": \"does-not-exist\", \"destination\": \""
+                + DESTINATION + "-missing\"}]").getBytes(StandardCharsets.UTF_8));
+
+        final IOException e = assertThrows(IOException.class,
+                () -> Reindex.main("--es-hostname", "localhost", "--es-port",
+                        Integer.toString(server.getPort()), "--jobs", jobsFile.toString()));
+        assertTrue(e.getMessage().contains("Not all of the reindex jobs"), e.getMessage());
+        // The other job still ran
+        assertEquals(NUMBER_OF_DOCUMENTS, server.getDocumentCount(DESTINATION));
+    }
+}
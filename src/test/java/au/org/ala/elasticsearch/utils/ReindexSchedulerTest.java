@@ -0,0 +1,140 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.Endpoint;
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.LatencyDistribution;
+import au.org.ala.elasticsearch.utils.ReindexScheduler.JobResult;
+import au.org.ala.elasticsearch.utils.ReindexScheduler.Report;
+
+/**
+ * Tests for {@link ReindexScheduler} using a {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class ReindexSchedulerTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String SOURCE_PREFIX = "example-source-index-scheduler-test-";
+    private static final String DESTINATION_PREFIX = "example-destination-index-scheduler-test-";
+    private static final int NUMBER_OF_JOBS = 6;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        for (int i = 0; i < NUMBER_OF_JOBS; i++) {
+            AlaElasticsearchTestUtils.addSampleDocument(client, SOURCE_PREFIX + i, "1");
+        }
+    }
+
+    private static List<ReindexJob> jobs(final int slices) {
+        final List<ReindexJob> jobs = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_JOBS; i++) {
+            jobs.add(new ReindexJob(SOURCE_PREFIX + i, DESTINATION_PREFIX + i, null,
+                    Integer.toString(slices), i));
+        }
+        return jobs;
+    }
+
+    @Test
+    final void testConcurrentWithinBudget() throws Exception {
+        server.taskDuration(LatencyDistribution.fixed(400));
+        final ReindexScheduler scheduler = new ReindexScheduler(client, 4,
+                ReindexScheduler.DEFAULT_MAX_WRITE_QUEUE, TimeValue.timeValueMillis(100));
+
+        final Report report = scheduler.run(jobs(2));
+
+        assertTrue(report.isSuccessful(), report.toString());
+        assertEquals(NUMBER_OF_JOBS, report.getResults().size());
+        // Two jobs of two slices fit in the budget at a time
+        assertEquals(4, server.getMaxRunningSlices());
+        assertTrue(report.getWallClock().millis() < NUMBER_OF_JOBS * 400L, report.toString());
+        for (int i = 0; i < NUMBER_OF_JOBS; i++) {
+            assertEquals(1L, server.getDocumentCount(DESTINATION_PREFIX + i));
+        }
+        assertTrue(report.toString().contains("6 of 6 jobs succeeded"), report.toString());
+    }
+
+    @Test
+    final void testPriorityOrder() throws Exception {
+        server.taskDuration(LatencyDistribution.fixed(50));
+        final ReindexScheduler scheduler = new ReindexScheduler(client, 1,
+                ReindexScheduler.DEFAULT_MAX_WRITE_QUEUE, TimeValue.timeValueMillis(100));
+
+        final Report report = scheduler.run(jobs(1));
+
+        // Only one job runs at a time, so they finish in priority order
+        final List<Integer> priorities = report.getResults().stream()
+                .map(result -> result.getJob().getPriority()).collect(Collectors.toList());
+        assertEquals(List.of(5, 4, 3, 2, 1, 0), priorities);
+        assertEquals(1, server.getMaxRunningSlices());
+    }
+
+    @Test
+    final void testHeldBackUnderLoad() throws Exception {
+        server.writeQueue(1000L);
+        final ReindexScheduler scheduler = new ReindexScheduler(client, 4, 100L,
+                TimeValue.timeValueMillis(50));
+
+        final CompletableFuture<Report> report = CompletableFuture.supplyAsync(() -> {
+            try {
+                return scheduler.run(jobs(1));
+            } catch (final InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(500);
+        assertEquals(0L, server.getRequestCount(Endpoint.REINDEX));
+        assertTrue(server.getRequestCount(Endpoint.NODES_STATS) > 2);
+
+        server.writeQueue(0L);
+        assertTrue(report.get(10, TimeUnit.SECONDS).isSuccessful());
+        assertEquals(NUMBER_OF_JOBS, server.getRequestCount(Endpoint.REINDEX));
+    }
+
+    @Test
+    final void testReadJobsAndFailures() throws Exception {
+        final Path jobsFile = tempDir.resolve("jobs.json");
+        Files.write(jobsFile, ("[{\"source\": \"" + SOURCE_PREFIX + "0\", \"destination\": \""
+                + DESTINATION_PREFIX + "0\", \"script\": \"ctx._source.postTime = ''\", "
+                + "\"slices\": \"auto\", \"priority\": 2}, "
+                + "{\"source\": \"does-not-exist\", \"destination\": \"" + DESTINATION_PREFIX
+                + "1\"}]").getBytes(StandardCharsets.UTF_8));
+
+        final List<ReindexJob> jobs = ReindexJob.readJobs(jobsFile);
+        assertEquals(2, jobs.size());
+        assertEquals(2, jobs.get(0).getPriority());
+        assertEquals("auto", jobs.get(0).getSlices());
+        assertEquals("1", jobs.get(1).getSlices());
+        assertEquals(0, jobs.get(1).getPriority());
+
+        final Report report = new ReindexScheduler(client, 4).run(jobs);
+
+        assertFalse(report.isSuccessful());
+        final List<JobResult> succeeded = report.getResults().stream()
+                .filter(JobResult::isSuccessful).collect(Collectors.toList());
+        assertEquals(1, succeeded.size());
+        assertEquals(SOURCE_PREFIX + "0", succeeded.get(0).getJob().getSourceIndex());
+        assertTrue(report.toString().contains("1 of 2 jobs succeeded"), report.toString());
+    }
+}
@@ -3,6 +3,7 @@ package au.org.ala.elasticsearch.utils;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.Map;
@@ -10,6 +11,7 @@ import java.util.Optional;
 
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.script.Script;
 import org.junit.jupiter.api.Test;
 
 class ReindexTest extends AbstractAlaElasticsearchUtilsTest {
@@ -32,6 +34,51 @@ class ReindexTest extends AbstractAlaElasticsearchUtilsTest {
         Reindex.doReindex(testESClient, testSourceIndex, testDestinationIndex, testReindexScript);
     }
 
+    /**
+     * Test method for
+     * {@link au.org.ala.elasticsearch.utils.Reindex#main(String...)} with
+     * automatic slicing.
+     */
+    @Test
+    final void testReindexMainAutoSlices() throws Exception {
+        Reindex.main("--source", testSourceIndex, "--destination", testDestinationIndex,
+                "--slices", Reindex.AUTO_SLICES);
+    }
+
+    /**
+     * Test method for
+     * {@link au.org.ala.elasticsearch.utils.Reindex#doReindex(RestHighLevelClient, String, String, Script, int)}.
+     */
+    @Test
+    final void testReindexDoReindexSliced() throws Exception {
+        final TaskResult result = Reindex.doReindex(testESClient, testSourceIndex,
+                testDestinationIndex, testReindexScript, 2);
+
+        assertTrue(result.isCompleted());
+        assertTrue(result.isSuccessful());
+        assertEquals(1L, result.getTotal());
+        assertEquals(1L, result.getCreated());
+        assertEquals(0L, result.getFailed());
+
+        final Optional<Map<String, Object>> resultDocument = AlaElasticsearchUtils
+                .getDocumentByID(testESClient, testDocumentID, testDestinationIndex);
+        assertTrue(resultDocument.isPresent());
+        assertTrue(resultDocument.get().containsKey("postTime"));
+    }
+
+    /**
+     * Test method for
+     * {@link au.org.ala.elasticsearch.utils.Reindex#getNumberOfSlices(RestHighLevelClient, String, String)}.
+     */
+    @Test
+    final void testGetNumberOfSlices() throws Exception {
+        assertEquals(1, Reindex.getNumberOfSlices(testESClient, testSourceIndex,
+                Reindex.AUTO_SLICES));
+        assertEquals(4, Reindex.getNumberOfSlices(testESClient, testSourceIndex, "4"));
+        assertThrows(IllegalArgumentException.class,
+                () -> Reindex.getNumberOfSlices(testESClient, testSourceIndex, "0"));
+    }
+
     /**
      * Test method for
      * {@link au.org.ala.elasticsearch.utils.Reindex#asyncReindex(org.elasticsearch.client.RestHighLevelClient, java.lang.String, java.lang.String)}.
@@ -47,7 +94,11 @@ class ReindexTest extends AbstractAlaElasticsearchUtilsTest {
 
         final String reindexTaskId = Reindex.asyncReindex(testESClient, testSourceIndex,
                 testDestinationIndex, testReindexScript);
-        AlaElasticsearchUtils.waitForTask(testESClient, reindexTaskId);
+        final TaskResult reindexResult = AlaElasticsearchUtils.waitForTask(testESClient,
+                reindexTaskId);
+        assertTrue(reindexResult.isCompleted());
+        assertEquals(1L, reindexResult.getCreated());
+        assertTrue(reindexResult.getBulkFailures().isEmpty());
         AlaElasticsearchUtils.refresh(testESClient, testSourceIndex, testDestinationIndex);
 
         Thread.sleep(1000);
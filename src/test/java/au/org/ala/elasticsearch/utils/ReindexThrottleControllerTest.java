@@ -0,0 +1,72 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ReindexThrottleController}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class ReindexThrottleControllerTest extends AbstractAlaElasticsearchUtilsTest {
+
+    @Test
+    final void testNextRequestsPerSecond() throws Exception {
+        // Multiplicative decrease under pressure, bounded by the minimum
+        assertEquals(500.0f,
+                ReindexThrottleController.nextRequestsPerSecond(1000.0f, 100.0f, 1000.0f, true));
+        assertEquals(100.0f,
+                ReindexThrottleController.nextRequestsPerSecond(150.0f, 100.0f, 1000.0f, true));
+        // Additive increase without pressure, bounded by the maximum
+        assertEquals(590.0f,
+                ReindexThrottleController.nextRequestsPerSecond(500.0f, 100.0f, 1000.0f, false));
+        assertEquals(1000.0f,
+                ReindexThrottleController.nextRequestsPerSecond(950.0f, 100.0f, 1000.0f, false));
+    }
+
+    @Test
+    final void testInvalidBounds() throws Exception {
+        assertThrows(IllegalArgumentException.class,
+                () -> new ReindexThrottleController(testESClient, 0.0f, 1000.0f, 200L));
+        assertThrows(IllegalArgumentException.class,
+                () -> new ReindexThrottleController(testESClient, 1000.0f, 100.0f, 200L));
+        assertThrows(IllegalArgumentException.class, () -> new ReindexThrottleController(
+                testESClient, 100.0f, Float.POSITIVE_INFINITY, 200L));
+    }
+
+    /**
+     * Test method for
+     * {@link au.org.ala.elasticsearch.utils.Reindex#doReindex(org.elasticsearch.client.RestHighLevelClient, String, String, org.elasticsearch.script.Script, int, ReindexThrottleController)}.
+     */
+    @Test
+    final void testThrottledReindex() throws Exception {
+        final ReindexThrottleController throttle = new ReindexThrottleController(testESClient,
+                10.0f, 1000.0f, 200L, TimeValue.timeValueMillis(100));
+
+        final TaskResult result = Reindex.doReindex(testESClient, testSourceIndex,
+                testDestinationIndex, testReindexScript, 1, throttle);
+
+        assertTrue(result.isSuccessful());
+        assertEquals(1L, result.getCreated());
+        assertTrue(throttle.getRequestsPerSecond() >= 10.0f);
+        assertTrue(throttle.getRequestsPerSecond() <= 1000.0f);
+    }
+
+    /**
+     * Test method for
+     * {@link au.org.ala.elasticsearch.utils.Reindex#main(String...)} with
+     * throttling.
+     */
+    @Test
+    final void testReindexMainThrottled() throws Exception {
+        Reindex.main("--source", testSourceIndex, "--destination", testDestinationIndex,
+                "--throttle-max-rps", "1000", "--throttle-min-rps", "10");
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.Endpoint;
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.LatencyDistribution;
+
+/**
+ * Tests for {@link SearchResponseCache} using a
+ * {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class SearchResponseCacheTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String INDEX = "example-search-response-cache-test";
+    private static final String OTHER_INDEX = "example-search-response-cache-other";
+
+    @BeforeEach
+    void setUp() throws Exception {
+        index(INDEX, 0, 10);
+        index(OTHER_INDEX, 0, 5);
+    }
+
+    private void index(final String indexName, final int from, final int to) throws Exception {
+        final BulkRequest bulkRequest = new BulkRequest();
+        for (int i = from; i < to; i++) {
+            bulkRequest.add(new IndexRequest(indexName).id(Integer.toString(i))
+                    .source(Map.of("name", "document " + i, "type", i % 2 == 0 ? "even" : "odd")));
+        }
+        client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        AlaElasticsearchUtils.refresh(client, indexName);
+    }
+
+    private static SearchSourceBuilder termQuery(final String type) {
+        return new SearchSourceBuilder().query(QueryBuilders.termQuery("type", type))
+                .trackTotalHits(true);
+    }
+
+    @Test
+    final void testHitsUntilIndexIsRefreshed() throws Exception {
+        final SearchResponseCache cache = new SearchResponseCache(client, 10,
+                SearchResponseCache.DEFAULT_MAX_SIZE, TimeValue.timeValueMinutes(1),
+                TimeValue.ZERO);
+        final SearchResponse first = cache.search(termQuery("even"), INDEX);
+        assertEquals(5L, first.getHits().getTotalHits().value);
+
+        final long searches = server.getRequestCount(Endpoint.SEARCH);
+        // An equal source for the same indexes is answered from the cache
+        assertSame(first, cache.search(termQuery("even"), INDEX));
+        assertEquals(searches, server.getRequestCount(Endpoint.SEARCH));
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+
+        // Unrefreshed writes are not visible, so the entry is still used
+        client.index(new IndexRequest(INDEX).id("10").source(Map.of("type", "even")),
+                RequestOptions.DEFAULT);
+        assertSame(first, cache.search(termQuery("even"), INDEX));
+
+        AlaElasticsearchUtils.refresh(client, INDEX);
+        final SearchResponse refreshed = cache.search(termQuery("even"), INDEX);
+        assertNotSame(first, refreshed);
+        assertEquals(6L, refreshed.getHits().getTotalHits().value);
+        assertEquals(1L, cache.getInvalidationCount());
+        assertEquals(searches + 1, server.getRequestCount(Endpoint.SEARCH));
+    }
+
+    @Test
+    final void testIndexSetsAreCheckedSeparately() throws Exception {
+        final SearchResponseCache cache = new SearchResponseCache(client, 10,
+                SearchResponseCache.DEFAULT_MAX_SIZE, TimeValue.timeValueMinutes(1),
+                TimeValue.ZERO);
+        final SearchResponse both = cache.search(termQuery("odd"), INDEX, OTHER_INDEX);
+        final SearchResponse other = cache.search(termQuery("odd"), OTHER_INDEX);
+        assertEquals(7L, both.getHits().getTotalHits().value);
+        assertSame(both, cache.search(termQuery("odd"), OTHER_INDEX, INDEX));
+
+        index(INDEX, 10, 12);
+        assertSame(other, cache.search(termQuery("odd"), OTHER_INDEX));
+        assertEquals(8L, cache.search(termQuery("odd"), OTHER_INDEX, INDEX).getHits()
+                .getTotalHits().value);
+    }
+
+    @Test
+    final void testCheckIntervalAndMaxStaleness() throws Exception {
+        final SearchResponseCache cache = new SearchResponseCache(client, 10,
+                SearchResponseCache.DEFAULT_MAX_SIZE, TimeValue.timeValueMillis(200),
+                TimeValue.timeValueMinutes(1));
+        final long stats = server.getRequestCount(Endpoint.STATS);
+        final SearchResponse first = cache.search(termQuery("even"), INDEX);
+        // Within the check interval the refresh counts are not fetched again
+        assertSame(first, cache.search(termQuery("even"), INDEX));
+        assertEquals(first.getHits().getTotalHits().value,
+                cache.search(termQuery("odd"), INDEX).getHits().getTotalHits().value);
+        assertEquals(stats + 1, server.getRequestCount(Endpoint.STATS));
+
+        Thread.sleep(250);
+        assertNotSame(first, cache.search(termQuery("even"), INDEX));
+        assertEquals(1L, cache.getInvalidationCount());
+    }
+
+    @Test
+    final void testEvictsLeastRecentlyUsed() throws Exception {
+        final SearchResponse response = AlaElasticsearchUtils.search(client, termQuery("even"),
+                INDEX);
+        final long size = SearchResponseCache.estimateSize(response);
+        // Room for two responses by size, and three by number of entries
+        final SearchResponseCache cache = new SearchResponseCache(client, 3,
+                new ByteSizeValue(size * 2 + size / 2), TimeValue.timeValueMinutes(1),
+                TimeValue.timeValueMinutes(1));
+        final SearchResponse even = cache.search(termQuery("even"), INDEX);
+        cache.search(termQuery("odd"), INDEX);
+        // Use the first entry so that the second is the least recently used
+        assertSame(even, cache.search(termQuery("even"), INDEX));
+        cache.search(termQuery("odd"), OTHER_INDEX);
+
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(1L, cache.getEvictionCount());
+        assertTrue(cache.getSizeInBytes() <= size * 2 + size / 2);
+        assertSame(even, cache.search(termQuery("even"), INDEX));
+        final long misses = cache.getMissCount();
+        cache.search(termQuery("odd"), INDEX);
+        assertEquals(misses + 1, cache.getMissCount());
+    }
+
+    @Test
+    final void testIncompleteResponsesAreNotCached() throws Exception {
+        final SearchResponseCache cache = new SearchResponseCache(client, 10,
+                SearchResponseCache.DEFAULT_MAX_SIZE, TimeValue.timeValueMinutes(1),
+                TimeValue.timeValueMinutes(1));
+        server.failShardNext(1);
+        final SearchResponse failedShard = cache.search(termQuery("even"), INDEX);
+        assertEquals(1, failedShard.getFailedShards());
+        server.searchTimeoutNext(1);
+        final SearchResponse timedOut = cache.search(termQuery("even"), INDEX);
+        assertNotSame(failedShard, timedOut);
+        assertTrue(timedOut.isTimedOut());
+        assertEquals(0, cache.getEntryCount());
+
+        final SearchResponse complete = cache.search(termQuery("even"), INDEX);
+        assertNotSame(timedOut, complete);
+        assertSame(complete, cache.search(termQuery("even"), INDEX));
+        assertEquals(3L, cache.getMissCount());
+    }
+
+    @Test
+    final void testConcurrentMissesShareOneSearch() throws Exception {
+        final SearchResponseCache cache = new SearchResponseCache(client, 10,
+                SearchResponseCache.DEFAULT_MAX_SIZE, TimeValue.timeValueMinutes(1),
+                TimeValue.timeValueMinutes(1));
+        // Fetch the refresh counts first, so that all of the searches start
+        // together
+        cache.search(termQuery("odd"), INDEX);
+        server.latency(Endpoint.SEARCH, LatencyDistribution.fixed(300));
+        final long searches = server.getRequestCount(Endpoint.SEARCH);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<SearchResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                responses.add(executor.submit(() -> cache.search(termQuery("even"), INDEX)));
+            }
+            final SearchResponse first = responses.get(0).get();
+            for (final Future<SearchResponse> response : responses) {
+                assertSame(first, response.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(searches + 1, server.getRequestCount(Endpoint.SEARCH));
+        assertEquals(2L, cache.getMissCount());
+        assertEquals(3L, cache.getHitCount());
+    }
+
+    @Test
+    final void testSourceHash() {
+        assertEquals(SearchResponseCache.sourceHash(termQuery("even")),
+                SearchResponseCache.sourceHash(termQuery("even")));
+        assertNotEquals(SearchResponseCache.sourceHash(termQuery("even")),
+                SearchResponseCache.sourceHash(termQuery("odd")));
+        assertEquals(SearchResponseCache.indexKey("b", "a"),
+                SearchResponseCache.indexKey("a", "b"));
+    }
+}
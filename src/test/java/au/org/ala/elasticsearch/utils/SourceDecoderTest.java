@@ -0,0 +1,104 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link SourceDecoder}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class SourceDecoderTest extends AbstractAlaElasticsearchUtilsTest {
+
+    /**
+     * An example of a typed record decoded from the sample documents.
+     */
+    static final class Post {
+        final String message;
+        final String postDate;
+
+        Post(final String message, final String postDate) {
+            this.message = message;
+            this.postDate = postDate;
+        }
+
+        static Post decode(final XContentParser parser) throws IOException {
+            String message = null;
+            String postDate = null;
+            parser.nextToken();
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                final String fieldName = parser.currentName();
+                parser.nextToken();
+                if ("message".equals(fieldName)) {
+                    message = parser.textOrNull();
+                } else if ("postDate".equals(fieldName)) {
+                    postDate = parser.textOrNull();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new Post(message, postDate);
+        }
+    }
+
+    @Test
+    final void testGetDocumentByIDDecoded() throws Exception {
+        final Optional<Post> post = AlaElasticsearchUtils.getDocumentByID(testESClient,
+                testDocumentID, testSourceIndex, Post::decode);
+        assertTrue(post.isPresent());
+        assertEquals(AlaElasticsearchUtils
+                .getDocumentByID(testESClient, testDocumentID, testSourceIndex).get()
+                .get("message"), post.get().message);
+
+        assertTrue(AlaElasticsearchUtils
+                .getDocumentByID(testESClient, "does-not-exist", testSourceIndex, Post::decode)
+                .isEmpty());
+    }
+
+    @Test
+    final void testGetDocumentSourceByID() throws Exception {
+        final Optional<BytesReference> source = AlaElasticsearchUtils
+                .getDocumentSourceByID(testESClient, testDocumentID, testSourceIndex);
+        assertTrue(source.isPresent());
+        assertTrue(source.get().utf8ToString().startsWith("{"));
+        assertTrue(source.get().utf8ToString().contains("\"message\""));
+
+        assertTrue(AlaElasticsearchUtils
+                .getDocumentSourceByID(testESClient, "does-not-exist", testSourceIndex).isEmpty());
+    }
+
+    @Test
+    final void testSearchAllDecoded() throws Exception {
+        AlaElasticsearchTestUtils.addSampleDocument(testESClient, testSourceIndex, "2");
+        AlaElasticsearchUtils.refresh(testESClient, testSourceIndex);
+
+        final SearchSourceBuilder searchSource = new SearchSourceBuilder()
+                .query(QueryBuilders.matchAllQuery());
+        try (Stream<Post> posts = AlaElasticsearchUtils.searchAll(testESClient, searchSource, 1,
+                1, Post::decode, testSourceIndex);) {
+            final List<Post> results = posts.collect(Collectors.toList());
+            assertEquals(2, results.size());
+            assertTrue(results.stream().allMatch(post -> post.message != null));
+        }
+
+        try (Stream<BytesReference> sources = AlaElasticsearchUtils.searchAllSources(testESClient,
+                searchSource, 1, 1, testSourceIndex);) {
+            assertEquals(2, sources.filter(source -> source.length() > 0).count());
+        }
+    }
+}
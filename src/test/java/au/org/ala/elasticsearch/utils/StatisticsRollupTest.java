@@ -0,0 +1,152 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.jupiter.api.Test;
+
+import au.org.ala.elasticsearch.utils.CompositeBucket.Metric;
+import au.org.ala.elasticsearch.utils.FakeElasticsearchServer.Endpoint;
+
+/**
+ * Tests for {@link StatisticsRollup} using a {@link FakeElasticsearchServer}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class StatisticsRollupTest extends AbstractFakeElasticsearchServerTest {
+
+    private static final String INDEX = "example-filebeat-biocache-store-rollup-test";
+    private static final long START = 1607212800000L;
+    private static final String COUNT = "biocache_store.statistics.rollup.count";
+
+    private List<CompositeBucket> entities() throws Exception {
+        AlaElasticsearchUtils.refresh(client, INDEX);
+        try (Stream<CompositeBucket> stream = AlaElasticsearchUtils.aggregateAll(client,
+                QueryBuilders.matchAllQuery(), List.of("biocache_store.statistics.entity"),
+                List.of(Metric.sum(AlaElasticsearchUtils.BIOCACHE_STORE_STATISTICS_VALUE),
+                        Metric.sum(COUNT),
+                        Metric.min("biocache_store.statistics.rollup.min"),
+                        Metric.max("biocache_store.statistics.rollup.max")),
+                100, INDEX);) {
+            return stream.collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    final void testRollsUpWindowsAsTheyClose() throws Exception {
+        final long bulks = server.getRequestCount(Endpoint.BULK);
+        try (StatisticsRollup rollup = new StatisticsRollup(client, INDEX,
+                TimeValue.timeValueMinutes(1), TimeValue.timeValueSeconds(10), 1000);) {
+            // 3 minutes of events, 10 per second, for 4 entities
+            for (int i = 0; i < 1800; i++) {
+                rollup.add(START + i * 100L, "load", "records", "dr" + (i % 4), i);
+            }
+            // The first two windows have closed, and the third is still open
+            assertEquals(8L, rollup.getDocumentCount());
+            assertEquals(4, rollup.getOpenKeyCount());
+            assertEquals(2, server.getRequestCount(Endpoint.BULK) - bulks);
+
+            // A late event is still added to its window if it is open
+            rollup.add(START + 2 * 60_000L, "load", "records", "dr0", 5000);
+            assertEquals(4, rollup.getOpenKeyCount());
+        }
+
+        final List<CompositeBucket> entities = entities();
+        assertEquals(4, entities.size());
+        long events = 0;
+        long sum = 0;
+        for (final CompositeBucket entity : entities) {
+            sum += (long) entity.getValue(0);
+            events += (long) entity.getValue(1);
+            assertEquals(3L, entity.getDocCount(), entity.toString());
+        }
+        assertEquals(1801L, events);
+        assertEquals(1799L * 1800 / 2 + 5000, sum);
+        assertEquals(0.0, entities.get(0).getValue(2));
+        assertEquals(5000.0, entities.get(0).getValue(3));
+        assertEquals(1799.0, entities.get(3).getValue(3));
+    }
+
+    @Test
+    final void testFlushesOldestWindowAtMaxKeys() throws Exception {
+        try (StatisticsRollup rollup = new StatisticsRollup(client, INDEX,
+                TimeValue.timeValueHours(1), TimeValue.ZERO, 10);) {
+            for (int i = 0; i < 8; i++) {
+                rollup.add(START + i, "index", "records", "dr" + i, 1);
+            }
+            assertEquals(0L, rollup.getDocumentCount());
+            // A second window takes the number of keys over the maximum
+            for (int i = 0; i < 3; i++) {
+                rollup.add(START - 3_600_000L, "index", "records", "dr" + i, 1);
+            }
+            assertEquals(3L, rollup.getDocumentCount());
+            assertEquals(8, rollup.getOpenKeyCount());
+            // Missing fields are rolled up under their own key
+            rollup.add(START, "index", "records", null, 7);
+            rollup.add(START, "index", "records", null, 8);
+            rollup.flush();
+            assertEquals(0, rollup.getOpenKeyCount());
+            assertEquals(12L, rollup.getDocumentCount());
+            assertEquals(13L, rollup.getEventCount());
+        }
+
+        final List<CompositeBucket> entities = entities();
+        assertEquals(9, entities.size());
+        assertNull(entities.get(0).getKey(0));
+        assertEquals(15.0, entities.get(0).getValue(0));
+        assertEquals(2.0, entities.get(0).getValue(1));
+    }
+
+    @Test
+    final void testRetriesRejectedDocuments() throws Exception {
+        server.rejectNext(Endpoint.BULK, 2).bulkItemRejectionRate(0.3);
+        try (StatisticsRollup rollup = new StatisticsRollup(client, INDEX);) {
+            for (int i = 0; i < 20; i++) {
+                rollup.add(START, "load", "records", "dr" + i, i);
+            }
+            rollup.flush();
+            assertEquals(20L, rollup.getDocumentCount());
+            assertEquals(0L, rollup.getFailedCount());
+        }
+        assertTrue(server.getWriteRejectedCount() > 2L);
+        assertEquals(20, entities().size());
+    }
+
+    @Test
+    final void testReportsDroppedDocuments() throws Exception {
+        server.rejectionRate(Endpoint.BULK, 1.0);
+        final StatisticsRollup rollup = new StatisticsRollup(client, INDEX);
+        for (int i = 0; i < 20; i++) {
+            rollup.add(START, "load", "records", "dr" + i, i);
+        }
+        final IOException e = assertThrows(IOException.class, rollup::close);
+        assertTrue(e.getMessage().contains("20 documents have been dropped"), e.getMessage());
+        assertEquals(0L, rollup.getDocumentCount());
+        assertEquals(20L, rollup.getFailedCount());
+        assertEquals(StatisticsRollup.DEFAULT_MAX_RETRIES + 1,
+                server.getRequestCount(Endpoint.BULK));
+    }
+
+    @Test
+    final void testClosedRollupRejectsEvents() throws Exception {
+        final StatisticsRollup rollup = new StatisticsRollup(client, INDEX);
+        rollup.add(START, "load", "records", "dr1", 1);
+        rollup.close();
+        assertEquals(1L, rollup.getDocumentCount());
+        assertThrows(IllegalStateException.class,
+                () -> rollup.add(START, "load", "records", "dr1", 1));
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ *
+ */
+package au.org.ala.elasticsearch.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import org.elasticsearch.client.RestHighLevelClient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process HTTP server that answers elasticsearch REST requests with
+ * recorded responses, so that the client code can be exercised without a live
+ * cluster.
+ * <p>
+ * Responses are registered for a method and a regular expression matching
+ * the request path, and the first matching response is returned. Requests
+ * that do not match any response get a 404 response.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+class StubElasticsearchServer implements AutoCloseable {
+
+    private final List<StubResponse> responses = new CopyOnWriteArrayList<>();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Start a new server on an ephemeral port on the loopback address.
+     *
+     * @throws IOException
+     *             If the server could not be started.
+     */
+    StubElasticsearchServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "stub-elasticsearch-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return The port that the server is listening on.
+     */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return A new {@link RestHighLevelClient} for this server, which must be
+     *         closed after use.
+     */
+    RestHighLevelClient newClient() {
+        return new ElasticsearchClientBuilder()
+                .host(server.getAddress().getHostString(), getPort(), "http").build();
+    }
+
+    /**
+     * Respond to matching requests with the given JSON body.
+     *
+     * @param method
+     *            The HTTP method to match.
+     * @param pathRegex
+     *            A regular expression matching the whole request path,
+     *            without the query string.
+     * @param status
+     *            The HTTP status code of the response.
+     * @param body
+     *            The JSON body of the response.
+     * @return This server, for chaining.
+     */
+    StubElasticsearchServer respond(final String method, final String pathRegex,
+            final int status, final byte[] body) {
+        responses.add(new StubResponse(method, Pattern.compile(pathRegex), status, body));
+        return this;
+    }
+
+    /**
+     * Respond to matching requests with the JSON body from the given
+     * classpath resource.
+     *
+     * @param method
+     *            The HTTP method to match.
+     * @param pathRegex
+     *            A regular expression matching the whole request path,
+     *            without the query string.
+     * @param resource
+     *            The absolute classpath resource containing the JSON body.
+     * @return This server, for chaining.
+     */
+    StubElasticsearchServer respondWithResource(final String method, final String pathRegex,
+            final String resource) {
+        try (InputStream input = StubElasticsearchServer.class.getResourceAsStream(resource);) {
+            if (input == null) {
+                throw new IllegalArgumentException("Resource not found: " + resource);
+            }
+            return respond(method, pathRegex, 200, input.readAllBytes());
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try (InputStream requestBody = exchange.getRequestBody();) {
+            requestBody.transferTo(OutputStream.nullOutputStream());
+        }
+        final String method = exchange.getRequestMethod();
+        final String path = exchange.getRequestURI().getPath();
+        for (final StubResponse response : responses) {
+            if (response.method.equals(method) && response.pathPattern.matcher(path).matches()) {
+                send(exchange, response.status, response.body);
+                return;
+            }
+        }
+        send(exchange, 404, ("{\"error\":\"No stub response for " + method + " " + path
+                + "\",\"status\":404}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(final HttpExchange exchange, final int status, final byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody();) {
+            output.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static final class StubResponse {
+        private final String method;
+        private final Pattern pathPattern;
+        private final int status;
+        private final byte[] body;
+
+        private StubResponse(final String method, final Pattern pathPattern, final int status,
+                final byte[] body) {
+            this.method = method;
+            this.pathPattern = pathPattern;
+            this.status = status;
+            this.body = body;
+        }
+    }
+}